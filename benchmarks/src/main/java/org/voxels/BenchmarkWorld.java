@@ -0,0 +1,122 @@
+/**
+ * this file is part of Voxels
+ * 
+ * Voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels;
+
+import java.util.Random;
+
+import org.voxels.generate.Rand;
+
+/** the world that the benchmarks run against. it's made from a fixed seed, so
+ * the results can be compared between builds.
+ * 
+ * @author jacob */
+final class BenchmarkWorld
+{
+    private BenchmarkWorld()
+    {
+    }
+
+    /** the JVM arguments for every benchmark fork */
+    public static final String jvmArgs = "-Dvoxels.platform=headless";
+    public static final int seed = 12345;
+    public static final int chunkSize = World.generatedChunkSize;
+    /** the generated area, in chunks */
+    public static final int minCX = -2, maxCX = 2;
+    public static final int minCY = -World.Depth / chunkSize,
+            maxCY = 32 / chunkSize;
+    public static final int minCZ = -2, maxCZ = 2;
+    public static final int chunkCount = (maxCX - minCX) * (maxCY - minCY)
+            * (maxCZ - minCZ);
+    public static final int randomPositionCount = 1 << 16;
+    /** random positions in the generated area */
+    public static final int[] randomX = new int[randomPositionCount],
+            randomY = new int[randomPositionCount],
+            randomZ = new int[randomPositionCount];
+
+    static
+    {
+        Random rand = new Random(seed);
+        for(int i = 0; i < randomPositionCount; i++)
+        {
+            randomX[i] = minCX * chunkSize
+                    + rand.nextInt((maxCX - minCX) * chunkSize);
+            randomY[i] = minCY * chunkSize
+                    + rand.nextInt((maxCY - minCY) * chunkSize);
+            randomZ[i] = minCZ * chunkSize
+                    + rand.nextInt((maxCZ - minCZ) * chunkSize);
+        }
+    }
+
+    private static boolean isGenerated(final int x, final int y, final int z)
+    {
+        return World.world.getBlock(x, y, z) != null;
+    }
+
+    /** makes a new world from <code>seed</code> and generates the area
+     * through the normal chunk generator, without updating the lighting
+     * 
+     * @return the number of chunks generated */
+    public static int generateChunks()
+    {
+        World.clear(seed);
+        Rand.Settings settings = Rand.Settings.allocate();
+        World.world.setLandGeneratorSettings(settings, true);
+        settings.free();
+        int count = 0;
+        for(;;)
+        {
+            int missing = 0;
+            for(int cx = minCX; cx < maxCX; cx++)
+            {
+                for(int cy = minCY; cy < maxCY; cy++)
+                {
+                    for(int cz = minCZ; cz < maxCZ; cz++)
+                    {
+                        int x = cx * chunkSize, y = cy * chunkSize, z = cz
+                                * chunkSize;
+                        if(isGenerated(x, y, z))
+                            continue;
+                        missing++;
+                        World.world.flagGenerate(x, y, z);
+                    }
+                }
+            }
+            if(count == 0)
+                count = missing;
+            if(missing == 0)
+                return count;
+            World.world.generateChunks();
+            try
+            {
+                Thread.sleep(1);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /** makes a new world from <code>seed</code>, generates the area and
+     * updates the lighting */
+    public static void generate()
+    {
+        generateChunks();
+        World.world.updateLight();
+    }
+}
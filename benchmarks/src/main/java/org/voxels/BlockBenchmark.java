@@ -0,0 +1,110 @@
+/**
+ * this file is part of Voxels
+ * 
+ * Voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.voxels.generate.Tree;
+
+/** benchmarks for <code>Block</code>
+ * 
+ * @author jacob */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = BenchmarkWorld.jvmArgs)
+@State(Scope.Thread)
+public class BlockBenchmark
+{
+    private Block[][] reduceArrays;
+    private int reduceIndex = 0;
+
+    private static Block[] makeReduceArray(final Block b0,
+                                           final Block b1,
+                                           final Block b2,
+                                           final Block b3,
+                                           final Block b4,
+                                           final Block b5,
+                                           final Block b6,
+                                           final Block b7,
+                                           final Block b8)
+    {
+        return new Block[]
+        {
+            b0, b1, b2, b3, b4, b5, b6, b7, b8
+        };
+    }
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        Block plank = Block.NewPlank(Tree.TreeType.Oak);
+        Block cobblestone = Block.NewCobblestone();
+        Block stick = Block.NewStick();
+        Block stone = Block.NewStone();
+        this.reduceArrays = new Block[][]
+        {
+            makeReduceArray(plank,
+                            plank,
+                            plank,
+                            plank,
+                            null,
+                            plank,
+                            plank,
+                            plank,
+                            plank),
+            makeReduceArray(cobblestone,
+                            cobblestone,
+                            cobblestone,
+                            null,
+                            stick,
+                            null,
+                            null,
+                            stick,
+                            null),
+            makeReduceArray(null,
+                            null,
+                            null,
+                            null,
+                            plank,
+                            null,
+                            null,
+                            null,
+                            null),
+            makeReduceArray(stone,
+                            stick,
+                            null,
+                            null,
+                            plank,
+                            null,
+                            cobblestone,
+                            null,
+                            stone),
+        };
+    }
+
+    /** finds the crafting recipe for a 3x3 grid of blocks */
+    @Benchmark
+    public Block.ReduceDescriptor reduce()
+    {
+        int i = this.reduceIndex;
+        this.reduceIndex = (i + 1) % this.reduceArrays.length;
+        return Block.reduce(this.reduceArrays[i], 3);
+    }
+}
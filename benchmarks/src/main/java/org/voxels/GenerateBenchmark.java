@@ -0,0 +1,82 @@
+/**
+ * this file is part of Voxels
+ * 
+ * Voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.voxels.generate.GeneratedChunk;
+import org.voxels.generate.Rand;
+
+/** benchmarks for the chunk generator
+ * 
+ * @author jacob */
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = BenchmarkWorld.jvmArgs)
+public class GenerateBenchmark
+{
+    /** @author jacob */
+    @State(Scope.Thread)
+    public static class LandGenerator
+    {
+        public Rand rand;
+        /** the next chunk to generate. it moves to a new area after each
+         * column, so the caches start out cold like they do when exploring */
+        public int cx = 0, cy = BenchmarkWorld.minCY;
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            this.rand = Rand.create(BenchmarkWorld.seed, null);
+        }
+    }
+
+    /** generates one chunk with <code>Rand.genChunk</code> */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int genChunk(final LandGenerator g)
+    {
+        final int chunkSize = BenchmarkWorld.chunkSize;
+        GeneratedChunk c = g.rand.genChunk(g.cx * chunkSize,
+                                           g.cy * chunkSize,
+                                           0,
+                                           chunkSize);
+        int retval = c.cx;
+        c.free();
+        if(++g.cy >= BenchmarkWorld.maxCY)
+        {
+            g.cy = BenchmarkWorld.minCY;
+            g.cx++;
+        }
+        return retval;
+    }
+
+    /** generates the whole benchmark area in a new world through
+     * <code>World.generateChunks</code>, the chunk generator threads and
+     * <code>addGeneratedChunk</code> */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public int generateChunks()
+    {
+        return BenchmarkWorld.generateChunks();
+    }
+}
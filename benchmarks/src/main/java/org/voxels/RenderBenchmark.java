@@ -0,0 +1,97 @@
+/**
+ * this file is part of Voxels
+ * 
+ * Voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** benchmarks for drawing the world into <code>RenderingStream</code>s
+ * 
+ * @author jacob */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = BenchmarkWorld.jvmArgs)
+@State(Scope.Thread)
+public class RenderBenchmark
+{
+    private static final int viewCount = 64;
+    private RenderingStream rs;
+    private int chunkIndex = 0;
+    private int viewIndex = 0;
+    private final Matrix worldToCamera = Matrix.allocate();
+    private final Matrix rotation = Matrix.allocate();
+    private final Vector cameraPos = Vector.allocate();
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        BenchmarkWorld.generate();
+        this.rs = RenderingStream.allocate();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        RenderingStream.free(this.rs);
+    }
+
+    /** draws the blocks of one chunk with <code>Block.draw</code>. the
+     * lighting arrays are rebuilt after every pass over the area, like they
+     * are when the lighting changes. */
+    @Benchmark
+    public boolean drawChunkBlocks()
+    {
+        final int sizeX = BenchmarkWorld.maxCX - BenchmarkWorld.minCX;
+        final int sizeY = BenchmarkWorld.maxCY - BenchmarkWorld.minCY;
+        int i = this.chunkIndex;
+        if(i == 0)
+            World.world.invalidateLightingArrays();
+        this.chunkIndex = (i + 1) % BenchmarkWorld.chunkCount;
+        int cx = BenchmarkWorld.minCX + i % sizeX;
+        i /= sizeX;
+        int cy = BenchmarkWorld.minCY + i % sizeY;
+        i /= sizeY;
+        int cz = BenchmarkWorld.minCZ + i;
+        this.rs.clear();
+        return World.world.drawChunkBlocks(this.rs,
+                                           cx * BenchmarkWorld.chunkSize,
+                                           cy * BenchmarkWorld.chunkSize,
+                                           cz * BenchmarkWorld.chunkSize);
+    }
+
+    /** finds the visible chunks for a camera looking around from above or
+     * below the ground */
+    @Benchmark
+    public int chunkVisibility()
+    {
+        int i = this.viewIndex;
+        this.viewIndex = (i + 1) % viewCount;
+        float y = (i % 2 == 0) ? -20.5f : 20.5f;
+        this.cameraPos.set(0.5f, y, 0.5f);
+        Matrix.setToTranslate(this.worldToCamera,
+                              -this.cameraPos.getX(),
+                              -this.cameraPos.getY(),
+                              -this.cameraPos.getZ());
+        Matrix.setToRotateY(this.rotation, Math.PI * 2 * i / viewCount);
+        this.worldToCamera.concatAndSet(this.rotation);
+        return World.world.updateChunkVisibility(this.cameraPos,
+                                                 this.worldToCamera);
+    }
+}
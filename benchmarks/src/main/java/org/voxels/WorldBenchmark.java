@@ -0,0 +1,164 @@
+/**
+ * this file is part of Voxels
+ * 
+ * Voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** benchmarks for reading and changing the blocks in the world
+ * 
+ * @author jacob */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = BenchmarkWorld.jvmArgs)
+@State(Scope.Thread)
+public class WorldBenchmark
+{
+    private static final int setBlockCount = 1024;
+    private static final int changedLightCount = 256;
+
+    /** @author jacob */
+    @State(Scope.Benchmark)
+    public static class GeneratedWorld
+    {
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            BenchmarkWorld.generate();
+        }
+    }
+
+    /** updates the lighting after each invocation, so the lighting work
+     * left by <code>setBlock</code> isn't timed and doesn't pile up
+     * 
+     * @author jacob */
+    @State(Scope.Thread)
+    public static class LightingAfter
+    {
+        @TearDown(Level.Invocation)
+        public void tearDown()
+        {
+            World.world.updateLight();
+        }
+    }
+
+    /** places or removes torches before each invocation, so
+     * <code>updateLight</code> has the same amount of work each time
+     * 
+     * @author jacob */
+    @State(Scope.Thread)
+    public static class ChangedLights
+    {
+        @Setup(Level.Invocation)
+        public void setup()
+        {
+            for(int i = 0; i < changedLightCount; i++)
+            {
+                int x = BenchmarkWorld.randomX[i];
+                int y = BenchmarkWorld.randomY[i];
+                int z = BenchmarkWorld.randomZ[i];
+                Block old = World.world.getBlock(x, y, z);
+                if(old == null || old.getType() != BlockType.BTTorch)
+                    World.world.setBlock(x, y, z, Block.NewTorch(4));
+                else
+                    World.world.setBlock(x, y, z, Block.NewEmpty());
+            }
+        }
+    }
+
+    /** the saved world for <code>read</code>
+     * 
+     * @author jacob */
+    @State(Scope.Benchmark)
+    public static class SavedWorld
+    {
+        public byte[] savedWorld;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException
+        {
+            BenchmarkWorld.generate();
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            World.write(new DataOutputStream(os));
+            this.savedWorld = os.toByteArray();
+        }
+    }
+
+    private int position = 0;
+
+    private int nextPosition()
+    {
+        int retval = this.position;
+        this.position = (retval + 1) % BenchmarkWorld.randomPositionCount;
+        return retval;
+    }
+
+    @Benchmark
+    public Block getBlock(final GeneratedWorld world)
+    {
+        int i = nextPosition();
+        return World.world.getBlock(BenchmarkWorld.randomX[i],
+                                    BenchmarkWorld.randomY[i],
+                                    BenchmarkWorld.randomZ[i]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(setBlockCount)
+    public void setBlock(final GeneratedWorld world,
+                         final LightingAfter lightingAfter)
+    {
+        for(int i = 0; i < setBlockCount; i++)
+        {
+            int x = BenchmarkWorld.randomX[i];
+            int y = BenchmarkWorld.randomY[i];
+            int z = BenchmarkWorld.randomZ[i];
+            Block old = World.world.getBlock(x, y, z);
+            if(old == null || old.getType() != BlockType.BTStone)
+                World.world.setBlock(x, y, z, Block.NewStone());
+            else
+                World.world.setBlock(x, y, z, Block.NewEmpty());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(changedLightCount)
+    public void updateLight(final GeneratedWorld world,
+                            final ChangedLights changedLights)
+    {
+        World.world.updateLight();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int write(final GeneratedWorld world) throws IOException
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        World.write(new DataOutputStream(os));
+        return os.size();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int read(final SavedWorld savedWorld) throws IOException
+    {
+        return World.read(new DataInputStream(new ByteArrayInputStream(savedWorld.savedWorld)));
+    }
+}
@@ -201,14 +201,15 @@ public class Block implements GameObject, Allocatable
 
     private final Data data;
     private int sunlight, scatteredSunlight, light;
+    /** the smoothed lighting at the corners of this block: the scattered
+     * sunlight for the 8 corners followed by the light for the 8 corners */
     private int lighting[];
-    private int curSunlightFactor;
     private static final Allocator<int[]> lightingArrayAllocator = new Allocator<int[]>()
     {
         @Override
         protected int[] allocateInternal()
         {
-            return new int[8];
+            return new int[16];
         }
     };
 
@@ -229,7 +230,6 @@ public class Block implements GameObject, Allocatable
         this.light = 0;
         this.lighting = null;
         this.curDisplayListValidTag = -1;
-        this.curSunlightFactor = 0;
         this.data.init();
         this.type = newtype;
         this.isFree = false;
@@ -310,7 +310,6 @@ public class Block implements GameObject, Allocatable
         this.scatteredSunlight = rt.scatteredSunlight;
         this.light = rt.light;
         this.curDisplayListValidTag = rt.curDisplayListValidTag;
-        this.curSunlightFactor = rt.curSunlightFactor;
         if(rt.lighting == null)
             this.lighting = null;
         else
@@ -1469,6 +1468,8 @@ public class Block implements GameObject, Allocatable
                                             final boolean isItemGlowing)
     {
         float c1, c2, c3, c4;
+        float s1 = 1, s2 = 1, s3 = 1, s4 = 1;
+        float l1 = 1, l2 = 1, l3 = 1, l4 = 1;
         Vector normal = Vector.sub(drawFace_t1, p2, p1)
                               .crossAndSet(Vector.sub(drawFace_t2, p3, p1))
                               .normalizeAndSet();
@@ -1493,10 +1494,24 @@ public class Block implements GameObject, Allocatable
             c2 = c1;
             c3 = c1;
             c4 = c1;
-            c1 *= getWorldLighting(p1, normal, isEntity, bx, by, bz);
-            c2 *= getWorldLighting(p2, normal, isEntity, bx, by, bz);
-            c3 *= getWorldLighting(p3, normal, isEntity, bx, by, bz);
-            c4 *= getWorldLighting(p4, normal, isEntity, bx, by, bz);
+            if(isEntity)
+            {
+                c1 *= getWorldLighting(p1, normal, true, bx, by, bz);
+                c2 *= getWorldLighting(p2, normal, true, bx, by, bz);
+                c3 *= getWorldLighting(p3, normal, true, bx, by, bz);
+                c4 *= getWorldLighting(p4, normal, true, bx, by, bz);
+            }
+            else
+            {
+                s1 = getWorldLightingChannel(p1, normal, bx, by, bz, true);
+                l1 = getWorldLightingChannel(p1, normal, bx, by, bz, false);
+                s2 = getWorldLightingChannel(p2, normal, bx, by, bz, true);
+                l2 = getWorldLightingChannel(p2, normal, bx, by, bz, false);
+                s3 = getWorldLightingChannel(p3, normal, bx, by, bz, true);
+                l3 = getWorldLightingChannel(p3, normal, bx, by, bz, false);
+                s4 = getWorldLightingChannel(p4, normal, bx, by, bz, true);
+                l4 = getWorldLightingChannel(p4, normal, bx, by, bz, false);
+            }
         }
         else
         {
@@ -1508,20 +1523,24 @@ public class Block implements GameObject, Allocatable
             c2 = c1;
             c3 = c1;
             c4 = c1;
-            c1 *= world.getLighting(p1, bx, by, bz);
-            c2 *= world.getLighting(p2, bx, by, bz);
-            c3 *= world.getLighting(p3, bx, by, bz);
-            c4 *= world.getLighting(p4, bx, by, bz);
+            s1 = world.getLightingChannel(p1, bx, by, bz, true);
+            l1 = world.getLightingChannel(p1, bx, by, bz, false);
+            s2 = world.getLightingChannel(p2, bx, by, bz, true);
+            l2 = world.getLightingChannel(p2, bx, by, bz, false);
+            s3 = world.getLightingChannel(p3, bx, by, bz, true);
+            l3 = world.getLightingChannel(p3, bx, by, bz, false);
+            s4 = world.getLightingChannel(p4, bx, by, bz, true);
+            l4 = world.getLightingChannel(p4, bx, by, bz, false);
         }
         rs.beginTriangle(texture);
-        rs.vertex(p1, u1, v1, c1, c1, c1, 1.0f);
-        rs.vertex(p2, u2, v2, c2, c2, c2, 1.0f);
-        rs.vertex(p3, u3, v3, c3, c3, c3, 1.0f);
+        rs.vertex(p1, u1, v1, c1, c1, c1, 1.0f, s1, l1);
+        rs.vertex(p2, u2, v2, c2, c2, c2, 1.0f, s2, l2);
+        rs.vertex(p3, u3, v3, c3, c3, c3, 1.0f, s3, l3);
         rs.endTriangle();
         rs.beginTriangle(texture);
-        rs.vertex(p3, u3, v3, c3, c3, c3, 1.0f);
-        rs.vertex(p4, u4, v4, c4, c4, c4, 1.0f);
-        rs.vertex(p1, u1, v1, c1, c1, c1, 1.0f);
+        rs.vertex(p3, u3, v3, c3, c3, c3, 1.0f, s3, l3);
+        rs.vertex(p4, u4, v4, c4, c4, c4, 1.0f, s4, l4);
+        rs.vertex(p1, u1, v1, c1, c1, c1, 1.0f, s1, l1);
         rs.endTriangle();
         if(doublesided)
             drawFace(rs,
@@ -1571,6 +1590,58 @@ public class Block implements GameObject, Allocatable
         return retval;
     }
 
+    /** gets the point that the lighting of a block's face is read from : a
+     * little in front of the face and a little toward the center of the
+     * block
+     * 
+     * @param dest
+     *            the vector to put the point in
+     * @param p
+     *            the point on the face
+     * @param normal
+     *            the normal of the face
+     * @param bx
+     *            the x coordinate of the block
+     * @param by
+     *            the y coordinate of the block
+     * @param bz
+     *            the z coordinate of the block
+     * @return <code>dest</code> */
+    static Vector getLightingPoint(final Vector dest,
+                                   final Vector p,
+                                   final Vector normal,
+                                   final int bx,
+                                   final int by,
+                                   final int bz)
+    {
+        if(!USE_LIGHTING_OFFSET)
+            return Vector.set(dest, p);
+        return Vector.set(dest, normal)
+                     .mulAndSet(0.04f)
+                     .addAndSet(p)
+                     .subAndSet(bx + 0.5f, by + 0.5f, bz + 0.5f)
+                     .mulAndSet(0.98f)
+                     .addAndSet(bx + 0.5f, by + 0.5f, bz + 0.5f);
+    }
+
+    static float getWorldLightingChannel(final Vector p,
+                                         final Vector normal,
+                                         final int bx,
+                                         final int by,
+                                         final int bz,
+                                         final boolean sunlight)
+    {
+        Vector offsetedP = getLightingPoint(Vector.allocate(),
+                                            p,
+                                            normal,
+                                            bx,
+                                            by,
+                                            bz);
+        float retval = world.getLightingChannel(offsetedP, sunlight);
+        offsetedP.free();
+        return retval;
+    }
+
     @SuppressWarnings("unused")
     private static RenderingStream
         drawFace(final RenderingStream rs,
@@ -1593,6 +1664,8 @@ public class Block implements GameObject, Allocatable
                  final boolean isItemGlowing)
     {
         float c1, c2, c3;
+        float s1 = 1, s2 = 1, s3 = 1;
+        float l1 = 1, l2 = 1, l3 = 1;
         Vector normal = Vector.sub(drawFace_t1, p2, p1)
                               .crossAndSet(Vector.sub(drawFace_t2, p3, p1))
                               .normalizeAndSet();
@@ -1615,9 +1688,21 @@ public class Block implements GameObject, Allocatable
                 c1 = 1;
             c2 = c1;
             c3 = c1;
-            c1 *= getWorldLighting(p1, normal, isEntity, bx, by, bz);
-            c2 *= getWorldLighting(p2, normal, isEntity, bx, by, bz);
-            c3 *= getWorldLighting(p3, normal, isEntity, bx, by, bz);
+            if(isEntity)
+            {
+                c1 *= getWorldLighting(p1, normal, true, bx, by, bz);
+                c2 *= getWorldLighting(p2, normal, true, bx, by, bz);
+                c3 *= getWorldLighting(p3, normal, true, bx, by, bz);
+            }
+            else
+            {
+                s1 = getWorldLightingChannel(p1, normal, bx, by, bz, true);
+                l1 = getWorldLightingChannel(p1, normal, bx, by, bz, false);
+                s2 = getWorldLightingChannel(p2, normal, bx, by, bz, true);
+                l2 = getWorldLightingChannel(p2, normal, bx, by, bz, false);
+                s3 = getWorldLightingChannel(p3, normal, bx, by, bz, true);
+                l3 = getWorldLightingChannel(p3, normal, bx, by, bz, false);
+            }
         }
         else
         {
@@ -1628,14 +1713,17 @@ public class Block implements GameObject, Allocatable
                 c1 = 1;
             c2 = c1;
             c3 = c1;
-            c1 *= world.getLighting(p1, bx, by, bz);
-            c2 *= world.getLighting(p2, bx, by, bz);
-            c3 *= world.getLighting(p3, bx, by, bz);
+            s1 = world.getLightingChannel(p1, bx, by, bz, true);
+            l1 = world.getLightingChannel(p1, bx, by, bz, false);
+            s2 = world.getLightingChannel(p2, bx, by, bz, true);
+            l2 = world.getLightingChannel(p2, bx, by, bz, false);
+            s3 = world.getLightingChannel(p3, bx, by, bz, true);
+            l3 = world.getLightingChannel(p3, bx, by, bz, false);
         }
         rs.beginTriangle(texture);
-        rs.vertex(p1, u1, v1, c1, c1, c1, 1.0f);
-        rs.vertex(p2, u2, v2, c2, c2, c2, 1.0f);
-        rs.vertex(p3, u3, v3, c3, c3, c3, 1.0f);
+        rs.vertex(p1, u1, v1, c1, c1, c1, 1.0f, s1, l1);
+        rs.vertex(p2, u2, v2, c2, c2, c2, 1.0f, s2, l2);
+        rs.vertex(p3, u3, v3, c3, c3, c3, 1.0f, s3, l3);
         rs.endTriangle();
         if(doublesided)
             drawFace(rs,
@@ -1686,6 +1774,8 @@ public class Block implements GameObject, Allocatable
                                             final float b)
     {
         float c1, c2, c3, c4;
+        float s1 = 1, s2 = 1, s3 = 1, s4 = 1;
+        float l1 = 1, l2 = 1, l3 = 1, l4 = 1;
         Vector normal = Vector.sub(drawFace_t1, p2, p1)
                               .crossAndSet(Vector.sub(drawFace_t2, p3, p1))
                               .normalizeAndSet();
@@ -1710,10 +1800,24 @@ public class Block implements GameObject, Allocatable
             c2 = c1;
             c3 = c1;
             c4 = c1;
-            c1 *= getWorldLighting(p1, normal, isEntity, bx, by, bz);
-            c2 *= getWorldLighting(p2, normal, isEntity, bx, by, bz);
-            c3 *= getWorldLighting(p3, normal, isEntity, bx, by, bz);
-            c4 *= getWorldLighting(p4, normal, isEntity, bx, by, bz);
+            if(isEntity)
+            {
+                c1 *= getWorldLighting(p1, normal, true, bx, by, bz);
+                c2 *= getWorldLighting(p2, normal, true, bx, by, bz);
+                c3 *= getWorldLighting(p3, normal, true, bx, by, bz);
+                c4 *= getWorldLighting(p4, normal, true, bx, by, bz);
+            }
+            else
+            {
+                s1 = getWorldLightingChannel(p1, normal, bx, by, bz, true);
+                l1 = getWorldLightingChannel(p1, normal, bx, by, bz, false);
+                s2 = getWorldLightingChannel(p2, normal, bx, by, bz, true);
+                l2 = getWorldLightingChannel(p2, normal, bx, by, bz, false);
+                s3 = getWorldLightingChannel(p3, normal, bx, by, bz, true);
+                l3 = getWorldLightingChannel(p3, normal, bx, by, bz, false);
+                s4 = getWorldLightingChannel(p4, normal, bx, by, bz, true);
+                l4 = getWorldLightingChannel(p4, normal, bx, by, bz, false);
+            }
         }
         else
         {
@@ -1725,20 +1829,24 @@ public class Block implements GameObject, Allocatable
             c2 = c1;
             c3 = c1;
             c4 = c1;
-            c1 *= world.getLighting(p1, bx, by, bz);
-            c2 *= world.getLighting(p2, bx, by, bz);
-            c3 *= world.getLighting(p3, bx, by, bz);
-            c4 *= world.getLighting(p4, bx, by, bz);
+            s1 = world.getLightingChannel(p1, bx, by, bz, true);
+            l1 = world.getLightingChannel(p1, bx, by, bz, false);
+            s2 = world.getLightingChannel(p2, bx, by, bz, true);
+            l2 = world.getLightingChannel(p2, bx, by, bz, false);
+            s3 = world.getLightingChannel(p3, bx, by, bz, true);
+            l3 = world.getLightingChannel(p3, bx, by, bz, false);
+            s4 = world.getLightingChannel(p4, bx, by, bz, true);
+            l4 = world.getLightingChannel(p4, bx, by, bz, false);
         }
         rs.beginTriangle(texture);
-        rs.vertex(p1, u1, v1, c1 * r, c1 * g, c1 * b, 1.0f);
-        rs.vertex(p2, u2, v2, c2 * r, c2 * g, c2 * b, 1.0f);
-        rs.vertex(p3, u3, v3, c3 * r, c3 * g, c3 * b, 1.0f);
+        rs.vertex(p1, u1, v1, c1 * r, c1 * g, c1 * b, 1.0f, s1, l1);
+        rs.vertex(p2, u2, v2, c2 * r, c2 * g, c2 * b, 1.0f, s2, l2);
+        rs.vertex(p3, u3, v3, c3 * r, c3 * g, c3 * b, 1.0f, s3, l3);
         rs.endTriangle();
         rs.beginTriangle(texture);
-        rs.vertex(p3, u3, v3, c3 * r, c3 * g, c3 * b, 1.0f);
-        rs.vertex(p4, u4, v4, c4 * r, c4 * g, c4 * b, 1.0f);
-        rs.vertex(p1, u1, v1, c1 * r, c1 * g, c1 * b, 1.0f);
+        rs.vertex(p3, u3, v3, c3 * r, c3 * g, c3 * b, 1.0f, s3, l3);
+        rs.vertex(p4, u4, v4, c4 * r, c4 * g, c4 * b, 1.0f, s4, l4);
+        rs.vertex(p1, u1, v1, c1 * r, c1 * g, c1 * b, 1.0f, s1, l1);
         rs.endTriangle();
         if(doublesided)
             drawFace(rs,
@@ -1793,6 +1901,8 @@ public class Block implements GameObject, Allocatable
                  final float b)
     {
         float c1, c2, c3;
+        float s1 = 1, s2 = 1, s3 = 1;
+        float l1 = 1, l2 = 1, l3 = 1;
         Vector normal = Vector.sub(drawFace_t1, p2, p1)
                               .crossAndSet(Vector.sub(drawFace_t2, p3, p1))
                               .normalizeAndSet();
@@ -1815,9 +1925,21 @@ public class Block implements GameObject, Allocatable
                 c1 = 1;
             c2 = c1;
             c3 = c1;
-            c1 *= getWorldLighting(p1, normal, isEntity, bx, by, bz);
-            c2 *= getWorldLighting(p2, normal, isEntity, bx, by, bz);
-            c3 *= getWorldLighting(p3, normal, isEntity, bx, by, bz);
+            if(isEntity)
+            {
+                c1 *= getWorldLighting(p1, normal, true, bx, by, bz);
+                c2 *= getWorldLighting(p2, normal, true, bx, by, bz);
+                c3 *= getWorldLighting(p3, normal, true, bx, by, bz);
+            }
+            else
+            {
+                s1 = getWorldLightingChannel(p1, normal, bx, by, bz, true);
+                l1 = getWorldLightingChannel(p1, normal, bx, by, bz, false);
+                s2 = getWorldLightingChannel(p2, normal, bx, by, bz, true);
+                l2 = getWorldLightingChannel(p2, normal, bx, by, bz, false);
+                s3 = getWorldLightingChannel(p3, normal, bx, by, bz, true);
+                l3 = getWorldLightingChannel(p3, normal, bx, by, bz, false);
+            }
         }
         else
         {
@@ -1828,14 +1950,17 @@ public class Block implements GameObject, Allocatable
                 c1 = 1;
             c2 = c1;
             c3 = c1;
-            c1 *= world.getLighting(p1, bx, by, bz);
-            c2 *= world.getLighting(p2, bx, by, bz);
-            c3 *= world.getLighting(p3, bx, by, bz);
+            s1 = world.getLightingChannel(p1, bx, by, bz, true);
+            l1 = world.getLightingChannel(p1, bx, by, bz, false);
+            s2 = world.getLightingChannel(p2, bx, by, bz, true);
+            l2 = world.getLightingChannel(p2, bx, by, bz, false);
+            s3 = world.getLightingChannel(p3, bx, by, bz, true);
+            l3 = world.getLightingChannel(p3, bx, by, bz, false);
         }
         rs.beginTriangle(texture);
-        rs.vertex(p1, u1, v1, c1 * r, c1 * g, c1 * b, 1.0f);
-        rs.vertex(p2, u2, v2, c2 * r, c2 * g, c2 * b, 1.0f);
-        rs.vertex(p3, u3, v3, c3 * r, c3 * g, c3 * b, 1.0f);
+        rs.vertex(p1, u1, v1, c1 * r, c1 * g, c1 * b, 1.0f, s1, l1);
+        rs.vertex(p2, u2, v2, c2 * r, c2 * g, c2 * b, 1.0f, s2, l2);
+        rs.vertex(p3, u3, v3, c3 * r, c3 * g, c3 * b, 1.0f, s3, l3);
         rs.endTriangle();
         if(doublesided)
             drawFace(rs,
@@ -3206,25 +3331,7 @@ public class Block implements GameObject, Allocatable
         }
         else
         {
-            Block nx = world.getBlock(bx - 1, by, bz);
-            Block px = world.getBlock(bx + 1, by, bz);
-            Block ny = world.getBlock(bx, by - 1, bz);
-            Block py = world.getBlock(bx, by + 1, bz);
-            Block nz = world.getBlock(bx, by, bz - 1);
-            Block pz = world.getBlock(bx, by, bz + 1);
-            drawMask = 0;
-            if(nx != null && !nx.isOpaque())
-                drawMask |= DMaskNX;
-            if(px != null && !px.isOpaque())
-                drawMask |= DMaskPX;
-            if(ny != null && !ny.isOpaque())
-                drawMask |= DMaskNY;
-            if(py != null && !py.isOpaque())
-                drawMask |= DMaskPY;
-            if(nz != null && !nz.isOpaque())
-                drawMask |= DMaskNZ;
-            if(pz != null && !pz.isOpaque())
-                drawMask |= DMaskPZ;
+            drawMask = world.getFaceMask(bx, by, bz);
         }
         internalDraw(rs,
                      drawMask,
@@ -3258,25 +3365,7 @@ public class Block implements GameObject, Allocatable
         }
         else
         {
-            Block nx = world.getBlock(bx - 1, by, bz);
-            Block px = world.getBlock(bx + 1, by, bz);
-            Block ny = world.getBlock(bx, by - 1, bz);
-            Block py = world.getBlock(bx, by + 1, bz);
-            Block nz = world.getBlock(bx, by, bz - 1);
-            Block pz = world.getBlock(bx, by, bz + 1);
-            drawMask = 0;
-            if(nx != null && !nx.isOpaque())
-                drawMask |= DMaskNX;
-            if(px != null && !px.isOpaque())
-                drawMask |= DMaskPX;
-            if(ny != null && !ny.isOpaque())
-                drawMask |= DMaskNY;
-            if(py != null && !py.isOpaque())
-                drawMask |= DMaskPY;
-            if(nz != null && !nz.isOpaque())
-                drawMask |= DMaskNZ;
-            if(pz != null && !pz.isOpaque())
-                drawMask |= DMaskPZ;
+            drawMask = world.getFaceMask(bx, by, bz);
         }
         internalDraw(rs,
                      drawMask,
@@ -3293,6 +3382,115 @@ public class Block implements GameObject, Allocatable
         return rs;
     }
 
+    /** adds this block to <code>mesher</code> instead of drawing it, if this
+     * block is drawn as solid cubes
+     * 
+     * @param mesher
+     *            the mesher to add to
+     * @param x
+     *            the x coordinate of this block in the chunk
+     * @param y
+     *            the y coordinate of this block in the chunk
+     * @param z
+     *            the z coordinate of this block in the chunk
+     * @param cx
+     *            the x coordinate of the chunk
+     * @param cy
+     *            the y coordinate of the chunk
+     * @param cz
+     *            the z coordinate of the chunk
+     * @param solidDrawMask
+     *            the faces that are next to blocks that aren't opaque
+     * @return false if this block can't be added to <code>mesher</code> and
+     *         has to be drawn */
+    boolean addToGreedyMesher(final GreedyMesher mesher,
+                              final int x,
+                              final int y,
+                              final int z,
+                              final int cx,
+                              final int cy,
+                              final int cz,
+                              final int solidDrawMask)
+    {
+        if(this.type.isDoubleSided())
+            return false;
+        TextureHandle img;
+        int drawMask = solidDrawMask;
+        switch(this.type.drawType)
+        {
+        case BDTSolidAllSides:
+            drawMask = 0x3F;
+            //$FALL-THROUGH$
+        case BDTSolid:
+            img = this.type.textures[this.data.intdata];
+            if(!GreedyMesher.canMesh(img))
+                return false;
+            mesher.addFaces(x,
+                            y,
+                            z,
+                            drawMask,
+                            img,
+                            0,
+                            isGlowing(),
+                            isTranslucent(),
+                            1,
+                            1,
+                            1);
+            return true;
+        case BDTCustom:
+            if(this.type != BlockType.BTGrass)
+                return false;
+            Block py = world.peekBlockEval(x + cx, y + cy + 1, z + cz);
+            if(py != null && py.getType() == BlockType.BTSnow)
+            {
+                img = this.type.textures[1];
+                if(!GreedyMesher.canMesh(img))
+                    return false;
+                mesher.addFaces(x,
+                                y,
+                                z,
+                                drawMask,
+                                img,
+                                0,
+                                isGlowing(),
+                                isTranslucent(),
+                                1,
+                                1,
+                                1);
+                return true;
+            }
+            img = this.type.textures[3];
+            TextureHandle overlay = this.type.textures[2];
+            if(!GreedyMesher.canMesh(img) || !GreedyMesher.canMesh(overlay))
+                return false;
+            mesher.addFaces(x,
+                            y,
+                            z,
+                            drawMask,
+                            img,
+                            0,
+                            isGlowing(),
+                            isTranslucent(),
+                            1,
+                            1,
+                            1);
+            mesher.addFaces(x,
+                            y,
+                            z,
+                            drawMask,
+                            overlay,
+                            1,
+                            isGlowing(),
+                            isTranslucent(),
+                            world.getBiomeGrassColorR(x + cx, z + cz),
+                            world.getBiomeGrassColorG(x + cx, z + cz),
+                            world.getBiomeGrassColorB(x + cx, z + cz));
+            return true;
+        default:
+            return false;
+        }
+    }
+
     private RenderingStream drawSolid(final RenderingStream rs,
                                       final Matrix blockToWorld,
                                       final int bx,
@@ -3333,25 +3531,7 @@ public class Block implements GameObject, Allocatable
         }
         else
         {
-            Block nx = world.getBlock(bx - 1, by, bz);
-            Block px = world.getBlock(bx + 1, by, bz);
-            Block ny = world.getBlock(bx, by - 1, bz);
-            Block py = world.getBlock(bx, by + 1, bz);
-            Block nz = world.getBlock(bx, by, bz - 1);
-            Block pz = world.getBlock(bx, by, bz + 1);
-            drawMask = 0;
-            if(nx != null && !nx.isOpaque())
-                drawMask |= DMaskNX;
-            if(px != null && !px.isOpaque())
-                drawMask |= DMaskPX;
-            if(ny != null && !ny.isOpaque())
-                drawMask |= DMaskNY;
-            if(py != null && !py.isOpaque())
-                drawMask |= DMaskPY;
-            if(nz != null && !nz.isOpaque())
-                drawMask |= DMaskNZ;
-            if(pz != null && !pz.isOpaque())
-                drawMask |= DMaskPZ;
+            drawMask = world.getFaceMask(bx, by, bz);
         }
         internalDraw(rs,
                      drawMask,
@@ -4716,25 +4896,7 @@ public class Block implements GameObject, Allocatable
                 }
                 else
                 {
-                    Block nx = world.getBlock(bx - 1, by, bz);
-                    Block px = world.getBlock(bx + 1, by, bz);
-                    Block ny = world.getBlock(bx, by - 1, bz);
-                    Block py = world.getBlock(bx, by + 1, bz);
-                    Block nz = world.getBlock(bx, by, bz - 1);
-                    Block pz = world.getBlock(bx, by, bz + 1);
-                    drawMask = 0;
-                    if(nx != null && !nx.isOpaque())
-                        drawMask |= DMaskNX;
-                    if(px != null && !px.isOpaque())
-                        drawMask |= DMaskPX;
-                    if(ny != null && !ny.isOpaque())
-                        drawMask |= DMaskNY;
-                    if(py != null && !py.isOpaque())
-                        drawMask |= DMaskPY;
-                    if(nz != null && !nz.isOpaque())
-                        drawMask |= DMaskNZ;
-                    if(pz != null && !pz.isOpaque())
-                        drawMask |= DMaskPZ;
+                    drawMask = world.getFaceMask(bx, by, bz);
                 }
                 int drawMaskFrame = drawMask;
                 int drawMaskOpening = drawMask;
@@ -5549,25 +5711,7 @@ public class Block implements GameObject, Allocatable
                 }
                 else
                 {
-                    Block nx = world.getBlock(bx - 1, by, bz);
-                    Block px = world.getBlock(bx + 1, by, bz);
-                    Block ny = world.getBlock(bx, by - 1, bz);
-                    Block py = world.getBlock(bx, by + 1, bz);
-                    Block nz = world.getBlock(bx, by, bz - 1);
-                    Block pz = world.getBlock(bx, by, bz + 1);
-                    drawMask = 0;
-                    if(nx != null && !nx.isOpaque())
-                        drawMask |= DMaskNX;
-                    if(px != null && !px.isOpaque())
-                        drawMask |= DMaskPX;
-                    if(ny != null && !ny.isOpaque())
-                        drawMask |= DMaskNY;
-                    if(py != null && !py.isOpaque())
-                        drawMask |= DMaskPY;
-                    if(nz != null && !nz.isOpaque())
-                        drawMask |= DMaskNZ;
-                    if(pz != null && !pz.isOpaque())
-                        drawMask |= DMaskPZ;
+                    drawMask = world.getFaceMask(bx, by, bz);
                 }
                 if(drawMask != 0)
                 {
@@ -5975,41 +6119,11 @@ public class Block implements GameObject, Allocatable
                                final int scatteredSunlight,
                                final int light)
     {
-        int newSunlight = Math.max(0, Math.min(15, sunlight));
-        int newScatteredSunlight = Math.max(newSunlight,
-                                            Math.min(15, scatteredSunlight));
-        int newLight = Math.max(0, Math.min(15, light));
-        if(this.type == BlockType.BTLeaves)
-        {
-            newSunlight = 0;
-        }
-        else if(this.type == BlockType.BTMobSpawner)
-        {
-            newSunlight = 0;
-            newScatteredSunlight = 0;
-            newLight = 0;
-        }
-        else if(this.type == BlockType.BTPiston
-                || this.type == BlockType.BTStickyPiston)
-        {
-            newSunlight = 0;
-            newScatteredSunlight = 0;
-            newLight = 0;
-        }
-        else if(isOpaque())
-        {
-            newSunlight = 0;
-            newScatteredSunlight = 0;
-            newLight = 0;
-        }
-        else if(this.type == BlockType.BTWater)
-        {
-            newSunlight = newSunlight - 2;
-            newScatteredSunlight = newScatteredSunlight - 1;
-            newLight = newLight - 1;
-        }
+        int newSunlight = filterSunlight(sunlight);
+        int newScatteredSunlight = filterScatteredSunlight(sunlight,
+                                                           scatteredSunlight);
+        int newLight = filterLight(light);
         boolean changed = false;
-        newLight = Math.max(newLight, getEmitLight());
         if(this.sunlight != newSunlight
                 || this.scatteredSunlight != newScatteredSunlight
                 || this.light != newLight)
@@ -6024,6 +6138,151 @@ public class Block implements GameObject, Allocatable
         return changed;
     }
 
+    private static final int LIGHTING_RULE_NORMAL = 0;
+    private static final int LIGHTING_RULE_LEAVES = 1;
+    private static final int LIGHTING_RULE_BLOCKS = 2;
+    private static final int LIGHTING_RULE_WATER = 3;
+
+    private int getLightingRule()
+    {
+        if(this.type == BlockType.BTLeaves)
+            return LIGHTING_RULE_LEAVES;
+        if(this.type == BlockType.BTMobSpawner)
+            return LIGHTING_RULE_BLOCKS;
+        if(this.type == BlockType.BTPiston
+                || this.type == BlockType.BTStickyPiston)
+            return LIGHTING_RULE_BLOCKS;
+        if(isOpaque())
+            return LIGHTING_RULE_BLOCKS;
+        if(this.type == BlockType.BTWater)
+            return LIGHTING_RULE_WATER;
+        return LIGHTING_RULE_NORMAL;
+    }
+
+    /** @return a number from 1 to 64 that identifies how this block filters
+     *         light, so the lighting can be calculated without the block
+     * @see #filterSunlightForKey(int, int)
+     * @see #filterScatteredSunlightForKey(int, int, int)
+     * @see #filterLightForKey(int, int) */
+    public int getLightingKey()
+    {
+        return 1 + getLightingRule() + 4 * getEmitLight();
+    }
+
+    /** calculates the direct sunlight that <code>setLighting</code> would
+     * store in this block, without changing it
+     * 
+     * @param sunlight
+     *            the amount of direct sunlight
+     * @return the amount of direct sunlight for this block
+     * @see #setLighting(int, int, int) */
+    public int filterSunlight(final int sunlight)
+    {
+        return filterSunlightForKey(getLightingKey(), sunlight);
+    }
+
+    /** @param lightingKey
+     *            the lighting key of the block
+     * @param sunlight
+     *            the amount of direct sunlight
+     * @return the amount of direct sunlight for the block
+     * @see #getLightingKey()
+     * @see #filterSunlight(int) */
+    public static int filterSunlightForKey(final int lightingKey,
+                                           final int sunlight)
+    {
+        int retval = Math.max(0, Math.min(15, sunlight));
+        switch((lightingKey - 1) & 3)
+        {
+        case LIGHTING_RULE_LEAVES:
+        case LIGHTING_RULE_BLOCKS:
+            return 0;
+        case LIGHTING_RULE_WATER:
+            return retval - 2;
+        default:
+            return retval;
+        }
+    }
+
+    /** calculates the scattered sunlight that <code>setLighting</code> would
+     * store in this block, without changing it
+     * 
+     * @param sunlight
+     *            the amount of direct sunlight
+     * @param scatteredSunlight
+     *            the amount of scattered sunlight
+     * @return the amount of scattered sunlight for this block
+     * @see #setLighting(int, int, int) */
+    public int filterScatteredSunlight(final int sunlight,
+                                       final int scatteredSunlight)
+    {
+        return filterScatteredSunlightForKey(getLightingKey(),
+                                             sunlight,
+                                             scatteredSunlight);
+    }
+
+    /** @param lightingKey
+     *            the lighting key of the block
+     * @param sunlight
+     *            the amount of direct sunlight
+     * @param scatteredSunlight
+     *            the amount of scattered sunlight
+     * @return the amount of scattered sunlight for the block
+     * @see #getLightingKey()
+     * @see #filterScatteredSunlight(int, int) */
+    public static int filterScatteredSunlightForKey(final int lightingKey,
+                                                    final int sunlight,
+                                                    final int scatteredSunlight)
+    {
+        int retval = Math.max(Math.max(0, Math.min(15, sunlight)),
+                              Math.min(15, scatteredSunlight));
+        switch((lightingKey - 1) & 3)
+        {
+        case LIGHTING_RULE_BLOCKS:
+            return 0;
+        case LIGHTING_RULE_WATER:
+            return retval - 1;
+        default:
+            return retval;
+        }
+    }
+
+    /** calculates the non-sun light that <code>setLighting</code> would store
+     * in this block, without changing it
+     * 
+     * @param light
+     *            the amount of non-sun light
+     * @return the amount of non-sun light for this block
+     * @see #setLighting(int, int, int) */
+    public int filterLight(final int light)
+    {
+        return filterLightForKey(getLightingKey(), light);
+    }
+
+    /** @param lightingKey
+     *            the lighting key of the block
+     * @param light
+     *            the amount of non-sun light
+     * @return the amount of non-sun light for the block
+     * @see #getLightingKey()
+     * @see #filterLight(int) */
+    public static int filterLightForKey(final int lightingKey, final int light)
+    {
+        int retval = Math.max(0, Math.min(15, light));
+        switch((lightingKey - 1) & 3)
+        {
+        case LIGHTING_RULE_BLOCKS:
+            retval = 0;
+            break;
+        case LIGHTING_RULE_WATER:
+            retval--;
+            break;
+        default:
+            break;
+        }
+        return Math.max(retval, (lightingKey - 1) >> 2);
+    }
+
     /** @return the amount of scattered sunlight. ranges from 0 to 15. */
     public int getScatteredSunlight()
     {
@@ -6071,6 +6330,31 @@ public class Block implements GameObject, Allocatable
         }
     }
 
+    /** @return true if this block's appearance changes with time so it must
+     *         be redrawn every frame instead of being cached in a chunk's
+     *         display list */
+    public boolean isAnimated()
+    {
+        return isAnimated(this.type);
+    }
+
+    /** @param type
+     *            the block type
+     * @return true if blocks of type <code>type</code> change appearance
+     *         with time
+     * @see #isAnimated() */
+    public static boolean isAnimated(final BlockType type)
+    {
+        switch(type)
+        {
+        case BTFire:
+        case BTMobSpawner:
+            return true;
+        default:
+            return false;
+        }
+    }
+
     /** copies the lighting of <code>rt</code> to this block.<BR/>
      * not thread safe
      * 
@@ -6087,6 +6371,67 @@ public class Block implements GameObject, Allocatable
         setLighting(0, 0, 0);
     }
 
+    /** sets the lighting of this block to values previously read from a block
+     * of the same state, without reapplying the lighting rules in
+     * <code>setLighting</code>.<BR/>
+     * not thread safe
+     *
+     * @param sunlight
+     *            the amount of direct sunlight
+     * @param scatteredSunlight
+     *            the amount of scattered sunlight
+     * @param light
+     *            the amount of non-sun light
+     * @see #setLighting(int, int, int) */
+    public void restoreLighting(final int sunlight,
+                                final int scatteredSunlight,
+                                final int light)
+    {
+        this.sunlight = sunlight;
+        this.scatteredSunlight = scatteredSunlight;
+        this.light = light;
+        this.curDisplayListValidTag = -1;
+    }
+
+    /** @return true if this block's whole state (except for lighting) is
+     *         compared by <code>equals</code>, so it can be shared between
+     *         positions in a chunk's palette */
+    public boolean isStateless()
+    {
+        switch(this.type)
+        {
+        case BTEmpty:
+        case BTBedrock:
+        case BTStone:
+        case BTDirt:
+        case BTGrass:
+        case BTSand:
+        case BTGravel:
+        case BTCobblestone:
+        case BTCoalOre:
+        case BTIronOre:
+        case BTGoldOre:
+        case BTDiamondOre:
+        case BTEmeraldOre:
+        case BTLapisLazuliOre:
+        case BTObsidian:
+        case BTGlass:
+        case BTPlank:
+        case BTWater:
+        case BTLava:
+        case BTWood:
+        case BTSnow:
+        case BTTallGrass:
+        case BTDandelion:
+        case BTRose:
+        case BTDeadBush:
+        case BTCactus:
+            return true;
+        default:
+            return false;
+        }
+    }
+
     /** @param sunlightFactor
      *            the amount that sunlight counts for. limited from 0 (none) to
      *            15 (full).
@@ -6099,20 +6444,16 @@ public class Block implements GameObject, Allocatable
 
     private long curDisplayListValidTag = -1;
 
-    /** gets the lighting array <BR/>
+    /** gets the lighting array. it doesn't depend on the time of day, the
+     * sunlight factor is applied when the block is rendered.<BR/>
      * not thread safe
      * 
-     * @param sunlightFactor
-     *            used to check for the right array to return
      * @param displayListValidTag
      *            used to check for the right array to return
-     * @return the lighting array for <code>sunlightFactor</code> or null if
-     *         there isn't one */
-    public int[] getLightingArray(final int sunlightFactor,
-                                  final long displayListValidTag)
+     * @return the lighting array or null if there isn't one */
+    public int[] getLightingArray(final long displayListValidTag)
     {
-        if(sunlightFactor != this.curSunlightFactor
-                || displayListValidTag != this.curDisplayListValidTag)
+        if(displayListValidTag != this.curDisplayListValidTag)
             return null;
         return this.lighting;
     }
@@ -6127,28 +6468,22 @@ public class Block implements GameObject, Allocatable
      * 
      * @param lighting
      *            the new lighting array
-     * @param sunlightFactor
-     *            used to check for the right array to return in
-     *            <code>getLightingArray</code>
      * @param displayListValidTag
      *            used to check for the right array to return in
      *            <code>getLightingArray</code>
-     * @see #getLightingArray(int sunlightFactor, long displayListValidTag) */
+     * @see #getLightingArray(long displayListValidTag) */
     public void setLightingArray(final int lighting[],
-                                 final int sunlightFactor,
                                  final long displayListValidTag)
     {
-        if(lighting != null && lighting.length != 8)
+        if(lighting != null && lighting.length != 16)
             throw new IllegalArgumentException("new lighting array is wrong length");
         if(lighting == null)
         {
-            this.curSunlightFactor = -1;
             this.curDisplayListValidTag = -1;
             return;
         }
         freeLightingArray(this.lighting);
         this.lighting = lighting;
-        this.curSunlightFactor = sunlightFactor;
         this.curDisplayListValidTag = displayListValidTag;
     }
 
@@ -14486,11 +14821,32 @@ public class Block implements GameObject, Allocatable
      * @throws IOException
      *             the exception thrown */
     public void write(final DataOutput o) throws IOException
+    {
+        write(o, this.sunlight, this.scatteredSunlight, this.light);
+    }
+
+    /** write to a <code>DataOutput</code> with the given lighting instead of
+     * this block's lighting, without changing this block
+     * 
+     * @param o
+     *            <code>DataOutput</code> to write to
+     * @param sunlightValue
+     *            the amount of direct sunlight to write
+     * @param scatteredSunlightValue
+     *            the amount of scattered sunlight to write
+     * @param lightValue
+     *            the amount of non-sun light to write
+     * @throws IOException
+     *             the exception thrown */
+    void write(final DataOutput o,
+               final int sunlightValue,
+               final int scatteredSunlightValue,
+               final int lightValue) throws IOException
     {
         this.type.write(o);
-        o.writeByte(Math.max(0, Math.min(15, this.light)));
-        o.writeByte(Math.max(0, Math.min(15, this.scatteredSunlight)));
-        o.writeByte(Math.max(0, Math.min(15, this.sunlight)));
+        o.writeByte(Math.max(0, Math.min(15, lightValue)));
+        o.writeByte(Math.max(0, Math.min(15, scatteredSunlightValue)));
+        o.writeByte(Math.max(0, Math.min(15, sunlightValue)));
         switch(this.type)
         {
         case BTSun:
@@ -15752,25 +16108,7 @@ public class Block implements GameObject, Allocatable
                                            final int by,
                                            final int bz)
     {
-        Block nx = world.getBlock(bx - 1, by, bz);
-        if(nx != null && !nx.isOpaque())
-            return true;
-        Block px = world.getBlock(bx + 1, by, bz);
-        if(px != null && !px.isOpaque())
-            return true;
-        Block ny = world.getBlock(bx, by - 1, bz);
-        if(ny != null && !ny.isOpaque())
-            return true;
-        Block py = world.getBlock(bx, by + 1, bz);
-        if(py != null && !py.isOpaque())
-            return true;
-        Block nz = world.getBlock(bx, by, bz - 1);
-        if(nz != null && !nz.isOpaque())
-            return true;
-        Block pz = world.getBlock(bx, by, bz + 1);
-        if(pz != null && !pz.isOpaque())
-            return true;
-        return false;
+        return world.getFaceMask(bx, by, bz) != 0;
     }
 
     private boolean drawFluidDrawsAnything(final int bx,
@@ -6618,6 +6618,37 @@ public enum BlockType
 
     private static BlockType[] blocks = makeBlocksArray();
 
+    /** makes the face textures for the block textures that
+     * <code>Block.addToGreedyMesher</code> can use */
+    private static void makeFaceTextures()
+    {
+        BlockType[] vals = values();
+        for(int i = 0; i < vals.length; i++)
+        {
+            BlockType bt = vals[i];
+            if(bt.isDoubleSided())
+                continue;
+            switch(bt.drawType)
+            {
+            case BDTSolid:
+            case BDTSolidAllSides:
+                for(int j = 0; j < bt.textures.length; j++)
+                    GreedyMesher.addBlockTexture(bt.textures[j]);
+                break;
+            default:
+                break;
+            }
+        }
+        GreedyMesher.addBlockTexture(BTGrass.textures[1]);
+        GreedyMesher.addBlockTexture(BTGrass.textures[2]);
+        GreedyMesher.addBlockTexture(BTGrass.textures[3]);
+    }
+
+    static
+    {
+        makeFaceTextures();
+    }
+
     /** @param value
      *            value of block to return
      * @return <code>BlockType</code> of block specified by <code>value</code> */
@@ -0,0 +1,814 @@
+/**
+ * this file is part of Voxels
+ * 
+ * Voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/** a compact copy of the triangles drawn into a <code>RenderingStream</code>
+ * that can be replayed later without redrawing
+ *
+ * @author jacob
+ * @see RenderingStream#record(DisplayList)
+ * @see RenderingStream#add(DisplayList) */
+final class DisplayList
+{
+    private static final Allocator<DisplayList> allocator = new Allocator<DisplayList>()
+    {
+        @SuppressWarnings("synthetic-access")
+        @Override
+        protected DisplayList allocateInternal()
+        {
+            return new DisplayList();
+        }
+    };
+    TextureAtlas.TextureHandle[] textures = new TextureAtlas.TextureHandle[0];
+    int[] textureTriangleCount = new int[0];
+    int textureCount = 0;
+    float[] vertexArray = new float[0];
+    float[] colorArray = new float[0];
+    /** the sunlight and light channels of each vertex */
+    float[] lightArray = new float[0];
+    float[] texCoordArray = new float[0];
+    int triangleCount = 0;
+    /** the number of textures at the start of <code>textures</code> whose
+     * triangles have texture coordinates inside their textures, so they can
+     * be drawn with the texture atlas */
+    int atlasTextureCount = 0;
+    /** the number of triangles with the first <code>atlasTextureCount</code>
+     * textures */
+    int atlasTriangleCount = 0;
+    /** the buffer object holding the vertices, or 0 if it isn't made yet */
+    private int vertexBuffer = 0;
+    /** if <code>vertexBuffer</code> has the current triangles */
+    private boolean vertexBufferValid = false;
+    /** the atlas image that the texture coordinates of the atlas triangles
+     * in <code>vertexBuffer</code> are for, or <code>null</code> if they
+     * aren't transformed to the atlas */
+    private Image vertexBufferAtlas = null;
+    /** if <code>vertexBuffer</code> has compact interleaved vertices */
+    private boolean vertexBufferCompact = false;
+    /** the value of <code>RenderingStream.USE_COMPACT_VERTICES</code> when
+     * <code>vertexBuffer</code> was uploaded */
+    private boolean vertexBufferCompactOption = false;
+    /** the corner that the compact positions are relative to */
+    private float compactOriginX = 0, compactOriginY = 0, compactOriginZ = 0;
+    /** the number of compact position units in one block */
+    private float compactPositionScale = 1;
+    /** the number of compact texture coordinate units in one texture */
+    private float compactTexCoordScale = 1;
+    private static int[] freedVertexBuffers = new int[16];
+    private static int freedVertexBufferCount = 0;
+    private static final Object freedVertexBuffersLock = new Object();
+    private static FloatBuffer uploadBuffer = null;
+    private static float[] atlasTexCoordArray = null;
+    /** if the triangles are sorted for a camera in the cell
+     * <code>sortedCellX</code>, <code>sortedCellY</code>,
+     * <code>sortedCellZ</code> */
+    private boolean sorted = false;
+    private int sortedCellX = 0, sortedCellY = 0, sortedCellZ = 0;
+    /** the distance and index of each triangle being sorted, with the bits of
+     * the distance in the high 32 bits so they sort in distance order */
+    private static long[] sortOrder = new long[0];
+    private static float[] sortArray = new float[0];
+    private static TextureAtlas.TextureHandle[] sortTextures = new TextureAtlas.TextureHandle[0];
+    private static ByteBuffer compactUploadBuffer = null;
+    private static final Matrix compactMatrix = Matrix.allocate();
+    /** the number of bytes in a compact vertex : 4 position shorts (the last
+     * is padding), 2 texture coordinate shorts, 2 light channel shorts and 4
+     * color bytes */
+    private static final int compactVertexSize = 4 * 2 + 2 * 2 + 2 * 2 + 4;
+    private static final int compactTexCoordOffset = 4 * 2;
+    private static final int compactLightOffset = compactTexCoordOffset + 2 * 2;
+    private static final int compactColorOffset = compactLightOffset + 2 * 2;
+    private static final float maxCompactPositionScale = 4096;
+    private static final float maxCompactTexCoordScale = 16384;
+    /** the number of compact light channel units in full light */
+    private static final float compactLightScale = 4096;
+    /** the number of levels of each light channel */
+    private static final int lightLevels = 16;
+    /** the lightmap texture for each sunlight factor or 0 if it isn't made
+     * yet. a lightmap has the lighting factor for each sunlight level across
+     * and each light level down. it is drawn on the second texture unit with
+     * the light channels as texture coordinates, so the vertices don't have
+     * to be uploaded again when the sunlight factor changes. */
+    private static final int[] lightmapTextures = new int[lightLevels];
+    private static final Matrix lightmapMatrix = Matrix.allocate();
+
+    private DisplayList()
+    {
+    }
+
+    /** @return a new empty <code>DisplayList</code> */
+    public static DisplayList allocate()
+    {
+        return allocator.allocate().clear();
+    }
+
+    /** @return <code>this</code> */
+    public DisplayList clear()
+    {
+        for(int i = 0; i < this.textureCount; i++)
+            this.textures[i] = null;
+        this.textureCount = 0;
+        this.triangleCount = 0;
+        this.atlasTextureCount = 0;
+        this.atlasTriangleCount = 0;
+        this.vertexBufferValid = false;
+        this.vertexBufferAtlas = null;
+        this.sorted = false;
+        return this;
+    }
+
+    /** @return true if this display list doesn't have any triangles */
+    public boolean isEmpty()
+    {
+        return this.triangleCount <= 0;
+    }
+
+    /** @return the number of triangles in this display list */
+    public int getTriangleCount()
+    {
+        return this.triangleCount;
+    }
+
+    void reserve(final int newTextureCount, final int newTriangleCount)
+    {
+        if(this.textures.length < newTextureCount)
+        {
+            this.textures = new TextureAtlas.TextureHandle[newTextureCount];
+            this.textureTriangleCount = new int[newTextureCount];
+        }
+        if(this.vertexArray.length < newTriangleCount * 3 * 3)
+        {
+            this.vertexArray = new float[newTriangleCount * 3 * 3];
+            this.colorArray = new float[newTriangleCount * 3 * 4];
+            this.lightArray = new float[newTriangleCount * 3 * 2];
+            this.texCoordArray = new float[newTriangleCount * 3 * 2];
+        }
+    }
+
+    /** frees this display list */
+    public void free()
+    {
+        clear();
+        if(this.vertexBuffer != 0)
+        {
+            synchronized(freedVertexBuffersLock)
+            {
+                if(freedVertexBufferCount >= freedVertexBuffers.length)
+                {
+                    int[] newArray = new int[freedVertexBuffers.length * 2];
+                    System.arraycopy(freedVertexBuffers,
+                                     0,
+                                     newArray,
+                                     0,
+                                     freedVertexBufferCount);
+                    freedVertexBuffers = newArray;
+                }
+                freedVertexBuffers[freedVertexBufferCount++] = this.vertexBuffer;
+            }
+            this.vertexBuffer = 0;
+        }
+        allocator.free(this);
+    }
+
+    /** deletes the buffer objects of the freed display lists. display lists
+     * can be freed from any thread, so their buffer objects are deleted the
+     * next time one is rendered. */
+    static void deleteFreedBuffers()
+    {
+        synchronized(freedVertexBuffersLock)
+        {
+            for(int i = 0; i < freedVertexBufferCount; i++)
+                Main.opengl.glDeleteBuffers(freedVertexBuffers[i]);
+            freedVertexBufferCount = 0;
+        }
+    }
+
+    private static FloatBuffer getUploadBuffer(final int length)
+    {
+        if(uploadBuffer == null || uploadBuffer.capacity() < length)
+            uploadBuffer = Main.platform.createFloatBuffer(length);
+        uploadBuffer.clear();
+        return uploadBuffer;
+    }
+
+    /** @param atlas
+     *            the atlas image to transform the texture coordinates of the
+     *            atlas triangles to or <code>null</code>
+     * @return the texture coordinates to upload, with the atlas triangles'
+     *         transformed if <code>atlas</code> isn't <code>null</code> */
+    private float[] getTexCoords(final Image atlas)
+    {
+        if(atlas == null)
+            return this.texCoordArray;
+        int length = this.triangleCount * 3 * 2;
+        if(atlasTexCoordArray == null || atlasTexCoordArray.length < length)
+            atlasTexCoordArray = new float[length];
+        int atlasLength = this.atlasTriangleCount * 3 * 2;
+        System.arraycopy(this.texCoordArray,
+                         atlasLength,
+                         atlasTexCoordArray,
+                         atlasLength,
+                         length - atlasLength);
+        this.vertexBufferAtlas = TextureAtlas.transformTextureCoords(this.texCoordArray,
+                                                                     0,
+                                                                     2,
+                                                                     atlasTexCoordArray,
+                                                                     this.textures,
+                                                                     this.textureTriangleCount,
+                                                                     this.atlasTextureCount);
+        return atlasTexCoordArray;
+    }
+
+    /** puts the sorted order of the triangles from <code>start</code> to
+     * <code>end</code> in <code>sortOrder</code>, from nearest to farthest
+     * from &lt;<code>x</code>, <code>y</code>, <code>z</code>&gt; */
+    private void sortTriangles(final int start,
+                               final int end,
+                               final float x,
+                               final float y,
+                               final float z)
+    {
+        if(sortOrder.length < end - start)
+            sortOrder = new long[end - start];
+        final float[] vertices = this.vertexArray;
+        for(int tri = start; tri < end; tri++)
+        {
+            int vi = tri * 3 * 3;
+            float dx = vertices[vi] + vertices[vi + 3] + vertices[vi + 6] - 3
+                    * x;
+            float dy = vertices[vi + 1] + vertices[vi + 4] + vertices[vi + 7]
+                    - 3 * y;
+            float dz = vertices[vi + 2] + vertices[vi + 5] + vertices[vi + 8]
+                    - 3 * z;
+            float distSquared = dx * dx + dy * dy + dz * dz;
+            sortOrder[tri - start] = ((long)Float.floatToIntBits(distSquared) << 32)
+                    | (tri - start);
+        }
+        Arrays.sort(sortOrder, 0, end - start);
+    }
+
+    /** reorders the triangles from <code>start</code> to <code>end</code> in
+     * <code>array</code> from the farthest to the nearest in
+     * <code>sortOrder</code>
+     * 
+     * @param array
+     *            the array to reorder
+     * @param size
+     *            the number of elements for each triangle */
+    private static void reorderTriangles(final float[] array,
+                                         final int size,
+                                         final int start,
+                                         final int end)
+    {
+        int count = end - start;
+        if(sortArray.length < count * size)
+            sortArray = new float[count * size];
+        System.arraycopy(array, start * size, sortArray, 0, count * size);
+        for(int i = 0; i < count; i++)
+        {
+            int tri = (int)sortOrder[count - 1 - i];
+            System.arraycopy(sortArray,
+                             tri * size,
+                             array,
+                             (start + i) * size,
+                             size);
+        }
+    }
+
+    private void reorderTriangles(final int start, final int end)
+    {
+        reorderTriangles(this.vertexArray, 3 * 3, start, end);
+        reorderTriangles(this.colorArray, 3 * 4, start, end);
+        reorderTriangles(this.lightArray, 3 * 2, start, end);
+        reorderTriangles(this.texCoordArray, 3 * 2, start, end);
+    }
+
+    /** sorts all the atlas triangles from back to front and makes new runs of
+     * triangles with the same texture */
+    private void sortAtlasTriangles(final float x, final float y, final float z)
+    {
+        int count = this.atlasTriangleCount;
+        if(sortTextures.length < count)
+            sortTextures = new TextureAtlas.TextureHandle[count];
+        for(int run = 0, tri = 0; run < this.atlasTextureCount; run++)
+        {
+            for(int i = 0; i < this.textureTriangleCount[run]; i++)
+                sortTextures[tri++] = this.textures[run];
+        }
+        sortTriangles(0, count, x, y, z);
+        reorderTriangles(0, count);
+        int runCount = 0;
+        for(int i = 0; i < count; i++)
+        {
+            if(i == 0
+                    || sortTextures[(int)sortOrder[count - 1 - i]] != sortTextures[(int)sortOrder[count - i]])
+                runCount++;
+        }
+        int otherCount = this.textureCount - this.atlasTextureCount;
+        if(this.textures.length < runCount + otherCount)
+        {
+            TextureAtlas.TextureHandle[] newTextures = new TextureAtlas.TextureHandle[runCount
+                    + otherCount];
+            int[] newCounts = new int[runCount + otherCount];
+            System.arraycopy(this.textures,
+                             0,
+                             newTextures,
+                             0,
+                             this.textureCount);
+            System.arraycopy(this.textureTriangleCount,
+                             0,
+                             newCounts,
+                             0,
+                             this.textureCount);
+            this.textures = newTextures;
+            this.textureTriangleCount = newCounts;
+        }
+        System.arraycopy(this.textures,
+                         this.atlasTextureCount,
+                         this.textures,
+                         runCount,
+                         otherCount);
+        System.arraycopy(this.textureTriangleCount,
+                         this.atlasTextureCount,
+                         this.textureTriangleCount,
+                         runCount,
+                         otherCount);
+        for(int i = runCount + otherCount; i < this.textureCount; i++)
+            this.textures[i] = null;
+        int run = -1;
+        for(int i = 0; i < count; i++)
+        {
+            TextureAtlas.TextureHandle texture = sortTextures[(int)sortOrder[count
+                    - 1 - i]];
+            if(run < 0 || this.textures[run] != texture)
+            {
+                this.textures[++run] = texture;
+                this.textureTriangleCount[run] = 0;
+            }
+            this.textureTriangleCount[run]++;
+        }
+        for(int i = 0; i < count; i++)
+            sortTextures[i] = null;
+        this.atlasTextureCount = runCount;
+        this.textureCount = runCount + otherCount;
+    }
+
+    /** sorts the triangles from back to front as seen from
+     * <code>camera</code>, unless they are already sorted for a camera in the
+     * same cell. with the texture atlas, the atlas triangles are drawn in one
+     * call, so they are sorted all together. the other triangles are only
+     * sorted with the triangles that have the same texture.
+     * 
+     * @param camera
+     *            the camera position
+     * @param cellSize
+     *            the size of the cells that the camera has to move between
+     *            before the triangles are sorted again
+     * @see RenderingStream#USE_TEXTURE_ATLAS */
+    void sortBackToFront(final Vector camera, final int cellSize)
+    {
+        int cellX = (int)Math.floor(camera.getX() / cellSize);
+        int cellY = (int)Math.floor(camera.getY() / cellSize);
+        int cellZ = (int)Math.floor(camera.getZ() / cellSize);
+        if(this.sorted && this.sortedCellX == cellX
+                && this.sortedCellY == cellY && this.sortedCellZ == cellZ)
+            return;
+        this.sorted = true;
+        this.sortedCellX = cellX;
+        this.sortedCellY = cellY;
+        this.sortedCellZ = cellZ;
+        float x = camera.getX(), y = camera.getY(), z = camera.getZ();
+        int i = 0, first = 0;
+        if(this.atlasTriangleCount > 0 && RenderingStream.USE_TEXTURE_ATLAS)
+        {
+            sortAtlasTriangles(x, y, z);
+            i = this.atlasTextureCount;
+            first = this.atlasTriangleCount;
+        }
+        for(; i < this.textureCount; i++)
+        {
+            int end = first + this.textureTriangleCount[i];
+            sortTriangles(first, end, x, y, z);
+            reorderTriangles(first, end);
+            first = end;
+        }
+        this.vertexBufferValid = false;
+    }
+
+    /** @param maxValue
+     *            the largest absolute value to fit
+     * @param maxScale
+     *            the largest scale to use
+     * @return the largest power of 2 up to <code>maxScale</code> that
+     *         <code>maxValue</code> can be multiplied by and still fit in a
+     *         short or 0 if there isn't one */
+    private static float getCompactScale(final float maxValue,
+                                         final float maxScale)
+    {
+        float scale = maxScale;
+        while(scale >= 1 && maxValue * scale > Short.MAX_VALUE)
+            scale /= 2;
+        if(scale < 1)
+            return 0;
+        return scale;
+    }
+
+    private static byte getCompactColor(final float c)
+    {
+        return (byte)Math.round(Math.max(0.0f, Math.min(1.0f, c)) * 255);
+    }
+
+    /** uploads the triangles into the bound buffer object as compact
+     * interleaved vertices
+     * 
+     * @param atlas
+     *            the atlas image to transform the texture coordinates of the
+     *            atlas triangles to or <code>null</code>
+     * @return false if the triangles don't fit in the compact vertices, in
+     *         which case nothing is uploaded */
+    private boolean uploadCompact(final Image atlas)
+    {
+        int vertexCount = this.triangleCount * 3;
+        final float[] vertices = this.vertexArray;
+        float minX = vertices[0], minY = vertices[1], minZ = vertices[2];
+        float maxX = minX, maxY = minY, maxZ = minZ;
+        for(int i = 3; i < vertexCount * 3; i += 3)
+        {
+            minX = Math.min(minX, vertices[i]);
+            minY = Math.min(minY, vertices[i + 1]);
+            minZ = Math.min(minZ, vertices[i + 2]);
+            maxX = Math.max(maxX, vertices[i]);
+            maxY = Math.max(maxY, vertices[i + 1]);
+            maxZ = Math.max(maxZ, vertices[i + 2]);
+        }
+        // use whole blocks for the origin so that the vertices on the
+        // boundaries between chunks stay exact
+        float originX = (float)Math.floor(minX);
+        float originY = (float)Math.floor(minY);
+        float originZ = (float)Math.floor(minZ);
+        float positionScale = getCompactScale(Math.max(maxX - originX,
+                                                       Math.max(maxY - originY,
+                                                                maxZ
+                                                                        - originZ)),
+                                              maxCompactPositionScale);
+        if(positionScale == 0)
+            return false;
+        this.vertexBufferAtlas = null;
+        final float[] texCoords = getTexCoords(atlas);
+        float maxTexCoord = 0;
+        for(int i = 0; i < vertexCount * 2; i++)
+            maxTexCoord = Math.max(maxTexCoord, Math.abs(texCoords[i]));
+        float texCoordScale = getCompactScale(maxTexCoord,
+                                              maxCompactTexCoordScale);
+        if(texCoordScale == 0)
+        {
+            this.vertexBufferAtlas = null;
+            return false;
+        }
+        this.compactOriginX = originX;
+        this.compactOriginY = originY;
+        this.compactOriginZ = originZ;
+        this.compactPositionScale = positionScale;
+        this.compactTexCoordScale = texCoordScale;
+        final float[] colors = this.colorArray;
+        final float[] lights = this.lightArray;
+        int length = vertexCount * compactVertexSize;
+        if(compactUploadBuffer == null
+                || compactUploadBuffer.capacity() < length)
+            compactUploadBuffer = Main.platform.createByteBuffer(length);
+        ByteBuffer buf = compactUploadBuffer;
+        buf.clear();
+        for(int vertex = 0, vi = 0, ti = 0, ci = 0; vertex < vertexCount; vertex++, vi += 3, ti += 2, ci += 4)
+        {
+            buf.putShort((short)Math.round((vertices[vi] - originX)
+                    * positionScale));
+            buf.putShort((short)Math.round((vertices[vi + 1] - originY)
+                    * positionScale));
+            buf.putShort((short)Math.round((vertices[vi + 2] - originZ)
+                    * positionScale));
+            buf.putShort((short)0);
+            buf.putShort((short)Math.round(texCoords[ti] * texCoordScale));
+            buf.putShort((short)Math.round(texCoords[ti + 1] * texCoordScale));
+            buf.putShort((short)Math.round(lights[ti] * compactLightScale));
+            buf.putShort((short)Math.round(lights[ti + 1] * compactLightScale));
+            buf.put(getCompactColor(colors[ci]));
+            buf.put(getCompactColor(colors[ci + 1]));
+            buf.put(getCompactColor(colors[ci + 2]));
+            buf.put(getCompactColor(colors[ci + 3]));
+        }
+        buf.flip();
+        Main.opengl.glBufferData(Main.opengl.GL_ARRAY_BUFFER(),
+                                 buf,
+                                 Main.opengl.GL_STATIC_DRAW());
+        return true;
+    }
+
+    /** uploads the triangles into the bound buffer object as separate float
+     * arrays of positions, texture coordinates, colors and light channels
+     * 
+     * @param atlas
+     *            the atlas image to transform the texture coordinates of the
+     *            atlas triangles to or <code>null</code> */
+    private void uploadFloats(final Image atlas)
+    {
+        int vertexCount = this.triangleCount * 3;
+        this.vertexBufferAtlas = null;
+        FloatBuffer buf = getUploadBuffer(vertexCount * (3 + 2 + 4 + 2));
+        buf.put(this.vertexArray, 0, vertexCount * 3);
+        buf.put(getTexCoords(atlas), 0, vertexCount * 2);
+        buf.put(this.colorArray, 0, vertexCount * 4);
+        buf.put(this.lightArray, 0, vertexCount * 2);
+        buf.flip();
+        Main.opengl.glBufferData(Main.opengl.GL_ARRAY_BUFFER(),
+                                 buf,
+                                 Main.opengl.GL_STATIC_DRAW());
+    }
+
+    /** binds the lightmap texture for <code>sunlightFactor</code> to the
+     * active texture unit, making it if it isn't made yet */
+    private static void bindLightmapTexture(final int sunlightFactor)
+    {
+        int texture = lightmapTextures[sunlightFactor];
+        if(texture != 0)
+        {
+            Main.opengl.glBindTexture(Main.opengl.GL_TEXTURE_2D(), texture);
+            return;
+        }
+        texture = Main.opengl.glGenTextures();
+        Main.opengl.glBindTexture(Main.opengl.GL_TEXTURE_2D(), texture);
+        Main.opengl.glTexParameteri(Main.opengl.GL_TEXTURE_2D(),
+                                    Main.opengl.GL_TEXTURE_WRAP_S(),
+                                    Main.opengl.GL_CLAMP_TO_EDGE());
+        Main.opengl.glTexParameteri(Main.opengl.GL_TEXTURE_2D(),
+                                    Main.opengl.GL_TEXTURE_WRAP_T(),
+                                    Main.opengl.GL_CLAMP_TO_EDGE());
+        Main.opengl.glTexParameteri(Main.opengl.GL_TEXTURE_2D(),
+                                    Main.opengl.GL_TEXTURE_MAG_FILTER(),
+                                    Main.opengl.GL_LINEAR());
+        Main.opengl.glTexParameteri(Main.opengl.GL_TEXTURE_2D(),
+                                    Main.opengl.GL_TEXTURE_MIN_FILTER(),
+                                    Main.opengl.GL_LINEAR());
+        ByteBuffer pixels = Main.platform.createByteBuffer(lightLevels
+                * lightLevels * 4);
+        float sunlightOffset = (sunlightFactor - 15) / 15.0f;
+        for(int light = 0; light < lightLevels; light++)
+        {
+            for(int sunlight = 0; sunlight < lightLevels; sunlight++)
+            {
+                float s = sunlight / (lightLevels - 1.0f);
+                float l = light / (lightLevels - 1.0f);
+                byte factor = getCompactColor(RenderingStream.getLightingFactor(s,
+                                                                                l,
+                                                                                sunlightOffset));
+                pixels.put(factor).put(factor).put(factor).put((byte)0xFF);
+            }
+        }
+        pixels.flip();
+        Main.opengl.glTexImage2D(Main.opengl.GL_TEXTURE_2D(),
+                                 0,
+                                 Main.opengl.GL_RGBA(),
+                                 lightLevels,
+                                 lightLevels,
+                                 0,
+                                 Main.opengl.GL_RGBA(),
+                                 Main.opengl.GL_UNSIGNED_BYTE(),
+                                 pixels);
+        lightmapTextures[sunlightFactor] = texture;
+    }
+
+    /** sets up the second texture unit to multiply the colors by the
+     * lightmap for <code>sunlightFactor</code>, with the light channels in
+     * the bound buffer object as its texture coordinates. the first texture
+     * unit is left active.
+     * 
+     * @param type
+     *            the type of the light channels
+     * @param stride
+     *            the number of bytes from one vertex to the next or 0 if they
+     *            are packed
+     * @param offset
+     *            the offset in bytes of the light channels in the buffer
+     *            object
+     * @param scale
+     *            the value of the light channels in full light */
+    private static void enableLightmap(final int sunlightFactor,
+                                       final int type,
+                                       final int stride,
+                                       final long offset,
+                                       final float scale)
+    {
+        Main.opengl.glActiveTexture(Main.opengl.GL_TEXTURE1());
+        Main.opengl.glClientActiveTexture(Main.opengl.GL_TEXTURE1());
+        Main.opengl.glEnable(Main.opengl.GL_TEXTURE_2D());
+        bindLightmapTexture(sunlightFactor);
+        Main.opengl.glTexEnvi(Main.opengl.GL_TEXTURE_ENV(),
+                              Main.opengl.GL_TEXTURE_ENV_MODE(),
+                              Main.opengl.GL_MODULATE());
+        // move the light levels to the texel centers
+        float texelScale = (lightLevels - 1.0f) / lightLevels / scale;
+        float texelOffset = 0.5f / lightLevels;
+        Main.opengl.glMatrixMode(Main.opengl.GL_TEXTURE());
+        Main.opengl.glPushMatrix();
+        Matrix.glMultMatrix(Matrix.set(lightmapMatrix,
+                                       texelScale,
+                                       0,
+                                       0,
+                                       texelOffset,
+                                       0,
+                                       texelScale,
+                                       0,
+                                       texelOffset,
+                                       0,
+                                       0,
+                                       1,
+                                       0));
+        Main.opengl.glMatrixMode(Main.opengl.GL_MODELVIEW());
+        Main.opengl.glEnableClientState(Main.opengl.GL_TEXTURE_COORD_ARRAY());
+        Main.opengl.glTexCoordPointer(2, type, stride, offset);
+        Main.opengl.glActiveTexture(Main.opengl.GL_TEXTURE0());
+        Main.opengl.glClientActiveTexture(Main.opengl.GL_TEXTURE0());
+    }
+
+    /** turns off the second texture unit after <code>enableLightmap</code> */
+    private static void disableLightmap()
+    {
+        Main.opengl.glActiveTexture(Main.opengl.GL_TEXTURE1());
+        Main.opengl.glClientActiveTexture(Main.opengl.GL_TEXTURE1());
+        Main.opengl.glDisableClientState(Main.opengl.GL_TEXTURE_COORD_ARRAY());
+        Main.opengl.glMatrixMode(Main.opengl.GL_TEXTURE());
+        Main.opengl.glPopMatrix();
+        Main.opengl.glMatrixMode(Main.opengl.GL_MODELVIEW());
+        Main.opengl.glDisable(Main.opengl.GL_TEXTURE_2D());
+        Main.opengl.glActiveTexture(Main.opengl.GL_TEXTURE0());
+        Main.opengl.glClientActiveTexture(Main.opengl.GL_TEXTURE0());
+    }
+
+    /** draws this display list from its buffer object, uploading the
+     * triangles if they changed since the last time it was drawn and the
+     * texture coordinates if the texture atlas changed. compact vertices are
+     * interleaved, so they are uploaded again for any change. the vertices
+     * keep their unlit colors and light channels, and the sunlight factor is
+     * applied by the lightmap on the second texture unit, so changing it
+     * doesn't upload anything. the triangles with texture coordinates inside
+     * their textures are drawn with the texture atlas in one draw call. the
+     * vertex, texture coordinate and color arrays must be enabled and the
+     * matrix mode must be <code>GL_MODELVIEW</code>.
+     * 
+     * @param sunlightFactor
+     *            the amount that sunlight counts for. from 0 (none) to 15
+     *            (full).
+     * @see RenderingStream#setSunlightFactor(int)
+     * @see RenderingStream#USE_TEXTURE_ATLAS
+     * @see RenderingStream#USE_COMPACT_VERTICES */
+    void render(final int sunlightFactor)
+    {
+        if(isEmpty())
+            return;
+        int vertexCount = this.triangleCount * 3;
+        int texCoordOffset = vertexCount * 3 * 4;
+        int colorOffset = texCoordOffset + vertexCount * 2 * 4;
+        int lightOffset = colorOffset + vertexCount * 4 * 4;
+        Image atlas = null;
+        if(this.atlasTriangleCount > 0 && RenderingStream.USE_TEXTURE_ATLAS)
+            atlas = TextureAtlas.getImage();
+        if(this.vertexBuffer == 0)
+            this.vertexBuffer = Main.opengl.glGenBuffers();
+        Main.opengl.glBindBuffer(Main.opengl.GL_ARRAY_BUFFER(),
+                                 this.vertexBuffer);
+        if(this.vertexBufferCompactOption != RenderingStream.USE_COMPACT_VERTICES)
+            this.vertexBufferValid = false;
+        if(this.vertexBufferCompact && this.vertexBufferAtlas != atlas)
+            this.vertexBufferValid = false;
+        if(!this.vertexBufferValid)
+        {
+            this.vertexBufferCompactOption = RenderingStream.USE_COMPACT_VERTICES;
+            this.vertexBufferCompact = this.vertexBufferCompactOption
+                    && uploadCompact(atlas);
+            if(!this.vertexBufferCompact)
+                uploadFloats(atlas);
+            this.vertexBufferValid = true;
+        }
+        if(this.vertexBufferAtlas != atlas)
+        {
+            int atlasLength = this.atlasTriangleCount * 3 * 2;
+            this.vertexBufferAtlas = null;
+            FloatBuffer buf = getUploadBuffer(atlasLength);
+            buf.put(getTexCoords(atlas), 0, atlasLength);
+            buf.flip();
+            Main.opengl.glBufferSubData(Main.opengl.GL_ARRAY_BUFFER(),
+                                        texCoordOffset,
+                                        buf);
+        }
+        if(this.vertexBufferCompact)
+        {
+            enableLightmap(sunlightFactor,
+                           Main.opengl.GL_SHORT(),
+                           compactVertexSize,
+                           compactLightOffset,
+                           compactLightScale);
+            Main.opengl.glMatrixMode(Main.opengl.GL_TEXTURE());
+            Main.opengl.glPushMatrix();
+            Matrix.glMultMatrix(Matrix.setToScale(compactMatrix,
+                                                  1 / this.compactTexCoordScale));
+            Main.opengl.glMatrixMode(Main.opengl.GL_MODELVIEW());
+            Main.opengl.glPushMatrix();
+            float scale = 1 / this.compactPositionScale;
+            Matrix.glMultMatrix(Matrix.set(compactMatrix,
+                                           scale,
+                                           0,
+                                           0,
+                                           this.compactOriginX,
+                                           0,
+                                           scale,
+                                           0,
+                                           this.compactOriginY,
+                                           0,
+                                           0,
+                                           scale,
+                                           this.compactOriginZ));
+            Main.opengl.glVertexPointer(3,
+                                        Main.opengl.GL_SHORT(),
+                                        compactVertexSize,
+                                        0L);
+            Main.opengl.glTexCoordPointer(2,
+                                          Main.opengl.GL_SHORT(),
+                                          compactVertexSize,
+                                          compactTexCoordOffset);
+            Main.opengl.glColorPointer(4,
+                                       Main.opengl.GL_UNSIGNED_BYTE(),
+                                       compactVertexSize,
+                                       compactColorOffset);
+        }
+        else
+        {
+            enableLightmap(sunlightFactor,
+                           Main.opengl.GL_FLOAT(),
+                           0,
+                           lightOffset,
+                           1);
+            Main.opengl.glVertexPointer(3, Main.opengl.GL_FLOAT(), 0, 0L);
+            Main.opengl.glTexCoordPointer(2,
+                                          Main.opengl.GL_FLOAT(),
+                                          0,
+                                          texCoordOffset);
+            Main.opengl.glColorPointer(4,
+                                       Main.opengl.GL_FLOAT(),
+                                       0,
+                                       colorOffset);
+        }
+        int i = 0, first = 0;
+        if(atlas != null)
+        {
+            if(!this.vertexBufferAtlas.isSelected())
+                this.vertexBufferAtlas.selectTexture();
+            first = this.atlasTriangleCount * 3;
+            Main.opengl.glDrawArrays(Main.opengl.GL_TRIANGLES(), 0, first);
+            i = this.atlasTextureCount;
+        }
+        for(; i < this.textureCount; i++)
+        {
+            Image image = this.textures[i].getImage();
+            if(!image.isSelected())
+                image.selectTexture();
+            Main.opengl.glDrawArrays(Main.opengl.GL_TRIANGLES(),
+                                     first,
+                                     this.textureTriangleCount[i] * 3);
+            first += this.textureTriangleCount[i] * 3;
+        }
+        if(this.vertexBufferCompact)
+        {
+            Main.opengl.glPopMatrix();
+            Main.opengl.glMatrixMode(Main.opengl.GL_TEXTURE());
+            Main.opengl.glPopMatrix();
+            Main.opengl.glMatrixMode(Main.opengl.GL_MODELVIEW());
+        }
+        disableLightmap();
+        Main.opengl.glBindBuffer(Main.opengl.GL_ARRAY_BUFFER(), 0);
+    }
+
+    /** @param dl
+     *            the display list to free or <code>null</code> */
+    public static void free(final DisplayList dl)
+    {
+        if(dl != null)
+            dl.free();
+    }
+}
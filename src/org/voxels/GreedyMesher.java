@@ -0,0 +1,641 @@
+/**
+ * this file is part of Voxels
+ * 
+ * Voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.voxels.TextureAtlas.TextureHandle;
+
+/** merges the coplanar faces of solid blocks in a chunk that have the same
+ * texture and lighting into larger rectangles.<br/>
+ * each block texture is a 4x2 grid of faces, so the faces are drawn using
+ * textures cut out of the block textures that repeat across the merged
+ * rectangles. the face textures hold a few copies of the face, so
+ * rectangles up to that size fit inside them and can be drawn from the
+ * texture atlas.
+ *
+ * @author jacob */
+final class GreedyMesher
+{
+    /** the -X face */
+    public static final int FaceNX = 0;
+    /** the +X face */
+    public static final int FacePX = 1;
+    /** the -Y face */
+    public static final int FaceNY = 2;
+    /** the +Y face */
+    public static final int FacePY = 3;
+    /** the -Z face */
+    public static final int FaceNZ = 4;
+    /** the +Z face */
+    public static final int FacePZ = 5;
+    /** the number of faces */
+    public static final int FaceCount = 6;
+    /** the axis that each face is perpendicular to */
+    private static final int[] faceAxis = new int[]
+    {
+        0, 0, 1, 1, 2, 2
+    };
+    /** the axis that the u texture coordinate goes along for each face */
+    private static final int[] faceUAxis = new int[]
+    {
+        2, 2, 0, 0, 0, 0
+    };
+    /** the axis that the v texture coordinate goes along for each face */
+    private static final int[] faceVAxis = new int[]
+    {
+        1, 1, 2, 2, 1, 1
+    };
+    /** if the u texture coordinate goes backwards for each face */
+    private static final boolean[] faceFlipU = new boolean[]
+    {
+        false, true, false, false, true, false
+    };
+    /** if the v texture coordinate goes backwards for each face */
+    private static final boolean[] faceFlipV = new boolean[]
+    {
+        false, false, false, true, false, false
+    };
+    /** the corners of each face in drawing order, bit 0 is the far end along
+     * the u axis and bit 1 is the far end along the v axis */
+    private static final int[][] faceCorners = new int[][]
+    {
+        {
+            0, 1, 3, 2
+        },
+        {
+            0, 2, 3, 1
+        },
+        {
+            0, 1, 3, 2
+        },
+        {
+            0, 2, 3, 1
+        },
+        {
+            0, 2, 3, 1
+        },
+        {
+            0, 1, 3, 2
+        }
+    };
+    /** the part of the block texture that each face uses, in texture
+     * coordinates : minimum u then minimum v */
+    private static final float[][] faceTextureOrigin = new float[][]
+    {
+        {
+            0.0f, 0.5f
+        },
+        {
+            0.0f, 0.0f
+        },
+        {
+            0.25f, 0.5f
+        },
+        {
+            0.25f, 0.0f
+        },
+        {
+            0.5f, 0.5f
+        },
+        {
+            0.5f, 0.0f
+        }
+    };
+    /** the normal of each face */
+    private static final Vector[] faceNormal = new Vector[]
+    {
+        Vector.NX, Vector.X, Vector.NY, Vector.Y, Vector.NZ, Vector.Z
+    };
+    /** the corners of the two triangles of a face */
+    private static final int[] triangleCorners = new int[]
+    {
+        0, 1, 2, 2, 3, 0
+    };
+    private static final int FlagPresent = 0x1;
+    private static final int FlagGlowing = 0x2;
+    private static final int FlagTranslucent = 0x4;
+    /** the number of layers of faces. each layer is drawn after the layers
+     * before it, so the later layers can be drawn on top of the earlier
+     * layers. */
+    public static final int LayerCount = 2;
+    /** the number of copies of a face across and down each face texture */
+    private static final int faceRepeat = 4;
+    /** the face textures of each block texture that can be meshed. only
+     * changed by <code>addBlockTexture</code> while the block types are
+     * initialized. */
+    private static final HashMap<TextureHandle, TextureHandle[]> faceTextures = new HashMap<TextureHandle, TextureHandle[]>();
+    private final int size;
+    /** the number of faces in a layer */
+    private final int layerSize;
+    /** the texture of each face of each block in each layer, indexed by
+     * <code>layer * layerSize + face + FaceCount * blockIndex</code> */
+    private final TextureHandle[] texture;
+    /** the color of each face of each block in each layer, indexed like
+     * <code>texture</code> times 3 */
+    private final float[] color;
+    private final byte[] flags;
+    /** the lighting at the corners of each face of each block, indexed by
+     * <code>8 * (face + FaceCount * blockIndex) + 2 * corner</code> for the
+     * sunlight and one more for the light */
+    private final float[] lighting;
+    private int faceCount = 0;
+
+    /** @param size
+     *            the size of the chunks */
+    public GreedyMesher(final int size)
+    {
+        this.size = size;
+        this.layerSize = FaceCount * size * size * size;
+        this.texture = new TextureHandle[LayerCount * this.layerSize];
+        this.color = new float[3 * LayerCount * this.layerSize];
+        this.flags = new byte[LayerCount * this.layerSize];
+        this.lighting = new float[8 * this.layerSize];
+    }
+
+    /** @param img
+     *            the block texture
+     * @param face
+     *            the face to get the texture of
+     * @return the texture for <code>face</code> cut out of <code>img</code>
+     *         or <code>null</code> if <code>img</code> can't be meshed */
+    public static TextureHandle getFaceTexture(final TextureHandle img,
+                                               final int face)
+    {
+        TextureHandle[] retval = faceTextures.get(img);
+        if(retval == null)
+            return null;
+        return retval[face];
+    }
+
+    /** makes the face textures for a block texture and adds them to the
+     * texture atlas. called when the block textures are loaded, so the
+     * texture atlas isn't changed while chunks are drawn.
+     * 
+     * @param img
+     *            the block texture
+     * @see BlockType */
+    static void addBlockTexture(final TextureHandle img)
+    {
+        if(faceTextures.containsKey(img))
+            return;
+        TextureHandle[] faces = makeFaceTextures(img.getImage());
+        if(faces != null)
+            faceTextures.put(img, faces);
+    }
+
+    private static int[] getFacePixels(final Image image,
+                                       final int left,
+                                       final int top,
+                                       final int faceW,
+                                       final int faceH)
+    {
+        int[] retval = new int[faceW * faceH];
+        for(int y = 0, i = 0; y < faceH; y++)
+        {
+            for(int x = 0; x < faceW; x++)
+            {
+                Color c = image.getPixel(left + x, top + y);
+                retval[i++] = (c.r & 0xFF) | (c.g & 0xFF) << 8
+                        | (c.b & 0xFF) << 16 | (c.a & 0xFF) << 24;
+                c.free();
+            }
+        }
+        return retval;
+    }
+
+    private static TextureHandle[] makeFaceTextures(final Image image)
+    {
+        final int w = image.getWidth(), h = image.getHeight();
+        if(w <= 0 || h <= 0 || w % 4 != 0 || h % 2 != 0)
+            return null;
+        TextureHandle[] retval = new TextureHandle[FaceCount];
+        final int faceW = w / 4, faceH = h / 2;
+        int[][] pixels = new int[FaceCount][];
+        Color c = Color.allocate(0, 0, 0);
+        for(int face = 0; face < FaceCount; face++)
+        {
+            int left = Math.round(faceTextureOrigin[face][0] * w);
+            int top = h - Math.round(faceTextureOrigin[face][1] * h) - faceH;
+            pixels[face] = getFacePixels(image, left, top, faceW, faceH);
+            // many blocks look the same from every side, so share the
+            // textures of faces that are the same
+            for(int i = 0; i < face; i++)
+            {
+                if(Arrays.equals(pixels[i], pixels[face]))
+                {
+                    retval[face] = retval[i];
+                    break;
+                }
+            }
+            if(retval[face] != null)
+                continue;
+            Image faceImage = new Image(faceW * faceRepeat, faceH
+                    * faceRepeat);
+            for(int y = 0, i = 0; y < faceH; y++)
+            {
+                for(int x = 0; x < faceW; x++, i++)
+                {
+                    int v = pixels[face][i];
+                    c.r = (byte)v;
+                    c.g = (byte)(v >> 8);
+                    c.b = (byte)(v >> 16);
+                    c.a = (byte)(v >> 24);
+                    for(int ry = 0; ry < faceRepeat; ry++)
+                    {
+                        for(int rx = 0; rx < faceRepeat; rx++)
+                            faceImage.setPixel(x + rx * faceW, y + ry
+                                    * faceH, c);
+                    }
+                }
+            }
+            retval[face] = TextureAtlas.addImage(faceImage);
+        }
+        c.free();
+        return retval;
+    }
+
+    /** @param img
+     *            the block texture to check
+     * @return if <code>img</code> can be drawn by <code>GreedyMesher</code> */
+    public static boolean canMesh(final TextureHandle img)
+    {
+        return faceTextures.get(img) != null;
+    }
+
+    /** gets the lighting at points in the world
+     * 
+     * @author jacob */
+    interface LightingSource
+    {
+        /** @param p
+         *            the position to get the lighting at
+         * @param sunlight
+         *            true for the scattered sunlight at full sun, false for
+         *            the non-sun light
+         * @return the lighting, from 0 to 1 */
+        float getLightingChannel(Vector p, boolean sunlight);
+    }
+
+    /** adds the faces of a solid block. the faces are lit when they're drawn.
+     * 
+     * @param x
+     *            the x coordinate of the block in the chunk
+     * @param y
+     *            the y coordinate of the block in the chunk
+     * @param z
+     *            the z coordinate of the block in the chunk
+     * @param drawMask
+     *            the faces to add, with bit <code>5 - face</code> set for
+     *            each face to add
+     * @param img
+     *            the block texture. <code>canMesh(img)</code> must be true.
+     * @param layer
+     *            the layer to add the faces to
+     * @param isGlowing
+     *            if the faces aren't shaded
+     * @param isTranslucent
+     *            if the faces are drawn in the translucent draw phase
+     * @param r
+     *            the red component of the faces' color
+     * @param g
+     *            the green component of the faces' color
+     * @param b
+     *            the blue component of the faces' color
+     * @see #canMesh(TextureHandle) */
+    public void addFaces(final int x,
+                         final int y,
+                         final int z,
+                         final int drawMask,
+                         final TextureHandle img,
+                         final int layer,
+                         final boolean isGlowing,
+                         final boolean isTranslucent,
+                         final float r,
+                         final float g,
+                         final float b)
+    {
+        int faceFlags = FlagPresent;
+        if(isGlowing)
+            faceFlags |= FlagGlowing;
+        if(isTranslucent)
+            faceFlags |= FlagTranslucent;
+        int blockIndex = x + this.size * (y + this.size * z);
+        for(int face = 0; face < FaceCount; face++)
+        {
+            if((drawMask & (0x20 >> face)) == 0)
+                continue;
+            int layerIndex = face + FaceCount * blockIndex + layer
+                    * this.layerSize;
+            this.texture[layerIndex] = getFaceTexture(img, face);
+            this.flags[layerIndex] = (byte)faceFlags;
+            this.color[3 * layerIndex] = r;
+            this.color[3 * layerIndex + 1] = g;
+            this.color[3 * layerIndex + 2] = b;
+            this.faceCount++;
+        }
+    }
+
+    private final int[] light_pos = new int[3];
+    private final Vector light_p = Vector.allocate();
+    private final Vector light_t1 = Vector.allocate();
+
+    /** calculates the lighting at the corners of the added faces
+     * 
+     * @param cx
+     *            the x coordinate of the chunk
+     * @param cy
+     *            the y coordinate of the chunk
+     * @param cz
+     *            the z coordinate of the chunk
+     * @param source
+     *            the lighting to use */
+    private void light(final int cx,
+                       final int cy,
+                       final int cz,
+                       final LightingSource source)
+    {
+        int[] pos = this.light_pos;
+        Vector p = this.light_p;
+        Vector lightingP = this.light_t1;
+        for(int index = 0; index < this.layerSize; index++)
+        {
+            boolean present = false;
+            for(int layer = 0; layer < LayerCount; layer++)
+            {
+                if(this.flags[index + layer * this.layerSize] != 0)
+                    present = true;
+            }
+            if(!present)
+                continue;
+            final int face = index % FaceCount, blockIndex = index / FaceCount;
+            final int bx = cx + blockIndex % this.size;
+            final int by = cy + blockIndex / this.size % this.size;
+            final int bz = cz + blockIndex / (this.size * this.size);
+            Vector normal = faceNormal[face];
+            for(int corner = 0, li = 8 * index; corner < 4; corner++)
+            {
+                int cornerBits = faceCorners[face][corner];
+                pos[faceAxis[face]] = face & 1;
+                pos[faceUAxis[face]] = cornerBits & 1;
+                pos[faceVAxis[face]] = cornerBits >> 1;
+                Vector.set(p, bx + pos[0], by + pos[1], bz + pos[2]);
+                Block.getLightingPoint(lightingP, p, normal, bx, by, bz);
+                this.lighting[li++] = source.getLightingChannel(lightingP,
+                                                                true);
+                this.lighting[li++] = source.getLightingChannel(lightingP,
+                                                                false);
+            }
+        }
+    }
+
+    /** the largest difference in lighting that is treated as the same. the
+     * lighting is calculated in world coordinates, so the same lighting can
+     * be rounded differently in different places. */
+    private static final float lightingEpsilon = 1e-4f;
+
+    private static boolean isSameLighting(final float a, final float b)
+    {
+        return Math.abs(a - b) <= lightingEpsilon;
+    }
+
+    /** the largest difference in color that is treated as the same : half of
+     * the difference between 8-bit color values, so the biome colors that
+     * change smoothly between blocks don't stop faces from merging */
+    private static final float colorEpsilon = 0.5f / 255;
+
+    private static boolean isSameColor(final float a, final float b)
+    {
+        return Math.abs(a - b) <= colorEpsilon;
+    }
+
+    private boolean isUniform(final int index)
+    {
+        final float[] l = this.lighting;
+        for(int i = 8 * index + 2, end = 8 * index + 8; i < end; i += 2)
+        {
+            if(!isSameLighting(l[i], l[8 * index])
+                    || !isSameLighting(l[i + 1], l[8 * index + 1]))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean canMerge(final int index1,
+                             final int index2,
+                             final int layerOffset)
+    {
+        final int layerIndex1 = index1 + layerOffset, layerIndex2 = index2
+                + layerOffset;
+        if(this.flags[layerIndex2] == 0)
+            return false;
+        return this.texture[layerIndex1] == this.texture[layerIndex2]
+                && this.flags[layerIndex1] == this.flags[layerIndex2]
+                && isSameColor(this.color[3 * layerIndex1],
+                               this.color[3 * layerIndex2])
+                && isSameColor(this.color[3 * layerIndex1 + 1],
+                               this.color[3 * layerIndex2 + 1])
+                && isSameColor(this.color[3 * layerIndex1 + 2],
+                               this.color[3 * layerIndex2 + 2])
+                && isSameLighting(this.lighting[8 * index1],
+                                  this.lighting[8 * index2])
+                && isSameLighting(this.lighting[8 * index1 + 1],
+                                  this.lighting[8 * index2 + 1])
+                && isUniform(index2);
+    }
+
+    private final int[] getIndex_pos = new int[3];
+
+    private int getIndex(final int face,
+                         final int axisPos,
+                         final int u,
+                         final int v)
+    {
+        int[] pos = this.getIndex_pos;
+        pos[faceAxis[face]] = axisPos;
+        pos[faceUAxis[face]] = u;
+        pos[faceVAxis[face]] = v;
+        return face + FaceCount
+                * (pos[0] + this.size * (pos[1] + this.size * pos[2]));
+    }
+
+    private final float[] drawQuad_pos = new float[3];
+
+    private void drawQuad(final RenderingStream rs,
+                          final int face,
+                          final int index,
+                          final int layerOffset,
+                          final int axisPos,
+                          final int u,
+                          final int v,
+                          final int width,
+                          final int height,
+                          final int cx,
+                          final int cy,
+                          final int cz)
+    {
+        final int layerIndex = index + layerOffset;
+        float c;
+        if((this.flags[layerIndex] & FlagGlowing) != 0)
+            c = 1;
+        else
+            c = 0.8f + 0.2f * faceNormal[face].dot(Vector.Y);
+        float r = c * this.color[3 * layerIndex];
+        float g = c * this.color[3 * layerIndex + 1];
+        float b = c * this.color[3 * layerIndex + 2];
+        TextureHandle img = this.texture[layerIndex];
+        int uAxis = faceUAxis[face], vAxis = faceVAxis[face];
+        float[] pos = this.drawQuad_pos;
+        pos[faceAxis[face]] = axisPos + (face & 1);
+        rs.beginTriangle(img);
+        for(int i = 0; i < triangleCorners.length; i++)
+        {
+            if(i == 3)
+            {
+                rs.endTriangle();
+                rs.beginTriangle(img);
+            }
+            int corner = triangleCorners[i];
+            int cornerBits = faceCorners[face][corner];
+            int du = (cornerBits & 1) * width;
+            int dv = (cornerBits >> 1) * height;
+            pos[uAxis] = u + du;
+            pos[vAxis] = v + dv;
+            float texU = (float)(faceFlipU[face] ? width - du : du)
+                    / faceRepeat;
+            float texV = (float)(faceFlipV[face] ? height - dv : dv)
+                    / faceRepeat;
+            int li = 8 * index + 2 * corner;
+            rs.vertex(pos[0] + cx,
+                      pos[1] + cy,
+                      pos[2] + cz,
+                      texU,
+                      texV,
+                      r,
+                      g,
+                      b,
+                      1.0f,
+                      this.lighting[li],
+                      this.lighting[li + 1]);
+        }
+        rs.endTriangle();
+    }
+
+    /** lights the added faces, draws them merged into rectangles and removes
+     * them. doesn't use the world, so it can be called from any thread.
+     * 
+     * @param rs
+     *            the rendering streams for each draw phase
+     * @param cx
+     *            the x coordinate of the chunk
+     * @param cy
+     *            the y coordinate of the chunk
+     * @param cz
+     *            the z coordinate of the chunk
+     * @param source
+     *            the lighting to light the faces with */
+    public void draw(final RenderingStream rs[],
+                     final int cx,
+                     final int cy,
+                     final int cz,
+                     final LightingSource source)
+    {
+        if(this.faceCount <= 0)
+            return;
+        light(cx, cy, cz, source);
+        final int size = this.size;
+        final int maxMergeSize = RenderingStream.USE_TEXTURE_ATLAS ? faceRepeat
+                : size;
+        for(int layer = 0; layer < LayerCount; layer++)
+        {
+            final int layerOffset = layer * this.layerSize;
+            for(int face = 0; face < FaceCount; face++)
+            {
+                for(int axisPos = 0; axisPos < size; axisPos++)
+                {
+                    for(int v = 0; v < size; v++)
+                    {
+                        for(int u = 0; u < size; u++)
+                        {
+                            int index = getIndex(face, axisPos, u, v);
+                            if(this.flags[index + layerOffset] == 0)
+                                continue;
+                            int width = 1, height = 1;
+                            if(isUniform(index))
+                            {
+                                while(u + width < size
+                                        && width < maxMergeSize
+                                        && canMerge(index,
+                                                    getIndex(face,
+                                                             axisPos,
+                                                             u + width,
+                                                             v),
+                                                    layerOffset))
+                                    width++;
+                                heightLoop: while(v + height < size
+                                        && height < maxMergeSize)
+                                {
+                                    for(int i = 0; i < width; i++)
+                                    {
+                                        if(!canMerge(index,
+                                                     getIndex(face,
+                                                              axisPos,
+                                                              u + i,
+                                                              v + height),
+                                                     layerOffset))
+                                            break heightLoop;
+                                    }
+                                    height++;
+                                }
+                            }
+                            int drawPhase = (this.flags[index + layerOffset] & FlagTranslucent) != 0 ? 1
+                                    : 0;
+                            drawQuad(rs[drawPhase],
+                                     face,
+                                     index,
+                                     layerOffset,
+                                     axisPos,
+                                     u,
+                                     v,
+                                     width,
+                                     height,
+                                     cx,
+                                     cy,
+                                     cz);
+                            for(int j = 0; j < height; j++)
+                            {
+                                for(int i = 0; i < width; i++)
+                                {
+                                    int removeIndex = layerOffset
+                                            + getIndex(face,
+                                                       axisPos,
+                                                       u + i,
+                                                       v + j);
+                                    this.flags[removeIndex] = 0;
+                                    this.texture[removeIndex] = null;
+                                }
+                            }
+                            u += width - 1;
+                        }
+                    }
+                }
+            }
+        }
+        this.faceCount = 0;
+    }
+}
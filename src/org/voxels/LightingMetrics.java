@@ -0,0 +1,201 @@
+/**
+ * this file is part of Voxels
+ * 
+ * Voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels;
+
+/** counters for the lighting engine, for the debug overlay and for tracking
+ * lighting regressions in long runs
+ *
+ * @author jacob
+ * @see World#getLightingMetrics() */
+public final class LightingMetrics
+{
+    /** the number of histogram buckets. bucket 0 counts zeros and bucket
+     * <code>i</code> counts the values from <code>2<sup>i - 1</sup></code> to
+     * <code>2<sup>i</sup> - 1</code>, with the last bucket counting
+     * everything bigger. */
+    public static final int histogramSize = 24;
+    /** the number of lighting updates applied */
+    public long updateCount = 0;
+    /** the number of blocks that the lighting updates looked at */
+    public long processedCount = 0;
+    /** the number of times that a block's lighting changed */
+    public long changedCount = 0;
+    /** the number of blocks handed on to a later update because they were
+     * next to the chunks that an update could change */
+    public long spillCount = 0;
+    /** the number of blocks materialized from chunk palettes */
+    public long materializedBlockCount = 0;
+    /** the number of times that the lighting settled with nothing left to do */
+    public long convergeCount = 0;
+    /** the number of lighting work entries queued when the last lighting
+     * updates were made */
+    public int lastQueueDepth = 0;
+    /** the blocks looked at in the last frame */
+    public long lastFrameProcessedCount = 0;
+    /** the blocks whose lighting changed in the last frame */
+    public long lastFrameChangedCount = 0;
+    /** the frames that the lighting took to settle last time */
+    public int lastFramesToConverge = 0;
+    /** the seconds that the lighting took to settle last time */
+    public double lastConvergeTime = 0;
+    /** the most seconds that the lighting took to settle */
+    public double maxConvergeTime = 0;
+    /** histogram of the number of queued lighting work entries each time
+     * lighting updates were made */
+    public final long[] queueDepthHistogram = new long[histogramSize];
+    /** histogram of the blocks looked at per frame */
+    public final long[] processedPerFrameHistogram = new long[histogramSize];
+    /** histogram of the frames that the lighting took to settle */
+    public final long[] framesToConvergeHistogram = new long[histogramSize];
+
+    public LightingMetrics()
+    {
+    }
+
+    /** creates a copy of <code>rt</code>
+     *
+     * @param rt
+     *            the metrics to copy */
+    public LightingMetrics(final LightingMetrics rt)
+    {
+        set(rt);
+    }
+
+    /** @param rt
+     *            the metrics to copy
+     * @return <code>this</code> */
+    public LightingMetrics set(final LightingMetrics rt)
+    {
+        this.updateCount = rt.updateCount;
+        this.processedCount = rt.processedCount;
+        this.changedCount = rt.changedCount;
+        this.spillCount = rt.spillCount;
+        this.materializedBlockCount = rt.materializedBlockCount;
+        this.convergeCount = rt.convergeCount;
+        this.lastQueueDepth = rt.lastQueueDepth;
+        this.lastFrameProcessedCount = rt.lastFrameProcessedCount;
+        this.lastFrameChangedCount = rt.lastFrameChangedCount;
+        this.lastFramesToConverge = rt.lastFramesToConverge;
+        this.lastConvergeTime = rt.lastConvergeTime;
+        this.maxConvergeTime = rt.maxConvergeTime;
+        System.arraycopy(rt.queueDepthHistogram,
+                         0,
+                         this.queueDepthHistogram,
+                         0,
+                         histogramSize);
+        System.arraycopy(rt.processedPerFrameHistogram,
+                         0,
+                         this.processedPerFrameHistogram,
+                         0,
+                         histogramSize);
+        System.arraycopy(rt.framesToConvergeHistogram,
+                         0,
+                         this.framesToConvergeHistogram,
+                         0,
+                         histogramSize);
+        return this;
+    }
+
+    /** resets all the counters
+     *
+     * @return <code>this</code> */
+    public LightingMetrics clear()
+    {
+        this.updateCount = 0;
+        this.processedCount = 0;
+        this.changedCount = 0;
+        this.spillCount = 0;
+        this.materializedBlockCount = 0;
+        this.convergeCount = 0;
+        this.lastQueueDepth = 0;
+        this.lastFrameProcessedCount = 0;
+        this.lastFrameChangedCount = 0;
+        this.lastFramesToConverge = 0;
+        this.lastConvergeTime = 0;
+        this.maxConvergeTime = 0;
+        for(int i = 0; i < histogramSize; i++)
+        {
+            this.queueDepthHistogram[i] = 0;
+            this.processedPerFrameHistogram[i] = 0;
+            this.framesToConvergeHistogram[i] = 0;
+        }
+        return this;
+    }
+
+    /** @param value
+     *            the value to find the bucket of
+     * @return the histogram bucket that <code>value</code> goes in */
+    public static int getHistogramBucket(final long value)
+    {
+        if(value <= 0)
+            return 0;
+        return Math.min(histogramSize - 1,
+                        64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /** @param histogram
+     *            the histogram to add to
+     * @param value
+     *            the value to count */
+    static void addToHistogram(final long[] histogram, final long value)
+    {
+        histogram[getHistogramBucket(value)]++;
+    }
+
+    private static void appendHistogram(final StringBuilder sb,
+                                        final String name,
+                                        final long[] histogram)
+    {
+        sb.append(name);
+        sb.append(" :");
+        int last = histogramSize - 1;
+        while(last > 0 && histogram[last] == 0)
+            last--;
+        for(int i = 0; i <= last; i++)
+        {
+            sb.append(' ');
+            sb.append(histogram[i]);
+        }
+        sb.append('\n');
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("lighting updates : ").append(this.updateCount);
+        sb.append("\nblocks processed : ").append(this.processedCount);
+        sb.append(" (").append(this.changedCount).append(" changed, ");
+        sb.append(this.processedCount - this.changedCount);
+        sb.append(" unchanged)\nblocks handed on : ").append(this.spillCount);
+        sb.append("\nblocks materialized : ");
+        sb.append(this.materializedBlockCount);
+        sb.append("\nconverged : ").append(this.convergeCount);
+        sb.append(" times, last ").append(this.lastFramesToConverge);
+        sb.append(" frames ");
+        sb.append((float)(this.lastConvergeTime * 1000)).append(" ms, max ");
+        sb.append((float)(this.maxConvergeTime * 1000)).append(" ms\n");
+        appendHistogram(sb, "queue depth", this.queueDepthHistogram);
+        appendHistogram(sb,
+                        "processed per frame",
+                        this.processedPerFrameHistogram);
+        appendHistogram(sb,
+                        "frames to converge",
+                        this.framesToConvergeHistogram);
+        return sb.toString();
+    }
+}
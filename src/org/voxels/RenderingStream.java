@@ -21,51 +21,25 @@ import java.nio.FloatBuffer;
 /** @author jacob */
 public final class RenderingStream
 {
-    private static class MatrixNode
-    {
-        public final Matrix mat;
-        public MatrixNode next;
-
-        public MatrixNode()
-        {
-            this.mat = Matrix.allocate(Matrix.IDENTITY);
-            this.next = null;
-        }
-    }
-
-    private static MatrixNode[] freeMatrixHead = new MatrixNode[]
-    {
-        null
-    };
-
-    private static void freeMatrix(final MatrixNode m)
-    {
-        synchronized(freeMatrixHead)
-        {
-            m.next = freeMatrixHead[0];
-            freeMatrixHead[0] = m;
-        }
-    }
-
-    private static MatrixNode allocMatrix()
-    {
-        synchronized(freeMatrixHead)
-        {
-            MatrixNode retval = freeMatrixHead[0];
-            if(retval != null)
-            {
-                freeMatrixHead[0] = retval.next;
-                retval.next = null;
-                Matrix.set(retval.mat, Matrix.IDENTITY);
-                return retval;
-            }
-        }
-        return new MatrixNode();
-    }
-
     /** if <code>RenderingStream</code> should use vertex arrays and the texture
      * atlas */
     public static boolean USE_VERTEX_ARRAY = true;
+    /** if display lists added to a <code>RenderingStream</code> should stay
+     * in buffer objects and be drawn by reference instead of being copied
+     * into the stream. only used with vertex arrays when OpenGL supports
+     * buffer objects. */
+    public static boolean USE_RETAINED_MESHES = true;
+    /** if the triangles should be kept in one array and drawn from the
+     * texture atlas in one draw call instead of a texture at a time.
+     * triangles with texture coordinates outside their textures are cut
+     * along the edges of the repeats of their textures. only used with vertex
+     * arrays. */
+    public static boolean USE_TEXTURE_ATLAS = true;
+    /** if retained meshes should be uploaded with interleaved vertices made
+     * of short positions, short texture coordinates and byte colors instead
+     * of separate float arrays. meshes that don't fit in the shorts are
+     * still uploaded as floats. */
+    public static boolean USE_COMPACT_VERTICES = true;
     private static final TextureAtlas.TextureHandle whiteTexture = TextureAtlas.addImage(new Image(Color.V(1.0f)));
     /**
      * 
@@ -109,42 +83,126 @@ public final class RenderingStream
         return retval;
     }
 
-    // private static TextureAtlas.TextureHandle[]
-    // expandArray(final TextureAtlas.TextureHandle[] array, final int newSize)
-    // {
-    // TextureAtlas.TextureHandle[] retval = new
-    // TextureAtlas.TextureHandle[newSize];
-    // System.arraycopy(array, 0, retval, 0, array.length);
-    // return retval;
-    // }
-    private final float[][] vertexArray = new float[hashPrime][];
-    private final float[][] colorArray = new float[hashPrime][];
-    private final float[][] texCoordArray = new float[hashPrime][];
-    private final float[][] transformedTexCoordArray = new float[hashPrime][];
-    private static final int hashPrime = 8191;
-    private final TextureAtlas.TextureHandle[] textureArray = new TextureAtlas.TextureHandle[hashPrime];
-    private final int[] trianglesUsed = new int[hashPrime];
-    private final int[] trianglesAllocated = new int[hashPrime];
-    private MatrixNode matrixStack = null;
+    private static float[][] expandArray(final float[][] array,
+                                         final int newSize)
+    {
+        float[][] retval = new float[newSize][];
+        System.arraycopy(array, 0, retval, 0, array.length);
+        return retval;
+    }
+
+    private static TextureAtlas.TextureHandle[]
+        expandArray(final TextureAtlas.TextureHandle[] array, final int newSize)
+    {
+        TextureAtlas.TextureHandle[] retval = new TextureAtlas.TextureHandle[newSize];
+        System.arraycopy(array, 0, retval, 0, array.length);
+        return retval;
+    }
+
+    private static int[] expandArray(final int[] array, final int newSize)
+    {
+        int[] retval = new int[newSize];
+        System.arraycopy(array, 0, retval, 0, array.length);
+        return retval;
+    }
+
+    /** the triangles drawn a texture at a time when the texture atlas isn't
+     * used, one entry per texture in the order the textures are first used.
+     * the entries from <code>usedTextureCount</code> on keep their arrays to
+     * be reused. */
+    private float[][] vertexArray = new float[16][];
+    private float[][] colorArray = new float[16][];
+    /** the sunlight and light channels of each vertex, from 0 to 1 */
+    private float[][] lightArray = new float[16][];
+    private float[][] texCoordArray = new float[16][];
+    private TextureAtlas.TextureHandle[] textureArray = new TextureAtlas.TextureHandle[16];
+    private int[] trianglesUsed = new int[16];
+    private int usedTextureCount = 0;
+    /** the number of floats for each vertex in <code>atlasArray</code> : the
+     * position, texture coordinates, color, sunlight and light */
+    private static final int atlasVertexSize = 3 + 2 + 4 + 2;
+    /** the triangles drawn with the texture atlas, with the vertices
+     * interleaved */
+    private float[] atlasArray = new float[atlasVertexSize * 3 * 64];
+    private int atlasTriangleCount = 0;
+    /** the textures of the runs of triangles in <code>atlasArray</code> */
+    private TextureAtlas.TextureHandle[] atlasRunTextures = new TextureAtlas.TextureHandle[16];
+    /** the number of triangles in each run in <code>atlasArray</code> */
+    private int[] atlasRunTriangleCounts = new int[16];
+    private int atlasRunCount = 0;
+    /** if the current triangle is being put in <code>atlasArray</code> */
+    private boolean currentTriangleInAtlas = false;
+    private TextureAtlas.TextureHandle currentAtlasTexture = null;
+    /** the triangle being cut into the repeats of its texture and the
+     * polygons it is clipped to, <code>atlasVertexSize</code> floats per
+     * vertex. clipping a triangle to a repeat adds at most one vertex for each
+     * side of the repeat. */
+    /** triangles with texture coordinates past this are dropped instead of
+     * being cut into the repeats of their textures */
+    private static final float maxTileTextureCoord = 1 << 20;
+    private final float[] tileTriangle = new float[atlasVertexSize * 3];
+    private float[] tilePolygon = new float[atlasVertexSize * 8];
+    private float[] tileClippedPolygon = new float[atlasVertexSize * 8];
+    /** the number of floats in a matrix in <code>matrixStack</code>, in the
+     * same layout as <code>Matrix</code> */
+    private static final int matrixSize = 12;
+    private static final float[] identityMatrix = new float[]
+    {
+        1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0
+    };
+    /** the matrix stack. each stream has its own, so streams can be filled
+     * on different threads without sharing anything. */
+    private float[] matrixStack = new float[matrixSize * 16];
+    /** the index of the current matrix in <code>matrixStack</code> */
+    private int matrixStackTop = 0;
+    private final Matrix getMatrix_t1 = Matrix.allocate();
     private int trianglePoint = -1;
     private TextureAtlas.TextureHandle currentTexture = null;
-    private int currentTextureHash;
+    private int currentTextureIndex;
+    private int sunlightFactor = 15;
+    /** the display lists added in retained mode and the matrices to draw
+     * them with */
+    private DisplayList[] retainedLists = new DisplayList[16];
+    private float[] retainedMatrices = new float[matrixSize * 16];
+    private final Matrix render_t1 = Matrix.allocate();
+    private int retainedCount = 0;
 
     public RenderingStream clear()
     {
-        for(int i = 0; i < hashPrime; i++)
-            this.trianglesUsed[i] = 0;
-        this.next = null;
-        while(this.matrixStack != null)
+        for(int i = 0; i < this.retainedCount; i++)
         {
-            MatrixNode node = this.matrixStack;
-            this.matrixStack = node.next;
-            freeMatrix(node);
+            this.retainedLists[i] = null;
         }
-        this.matrixStack = allocMatrix();
-        this.matrixStack.next = null;
+        this.retainedCount = 0;
+        for(int i = 0; i < this.usedTextureCount; i++)
+            this.textureArray[i] = null;
+        this.usedTextureCount = 0;
+        for(int i = 0; i < this.atlasRunCount; i++)
+            this.atlasRunTextures[i] = null;
+        this.atlasRunCount = 0;
+        this.atlasTriangleCount = 0;
+        this.currentAtlasTexture = null;
+        this.next = null;
+        this.matrixStackTop = 0;
+        System.arraycopy(identityMatrix, 0, this.matrixStack, 0, matrixSize);
         this.trianglePoint = -1;
         this.currentTexture = null;
+        this.sunlightFactor = 15;
+        return this;
+    }
+
+    /** sets the amount that the sunlight channel of the vertices counts for
+     * when this stream is rendered. the final color of a vertex is its color
+     * times the larger of its light channel and its sunlight channel darkened
+     * by <code>15 - sunlightFactor</code> levels.
+     * 
+     * @param sunlightFactor
+     *            the amount that sunlight counts for. from 0 (none) to 15
+     *            (full).
+     * @return <code>this</code> */
+    public RenderingStream setSunlightFactor(final int sunlightFactor)
+    {
+        this.sunlightFactor = sunlightFactor;
         return this;
     }
 
@@ -153,55 +211,242 @@ public final class RenderingStream
 	 */
     private RenderingStream()
     {
-        for(int i = 0; i < hashPrime; i++)
-            this.trianglesUsed[i] = 0;
         this.next = null;
-        this.matrixStack = allocMatrix();
-        this.matrixStack.next = null;
+        System.arraycopy(identityMatrix, 0, this.matrixStack, 0, matrixSize);
         this.trianglePoint = -1;
     }
 
+    /** makes <code>texture</code> the texture of the triangles added to the
+     * arrays with a texture each and makes room for another triangle
+     * 
+     * @param texture
+     *            the texture */
+    private void selectTexture(final TextureAtlas.TextureHandle texture)
+    {
+        if(this.currentTexture != texture)
+        {
+            this.currentTexture = texture;
+            this.currentTextureIndex = getTextureIndex(texture);
+        }
+        final int index = this.currentTextureIndex;
+        if(this.vertexArray[index] == null
+                || this.trianglesUsed[index] >= this.vertexArray[index].length
+                        / (3 * 3))
+        {
+            int newSize = this.trianglesUsed[index] + 256;
+            this.vertexArray[index] = expandArray(this.vertexArray[index],
+                                                  newSize * 3 * 3);
+            this.colorArray[index] = expandArray(this.colorArray[index],
+                                                 newSize * 4 * 3);
+            this.lightArray[index] = expandArray(this.lightArray[index],
+                                                 newSize * 2 * 3);
+            this.texCoordArray[index] = expandArray(this.texCoordArray[index],
+                                                    newSize * 2 * 3);
+        }
+    }
+
+    /** @return the index of the arrays for <code>texture</code>, adding them
+     *         if <code>texture</code> hasn't been used yet */
+    private int getTextureIndex(final TextureAtlas.TextureHandle texture)
+    {
+        for(int i = this.usedTextureCount - 1; i >= 0; i--)
+        {
+            if(this.textureArray[i] == texture)
+                return i;
+        }
+        if(this.usedTextureCount >= this.textureArray.length)
+        {
+            int newSize = this.usedTextureCount * 2;
+            this.vertexArray = expandArray(this.vertexArray, newSize);
+            this.colorArray = expandArray(this.colorArray, newSize);
+            this.lightArray = expandArray(this.lightArray, newSize);
+            this.texCoordArray = expandArray(this.texCoordArray, newSize);
+            this.textureArray = expandArray(this.textureArray, newSize);
+            this.trianglesUsed = expandArray(this.trianglesUsed, newSize);
+        }
+        int index = this.usedTextureCount++;
+        this.textureArray[index] = texture;
+        this.trianglesUsed[index] = 0;
+        return index;
+    }
+
     public RenderingStream
         beginTriangle(final TextureAtlas.TextureHandle texture)
     {
         TextureAtlas.TextureHandle testTexture = texture;
         if(testTexture == NO_TEXTURE)
             testTexture = whiteTexture;
-        if(this.currentTexture != testTexture)
-        {
-            this.currentTexture = testTexture;
-            this.currentTextureHash = this.currentTexture.hashCode()
-                    % hashPrime;
-            if(this.currentTextureHash < 0)
-                this.currentTextureHash += hashPrime;
-            if(this.textureArray[this.currentTextureHash] != null
-                    && this.textureArray[this.currentTextureHash] != this.currentTexture)
-                throw new RuntimeException("RenderingStream texture hash collision : "
-                        + this.currentTexture.hashCode()
-                        + " collides with "
-                        + this.textureArray[this.currentTextureHash].hashCode());
-            this.textureArray[this.currentTextureHash] = this.currentTexture;
-        }
         if(this.trianglePoint >= 0)
             throw new IllegalStateException("beginTriangle called twice without endTriangle call in between");
-        this.trianglePoint = 0;
-        if(this.trianglesUsed[this.currentTextureHash] >= this.trianglesAllocated[this.currentTextureHash]
-                / (3 * 3))
+        if(USE_VERTEX_ARRAY && USE_TEXTURE_ATLAS)
+        {
+            this.currentTriangleInAtlas = true;
+            this.currentAtlasTexture = testTexture;
+            int newSize = (this.atlasTriangleCount + 1) * 3 * atlasVertexSize;
+            if(this.atlasArray.length < newSize)
+                this.atlasArray = expandArray(this.atlasArray,
+                                              Math.max(newSize,
+                                                       this.atlasArray.length * 2));
+        }
+        else
         {
-            this.trianglesAllocated[this.currentTextureHash] += 256;
-            int newSize = this.trianglesAllocated[this.currentTextureHash];
-            this.vertexArray[this.currentTextureHash] = expandArray(this.vertexArray[this.currentTextureHash],
-                                                                    newSize * 3 * 3);
-            this.colorArray[this.currentTextureHash] = expandArray(this.colorArray[this.currentTextureHash],
-                                                                   newSize * 4 * 3);
-            this.texCoordArray[this.currentTextureHash] = expandArray(this.texCoordArray[this.currentTextureHash],
-                                                                      newSize * 2 * 3);
-            this.transformedTexCoordArray[this.currentTextureHash] = expandArray(this.transformedTexCoordArray[this.currentTextureHash],
-                                                                                 newSize * 2 * 3);
+            this.currentTriangleInAtlas = false;
+            selectTexture(testTexture);
         }
+        this.trianglePoint = 0;
         return this;
     }
 
+    /** @return if the texture coordinates of the current triangle in
+     *         <code>atlasArray</code> are inside its texture */
+    private boolean isAtlasTriangleInsideTexture()
+    {
+        for(int i = 0, ti = this.atlasTriangleCount * 3 * atlasVertexSize + 3; i < 3; i++, ti += atlasVertexSize)
+        {
+            float u = this.atlasArray[ti], v = this.atlasArray[ti + 1];
+            if(u < 0 || u > 1 || v < 0 || v > 1)
+                return false;
+        }
+        return true;
+    }
+
+    /** clips the polygon in <code>tilePolygon</code> to the side of a line
+     * of constant texture coordinate, putting the result in
+     * <code>tilePolygon</code>
+     * 
+     * @param vertexCount
+     *            the number of vertices in the polygon
+     * @param coordinate
+     *            the index in a vertex of the texture coordinate to clip by
+     * @param edge
+     *            the texture coordinate of the line
+     * @param side
+     *            1 to keep the part above the line or -1 to keep the part
+     *            below it
+     * @return the number of vertices in the clipped polygon */
+    private int clipTilePolygon(final int vertexCount,
+                                final int coordinate,
+                                final float edge,
+                                final float side)
+    {
+        final float[] src = this.tilePolygon, dest = this.tileClippedPolygon;
+        int destCount = 0;
+        for(int i = 0, prev = vertexCount - 1; i < vertexCount; prev = i++)
+        {
+            final int pi = prev * atlasVertexSize, si = i * atlasVertexSize;
+            final float prevDistance = side * (src[pi + coordinate] - edge);
+            final float distance = side * (src[si + coordinate] - edge);
+            if((prevDistance < 0 && distance > 0)
+                    || (prevDistance > 0 && distance < 0))
+            {
+                final float t = prevDistance / (prevDistance - distance);
+                final int di = destCount++ * atlasVertexSize;
+                for(int j = 0; j < atlasVertexSize; j++)
+                    dest[di + j] = src[pi + j] + t * (src[si + j] - src[pi + j]);
+                dest[di + coordinate] = edge;
+            }
+            if(distance >= 0)
+                System.arraycopy(src,
+                                 si,
+                                 dest,
+                                 destCount++ * atlasVertexSize,
+                                 atlasVertexSize);
+        }
+        this.tilePolygon = dest;
+        this.tileClippedPolygon = src;
+        return destCount;
+    }
+
+    private static float wrapTextureCoord(final float coord, final int tile)
+    {
+        return Math.max(0, Math.min(1, coord - tile));
+    }
+
+    /** wraps the texture coordinates of the current triangle in
+     * <code>atlasArray</code> into its texture so it can be drawn from the
+     * texture atlas. a triangle inside one repeat of its texture is moved
+     * into the texture, and other triangles are cut along the edges of the
+     * repeats into triangles that are each moved into the texture.
+     * 
+     * @return the number of triangles that the current triangle is replaced
+     *         with */
+    private int tileAtlasTriangle()
+    {
+        final int start = this.atlasTriangleCount * 3 * atlasVertexSize;
+        float minU = this.atlasArray[start + 3], maxU = minU;
+        float minV = this.atlasArray[start + 4], maxV = minV;
+        for(int i = 1, ti = start + atlasVertexSize + 3; i < 3; i++, ti += atlasVertexSize)
+        {
+            minU = Math.min(minU, this.atlasArray[ti]);
+            maxU = Math.max(maxU, this.atlasArray[ti]);
+            minV = Math.min(minV, this.atlasArray[ti + 1]);
+            maxV = Math.max(maxV, this.atlasArray[ti + 1]);
+        }
+        if(!(minU > -maxTileTextureCoord && maxU < maxTileTextureCoord
+                && minV > -maxTileTextureCoord && maxV < maxTileTextureCoord))
+            return 0;
+        final int minTileU = (int)Math.floor(minU), minTileV = (int)Math.floor(minV);
+        final int maxTileU = Math.max(minTileU, (int)Math.ceil(maxU) - 1);
+        final int maxTileV = Math.max(minTileV, (int)Math.ceil(maxV) - 1);
+        if(minTileU == maxTileU && minTileV == maxTileV)
+        {
+            for(int i = 0, ti = start + 3; i < 3; i++, ti += atlasVertexSize)
+            {
+                this.atlasArray[ti] = wrapTextureCoord(this.atlasArray[ti],
+                                                       minTileU);
+                this.atlasArray[ti + 1] = wrapTextureCoord(this.atlasArray[ti + 1],
+                                                           minTileV);
+            }
+            return 1;
+        }
+        System.arraycopy(this.atlasArray,
+                         start,
+                         this.tileTriangle,
+                         0,
+                         3 * atlasVertexSize);
+        int triangleCount = 0;
+        for(int tileU = minTileU; tileU <= maxTileU; tileU++)
+        {
+            for(int tileV = minTileV; tileV <= maxTileV; tileV++)
+            {
+                System.arraycopy(this.tileTriangle,
+                                 0,
+                                 this.tilePolygon,
+                                 0,
+                                 3 * atlasVertexSize);
+                int vertexCount = clipTilePolygon(3, 3, tileU, 1);
+                vertexCount = clipTilePolygon(vertexCount, 3, tileU + 1, -1);
+                vertexCount = clipTilePolygon(vertexCount, 4, tileV, 1);
+                vertexCount = clipTilePolygon(vertexCount, 4, tileV + 1, -1);
+                for(int i = 0, ti = 3; i < vertexCount; i++, ti += atlasVertexSize)
+                {
+                    this.tilePolygon[ti] = wrapTextureCoord(this.tilePolygon[ti],
+                                                            tileU);
+                    this.tilePolygon[ti + 1] = wrapTextureCoord(this.tilePolygon[ti + 1],
+                                                                tileV);
+                }
+                for(int i = 2; i < vertexCount; i++)
+                {
+                    int ai = start + triangleCount++ * 3 * atlasVertexSize;
+                    if(this.atlasArray.length < ai + 3 * atlasVertexSize)
+                        this.atlasArray = expandArray(this.atlasArray,
+                                                      this.atlasArray.length * 2);
+                    System.arraycopy(this.tilePolygon,
+                                     0,
+                                     this.atlasArray,
+                                     ai,
+                                     atlasVertexSize);
+                    System.arraycopy(this.tilePolygon,
+                                     (i - 1) * atlasVertexSize,
+                                     this.atlasArray,
+                                     ai + atlasVertexSize,
+                                     2 * atlasVertexSize);
+                }
+            }
+        }
+        return triangleCount;
+    }
+
     public RenderingStream endTriangle()
     {
         if(this.trianglePoint != 3)
@@ -211,12 +456,44 @@ public final class RenderingStream
             throw new IllegalStateException("endTriangle called without three vertex calls before");
         }
         this.trianglePoint = -1;
-        this.trianglesUsed[this.currentTextureHash]++;
+        if(this.currentTriangleInAtlas)
+        {
+            int triangleCount = 1;
+            if(!isAtlasTriangleInsideTexture())
+                triangleCount = tileAtlasTriangle();
+            if(triangleCount == 0)
+                return this;
+            if(this.atlasRunCount == 0
+                    || this.atlasRunTextures[this.atlasRunCount - 1] != this.currentAtlasTexture)
+            {
+                if(this.atlasRunCount >= this.atlasRunTextures.length)
+                {
+                    TextureAtlas.TextureHandle[] newTextures = new TextureAtlas.TextureHandle[this.atlasRunCount * 2];
+                    int[] newCounts = new int[this.atlasRunCount * 2];
+                    System.arraycopy(this.atlasRunTextures,
+                                     0,
+                                     newTextures,
+                                     0,
+                                     this.atlasRunCount);
+                    System.arraycopy(this.atlasRunTriangleCounts,
+                                     0,
+                                     newCounts,
+                                     0,
+                                     this.atlasRunCount);
+                    this.atlasRunTextures = newTextures;
+                    this.atlasRunTriangleCounts = newCounts;
+                }
+                this.atlasRunTextures[this.atlasRunCount] = this.currentAtlasTexture;
+                this.atlasRunTriangleCounts[this.atlasRunCount++] = 0;
+            }
+            this.atlasRunTriangleCounts[this.atlasRunCount - 1] += triangleCount;
+            this.atlasTriangleCount += triangleCount;
+            return this;
+        }
+        this.trianglesUsed[this.currentTextureIndex]++;
         return this;
     }
 
-    private Vector vertex_t1 = Vector.allocate();
-
     public RenderingStream vertex(final float x,
                                   final float y,
                                   final float z,
@@ -226,29 +503,95 @@ public final class RenderingStream
                                   final float g,
                                   final float b,
                                   final float a)
+    {
+        return vertex(x, y, z, u, v, r, g, b, a, 1.0f, 1.0f);
+    }
+
+    /** adds a vertex that is lit when this stream is rendered
+     * 
+     * @param x
+     *            the x coordinate
+     * @param y
+     *            the y coordinate
+     * @param z
+     *            the z coordinate
+     * @param u
+     *            the u texture coordinate
+     * @param v
+     *            the v texture coordinate
+     * @param r
+     *            the red component of the unlit color
+     * @param g
+     *            the green component of the unlit color
+     * @param b
+     *            the blue component of the unlit color
+     * @param a
+     *            the alpha component
+     * @param sunlight
+     *            the scattered sunlight at full sun, from 0 to 1
+     * @param light
+     *            the non-sun light, from 0 to 1
+     * @return <code>this</code>
+     * @see #setSunlightFactor(int) */
+    public RenderingStream vertex(final float x,
+                                  final float y,
+                                  final float z,
+                                  final float u,
+                                  final float v,
+                                  final float r,
+                                  final float g,
+                                  final float b,
+                                  final float a,
+                                  final float sunlight,
+                                  final float light)
     {
         if(this.trianglePoint == -1)
             throw new IllegalStateException("vertex called without beginTriangle call before");
         if(this.trianglePoint >= 3)
             throw new IllegalStateException("missing endTriangle call before");
-        Vector p = this.matrixStack.mat.apply(this.vertex_t1,
-                                              Vector.set(this.vertex_t1,
-                                                         x,
-                                                         y,
-                                                         z));
-        int vi = (this.trianglePoint + 3 * this.trianglesUsed[this.currentTextureHash]) * 3;
-        int ci = (this.trianglePoint + 3 * this.trianglesUsed[this.currentTextureHash]) * 4;
-        int ti = (this.trianglePoint + 3 * this.trianglesUsed[this.currentTextureHash]) * 2;
+        final float[] m = this.matrixStack;
+        final int mi = this.matrixStackTop;
+        final float px = x * m[mi] + y * m[mi + 1] + z * m[mi + 2]
+                + m[mi + 3];
+        final float py = x * m[mi + 4] + y * m[mi + 5] + z * m[mi + 6]
+                + m[mi + 7];
+        final float pz = x * m[mi + 8] + y * m[mi + 9] + z * m[mi + 10]
+                + m[mi + 11];
+        if(this.currentTriangleInAtlas)
+        {
+            int ai = (this.atlasTriangleCount * 3 + this.trianglePoint++)
+                    * atlasVertexSize;
+            float[] array = this.atlasArray;
+            array[ai++] = px;
+            array[ai++] = py;
+            array[ai++] = pz;
+            array[ai++] = u;
+            array[ai++] = v;
+            array[ai++] = r;
+            array[ai++] = g;
+            array[ai++] = b;
+            array[ai++] = a;
+            array[ai++] = sunlight;
+            array[ai] = light;
+            return this;
+        }
+        final int index = this.currentTextureIndex;
+        int vi = (this.trianglePoint + 3 * this.trianglesUsed[index]) * 3;
+        int ci = (this.trianglePoint + 3 * this.trianglesUsed[index]) * 4;
+        int ti = (this.trianglePoint + 3 * this.trianglesUsed[index]) * 2;
+        int li = ti;
         this.trianglePoint++;
-        this.colorArray[this.currentTextureHash][ci++] = r;
-        this.colorArray[this.currentTextureHash][ci++] = g;
-        this.colorArray[this.currentTextureHash][ci++] = b;
-        this.colorArray[this.currentTextureHash][ci] = a;
-        this.vertexArray[this.currentTextureHash][vi++] = p.getX();
-        this.vertexArray[this.currentTextureHash][vi++] = p.getY();
-        this.vertexArray[this.currentTextureHash][vi] = p.getZ();
-        this.texCoordArray[this.currentTextureHash][ti++] = u;
-        this.texCoordArray[this.currentTextureHash][ti] = v;
+        this.lightArray[index][li++] = sunlight;
+        this.lightArray[index][li] = light;
+        this.colorArray[index][ci++] = r;
+        this.colorArray[index][ci++] = g;
+        this.colorArray[index][ci++] = b;
+        this.colorArray[index][ci] = a;
+        this.vertexArray[index][vi++] = px;
+        this.vertexArray[index][vi++] = py;
+        this.vertexArray[index][vi] = pz;
+        this.texCoordArray[index][ti++] = u;
+        this.texCoordArray[index][ti] = v;
         return this;
     }
 
@@ -263,6 +606,29 @@ public final class RenderingStream
         return vertex(p.getX(), p.getY(), p.getZ(), u, v, r, g, b, a);
     }
 
+    public RenderingStream vertex(final Vector p,
+                                  final float u,
+                                  final float v,
+                                  final float r,
+                                  final float g,
+                                  final float b,
+                                  final float a,
+                                  final float sunlight,
+                                  final float light)
+    {
+        return vertex(p.getX(),
+                      p.getY(),
+                      p.getZ(),
+                      u,
+                      v,
+                      r,
+                      g,
+                      b,
+                      a,
+                      sunlight,
+                      light);
+    }
+
     public RenderingStream vertex(final Vector p,
                                   final float u,
                                   final float v,
@@ -345,20 +711,69 @@ public final class RenderingStream
         return this;
     }
 
-    /** @return the current matrix */
+    /** sets the matrix at <code>destOffset</code> in <code>dest</code> to the
+     * matrix at <code>aOffset</code> in <code>a</code> followed by the matrix
+     * at <code>bOffset</code> in <code>b</code>. the destination may be the
+     * same as either source.
+     * 
+     * @param dest
+     *            the array to put the combined matrix in
+     * @param destOffset
+     *            the index of the combined matrix in <code>dest</code>
+     * @param a
+     *            the array with the first transformation
+     * @param aOffset
+     *            the index of the first transformation in <code>a</code>
+     * @param b
+     *            the array with the transformation to combine after the first
+     * @param bOffset
+     *            the index of the second transformation in <code>b</code> */
+    private static void concatMatrices(final float[] dest,
+                                       final int destOffset,
+                                       final float[] a,
+                                       final int aOffset,
+                                       final float[] b,
+                                       final int bOffset)
+    {
+        final float a00 = a[aOffset], a10 = a[aOffset + 1], a20 = a[aOffset + 2], a30 = a[aOffset + 3];
+        final float a01 = a[aOffset + 4], a11 = a[aOffset + 5], a21 = a[aOffset + 6], a31 = a[aOffset + 7];
+        final float a02 = a[aOffset + 8], a12 = a[aOffset + 9], a22 = a[aOffset + 10], a32 = a[aOffset + 11];
+        for(int row = 0; row < 3; row++)
+        {
+            int bi = bOffset + row * 4, di = destOffset + row * 4;
+            float b0 = b[bi], b1 = b[bi + 1], b2 = b[bi + 2], b3 = b[bi + 3];
+            dest[di] = a00 * b0 + a01 * b1 + a02 * b2;
+            dest[di + 1] = a10 * b0 + a11 * b1 + a12 * b2;
+            dest[di + 2] = a20 * b0 + a21 * b1 + a22 * b2;
+            dest[di + 3] = a30 * b0 + a31 * b1 + a32 * b2 + b3;
+        }
+    }
+
+    /** @return a copy of the current matrix. it is overwritten by the next
+     *         call. */
     public Matrix getMatrix()
     {
-        return this.matrixStack.mat;
+        System.arraycopy(this.matrixStack,
+                         this.matrixStackTop,
+                         this.getMatrix_t1.elements,
+                         0,
+                         matrixSize);
+        return this.getMatrix_t1;
     }
 
     /** @return this */
     public RenderingStream pushMatrixStack()
     {
-        Matrix oldMat = this.matrixStack.mat;
-        MatrixNode newNode = allocMatrix();
-        Matrix.set(newNode.mat, oldMat);
-        newNode.next = this.matrixStack;
-        this.matrixStack = newNode;
+        int newTop = this.matrixStackTop + matrixSize;
+        if(newTop + matrixSize > this.matrixStack.length)
+            this.matrixStack = expandArray(this.matrixStack,
+                                           this.matrixStack.length * 2);
+        System.arraycopy(this.matrixStack,
+                         this.matrixStackTop,
+                         this.matrixStack,
+                         newTop,
+                         matrixSize);
+        this.matrixStackTop = newTop;
         return this;
     }
 
@@ -369,7 +784,11 @@ public final class RenderingStream
     {
         if(mat == null)
             throw new NullPointerException();
-        Matrix.set(this.matrixStack.mat, mat);
+        System.arraycopy(mat.elements,
+                         0,
+                         this.matrixStack,
+                         this.matrixStackTop,
+                         matrixSize);
         return this;
     }
 
@@ -380,18 +799,21 @@ public final class RenderingStream
     {
         if(mat == null)
             throw new NullPointerException();
-        mat.concat(this.matrixStack.mat, this.matrixStack.mat);
+        concatMatrices(this.matrixStack,
+                       this.matrixStackTop,
+                       mat.elements,
+                       0,
+                       this.matrixStack,
+                       this.matrixStackTop);
         return this;
     }
 
     /** @return this */
     public RenderingStream popMatrixStack()
     {
-        if(this.matrixStack.next == null)
+        if(this.matrixStackTop <= 0)
             throw new IllegalStateException("can not pop the last matrix off the stack");
-        MatrixNode node = this.matrixStack;
-        this.matrixStack = this.matrixStack.next;
-        freeMatrix(node);
+        this.matrixStackTop -= matrixSize;
         return this;
     }
 
@@ -403,23 +825,206 @@ public final class RenderingStream
         if(rs == null)
             throw new NullPointerException();
         assert rs != this;
-        for(int textureHash = 0; textureHash < hashPrime; textureHash++)
+        final float[] atlasArray = rs.atlasArray;
+        for(int run = 0, ai = 0; run < rs.atlasRunCount; run++)
         {
-            for(int tri = 0, vi = 0, ci = 0, ti = 0; tri < rs.trianglesUsed[textureHash]; tri++)
+            for(int tri = 0; tri < rs.atlasRunTriangleCounts[run]; tri++)
             {
-                beginTriangle(rs.textureArray[textureHash]);
+                beginTriangle(rs.atlasRunTextures[run]);
+                for(int i = 0; i < 3; i++, ai += atlasVertexSize)
+                {
+                    vertex(atlasArray[ai],
+                           atlasArray[ai + 1],
+                           atlasArray[ai + 2],
+                           atlasArray[ai + 3],
+                           atlasArray[ai + 4],
+                           atlasArray[ai + 5],
+                           atlasArray[ai + 6],
+                           atlasArray[ai + 7],
+                           atlasArray[ai + 8],
+                           atlasArray[ai + 9],
+                           atlasArray[ai + 10]);
+                }
+                endTriangle();
+            }
+        }
+        for(int textureIndex = 0; textureIndex < rs.usedTextureCount; textureIndex++)
+        {
+            for(int tri = 0, vi = 0, ci = 0, ti = 0, li = 0; tri < rs.trianglesUsed[textureIndex]; tri++)
+            {
+                beginTriangle(rs.textureArray[textureIndex]);
                 for(int i = 0; i < 3; i++)
                 {
-                    float x = rs.vertexArray[textureHash][vi++];
-                    float y = rs.vertexArray[textureHash][vi++];
-                    float z = rs.vertexArray[textureHash][vi++];
-                    float u = rs.texCoordArray[textureHash][ti++];
-                    float v = rs.texCoordArray[textureHash][ti++];
-                    float r = rs.colorArray[textureHash][ci++];
-                    float g = rs.colorArray[textureHash][ci++];
-                    float b = rs.colorArray[textureHash][ci++];
-                    float a = rs.colorArray[textureHash][ci++];
-                    vertex(x, y, z, u, v, r, g, b, a);
+                    float x = rs.vertexArray[textureIndex][vi++];
+                    float y = rs.vertexArray[textureIndex][vi++];
+                    float z = rs.vertexArray[textureIndex][vi++];
+                    float u = rs.texCoordArray[textureIndex][ti++];
+                    float v = rs.texCoordArray[textureIndex][ti++];
+                    float r = rs.colorArray[textureIndex][ci++];
+                    float g = rs.colorArray[textureIndex][ci++];
+                    float b = rs.colorArray[textureIndex][ci++];
+                    float a = rs.colorArray[textureIndex][ci++];
+                    float sunlight = rs.lightArray[textureIndex][li++];
+                    float light = rs.lightArray[textureIndex][li++];
+                    vertex(x, y, z, u, v, r, g, b, a, sunlight, light);
+                }
+                endTriangle();
+            }
+        }
+        for(int i = 0; i < rs.retainedCount; i++)
+        {
+            concatMatrices(this.retainedMatrices,
+                           addRetained(rs.retainedLists[i]),
+                           rs.retainedMatrices,
+                           i * matrixSize,
+                           this.matrixStack,
+                           this.matrixStackTop);
+        }
+        return this;
+    }
+
+    /** @return the index in <code>retainedMatrices</code> of the matrix to
+     *         draw <code>dl</code> with */
+    private int addRetained(final DisplayList dl)
+    {
+        if(this.retainedCount >= this.retainedLists.length)
+        {
+            DisplayList[] newLists = new DisplayList[this.retainedCount * 2];
+            System.arraycopy(this.retainedLists,
+                             0,
+                             newLists,
+                             0,
+                             this.retainedCount);
+            this.retainedLists = newLists;
+            this.retainedMatrices = expandArray(this.retainedMatrices,
+                                                this.retainedCount * 2
+                                                        * matrixSize);
+        }
+        this.retainedLists[this.retainedCount] = dl;
+        return this.retainedCount++ * matrixSize;
+    }
+
+    private static boolean useRetainedMeshes()
+    {
+        return USE_VERTEX_ARRAY && USE_RETAINED_MESHES
+                && Main.opengl.supportsVertexBufferObjects();
+    }
+
+    /** copies the triangles in this rendering stream to <code>dl</code>
+     * 
+     * @param dl
+     *            the display list to copy to
+     * @return <code>dl</code> */
+    DisplayList record(final DisplayList dl)
+    {
+        if(this.trianglePoint != -1)
+            throw new IllegalStateException("record called between beginTriangle and endTriangle");
+        if(this.retainedCount > 0)
+            throw new IllegalStateException("can not record retained display lists");
+        int triangleCount = this.atlasTriangleCount;
+        for(int i = 0; i < this.usedTextureCount; i++)
+            triangleCount += this.trianglesUsed[i];
+        dl.clear();
+        dl.reserve(this.atlasRunCount + this.usedTextureCount, triangleCount);
+        int vi = 0, ci = 0, ti = 0, li = 0;
+        for(int i = 0, ai = 0; i < this.atlasTriangleCount * 3; i++)
+        {
+            dl.vertexArray[vi++] = this.atlasArray[ai++];
+            dl.vertexArray[vi++] = this.atlasArray[ai++];
+            dl.vertexArray[vi++] = this.atlasArray[ai++];
+            dl.texCoordArray[ti++] = this.atlasArray[ai++];
+            dl.texCoordArray[ti++] = this.atlasArray[ai++];
+            dl.colorArray[ci++] = this.atlasArray[ai++];
+            dl.colorArray[ci++] = this.atlasArray[ai++];
+            dl.colorArray[ci++] = this.atlasArray[ai++];
+            dl.colorArray[ci++] = this.atlasArray[ai++];
+            dl.lightArray[li++] = this.atlasArray[ai++];
+            dl.lightArray[li++] = this.atlasArray[ai++];
+        }
+        for(int run = 0; run < this.atlasRunCount; run++)
+        {
+            dl.textures[run] = this.atlasRunTextures[run];
+            dl.textureTriangleCount[run] = this.atlasRunTriangleCounts[run];
+        }
+        dl.atlasTextureCount = this.atlasRunCount;
+        dl.atlasTriangleCount = this.atlasTriangleCount;
+        for(int i = 0; i < this.usedTextureCount; i++)
+        {
+            int count = this.trianglesUsed[i];
+            dl.textures[this.atlasRunCount + i] = this.textureArray[i];
+            dl.textureTriangleCount[this.atlasRunCount + i] = count;
+            System.arraycopy(this.vertexArray[i],
+                             0,
+                             dl.vertexArray,
+                             vi,
+                             count * 3 * 3);
+            System.arraycopy(this.colorArray[i],
+                             0,
+                             dl.colorArray,
+                             ci,
+                             count * 3 * 4);
+            System.arraycopy(this.texCoordArray[i],
+                             0,
+                             dl.texCoordArray,
+                             ti,
+                             count * 3 * 2);
+            System.arraycopy(this.lightArray[i],
+                             0,
+                             dl.lightArray,
+                             li,
+                             count * 3 * 2);
+            vi += count * 3 * 3;
+            ci += count * 3 * 4;
+            ti += count * 3 * 2;
+            li += count * 3 * 2;
+        }
+        dl.textureCount = this.atlasRunCount + this.usedTextureCount;
+        dl.triangleCount = triangleCount;
+        return dl;
+    }
+
+    /** adds the triangles in <code>dl</code> transformed by the current
+     * matrix. with retained meshes, <code>dl</code> is drawn from its buffer
+     * object when this stream is rendered, so it must not be changed or
+     * freed before then.
+     * 
+     * @param dl
+     *            the display list to add
+     * @return <code>this</code>
+     * @see #USE_RETAINED_MESHES */
+    RenderingStream add(final DisplayList dl)
+    {
+        if(dl == null)
+            throw new NullPointerException();
+        if(useRetainedMeshes())
+        {
+            System.arraycopy(this.matrixStack,
+                             this.matrixStackTop,
+                             this.retainedMatrices,
+                             addRetained(dl),
+                             matrixSize);
+            return this;
+        }
+        int vi = 0, ci = 0, ti = 0, li = 0;
+        for(int i = 0; i < dl.textureCount; i++)
+        {
+            for(int tri = 0; tri < dl.textureTriangleCount[i]; tri++)
+            {
+                beginTriangle(dl.textures[i]);
+                for(int j = 0; j < 3; j++)
+                {
+                    float x = dl.vertexArray[vi++];
+                    float y = dl.vertexArray[vi++];
+                    float z = dl.vertexArray[vi++];
+                    float u = dl.texCoordArray[ti++];
+                    float v = dl.texCoordArray[ti++];
+                    float r = dl.colorArray[ci++];
+                    float g = dl.colorArray[ci++];
+                    float b = dl.colorArray[ci++];
+                    float a = dl.colorArray[ci++];
+                    float sunlight = dl.lightArray[li++];
+                    float light = dl.lightArray[li++];
+                    vertex(x, y, z, u, v, r, g, b, a, sunlight, light);
                 }
                 endTriangle();
             }
@@ -430,6 +1035,68 @@ public final class RenderingStream
     private FloatBuffer vertexBuffer = null;
     private FloatBuffer texCoordBuffer = null;
     private FloatBuffer colorBuffer = null;
+    private float[] litColorArray = null;
+
+    /** @return the factor to multiply a vertex's color by */
+    static float getLightingFactor(final float sunlight,
+                                           final float light,
+                                           final float sunlightOffset)
+    {
+        return Math.max(sunlight + sunlightOffset, light);
+    }
+
+    /** lights the colors of the vertices of the triangles with the texture
+     * at <code>textureIndex</code>
+     * 
+     * @return the lit colors */
+    private float[] getLitColors(final int textureIndex)
+    {
+        this.litColorArray = lightColors(this.litColorArray,
+                                         this.colorArray[textureIndex],
+                                         this.lightArray[textureIndex],
+                                         this.trianglesUsed[textureIndex] * 3,
+                                         this.sunlightFactor);
+        return this.litColorArray;
+    }
+
+    /** lights vertex colors
+     * 
+     * @param dest
+     *            the array to put the lit colors in or <code>null</code>
+     * @param colors
+     *            the unlit colors, 4 per vertex
+     * @param lights
+     *            the sunlight and light channels, 2 per vertex
+     * @param vertexCount
+     *            the number of vertices
+     * @param sunlightFactor
+     *            the amount that sunlight counts for. from 0 (none) to 15
+     *            (full).
+     * @return <code>dest</code> or a new array if <code>dest</code> is too
+     *         small
+     * @see #setSunlightFactor(int) */
+    static float[] lightColors(final float[] dest,
+                               final float[] colors,
+                               final float[] lights,
+                               final int vertexCount,
+                               final int sunlightFactor)
+    {
+        float[] retval = dest;
+        if(retval == null || retval.length < vertexCount * 4)
+            retval = new float[Math.max(colors.length, vertexCount * 4)];
+        float sunlightOffset = (sunlightFactor - 15) / 15.0f;
+        for(int vertex = 0, ci = 0, li = 0; vertex < vertexCount; vertex++, ci += 4, li += 2)
+        {
+            float factor = getLightingFactor(lights[li],
+                                             lights[li + 1],
+                                             sunlightOffset);
+            retval[ci] = colors[ci] * factor;
+            retval[ci + 1] = colors[ci + 1] * factor;
+            retval[ci + 2] = colors[ci + 2] * factor;
+            retval[ci + 3] = colors[ci + 3];
+        }
+        return retval;
+    }
 
     private FloatBuffer checkBufferLength(final FloatBuffer origBuffer,
                                           final int minLength)
@@ -439,51 +1106,124 @@ public final class RenderingStream
         return origBuffer;
     }
 
+    private float[] atlasTexCoordArray = null;
+
+    /** draws the triangles in <code>atlasArray</code> with the texture atlas
+     * in one draw call. the vertex, texture coordinate and color arrays must
+     * be enabled. */
+    private void renderAtlasTriangles()
+    {
+        final int vertexCount = this.atlasTriangleCount * 3;
+        if(this.atlasTexCoordArray == null
+                || this.atlasTexCoordArray.length < vertexCount * 2)
+            this.atlasTexCoordArray = new float[Math.max(vertexCount * 2,
+                                                         this.atlasArray.length
+                                                                 / atlasVertexSize
+                                                                 * 2)];
+        Image atlas = TextureAtlas.transformTextureCoords(this.atlasArray,
+                                                          3,
+                                                          atlasVertexSize,
+                                                          this.atlasTexCoordArray,
+                                                          this.atlasRunTextures,
+                                                          this.atlasRunTriangleCounts,
+                                                          this.atlasRunCount);
+        if(!atlas.isSelected())
+            atlas.selectTexture();
+        this.vertexBuffer = checkBufferLength(this.vertexBuffer,
+                                              vertexCount * 3);
+        this.vertexBuffer.clear();
+        this.colorBuffer = checkBufferLength(this.colorBuffer, vertexCount * 4);
+        this.colorBuffer.clear();
+        final float sunlightOffset = (this.sunlightFactor - 15) / 15.0f;
+        final float[] array = this.atlasArray;
+        for(int vertex = 0, ai = 0; vertex < vertexCount; vertex++, ai += atlasVertexSize)
+        {
+            this.vertexBuffer.put(array[ai])
+                             .put(array[ai + 1])
+                             .put(array[ai + 2]);
+            float factor = getLightingFactor(array[ai + 9],
+                                             array[ai + 10],
+                                             sunlightOffset);
+            this.colorBuffer.put(array[ai + 5] * factor)
+                            .put(array[ai + 6] * factor)
+                            .put(array[ai + 7] * factor)
+                            .put(array[ai + 8]);
+        }
+        this.vertexBuffer.flip();
+        this.colorBuffer.flip();
+        this.texCoordBuffer = checkBufferLength(this.texCoordBuffer,
+                                                vertexCount * 2);
+        this.texCoordBuffer.clear();
+        this.texCoordBuffer.put(this.atlasTexCoordArray, 0, vertexCount * 2);
+        this.texCoordBuffer.flip();
+        Main.opengl.glVertexPointer(this.vertexBuffer);
+        Main.opengl.glTexCoordPointer(this.texCoordBuffer);
+        Main.opengl.glColorPointer(this.colorBuffer);
+        Main.opengl.glDrawArrays(Main.opengl.GL_TRIANGLES(), 0, vertexCount);
+    }
+
     /** @return this */
     public RenderingStream render()
     {
         if(this.trianglePoint != -1)
             throw new IllegalStateException("render called between beginTriangle and endTriangle");
+        DisplayList.deleteFreedBuffers();
         if(USE_VERTEX_ARRAY)
         {
             Main.opengl.glEnableClientState(Main.opengl.GL_COLOR_ARRAY());
             Main.opengl.glEnableClientState(Main.opengl.GL_TEXTURE_COORD_ARRAY());
             Main.opengl.glEnableClientState(Main.opengl.GL_VERTEX_ARRAY());
-            for(int textureHash = 0; textureHash < hashPrime; textureHash++)
+            if(this.atlasTriangleCount > 0)
+                renderAtlasTriangles();
+            for(int textureIndex = 0; textureIndex < this.usedTextureCount; textureIndex++)
             {
-                if(this.trianglesUsed[textureHash] <= 0)
-                    continue;
-                if(!this.textureArray[textureHash].getImage().isSelected())
+                if(!this.textureArray[textureIndex].getImage().isSelected())
                 {
-                    this.textureArray[textureHash].getImage().selectTexture();
+                    this.textureArray[textureIndex].getImage().selectTexture();
                 }
                 this.vertexBuffer = checkBufferLength(this.vertexBuffer,
-                                                      this.vertexArray[textureHash].length);
+                                                      this.vertexArray[textureIndex].length);
                 this.vertexBuffer.clear();
-                this.vertexBuffer.put(this.vertexArray[textureHash],
+                this.vertexBuffer.put(this.vertexArray[textureIndex],
                                       0,
-                                      this.trianglesUsed[textureHash] * 3 * 3);
+                                      this.trianglesUsed[textureIndex] * 3 * 3);
                 this.vertexBuffer.flip();
                 this.texCoordBuffer = checkBufferLength(this.texCoordBuffer,
-                                                        this.texCoordArray[textureHash].length);
+                                                        this.texCoordArray[textureIndex].length);
                 this.texCoordBuffer.clear();
-                this.texCoordBuffer.put(this.texCoordArray[textureHash],
+                this.texCoordBuffer.put(this.texCoordArray[textureIndex],
                                         0,
-                                        this.trianglesUsed[textureHash] * 2 * 3);
+                                        this.trianglesUsed[textureIndex] * 2 * 3);
                 this.texCoordBuffer.flip();
                 this.colorBuffer = checkBufferLength(this.colorBuffer,
-                                                     this.colorArray[textureHash].length);
+                                                     this.colorArray[textureIndex].length);
                 this.colorBuffer.clear();
-                this.colorBuffer.put(this.colorArray[textureHash],
+                this.colorBuffer.put(getLitColors(textureIndex),
                                      0,
-                                     this.trianglesUsed[textureHash] * 4 * 3);
+                                     this.trianglesUsed[textureIndex] * 4 * 3);
                 this.colorBuffer.flip();
                 Main.opengl.glVertexPointer(this.vertexBuffer);
                 Main.opengl.glTexCoordPointer(this.texCoordBuffer);
                 Main.opengl.glColorPointer(this.colorBuffer);
                 Main.opengl.glDrawArrays(Main.opengl.GL_TRIANGLES(),
                                          0,
-                                         this.trianglesUsed[textureHash] * 3);
+                                         this.trianglesUsed[textureIndex] * 3);
+            }
+            if(this.retainedCount > 0)
+            {
+                Main.opengl.glMatrixMode(Main.opengl.GL_MODELVIEW());
+                for(int i = 0; i < this.retainedCount; i++)
+                {
+                    Main.opengl.glPushMatrix();
+                    System.arraycopy(this.retainedMatrices,
+                                     i * matrixSize,
+                                     this.render_t1.elements,
+                                     0,
+                                     matrixSize);
+                    Matrix.glMultMatrix(this.render_t1);
+                    this.retainedLists[i].render(this.sunlightFactor);
+                    Main.opengl.glPopMatrix();
+                }
             }
             Main.opengl.glDisableClientState(Main.opengl.GL_COLOR_ARRAY());
             Main.opengl.glDisableClientState(Main.opengl.GL_TEXTURE_COORD_ARRAY());
@@ -491,20 +1231,45 @@ public final class RenderingStream
         }
         else
         {
-            for(int textureHash = 0; textureHash < hashPrime; textureHash++)
+            float sunlightOffset = (this.sunlightFactor - 15) / 15.0f;
+            final float[] atlasArray = this.atlasArray;
+            for(int run = 0, ai = 0; run < this.atlasRunCount; run++)
+            {
+                Image image = this.atlasRunTextures[run].getImage();
+                if(!image.isSelected())
+                    image.selectTexture();
+                Main.opengl.glBegin(Main.opengl.GL_TRIANGLES());
+                for(int vertex = this.atlasRunTriangleCounts[run] * 3; vertex > 0; vertex--, ai += atlasVertexSize)
+                {
+                    float factor = getLightingFactor(atlasArray[ai + 9],
+                                                     atlasArray[ai + 10],
+                                                     sunlightOffset);
+                    Main.opengl.glColor4f(atlasArray[ai + 5] * factor,
+                                          atlasArray[ai + 6] * factor,
+                                          atlasArray[ai + 7] * factor,
+                                          atlasArray[ai + 8]);
+                    Main.opengl.glTexCoord2f(atlasArray[ai + 3],
+                                             atlasArray[ai + 4]);
+                    Main.opengl.glVertex3f(atlasArray[ai],
+                                           atlasArray[ai + 1],
+                                           atlasArray[ai + 2]);
+                }
+                Main.opengl.glEnd();
+            }
+            for(int textureIndex = 0; textureIndex < this.usedTextureCount; textureIndex++)
             {
                 boolean insideBeginEnd = false;
-                int ti = 0, ci = 0, vi = 0;
-                for(int tri = 0; tri < this.trianglesUsed[textureHash]; tri++)
+                int ti = 0, ci = 0, vi = 0, li = 0;
+                for(int tri = 0; tri < this.trianglesUsed[textureIndex]; tri++)
                 {
-                    if(!this.textureArray[textureHash].getImage().isSelected())
+                    if(!this.textureArray[textureIndex].getImage().isSelected())
                     {
                         if(insideBeginEnd)
                         {
                             Main.opengl.glEnd();
                             insideBeginEnd = false;
                         }
-                        this.textureArray[textureHash].getImage()
+                        this.textureArray[textureIndex].getImage()
                                                       .selectTexture();
                     }
                     if(!insideBeginEnd)
@@ -514,17 +1279,23 @@ public final class RenderingStream
                     }
                     for(int vertex = 0; vertex < 3; vertex++)
                     {
-                        float r = this.colorArray[textureHash][ci++];
-                        float g = this.colorArray[textureHash][ci++];
-                        float b = this.colorArray[textureHash][ci++];
-                        float a = this.colorArray[textureHash][ci++];
-                        Main.opengl.glColor4f(r, g, b, a);
-                        float u = this.texCoordArray[textureHash][ti++];
-                        float v = this.texCoordArray[textureHash][ti++];
+                        float r = this.colorArray[textureIndex][ci++];
+                        float g = this.colorArray[textureIndex][ci++];
+                        float b = this.colorArray[textureIndex][ci++];
+                        float a = this.colorArray[textureIndex][ci++];
+                        float factor = getLightingFactor(this.lightArray[textureIndex][li++],
+                                                         this.lightArray[textureIndex][li++],
+                                                         sunlightOffset);
+                        Main.opengl.glColor4f(r * factor,
+                                              g * factor,
+                                              b * factor,
+                                              a);
+                        float u = this.texCoordArray[textureIndex][ti++];
+                        float v = this.texCoordArray[textureIndex][ti++];
                         Main.opengl.glTexCoord2f(u, v);
-                        float x = this.vertexArray[textureHash][vi++];
-                        float y = this.vertexArray[textureHash][vi++];
-                        float z = this.vertexArray[textureHash][vi++];
+                        float x = this.vertexArray[textureIndex][vi++];
+                        float y = this.vertexArray[textureIndex][vi++];
+                        float z = this.vertexArray[textureIndex][vi++];
                         Main.opengl.glVertex3f(x, y, z);
                     }
                 }
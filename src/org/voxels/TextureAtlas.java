@@ -88,6 +88,9 @@ public class TextureAtlas
     private static ArrayList<AtlasPart> parts = new ArrayList<AtlasPart>();
     private static int finalImageWidth = 0, finalImageHeight = 0;
     private static Image finalImage = null;
+    /** the atlas image that was replaced by adding an image, deleted when
+     * the new atlas image is made */
+    private static Image replacedImage = null;
     private static boolean isValidPlacement = false;
 
     private static boolean isImageValid()
@@ -167,6 +170,11 @@ public class TextureAtlas
         if(isImageValid())
             return;
         generateImagePlacement();
+        if(replacedImage != null)
+        {
+            replacedImage.destroy();
+            replacedImage = null;
+        }
         finalImage = new Image(finalImageWidth, finalImageHeight);
         Color color = Color.allocate(0, 0, 0);
         for(AtlasPart ap : parts)
@@ -225,6 +233,8 @@ public class TextureAtlas
                 }
             }
             parts.add(ap);
+            if(finalImage != null)
+                replacedImage = finalImage;
             finalImage = null;
             isValidPlacement = false;
             return new TextureHandleImp(ap, img);
@@ -275,6 +285,70 @@ public class TextureAtlas
         }
     }
 
+    /** @return the atlas image with all the added images in it. it is
+     *         replaced when an image is added, so it must be drawn before
+     *         then. */
+    public static Image getImage()
+    {
+        synchronized(syncObject)
+        {
+            generateImage();
+            return finalImage;
+        }
+    }
+
+    /** transforms texture coordinates to the texture atlas. the vertices are
+     * in runs of triangles that each use one texture, and the texture
+     * coordinates must be from 0 to 1.
+     * 
+     * @param src
+     *            the array with the texture coordinates to transform
+     * @param srcOffset
+     *            the index in <code>src</code> of the first vertex's u
+     *            coordinate
+     * @param srcStride
+     *            the number of floats from one vertex to the next in
+     *            <code>src</code>
+     * @param dest
+     *            the array to put the transformed texture coordinates in, 2
+     *            floats per vertex
+     * @param textures
+     *            the texture of each run
+     * @param runTriangleCounts
+     *            the number of triangles in each run
+     * @param runCount
+     *            the number of runs
+     * @return the atlas image
+     * @see #getImage() */
+    public static Image transformTextureCoords(final float[] src,
+                                               final int srcOffset,
+                                               final int srcStride,
+                                               final float[] dest,
+                                               final TextureHandle[] textures,
+                                               final int[] runTriangleCounts,
+                                               final int runCount)
+    {
+        synchronized(syncObject)
+        {
+            generateImage();
+            final float widthFactor = 1.0f / finalImageWidth;
+            final float heightFactor = 1.0f / finalImageHeight;
+            for(int run = 0, si = srcOffset, di = 0; run < runCount; run++)
+            {
+                if(textures[run] == null
+                        || !(textures[run] instanceof TextureHandleImp))
+                    throw new IllegalArgumentException("invalid texture handle");
+                AtlasPart ap = ((TextureHandleImp)textures[run]).ap;
+                for(int vertex = runTriangleCounts[run] * 3; vertex > 0; vertex--, si += srcStride)
+                {
+                    dest[di++] = (src[si] * ap.w + ap.x) * widthFactor;
+                    dest[di++] = (src[si + 1] * ap.h + ap.y) * heightFactor;
+                }
+            }
+            return finalImage;
+        }
+    }
+
     private TextureAtlas()
     {
     }
@@ -22,7 +22,7 @@ import static org.voxels.PlayerList.players;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.voxels.BlockType.ToolType;
@@ -40,6 +40,19 @@ public final class World
             return new World();
         }
     };
+    // initialized before world because new worlds use it
+    private static final int chunkGeneratorCount = Math.max(1,
+                                                            Runtime.getRuntime()
+                                                                   .availableProcessors());
+    /** the most chunks that can be queued or generating at once */
+    private static final int maxChunkGenerateRequests = chunkGeneratorCount * 2;
+    private static final int meshBuilderThreadCount = Math.max(1,
+                                                               Runtime.getRuntime()
+                                                                      .availableProcessors() - 1);
+    /** the most chunk meshes that can be building at once. the render thread
+     * doesn't take any more snapshots until some of them are done, so the
+     * time spent taking snapshots each frame stays bounded. */
+    private static final int maxRunningMeshBuildCount = 2 * meshBuilderThreadCount;
     /** the program's world */
     public static World world = allocator.allocate().init();
     /** the maximum height<br/>
@@ -91,6 +104,7 @@ public final class World
     private void free()
     {
         clearChunkGenerator();
+        clearLighting();
         this.landGenerator.free();
         this.landGenerator = null;
         if(this.landGeneratorSettings != null)
@@ -276,20 +290,73 @@ public final class World
                 return new Chunk();
             }
         };
-        public static final int size = 4; // must be power of 2
+        public static final int minSize = 4;
+        public static final int maxSize = 32;
+        /** the chunk size. set with the <code>voxels.chunkSize</code> system
+         * property; must be a power of 2 from <code>minSize</code> to
+         * <code>maxSize</code> */
+        public static final int size = getConfiguredSize();
         public static final int generatedChunksPerChunk = 1;
+
+        private static int getConfiguredSize()
+        {
+            int retval = Integer.getInteger("voxels.chunkSize", 16).intValue();
+            if(retval < minSize || retval > maxSize
+                    || (retval & (retval - 1)) != 0)
+                throw new RuntimeException("invalid chunk size : " + retval);
+            return retval;
+        }
+
         public int orgx, orgy, orgz;
         public final boolean generated[] = new boolean[generatedChunksPerChunk
                 * generatedChunksPerChunk * generatedChunksPerChunk];
-        public final Block[] blocks = new Block[size * size * size];
-        public Chunk next, listnext;
+        /** the materialized blocks. a <code>null</code> entry is either not
+         * generated yet or stored in the palette */
+        private final Block[] blocks = new Block[size * size * size];
+        /** the distinct block states of the compacted blocks. entry 0 is
+         * always <code>null</code> */
+        private Block[] palette = null;
+        private int paletteSize = 0;
+        /** palette indices, used when there are at most 256 palette entries */
+        private byte[] paletteByteIndex = null;
+        /** palette indices, used when there are more than 256 palette entries */
+        private short[] paletteShortIndex = null;
+        /** the number of blocks materialized from palettes, for
+         * <code>LightingMetrics</code> */
+        public static long materializedBlockCount = 0;
+        /** packed 4-bit lighting for the compacted blocks */
+        private final byte[] sunlight = new byte[size * size * size / 2],
+                scatteredSunlight = new byte[size * size * size / 2],
+                light = new byte[size * size * size / 2];
+        public Chunk listnext;
         public static final int drawPhaseCount = 2;
         public final long displayListValidTag[] = new long[drawPhaseCount];
+        public final DisplayList displayList[] = new DisplayList[drawPhaseCount];
         @SuppressWarnings("unused")
         public EntityNode head = null, tail = null;
         public boolean drawsAnything = true;
         public long drawsAnythingValidTag = -1;
         public int fireCount = 0;
+        public int animatedCount = 0;
+        /** the visible faces of each block as a draw mask : a bit is set if
+         * the neighboring block on that side exists and isn't opaque */
+        private final byte[] faceMask = new byte[size * size * size];
+        /** the number of blocks with at least one visible face */
+        private int exposedCount = 0;
+        /** the number of blocks that can generate particles */
+        public int particleGenerateCount = 0;
+        /** the faces of this chunk that are connected through blocks that
+         * aren't opaque : bits <code>a * 6</code> to <code>a * 6 + 5</code>
+         * are the draw mask of the faces connected to face <code>a</code> */
+        private long faceConnections = 0;
+        private boolean faceConnectionsValid = false;
+        /** the sunlight heightmap of the column this chunk is in */
+        public SunlightColumn sunlightColumn = null;
+        /** changed every time this chunk is invalidated, so meshes built
+         * from an older snapshot of it are thrown away */
+        private long meshValidTag = 0;
+        /** the mesh being built for this chunk or <code>null</code> */
+        private MeshBuildRequest meshBuild = null;
 
         Chunk()
         {
@@ -305,12 +372,18 @@ public final class World
             {
                 retval.displayListValidTag[i] = -1;
             }
-            retval.next = null;
             retval.listnext = null;
             retval.head = null;
             retval.tail = null;
             retval.fireCount = 0;
+            retval.animatedCount = 0;
             retval.drawsAnythingValidTag = -1;
+            for(int i = 0; i < retval.faceMask.length; i++)
+                retval.faceMask[i] = 0;
+            retval.exposedCount = 0;
+            retval.particleGenerateCount = 0;
+            retval.faceConnectionsValid = false;
+            retval.meshBuild = null;
             return retval;
         }
 
@@ -325,25 +398,581 @@ public final class World
                 }
                 this.blocks[i] = null;
             }
-            this.next = null;
+            freePalette();
+            for(int i = 0; i < drawPhaseCount; i++)
+            {
+                DisplayList.free(this.displayList[i]);
+                this.displayList[i] = null;
+            }
             this.listnext = null;
             this.head = null;
             this.tail = null;
+            this.sunlightColumn = null;
+            this.meshBuild = null;
             allocator.free(this);
         }
 
+        private void freePalette()
+        {
+            for(int i = 1; i < this.paletteSize; i++)
+            {
+                this.palette[i].free();
+                this.palette[i] = null;
+            }
+            this.paletteSize = 0;
+            this.paletteByteIndex = null;
+            this.paletteShortIndex = null;
+        }
+
+        private static int getNibble(final byte[] array, final int index)
+        {
+            return (array[index >> 1] >> ((index & 1) << 2)) & 0xF;
+        }
+
+        private static void setNibble(final byte[] array,
+                                      final int index,
+                                      final int value)
+        {
+            int shift = (index & 1) << 2;
+            array[index >> 1] = (byte)((array[index >> 1] & ~(0xF << shift))
+                    | (value << shift));
+        }
+
+        private int getPaletteIndex(final int index)
+        {
+            if(this.paletteByteIndex != null)
+                return this.paletteByteIndex[index] & 0xFF;
+            if(this.paletteShortIndex != null)
+                return this.paletteShortIndex[index] & 0xFFFF;
+            return 0;
+        }
+
+        /** @param index
+         *            the index of the block in this chunk
+         * @return true if there is a block at <code>index</code>, without
+         *         materializing it */
+        public boolean hasBlock(final int index)
+        {
+            return this.blocks[index] != null || getPaletteIndex(index) != 0;
+        }
+
+        /** gets the block at <code>index</code>, materializing it from the
+         * palette if it's compacted
+         * 
+         * @param index
+         *            the index of the block in this chunk
+         * @return the block or <code>null</code> */
+        public Block getBlock(final int index)
+        {
+            Block b = this.blocks[index];
+            if(b != null)
+                return b;
+            int paletteIndex = getPaletteIndex(index);
+            if(paletteIndex == 0)
+                return null;
+            materializedBlockCount++;
+            b = this.palette[paletteIndex].dup();
+            b.restoreLighting(getNibble(this.sunlight, index),
+                              getNibble(this.scatteredSunlight, index),
+                              getNibble(this.light, index));
+            b.isInWorld = true;
+            this.blocks[index] = b;
+            return b;
+        }
+
+        public int getSunlight(final int index)
+        {
+            Block b = this.blocks[index];
+            if(b != null)
+                return b.getSunlight();
+            return getNibble(this.sunlight, index);
+        }
+
+        public int getScatteredSunlight(final int index)
+        {
+            Block b = this.blocks[index];
+            if(b != null)
+                return b.getScatteredSunlight();
+            return getNibble(this.scatteredSunlight, index);
+        }
+
+        public int getLight(final int index)
+        {
+            Block b = this.blocks[index];
+            if(b != null)
+                return b.getLight();
+            return getNibble(this.light, index);
+        }
+
+        /** gets the block at <code>index</code> without materializing it. a
+         * compacted block is returned as its shared palette entry, so the
+         * result must not be modified and its lighting must be read with
+         * <code>getSunlight</code>, <code>getScatteredSunlight</code> and
+         * <code>getLight</code> instead.
+         * 
+         * @param index
+         *            the index of the block in this chunk
+         * @return the block or <code>null</code> */
+        public Block peekBlock(final int index)
+        {
+            Block b = this.blocks[index];
+            if(b != null)
+                return b;
+            int paletteIndex = getPaletteIndex(index);
+            if(paletteIndex == 0)
+                return null;
+            return this.palette[paletteIndex];
+        }
+
+        private static boolean fitsInNibble(final int value)
+        {
+            return value >= 0 && value <= 15;
+        }
+
+        /** sets the direct sunlight of the block at <code>index</code>,
+         * only materializing it if <code>value</code> doesn't fit in the
+         * packed lighting
+         * 
+         * @param index
+         *            the index of the block in this chunk
+         * @param value
+         *            the new amount of direct sunlight */
+        public void setSunlight(final int index, final int value)
+        {
+            Block b = this.blocks[index];
+            if(b == null && !fitsInNibble(value))
+                b = getBlock(index);
+            if(b != null)
+            {
+                b.restoreLighting(value, b.getScatteredSunlight(), b.getLight());
+                return;
+            }
+            setNibble(this.sunlight, index, value);
+        }
+
+        /** sets the scattered sunlight of the block at <code>index</code>,
+         * only materializing it if <code>value</code> doesn't fit in the
+         * packed lighting
+         * 
+         * @param index
+         *            the index of the block in this chunk
+         * @param value
+         *            the new amount of scattered sunlight */
+        public void setScatteredSunlight(final int index, final int value)
+        {
+            Block b = this.blocks[index];
+            if(b == null && !fitsInNibble(value))
+                b = getBlock(index);
+            if(b != null)
+            {
+                b.restoreLighting(b.getSunlight(), value, b.getLight());
+                return;
+            }
+            setNibble(this.scatteredSunlight, index, value);
+        }
+
+        /** sets the non-sun light of the block at <code>index</code>, only
+         * materializing it if <code>value</code> doesn't fit in the packed
+         * lighting
+         * 
+         * @param index
+         *            the index of the block in this chunk
+         * @param value
+         *            the new amount of non-sun light */
+        public void setLight(final int index, final int value)
+        {
+            Block b = this.blocks[index];
+            if(b == null && !fitsInNibble(value))
+                b = getBlock(index);
+            if(b != null)
+            {
+                b.restoreLighting(b.getSunlight(),
+                                  b.getScatteredSunlight(),
+                                  value);
+                return;
+            }
+            setNibble(this.light, index, value);
+        }
+
+        /** writes the block at <code>index</code> without materializing it
+         * 
+         * @param index
+         *            the index of the block in this chunk
+         * @param o
+         *            the output stream
+         * @throws IOException
+         *             the exception thrown */
+        public void writeBlock(final int index, final DataOutput o)
+                throws IOException
+        {
+            Block b = this.blocks[index];
+            if(b != null)
+            {
+                b.write(o);
+                return;
+            }
+            // the palette entry is shared, so it's written with this block's
+            // lighting instead of changing it
+            this.palette[getPaletteIndex(index)].write(o,
+                                                       getNibble(this.sunlight,
+                                                                 index),
+                                                       getNibble(this.scatteredSunlight,
+                                                                 index),
+                                                       getNibble(this.light,
+                                                                 index));
+        }
+
+        private static boolean canCompact(final Block b)
+        {
+            if(!b.isStateless() || b.isAnimated())
+                return false;
+            if(b.getSunlight() < 0 || b.getSunlight() > 15)
+                return false;
+            if(b.getScatteredSunlight() < 0 || b.getScatteredSunlight() > 15)
+                return false;
+            if(b.getLight() < 0 || b.getLight() > 15)
+                return false;
+            return true;
+        }
+
+        private static final Block[] compact_palette = new Block[size * size
+                * size + 1];
+        private static final int[] compact_paletteHash = new int[size * size
+                * size + 1];
+        private static final int[] compact_oldToNew = new int[size * size
+                * size + 1];
+        private static final short[] compact_index = new short[size * size
+                * size];
+
+        /** moves all the materialized blocks that can be shared into the
+         * palette, freeing the <code>Block</code> objects. must only be called
+         * when nothing holds references to blocks in this chunk.<BR/>
+         * not thread safe */
+        public void compact()
+        {
+            boolean anyMaterialized = false;
+            for(int i = 0; i < this.blocks.length; i++)
+            {
+                if(this.blocks[i] != null && canCompact(this.blocks[i]))
+                {
+                    anyMaterialized = true;
+                    break;
+                }
+            }
+            if(!anyMaterialized)
+                return;
+            Block[] newPalette = compact_palette;
+            int[] newPaletteHash = compact_paletteHash;
+            int[] oldToNew = compact_oldToNew;
+            short[] newIndex = compact_index;
+            int newPaletteSize = 1;
+            newPalette[0] = null;
+            for(int i = 0; i < this.paletteSize; i++)
+                oldToNew[i] = -1;
+            for(int index = 0; index < this.blocks.length; index++)
+            {
+                Block b = this.blocks[index];
+                int sunlightValue, scatteredSunlightValue, lightValue;
+                Block state;
+                int oldPaletteIndex = getPaletteIndex(index);
+                if(b != null)
+                {
+                    if(!canCompact(b))
+                    {
+                        newIndex[index] = 0;
+                        continue;
+                    }
+                    state = b;
+                    sunlightValue = b.getSunlight();
+                    scatteredSunlightValue = b.getScatteredSunlight();
+                    lightValue = b.getLight();
+                }
+                else if(oldPaletteIndex == 0)
+                {
+                    newIndex[index] = 0;
+                    continue;
+                }
+                else
+                {
+                    sunlightValue = getNibble(this.sunlight, index);
+                    scatteredSunlightValue = getNibble(this.scatteredSunlight,
+                                                       index);
+                    lightValue = getNibble(this.light, index);
+                    if(oldToNew[oldPaletteIndex] != -1)
+                    {
+                        newIndex[index] = (short)oldToNew[oldPaletteIndex];
+                        continue;
+                    }
+                    state = this.palette[oldPaletteIndex];
+                }
+                int hash = state.hashCode();
+                int paletteIndex = -1;
+                for(int i = 1; i < newPaletteSize; i++)
+                {
+                    if(newPaletteHash[i] == hash
+                            && newPalette[i].equals(state))
+                    {
+                        paletteIndex = i;
+                        break;
+                    }
+                }
+                if(paletteIndex == -1)
+                {
+                    paletteIndex = newPaletteSize++;
+                    newPaletteHash[paletteIndex] = hash;
+                    if(b != null)
+                        newPalette[paletteIndex] = b.dup();
+                    else
+                    {
+                        newPalette[paletteIndex] = state;
+                        this.palette[oldPaletteIndex] = null;
+                    }
+                }
+                if(b == null)
+                    oldToNew[oldPaletteIndex] = paletteIndex;
+                newIndex[index] = (short)paletteIndex;
+                setNibble(this.sunlight, index, sunlightValue);
+                setNibble(this.scatteredSunlight,
+                          index,
+                          scatteredSunlightValue);
+                setNibble(this.light, index, lightValue);
+                if(b != null)
+                {
+                    this.blocks[index] = null;
+                    b.isInWorld = false;
+                    b.free();
+                }
+            }
+            for(int i = 1; i < this.paletteSize; i++)
+            {
+                if(this.palette[i] != null)
+                    this.palette[i].free();
+            }
+            if(this.palette == null || this.palette.length < newPaletteSize)
+                this.palette = new Block[newPaletteSize];
+            for(int i = 0; i < newPaletteSize; i++)
+            {
+                this.palette[i] = newPalette[i];
+                newPalette[i] = null;
+            }
+            for(int i = newPaletteSize; i < this.palette.length; i++)
+                this.palette[i] = null;
+            this.paletteSize = newPaletteSize;
+            if(newPaletteSize <= 0x100)
+            {
+                this.paletteShortIndex = null;
+                if(this.paletteByteIndex == null)
+                    this.paletteByteIndex = new byte[this.blocks.length];
+                for(int i = 0; i < this.blocks.length; i++)
+                    this.paletteByteIndex[i] = (byte)newIndex[i];
+            }
+            else
+            {
+                this.paletteByteIndex = null;
+                if(this.paletteShortIndex == null)
+                    this.paletteShortIndex = new short[this.blocks.length];
+                for(int i = 0; i < this.blocks.length; i++)
+                    this.paletteShortIndex[i] = newIndex[i];
+            }
+        }
+
         public void setBlock(final int cx,
                              final int cy,
                              final int cz,
                              final Block b)
         {
             int index = cx + size * (cy + size * cz);
-            if(this.blocks[index] != null
-                    && this.blocks[index].getType() == BlockType.BTFire)
-                this.fireCount--;
+            if(this.faceMask[index] != 0 && hasBlock(index))
+                this.exposedCount--;
+            if(this.blocks[index] != null)
+            {
+                if(this.blocks[index].getType() == BlockType.BTFire)
+                    this.fireCount--;
+                if(this.blocks[index].isAnimated())
+                    this.animatedCount--;
+            }
+            Block oldb = peekBlock(index);
+            if(oldb != null && canGenerateParticles(oldb))
+                this.particleGenerateCount--;
+            this.faceConnectionsValid = false;
             this.blocks[index] = b;
-            if(b != null && b.getType() == BlockType.BTFire)
-                this.fireCount++;
+            if(this.paletteByteIndex != null)
+                this.paletteByteIndex[index] = 0;
+            else if(this.paletteShortIndex != null)
+                this.paletteShortIndex[index] = 0;
+            if(b != null)
+            {
+                if(b.getType() == BlockType.BTFire)
+                    this.fireCount++;
+                if(b.isAnimated())
+                    this.animatedCount++;
+                if(canGenerateParticles(b))
+                    this.particleGenerateCount++;
+                if(this.faceMask[index] != 0)
+                    this.exposedCount++;
+            }
+        }
+
+        /** @param index
+         *            the index of the block in this chunk
+         * @return the visible faces of the block at <code>index</code> as a
+         *         draw mask */
+        public int getFaceMask(final int index)
+        {
+            return this.faceMask[index];
+        }
+
+        /** sets the visible faces of the block at <code>index</code>
+         * 
+         * @param index
+         *            the index of the block in this chunk
+         * @param mask
+         *            the new draw mask */
+        public void setFaceMask(final int index, final int mask)
+        {
+            int oldMask = this.faceMask[index];
+            if(oldMask == mask)
+                return;
+            this.faceMask[index] = (byte)mask;
+            if((oldMask == 0) != (mask == 0) && hasBlock(index))
+            {
+                if(mask == 0)
+                    this.exposedCount--;
+                else
+                    this.exposedCount++;
+            }
+        }
+
+        /** @param index
+         *            the index of the block in this chunk
+         * @return if the faces of the blocks next to the block at
+         *         <code>index</code> can be seen through it */
+        public boolean showsNeighborFaces(final int index)
+        {
+            Block b = peekBlock(index);
+            return b != null && !b.isOpaque();
+        }
+
+        /** @return true if every block in this chunk is hidden by opaque or
+         *         missing neighbors */
+        public boolean isEntirelyHidden()
+        {
+            return this.exposedCount <= 0;
+        }
+
+        private static boolean canGenerateParticles(final Block b)
+        {
+            return b.getType() == BlockType.BTFurnace
+                    || b.getType().isParticleGenerate();
+        }
+
+        private static final int[] getFaceConnections_queue = new int[size
+                * size * size];
+        private static final boolean[] getFaceConnections_visited = new boolean[size
+                * size * size];
+
+        private boolean isOpaque(final int index)
+        {
+            Block b = peekBlock(index);
+            return b != null && b.isOpaque();
+        }
+
+        /** gets the faces touched by the block at <code>index</code>
+         * 
+         * @param index
+         *            the index of the block in this chunk
+         * @return the faces as a draw mask */
+        private static int getTouchedFaces(final int index)
+        {
+            int x = index % size, y = index / size % size, z = index / size
+                    / size;
+            int retval = 0;
+            if(x <= 0)
+                retval |= 0x20;
+            if(x >= size - 1)
+                retval |= 0x10;
+            if(y <= 0)
+                retval |= 0x8;
+            if(y >= size - 1)
+                retval |= 0x4;
+            if(z <= 0)
+                retval |= 0x2;
+            if(z >= size - 1)
+                retval |= 0x1;
+            return retval;
+        }
+
+        /** gets which faces of this chunk can see each other through blocks
+         * that aren't opaque, flood filling this chunk if it changed
+         * 
+         * @return the face connections : bits <code>a * 6</code> to
+         *         <code>a * 6 + 5</code> are the draw mask of the faces
+         *         connected to face <code>a</code>, with faces numbered from
+         *         0 for -X to 5 for +Z */
+        public long getFaceConnections()
+        {
+            if(this.faceConnectionsValid)
+                return this.faceConnections;
+            int[] queue = getFaceConnections_queue;
+            boolean[] visited = getFaceConnections_visited;
+            for(int i = 0; i < visited.length; i++)
+                visited[i] = false;
+            long connections = 0;
+            for(int start = 0; start < visited.length; start++)
+            {
+                if(getTouchedFaces(start) == 0 || visited[start]
+                        || isOpaque(start))
+                    continue;
+                int queueHead = 0, queueTail = 0;
+                queue[queueTail++] = start;
+                visited[start] = true;
+                int faces = 0;
+                while(queueHead < queueTail)
+                {
+                    int index = queue[queueHead++];
+                    int touchedFaces = getTouchedFaces(index);
+                    faces |= touchedFaces;
+                    for(int face = 0; face < 6; face++)
+                    {
+                        if((touchedFaces & (0x20 >> face)) != 0)
+                            continue;
+                        int next = index;
+                        switch(face)
+                        {
+                        case 0:
+                            next -= 1;
+                            break;
+                        case 1:
+                            next += 1;
+                            break;
+                        case 2:
+                            next -= size;
+                            break;
+                        case 3:
+                            next += size;
+                            break;
+                        case 4:
+                            next -= size * size;
+                            break;
+                        default:
+                            next += size * size;
+                            break;
+                        }
+                        if(visited[next] || isOpaque(next))
+                            continue;
+                        visited[next] = true;
+                        queue[queueTail++] = next;
+                    }
+                }
+                for(int face = 0; face < 6; face++)
+                {
+                    if((faces & (0x20 >> face)) != 0)
+                        connections |= (long)faces << (face * 6);
+                }
+            }
+            this.faceConnections = connections;
+            this.faceConnectionsValid = true;
+            return connections;
         }
 
         public void setGenerated(final int cx_in,
@@ -366,6 +995,7 @@ public final class World
 
         public void invalidate()
         {
+            this.meshValidTag++;
             this.drawsAnythingValidTag = -1;
             this.drawsAnything = true;
             for(int i = 0; i < drawPhaseCount; i++)
@@ -375,85 +1005,419 @@ public final class World
         }
     }
 
-    private Chunk lastChunk = null;
-
-    private void clearLastChunk()
-    {
-        this.lastChunk = null;
-    }
-
-    private void insertEntity(final EntityNode node)
+    /** an open-addressing map from chunk origins to chunks. lookups don't
+     * modify the map, and each thread keeps its own last-chunk cache.<BR/>
+     * only one thread may insert at a time.
+     * 
+     * @author jacob */
+    private static final class ChunkMap
     {
-        if(node.isFree || node.isInList || node == this.entityHead
-                || node == this.entityTail)
-            throw new RuntimeException("can't insert currently used entity");
-        node.isInList = true;
-        if(node.e.isEmpty())
+        private static final class Table
         {
-            node.next = this.entityHead;
-            node.prev = null;
-            node.hashnext = null;
-            node.hashprev = null;
-            if(this.entityHead != null)
-                this.entityHead.prev = node;
-            else
-                this.entityTail = node;
-            this.entityHead = node;
-            this.entityCount++;
-            return;
-        }
-        Vector pos = node.e.getPosition();
-        int x = (int)Math.floor(pos.getX());
-        int y = (int)Math.floor(pos.getY());
-        int z = (int)Math.floor(pos.getZ());
-        node.next = this.entityHead;
-        node.prev = null;
-        if(this.entityHead != null)
-            this.entityHead.prev = node;
-        else
-            this.entityTail = node;
-        this.entityHead = node;
-        Chunk c = findOrInsert(x & ~(Chunk.size - 1), y & ~(Chunk.size - 1), z
-                & ~(Chunk.size - 1));
-        node.hashnext = c.head;
-        node.hashprev = null;
-        if(c.head != null)
-            c.head.hashprev = node;
-        else
-            c.tail = node;
-        c.head = node;
-        this.entityCount++;
-    }
+            public final long[] keys;
+            public final Chunk[] values;
+            public final int mask;
 
-    private EntityNode removeAllEntities()
-    {
-        EntityNode retval = this.entityHead;
-        this.entityHead = null;
-        this.entityTail = null;
-        for(EntityNode node = retval; node != null; node = node.next)
-        {
-            node.isInList = false;
-            Chunk c = null;
-            if(!node.e.isEmpty())
+            public Table(final int capacity)
             {
-                Vector pos = node.e.getPosition();
-                int x = (int)Math.floor(pos.getX());
-                int y = (int)Math.floor(pos.getY());
-                int z = (int)Math.floor(pos.getZ());
-                c = find(x & ~(Chunk.size - 1), y & ~(Chunk.size - 1), z
-                        & ~(Chunk.size - 1));
-            }
-            if(c != null)
-            {
-                c.head = null;
-                c.tail = null;
+                this.keys = new long[capacity];
+                this.values = new Chunk[capacity];
+                this.mask = capacity - 1;
             }
-            node.hashnext = null;
-            node.hashprev = null;
         }
-        this.entityCount = 0;
-        return retval;
-    }
+
+        private static final int initialCapacity = 1 << 10; // must be power of 2
+        private static final int keyShift = Integer.numberOfTrailingZeros(Chunk.size);
+        private volatile Table table = new Table(initialCapacity);
+        private int count = 0;
+        private int maxProbeLength = 0;
+        private ThreadLocal<Chunk[]> lastChunk = makeLastChunk();
+
+        public ChunkMap()
+        {
+        }
+
+        private static ThreadLocal<Chunk[]> makeLastChunk()
+        {
+            return new ThreadLocal<Chunk[]>()
+            {
+                @Override
+                protected Chunk[] initialValue()
+                {
+                    return new Chunk[1];
+                }
+            };
+        }
+
+        private static long makeKey(final int cx, final int cy, final int cz)
+        {
+            return (((long)(cx >> keyShift) & 0x1FFFFF) << 42)
+                    | (((long)(cy >> keyShift) & 0x1FFFFF) << 21)
+                    | ((long)(cz >> keyShift) & 0x1FFFFF);
+        }
+
+        private static int hashKey(final long key)
+        {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int)(hash >>> 32);
+        }
+
+        /** @param cx
+         *            the chunk's x origin
+         * @param cy
+         *            the chunk's y origin
+         * @param cz
+         *            the chunk's z origin
+         * @return the chunk or <code>null</code> */
+        public Chunk get(final int cx, final int cy, final int cz)
+        {
+            Chunk[] cache = this.lastChunk.get();
+            Chunk retval = cache[0];
+            if(retval != null && retval.orgx == cx && retval.orgy == cy
+                    && retval.orgz == cz)
+                return retval;
+            Table t = this.table;
+            long key = makeKey(cx, cy, cz);
+            for(int i = hashKey(key) & t.mask;; i = (i + 1) & t.mask)
+            {
+                retval = t.values[i];
+                if(retval == null)
+                    return null;
+                if(t.keys[i] == key && retval.orgx == cx && retval.orgy == cy
+                        && retval.orgz == cz)
+                {
+                    cache[0] = retval;
+                    return retval;
+                }
+            }
+        }
+
+        private int insert(final Table t, final Chunk c)
+        {
+            long key = makeKey(c.orgx, c.orgy, c.orgz);
+            int probeLength = 1;
+            for(int i = hashKey(key) & t.mask;; i = (i + 1) & t.mask)
+            {
+                if(t.values[i] == null)
+                {
+                    t.keys[i] = key;
+                    t.values[i] = c;
+                    return probeLength;
+                }
+                probeLength++;
+            }
+        }
+
+        /** inserts a chunk that isn't in this map yet
+         * 
+         * @param c
+         *            the chunk to insert */
+        public void put(final Chunk c)
+        {
+            Table t = this.table;
+            if((this.count + 1) * 2 > t.values.length)
+            {
+                Table newTable = new Table(t.values.length * 2);
+                this.maxProbeLength = 0;
+                for(int i = 0; i < t.values.length; i++)
+                {
+                    if(t.values[i] != null)
+                        this.maxProbeLength = Math.max(this.maxProbeLength,
+                                                       insert(newTable,
+                                                              t.values[i]));
+                }
+                this.table = newTable;
+                t = newTable;
+            }
+            this.maxProbeLength = Math.max(this.maxProbeLength, insert(t, c));
+            this.count++;
+        }
+
+        /** @return a random chunk or <code>null</code> if this map is empty */
+        public Chunk getRandom()
+        {
+            if(this.count == 0)
+                return null;
+            Table t = this.table;
+            int i = (int)Math.floor(fRand(0, t.values.length)) & t.mask;
+            while(t.values[i] == null)
+                i = (i + 1) & t.mask;
+            return t.values[i];
+        }
+
+        /** removes all the chunks from this map without freeing them */
+        public void clear()
+        {
+            this.table = new Table(initialCapacity);
+            this.count = 0;
+            this.maxProbeLength = 0;
+            // drop every thread's cache, the chunks are going to be freed
+            this.lastChunk = makeLastChunk();
+        }
+
+        public int getCount()
+        {
+            return this.count;
+        }
+
+        public int getCapacity()
+        {
+            return this.table.values.length;
+        }
+
+        public int getMaxProbeLength()
+        {
+            return this.maxProbeLength;
+        }
+    }
+
+    private final ChunkMap chunks = new ChunkMap();
+
+    /** the sunlight heightmap of a column of chunks. every block above the
+     * height stored for its x and z gets full direct sunlight, so direct
+     * sunlight only needs to be stored for the blocks below it.
+     * 
+     * @author jacob */
+    private static final class SunlightColumn
+    {
+        public final int cx, cz;
+        /** for each x and z, the highest y that doesn't let all the direct
+         * sunlight through */
+        public final int[] height = new int[Chunk.size * Chunk.size];
+        /** the land generator's rock heights, kept for lighting the places
+         * without blocks */
+        public final int[] rockHeight = new int[Chunk.size * Chunk.size];
+        public SunlightColumn hashnext = null;
+
+        public SunlightColumn(final int cx, final int cz)
+        {
+            this.cx = cx;
+            this.cz = cz;
+        }
+
+        public int getHeight(final int x, final int z)
+        {
+            return this.height[x - this.cx + Chunk.size * (z - this.cz)];
+        }
+
+        public void setHeight(final int x, final int z, final int y)
+        {
+            this.height[x - this.cx + Chunk.size * (z - this.cz)] = y;
+        }
+    }
+
+    private static final int sunlightColumnTableInitialSize = 1 << 8; // must be power of 2
+    private SunlightColumn[] sunlightColumnTable = new SunlightColumn[sunlightColumnTableInitialSize];
+    private int sunlightColumnCount = 0;
+
+    private static int hashSunlightColumn(final int cx, final int cz)
+    {
+        int shift = Integer.numberOfTrailingZeros(Chunk.size);
+        long hash = ((((long)(cx >> shift)) << 32) ^ (cz >> shift))
+                * 0x9E3779B97F4A7C15L;
+        return (int)(hash >>> 32);
+    }
+
+    /** gets the sunlight heightmap for the column of chunks at
+     * (<code>cx</code>, <code>cz</code>), making a new one from the land
+     * generator's rock heights if there isn't one yet */
+    private SunlightColumn findOrInsertSunlightColumn(final int cx,
+                                                      final int cz)
+    {
+        SunlightColumn[] table = this.sunlightColumnTable;
+        for(SunlightColumn column = table[hashSunlightColumn(cx, cz)
+                & (table.length - 1)]; column != null; column = column.hashnext)
+        {
+            if(column.cx == cx && column.cz == cz)
+                return column;
+        }
+        if(this.sunlightColumnCount >= table.length)
+        {
+            SunlightColumn[] newTable = new SunlightColumn[table.length * 2];
+            for(int i = 0; i < table.length; i++)
+            {
+                SunlightColumn column = table[i];
+                while(column != null)
+                {
+                    SunlightColumn next = column.hashnext;
+                    int hash = hashSunlightColumn(column.cx, column.cz)
+                            & (newTable.length - 1);
+                    column.hashnext = newTable[hash];
+                    newTable[hash] = column;
+                    column = next;
+                }
+            }
+            this.sunlightColumnTable = newTable;
+            table = newTable;
+        }
+        SunlightColumn column = new SunlightColumn(cx, cz);
+        for(int x = cx; x < cx + Chunk.size; x++)
+        {
+            for(int z = cz; z < cz + Chunk.size; z++)
+            {
+                column.rockHeight[x - cx + Chunk.size * (z - cz)] = this.landGenerator.getRockHeight(x,
+                                                                                                     z);
+                column.setHeight(x, z, getMissingSunlightHeight(x, z));
+            }
+        }
+        int hash = hashSunlightColumn(cx, cz) & (table.length - 1);
+        column.hashnext = table[hash];
+        table[hash] = column;
+        this.sunlightColumnCount++;
+        return column;
+    }
+
+    private void clearSunlightColumns()
+    {
+        this.sunlightColumnTable = new SunlightColumn[sunlightColumnTableInitialSize];
+        this.sunlightColumnCount = 0;
+    }
+
+    /** @return the highest y at (<code>x</code>, <code>z</code>) where a
+     *         block that isn't there yet doesn't get full direct sunlight
+     * @see #GetSunlight(int x, int y, int z) */
+    private int getMissingSunlightHeight(final int x, final int z)
+    {
+        return Math.max(-Depth - 1,
+                        Math.max(this.landGenerator.getRockHeight(x, z),
+                                 Rand.WaterHeight - 1));
+    }
+
+    /** finds the highest y at or below <code>startY</code> at
+     * (<code>x</code>, <code>z</code>) that doesn't let all the direct
+     * sunlight through
+     * 
+     * @return the y found or <code>-Depth - 1</code> */
+    private int findSunlightHeight(final int x, final int startY, final int z)
+    {
+        int missingHeight = Integer.MIN_VALUE;
+        int y = startY;
+        while(y >= -Depth)
+        {
+            int cx = x & ~(Chunk.size - 1);
+            int cy = y & ~(Chunk.size - 1);
+            int cz = z & ~(Chunk.size - 1);
+            Chunk c = find(cx, cy, cz);
+            int index = x - cx + Chunk.size * (y - cy + Chunk.size * (z - cz));
+            if(c == null || !c.hasBlock(index))
+            {
+                if(missingHeight == Integer.MIN_VALUE)
+                    missingHeight = getMissingSunlightHeight(x, z);
+                if(y <= missingHeight)
+                    return y;
+                if(c == null)
+                    y = Math.max(cy, missingHeight + 1);
+            }
+            else if(c.peekBlock(index).filterSunlight(15) != 15)
+                return y;
+            y--;
+        }
+        return -Depth - 1;
+    }
+
+    /** updates the sunlight heightmap after <code>b</code> was put at
+     * (<code>x</code>, <code>y</code>, <code>z</code>) in <code>c</code>,
+     * recording the range of y that changed for <code>updateLight</code> */
+    private void updateSunlightHeight(final Chunk c,
+                                      final int x,
+                                      final int y,
+                                      final int z,
+                                      final Block b)
+    {
+        SunlightColumn column = c.sunlightColumn;
+        int oldHeight = column.getHeight(x, z);
+        int newHeight;
+        if(b.filterSunlight(15) != 15)
+        {
+            if(y <= oldHeight)
+                return;
+            newHeight = y;
+        }
+        else
+        {
+            if(y != oldHeight)
+                return;
+            newHeight = findSunlightHeight(x, y - 1, z);
+        }
+        column.setHeight(x, z, newHeight);
+        this.sunlightHeightChangeQueue.add(x,
+                                           Math.min(oldHeight, newHeight),
+                                           z,
+                                           Math.max(oldHeight, newHeight));
+    }
+
+    private void insertEntity(final EntityNode node)
+    {
+        if(node.isFree || node.isInList || node == this.entityHead
+                || node == this.entityTail)
+            throw new RuntimeException("can't insert currently used entity");
+        node.isInList = true;
+        if(node.e.isEmpty())
+        {
+            node.next = this.entityHead;
+            node.prev = null;
+            node.hashnext = null;
+            node.hashprev = null;
+            if(this.entityHead != null)
+                this.entityHead.prev = node;
+            else
+                this.entityTail = node;
+            this.entityHead = node;
+            this.entityCount++;
+            return;
+        }
+        Vector pos = node.e.getPosition();
+        int x = (int)Math.floor(pos.getX());
+        int y = (int)Math.floor(pos.getY());
+        int z = (int)Math.floor(pos.getZ());
+        node.next = this.entityHead;
+        node.prev = null;
+        if(this.entityHead != null)
+            this.entityHead.prev = node;
+        else
+            this.entityTail = node;
+        this.entityHead = node;
+        Chunk c = findOrInsert(x & ~(Chunk.size - 1), y & ~(Chunk.size - 1), z
+                & ~(Chunk.size - 1));
+        node.hashnext = c.head;
+        node.hashprev = null;
+        if(c.head != null)
+            c.head.hashprev = node;
+        else
+            c.tail = node;
+        c.head = node;
+        this.entityCount++;
+    }
+
+    private EntityNode removeAllEntities()
+    {
+        EntityNode retval = this.entityHead;
+        this.entityHead = null;
+        this.entityTail = null;
+        for(EntityNode node = retval; node != null; node = node.next)
+        {
+            node.isInList = false;
+            Chunk c = null;
+            if(!node.e.isEmpty())
+            {
+                Vector pos = node.e.getPosition();
+                int x = (int)Math.floor(pos.getX());
+                int y = (int)Math.floor(pos.getY());
+                int z = (int)Math.floor(pos.getZ());
+                c = find(x & ~(Chunk.size - 1), y & ~(Chunk.size - 1), z
+                        & ~(Chunk.size - 1));
+            }
+            if(c != null)
+            {
+                c.head = null;
+                c.tail = null;
+            }
+            node.hashnext = null;
+            node.hashprev = null;
+        }
+        this.entityCount = 0;
+        return retval;
+    }
 
     private static class EvalNode
     {
@@ -523,42 +1487,23 @@ public final class World
         return retval;
     }
 
-    private int hashChunkPos(final int cx, final int cy, final int cz)
-    {
-        return hashPos(cx, cy, cz);
-    }
-
-    private final Chunk[] hashTable = new Chunk[WorldHashPrime];
-    private long chunkCount = 0;
-    private int maxBucketSize = 0;
-
     public long getChunkCount()
     {
-        return this.chunkCount;
-    }
-
-    public int getMaxBucketSize()
-    {
-        return this.maxBucketSize;
+        return this.chunks.getCount();
     }
 
     private void clearHashTable()
     {
-        clearLastChunk();
-        for(int i = 0; i < WorldHashPrime; i++)
+        this.chunks.clear();
+        for(Chunk c = this.chunksHead, nextChunk = (c != null ? c.listnext
+                : null); c != null; c = nextChunk, nextChunk = (c != null ? c.listnext
+                : null))
         {
-            Chunk head = this.hashTable[i];
-            this.hashTable[i] = null;
-            while(head != null)
-            {
-                Chunk freeMe = head;
-                head = head.next;
-                freeMe.free();
-            }
+            c.free();
         }
         this.chunksHead = null;
-        this.chunkCount = 0;
-        this.maxBucketSize = 0;
+        this.compactChunksHand = null;
+        clearSunlightColumns();
     }
 
     private EvalNode[][] genEvalNodeHashTable()
@@ -834,73 +1779,21 @@ public final class World
 
     private Chunk find(final int cx, final int cy, final int cz)
     {
-        Chunk retval = null;
-        if(this.lastChunk != null && this.lastChunk.orgx == cx
-                && this.lastChunk.orgy == cy && this.lastChunk.orgz == cz)
-            retval = this.lastChunk;
-        else
-        {
-            int hash = hashChunkPos(cx, cy, cz);
-            Chunk lastNode = null;
-            Chunk node = this.hashTable[hash];
-            while(node != null)
-            {
-                if(node.orgx == cx && node.orgy == cy && node.orgz == cz)
-                {
-                    if(lastNode != null)
-                    {
-                        lastNode.next = node.next;
-                        node.next = this.hashTable[hash];
-                        this.hashTable[hash] = node;
-                    }
-                    this.lastChunk = node;
-                    break;
-                }
-                lastNode = node;
-                node = node.next;
-            }
-            retval = node;
-        }
-        return retval;
+        return this.chunks.get(cx, cy, cz);
     }
 
     private Chunk chunksHead = null;
 
     private Chunk findOrInsert(final int cx, final int cy, final int cz)
     {
-        if(this.lastChunk != null && this.lastChunk.orgx == cx
-                && this.lastChunk.orgy == cy && this.lastChunk.orgz == cz)
-            return this.lastChunk;
-        int hash = hashChunkPos(cx, cy, cz);
-        Chunk lastNode = null;
-        Chunk node = this.hashTable[hash];
-        int bucketSize = 0;
-        while(node != null)
-        {
-            if(node.orgx == cx && node.orgy == cy && node.orgz == cz)
-            {
-                if(lastNode != null)
-                {
-                    lastNode.next = node.next;
-                    node.next = this.hashTable[hash];
-                    this.hashTable[hash] = node;
-                }
-                this.lastChunk = node;
-                return node;
-            }
-            lastNode = node;
-            node = node.next;
-            bucketSize++;
-        }
+        Chunk node = find(cx, cy, cz);
+        if(node != null)
+            return node;
         node = Chunk.allocate(cx, cy, cz);
-        this.chunkCount++;
-        bucketSize++;
-        this.maxBucketSize = Math.max(this.maxBucketSize, bucketSize);
-        node.next = this.hashTable[hash];
-        this.hashTable[hash] = node;
+        node.sunlightColumn = findOrInsertSunlightColumn(cx, cz);
+        this.chunks.put(node);
         node.listnext = this.chunksHead;
         this.chunksHead = node;
-        this.lastChunk = node;
         return node;
     }
 
@@ -909,34 +1802,7 @@ public final class World
         int cx1 = cx & ~(Chunk.size - 1) & ~(Chunk.size - 1);
         int cy1 = cy & ~(Chunk.size - 1) & ~(Chunk.size - 1);
         int cz1 = cz & ~(Chunk.size - 1) & ~(Chunk.size - 1);
-        Chunk retval = null;
-        if(this.lastChunk != null && this.lastChunk.orgx == cx1
-                && this.lastChunk.orgy == cy1 && this.lastChunk.orgz == cz1)
-            retval = this.lastChunk;
-        else
-        {
-            int hash = hashChunkPos(cx1, cy1, cz1);
-            Chunk lastNode = null;
-            Chunk node = this.hashTable[hash];
-            while(node != null)
-            {
-                if(node.orgx == cx1 && node.orgy == cy1 && node.orgz == cz1)
-                {
-                    if(lastNode != null)
-                    {
-                        lastNode.next = node.next;
-                        node.next = this.hashTable[hash];
-                        this.hashTable[hash] = node;
-                    }
-                    this.lastChunk = node;
-                    break;
-                }
-                lastNode = node;
-                node = node.next;
-            }
-            retval = node;
-        }
-        Chunk c = retval;
+        Chunk c = find(cx1, cy1, cz1);
         boolean generated;
         if(c == null)
             generated = false;
@@ -979,40 +1845,36 @@ public final class World
         int cx = x & ~(Chunk.size - 1);
         int cy = y & ~(Chunk.size - 1);
         int cz = z & ~(Chunk.size - 1);
-        Chunk retval = null;
-        if(this.lastChunk != null && this.lastChunk.orgx == cx
-                && this.lastChunk.orgy == cy && this.lastChunk.orgz == cz)
-            retval = this.lastChunk;
-        else
-        {
-            int hash = hashChunkPos(cx, cy, cz);
-            Chunk lastNode = null;
-            Chunk node = this.hashTable[hash];
-            while(node != null)
-            {
-                if(node.orgx == cx && node.orgy == cy && node.orgz == cz)
-                {
-                    if(lastNode != null)
-                    {
-                        lastNode.next = node.next;
-                        node.next = this.hashTable[hash];
-                        this.hashTable[hash] = node;
-                    }
-                    this.lastChunk = node;
-                    break;
-                }
-                lastNode = node;
-                node = node.next;
-            }
-            retval = node;
-        }
-        Chunk c = retval;
+        Chunk c = find(cx, cy, cz);
         Block b = null;
         if(c != null)
-            b = c.blocks[x - cx + Chunk.size * (y - cy + Chunk.size * (z - cz))];
+            b = c.getBlock(x - cx + Chunk.size * (y - cy + Chunk.size * (z - cz)));
         return b;
     }
 
+    /** gets the faces of the block at (<code>x</code>, <code>y</code>,
+     * <code>z</code>) that aren't hidden by opaque or missing neighbors
+     * 
+     * @param x
+     *            the x coordinate of the block
+     * @param y
+     *            the y coordinate of the block
+     * @param z
+     *            the z coordinate of the block
+     * @return the visible faces as a draw mask : 0x20 for -X, 0x10 for +X,
+     *         0x8 for -Y, 0x4 for +Y, 0x2 for -Z and 0x1 for +Z */
+    public int getFaceMask(final int x, final int y, final int z)
+    {
+        int cx = x & ~(Chunk.size - 1);
+        int cy = y & ~(Chunk.size - 1);
+        int cz = z & ~(Chunk.size - 1);
+        Chunk c = find(cx, cy, cz);
+        if(c == null)
+            return 0;
+        return c.getFaceMask(x - cx + Chunk.size
+                * (y - cy + Chunk.size * (z - cz)));
+    }
+
     private void internalSetBlock(final int x,
                                   final int y,
                                   final int z,
@@ -1029,12 +1891,125 @@ public final class World
             oldb.isInWorld = false;
         c.setBlock(x - cx, y - cy, z - cz, b);
         b.isInWorld = true;
+        updateSunlightHeight(c, x, y, z, b);
+        updateFaceMasks(c, x - cx, y - cy, z - cz);
     }
 
-    private void resetLightingArrays(final int x, final int y, final int z)
+    private static final int[] faceMaskDX = new int[]
     {
-        for(int dx = -1; dx <= 1; dx++)
-        {
+        -1, 1, 0, 0, 0, 0
+    };
+    private static final int[] faceMaskDY = new int[]
+    {
+        0, 0, -1, 1, 0, 0
+    };
+    private static final int[] faceMaskDZ = new int[]
+    {
+        0, 0, 0, 0, -1, 1
+    };
+
+    /** @param face
+     *            the face index, from 0 for -X to 5 for +Z
+     * @return the draw mask bit for <code>face</code> */
+    private static int getFaceMaskBit(final int face)
+    {
+        return 0x20 >> face;
+    }
+
+    /** updates the face masks of a block and the faces of its neighbors that
+     * touch it, after the block changed
+     * 
+     * @param c
+     *            the chunk the block is in
+     * @param x
+     *            the x coordinate of the block in <code>c</code>
+     * @param y
+     *            the y coordinate of the block in <code>c</code>
+     * @param z
+     *            the z coordinate of the block in <code>c</code> */
+    private void updateFaceMasks(final Chunk c,
+                                 final int x,
+                                 final int y,
+                                 final int z)
+    {
+        int index = x + Chunk.size * (y + Chunk.size * z);
+        boolean showsNeighborFaces = c.showsNeighborFaces(index);
+        int mask = 0;
+        for(int face = 0; face < 6; face++)
+        {
+            int nx = x + faceMaskDX[face];
+            int ny = y + faceMaskDY[face];
+            int nz = z + faceMaskDZ[face];
+            Chunk nc = c;
+            if(nx < 0 || nx >= Chunk.size || ny < 0 || ny >= Chunk.size
+                    || nz < 0 || nz >= Chunk.size)
+            {
+                nc = find(c.orgx + (nx & ~(Chunk.size - 1)), c.orgy
+                        + (ny & ~(Chunk.size - 1)), c.orgz
+                        + (nz & ~(Chunk.size - 1)));
+                if(nc == null)
+                    continue;
+                nx &= Chunk.size - 1;
+                ny &= Chunk.size - 1;
+                nz &= Chunk.size - 1;
+            }
+            int nindex = nx + Chunk.size * (ny + Chunk.size * nz);
+            if(nc.showsNeighborFaces(nindex))
+                mask |= getFaceMaskBit(face);
+            int backBit = getFaceMaskBit(face ^ 1);
+            int nmask = nc.getFaceMask(nindex);
+            if(showsNeighborFaces)
+                nc.setFaceMask(nindex, nmask | backBit);
+            else
+                nc.setFaceMask(nindex, nmask & ~backBit);
+        }
+        c.setFaceMask(index, mask);
+    }
+
+    /** recalculates all the face masks of a chunk and the faces of the
+     * neighboring chunks that touch it
+     * 
+     * @param c
+     *            the chunk */
+    private void updateFaceMasks(final Chunk c)
+    {
+        for(int x = 0; x < Chunk.size; x++)
+        {
+            for(int y = 0; y < Chunk.size; y++)
+            {
+                for(int z = 0; z < Chunk.size; z++)
+                {
+                    if(x <= 0 || x >= Chunk.size - 1 || y <= 0
+                            || y >= Chunk.size - 1 || z <= 0
+                            || z >= Chunk.size - 1)
+                    {
+                        updateFaceMasks(c, x, y, z);
+                        continue;
+                    }
+                    int index = x + Chunk.size * (y + Chunk.size * z);
+                    int mask = 0;
+                    if(c.showsNeighborFaces(index - 1))
+                        mask |= 0x20;
+                    if(c.showsNeighborFaces(index + 1))
+                        mask |= 0x10;
+                    if(c.showsNeighborFaces(index - Chunk.size))
+                        mask |= 0x8;
+                    if(c.showsNeighborFaces(index + Chunk.size))
+                        mask |= 0x4;
+                    if(c.showsNeighborFaces(index - Chunk.size * Chunk.size))
+                        mask |= 0x2;
+                    if(c.showsNeighborFaces(index + Chunk.size * Chunk.size))
+                        mask |= 0x1;
+                    c.setFaceMask(index, mask);
+                }
+            }
+        }
+    }
+
+    private void resetLightingArrays(final int x, final int y, final int z)
+    {
+        for(int dx = -1; dx <= 1; dx++)
+        {
             for(int dy = -1; dy <= 1; dy++)
             {
                 for(int dz = -1; dz <= 1; dz++)
@@ -1045,36 +2020,7 @@ public final class World
                     int cx = x1 & ~(Chunk.size - 1);
                     int cy = y1 & ~(Chunk.size - 1);
                     int cz = z1 & ~(Chunk.size - 1);
-                    Chunk retval = null;
-                    if(this.lastChunk != null && this.lastChunk.orgx == cx
-                            && this.lastChunk.orgy == cy
-                            && this.lastChunk.orgz == cz)
-                        retval = this.lastChunk;
-                    else
-                    {
-                        int hash = hashChunkPos(cx, cy, cz);
-                        Chunk lastNode = null;
-                        Chunk node = this.hashTable[hash];
-                        while(node != null)
-                        {
-                            if(node.orgx == cx && node.orgy == cy
-                                    && node.orgz == cz)
-                            {
-                                if(lastNode != null)
-                                {
-                                    lastNode.next = node.next;
-                                    node.next = this.hashTable[hash];
-                                    this.hashTable[hash] = node;
-                                }
-                                this.lastChunk = node;
-                                break;
-                            }
-                            lastNode = node;
-                            node = node.next;
-                        }
-                        retval = node;
-                    }
-                    Chunk c = retval;
+                    Chunk c = find(cx, cy, cz);
                     Block b1 = null;
                     if(c != null)
                         b1 = c.blocks[x1 - cx + Chunk.size
@@ -1082,16 +2028,113 @@ public final class World
                     Block b = b1;
                     if(b == null)
                         continue;
-                    b.setLightingArray(null,
-                                       this.sunlightFactor,
-                                       this.displayListValidTag);
+                    b.setLightingArray(null, this.displayListValidTag);
                     internalSetBlock(x + dx, y + dy, z + dz, b);
                 }
             }
         }
     }
 
-    @SuppressWarnings("unused")
+    /** clears the cached lighting arrays of the blocks in the shell of
+     * thickness 1 around the box from (<code>minX</code>, <code>minY</code>,
+     * <code>minZ</code>) to (<code>maxX</code>, <code>maxY</code>,
+     * <code>maxZ</code>) exclusive */
+    private void resetLightingArraysAround(final int minX,
+                                           final int minY,
+                                           final int minZ,
+                                           final int maxX,
+                                           final int maxY,
+                                           final int maxZ)
+    {
+        for(int x = minX - 1; x <= maxX; x++)
+        {
+            for(int y = minY - 1; y <= maxY; y++)
+            {
+                for(int z = minZ - 1; z <= maxZ; z++)
+                {
+                    if(x >= minX && x < maxX && y >= minY && y < maxY
+                            && z >= minZ && z < maxZ)
+                        continue;
+                    int cx = x & ~(Chunk.size - 1);
+                    int cy = y & ~(Chunk.size - 1);
+                    int cz = z & ~(Chunk.size - 1);
+                    Chunk c = find(cx, cy, cz);
+                    if(c == null)
+                        continue;
+                    Block b = c.blocks[x - cx + Chunk.size
+                            * (y - cy + Chunk.size * (z - cz))];
+                    if(b == null)
+                        continue;
+                    b.setLightingArray(null, this.displayListValidTag);
+                }
+            }
+        }
+    }
+
+    /** invalidates the blocks affected by replacing every block in the box
+     * from (<code>minX</code>, <code>minY</code>, <code>minZ</code>) to (
+     * <code>maxX</code>, <code>maxY</code>, <code>maxZ</code>) exclusive,
+     * invalidating each chunk only once. the blocks in the box and up to 2
+     * outside it need their lighting updated, but only the blocks up to 2
+     * from the faces of the box can see the new blocks, so only those are
+     * queued for the other eval types.
+     * 
+     * @see #invalidate(int x, int y, int z) */
+    private void invalidateBox(final int minX,
+                               final int minY,
+                               final int minZ,
+                               final int maxX,
+                               final int maxY,
+                               final int maxZ)
+    {
+        final int border = 2;
+        for(int cx = (minX - border) & ~(Chunk.size - 1); cx < maxX
+                + border; cx += Chunk.size)
+        {
+            for(int cy = (minY - border) & ~(Chunk.size - 1); cy < maxY
+                    + border; cy += Chunk.size)
+            {
+                for(int cz = (minZ - border) & ~(Chunk.size - 1); cz < maxZ
+                        + border; cz += Chunk.size)
+                {
+                    invalidateChunk(cx, cy, cz);
+                }
+            }
+        }
+        LightQueue dirty = this.lightingDirtyQueue;
+        for(int x = minX - border; x < maxX + border; x++)
+        {
+            boolean xBoundary = x < minX + border || x >= maxX - border;
+            for(int y = Math.max(minY - border, -Depth); y < maxY + border
+                    && y < Height; y++)
+            {
+                boolean xyBoundary = xBoundary || y < minY + border
+                        || y >= maxY - border;
+                for(int z = minZ - border; z < maxZ + border; z++)
+                {
+                    dirty.add(x, y, z, 0);
+                    if(!xyBoundary && z >= minZ + border && z < maxZ - border)
+                        continue;
+                    for(int i = 0; i < EvalType.values.length; i++)
+                    {
+                        EvalType et = EvalType.values[i];
+                        if(et == EvalType.Last || et == EvalType.Particles
+                                || et == EvalType.Lighting)
+                            continue;
+                        insertEvalNode(et, x, y, z);
+                    }
+                }
+            }
+        }
+    }
+
+    /** installs all the blocks of a generated chunk at once. unlike calling
+     * <code>setBlock</code> for each block, this invalidates the new blocks
+     * and the blocks up to 2 away once, instead of the neighborhood of every
+     * block.
+     * 
+     * @param c
+     *            the generated chunk (ownership is transferred to this world) */
     private void addGeneratedChunk(final GeneratedChunk c)
     {
         if(c == null)
@@ -1105,30 +2148,66 @@ public final class World
             {
                 for(int cz = c.cz; cz < c.cz + GeneratedChunk.size; cz += Chunk.size)
                 {
+                    if(cy + Chunk.size <= -Depth || cy >= Height)
+                        continue;
+                    Chunk chunk = findOrInsert(cx, cy, cz);
                     for(int x = cx; x < cx + Chunk.size; x++)
                     {
                         for(int y = cy; y < cy + Chunk.size; y++)
                         {
+                            if(y < -Depth || y >= Height)
+                                continue;
                             for(int z = cz; z < cz + Chunk.size; z++)
                             {
-                                Block temp = getBlock(x, y, z);
-                                // TODO finish
-                                if(true)
-                                    setBlock(x, y, z, c.getBlock(x, y, z).dup());
-                                else
-                                    internalSetBlock(x,
-                                                     y,
-                                                     z,
-                                                     c.getBlock(x, y, z).dup());
-                                if(temp != null)
-                                    temp.free();
+                                int index = x - cx + Chunk.size
+                                        * (y - cy + Chunk.size * (z - cz));
+                                Block oldb = chunk.getBlock(index);
+                                Block b = c.getBlock(x, y, z).dup();
+                                if(oldb != null)
+                                {
+                                    addLightingRemoval(x, y, z, oldb);
+                                    b.copyLighting(oldb);
+                                }
+                                if(oldb == null
+                                        || oldb.getEmitLight() != b.getEmitLight())
+                                    b.resetLighting();
+                                b.setLightingArray(null, this.displayListValidTag);
+                                chunk.setBlock(x - cx, y - cy, z - cz, b);
+                                b.isInWorld = true;
+                                updateSunlightHeight(chunk, x, y, z, b);
+                                // generated liquids can still flow
+                                if(b.getType().drawType == BlockDrawType.BDTLiquid)
+                                    insertEvalNode(EvalType.General, x, y, z);
+                                if(oldb != null)
+                                {
+                                    oldb.isInWorld = false;
+                                    oldb.free();
+                                }
                             }
                         }
                     }
+                    updateFaceMasks(chunk);
                     setGenerated(cx, cy, cz, true);
                 }
             }
         }
+        int minY = Math.max(c.cy, -Depth), maxY = Math.min(c.cy
+                + GeneratedChunk.size, Height);
+        if(minY < maxY)
+        {
+            resetLightingArraysAround(c.cx,
+                                      minY,
+                                      c.cz,
+                                      c.cx + GeneratedChunk.size,
+                                      maxY,
+                                      c.cz + GeneratedChunk.size);
+            invalidateBox(c.cx,
+                          minY,
+                          c.cz,
+                          c.cx + GeneratedChunk.size,
+                          maxY,
+                          c.cz + GeneratedChunk.size);
+        }
         for(;;)
         {
             Entity e = c.takeEntity();
@@ -1160,7 +2239,10 @@ public final class World
         Block b = block;
         Block oldb = getBlock(x, y, z);
         if(oldb != null)
+        {
+            addLightingRemoval(x, y, z, oldb);
             b.copyLighting(oldb);
+        }
         else
             b.setLighting(0, 0, 0);
         if(oldb == null || oldb.getEmitLight() != b.getEmitLight())
@@ -1171,7 +2253,7 @@ public final class World
             int[] l = Block.allocateLightingArray();
             for(int i = 0; i < l.length; i++)
                 l[i] = oldL[i];
-            b.setLightingArray(l, this.sunlightFactor, this.displayListValidTag);
+            b.setLightingArray(l, this.displayListValidTag);
         }
         internalSetBlock(x, y, z, b);
         resetLightingArrays(x, y, z);
@@ -1218,58 +2300,62 @@ public final class World
         int cx = x & ~(Chunk.size - 1);
         int cy = y & ~(Chunk.size - 1);
         int cz = z & ~(Chunk.size - 1);
-        Chunk retval = null;
-        if(this.lastChunk != null && this.lastChunk.orgx == cx
-                && this.lastChunk.orgy == cy && this.lastChunk.orgz == cz)
-            retval = this.lastChunk;
-        else
-        {
-            int hash = hashChunkPos(cx, cy, cz);
-            Chunk lastNode = null;
-            Chunk node = this.hashTable[hash];
-            while(node != null)
-            {
-                if(node.orgx == cx && node.orgy == cy && node.orgz == cz)
-                {
-                    if(lastNode != null)
-                    {
-                        lastNode.next = node.next;
-                        node.next = this.hashTable[hash];
-                        this.hashTable[hash] = node;
-                    }
-                    this.lastChunk = node;
-                    break;
-                }
-                lastNode = node;
-                node = node.next;
-            }
-            retval = node;
-        }
-        Chunk c = retval;
+        Chunk c = find(cx, cy, cz);
         if(c == null)
             return null;
         boolean generated = c.generated[0];
         if(!generated)
             return null;
-        Block b = c.blocks[x - cx + Chunk.size
-                * (y - cy + Chunk.size * (z - cz))];
+        Block b = c.getBlock(x - cx + Chunk.size
+                * (y - cy + Chunk.size * (z - cz)));
         return b;
     }
 
-    private int GetSunlight(final int x, final int y, final int z)
+    /** gets the block at &lt;<code>x</code>, <code>y</code>, <code>z</code>
+     * &gt; like <code>getBlockEval</code> without materializing it. the
+     * returned block may be shared, so it must not be changed.
+     * 
+     * @param x
+     *            the x coordinate
+     * @param y
+     *            the y coordinate
+     * @param z
+     *            the z coordinate
+     * @return the block or <code>null</code> */
+    Block peekBlockEval(final int x, final int y, final int z)
+    {
+        int cx = x & ~(Chunk.size - 1);
+        int cy = y & ~(Chunk.size - 1);
+        int cz = z & ~(Chunk.size - 1);
+        Chunk c = find(cx, cy, cz);
+        if(c == null)
+            return null;
+        if(!c.generated[0])
+            return null;
+        return c.peekBlock(x - cx + Chunk.size
+                * (y - cy + Chunk.size * (z - cz)));
+    }
+
+    int GetSunlight(final int x, final int y, final int z)
     {
         if(y < -Depth)
             return 0;
         if(y >= Height)
             return 15;
-        Block b = getBlock(x, y, z);
-        if(b == null)
+        int cx = x & ~(Chunk.size - 1);
+        int cy = y & ~(Chunk.size - 1);
+        int cz = z & ~(Chunk.size - 1);
+        Chunk c = find(cx, cy, cz);
+        if(c != null && y > c.sunlightColumn.getHeight(x, z))
+            return 15;
+        int index = x - cx + Chunk.size * (y - cy + Chunk.size * (z - cz));
+        if(c == null || !c.hasBlock(index))
         {
             if(y > this.landGenerator.getRockHeight(x, z))
                 return Math.min(15, 15 + (y - Rand.WaterHeight) * 3);
             return 0;
         }
-        return b.getSunlight();
+        return c.getSunlight(index);
     }
 
     int GetScatteredSunlight(final int x, final int y, final int z)
@@ -1278,14 +2364,18 @@ public final class World
             return 0;
         if(y >= Height)
             return 15;
-        Block b = getBlock(x, y, z);
-        if(b == null)
+        int cx = x & ~(Chunk.size - 1);
+        int cy = y & ~(Chunk.size - 1);
+        int cz = z & ~(Chunk.size - 1);
+        Chunk c = find(cx, cy, cz);
+        int index = x - cx + Chunk.size * (y - cy + Chunk.size * (z - cz));
+        if(c == null || !c.hasBlock(index))
         {
             if(y > this.landGenerator.getRockHeight(x, z))
                 return Math.min(15, 15 + (y - Rand.WaterHeight) * 3);
             return 0;
         }
-        return b.getScatteredSunlight();
+        return c.getScatteredSunlight(index);
     }
 
     int GetLight(final int x, final int y, final int z)
@@ -1294,379 +2384,2566 @@ public final class World
             return 0;
         if(y >= Height)
             return 0;
-        Block b = getBlock(x, y, z);
-        if(b == null)
+        int cx = x & ~(Chunk.size - 1);
+        int cy = y & ~(Chunk.size - 1);
+        int cz = z & ~(Chunk.size - 1);
+        Chunk c = find(cx, cy, cz);
+        int index = x - cx + Chunk.size * (y - cy + Chunk.size * (z - cz));
+        if(c == null || !c.hasBlock(index))
         {
             return 0;
         }
-        return b.getLight();
+        return c.getLight(index);
     }
 
-    private void updateLight()
+    /** a growable queue of block positions with a value for each, used by
+     * <code>updateLight</code>. entries can be read by index or removed from
+     * the front.
+     * 
+     * @author jacob */
+    private static final class LightQueue
     {
-        int count = 100;
-        for(EvalNode node = removeAllEvalNodes(EvalType.Lighting); node != null; node = removeAllEvalNodes(EvalType.Lighting))
+        private int[] x = new int[64], y = new int[64], z = new int[64],
+                value = new int[64];
+        private int head = 0, tail = 0;
+        /** the entry that <code>remove</code> removed last */
+        public int curX, curY, curZ, curValue;
+
+        public LightQueue()
         {
-            while(node != null)
-            {
-                int x = node.x, y = node.y, z = node.z;
-                Block b = getBlock(x, y, z);
-                if(PlayerList.PlayerCount > 0 && !Main.isServer)
-                    b = null;
-                if(b == null)
-                {
-                    EvalNode freeMe = node;
-                    node = node.listnext;
-                    freeMe.free();
-                    continue;
-                }
-                int newlight = b.getEmitLight();
-                int newsunlight = GetSunlight(x, y + 1, z);
-                int newscatteredsunlight = 0;
-                int light, scatteredsunlight;
-                light = GetLight(x - 1, y, z);
-                scatteredsunlight = GetScatteredSunlight(x - 1, y, z);
-                if(newlight < light)
-                    newlight = light;
-                if(newscatteredsunlight < scatteredsunlight)
-                    newscatteredsunlight = scatteredsunlight;
-                light = GetLight(x + 1, y, z);
-                scatteredsunlight = GetScatteredSunlight(x + 1, y, z);
-                if(newlight < light)
-                    newlight = light;
-                if(newscatteredsunlight < scatteredsunlight)
-                    newscatteredsunlight = scatteredsunlight;
-                light = GetLight(x, y - 1, z);
-                scatteredsunlight = GetScatteredSunlight(x, y - 1, z);
-                if(newlight < light)
-                    newlight = light;
-                if(newscatteredsunlight < scatteredsunlight)
-                    newscatteredsunlight = scatteredsunlight;
-                light = GetLight(x, y + 1, z);
-                scatteredsunlight = GetScatteredSunlight(x, y + 1, z);
-                if(newlight < light)
-                    newlight = light;
-                if(newscatteredsunlight < scatteredsunlight)
-                    newscatteredsunlight = scatteredsunlight;
-                light = GetLight(x, y, z - 1);
-                scatteredsunlight = GetScatteredSunlight(x, y, z - 1);
-                if(newlight < light)
-                    newlight = light;
-                if(newscatteredsunlight < scatteredsunlight)
-                    newscatteredsunlight = scatteredsunlight;
-                light = GetLight(x, y, z + 1);
-                scatteredsunlight = GetScatteredSunlight(x, y, z + 1);
-                if(newlight < light)
-                    newlight = light;
-                if(newscatteredsunlight < scatteredsunlight)
-                    newscatteredsunlight = scatteredsunlight;
-                newlight--;
-                if(newlight < 0)
-                    newlight = 0;
-                newscatteredsunlight--;
-                if(newscatteredsunlight < 0)
-                    newscatteredsunlight = 0;
-                Block freeMe2 = b;
-                b = b.dup();
-                if(b.setLighting(newsunlight, newscatteredsunlight, newlight))
-                {
-                    internalSetBlock(x, y, z, b);
-                    freeMe2.free();
-                    resetLightingArrays(x, y, z);
-                    invalidate(x - 1, y, z);
-                    invalidate(x + 1, y, z);
-                    invalidate(x, y - 1, z);
-                    invalidate(x, y + 1, z);
-                    invalidate(x, y, z - 1);
-                    invalidate(x, y, z + 1);
-                    invalidate(x, y, z);
-                }
-                else
-                    b.free();
-                EvalNode freeMe = node;
-                node = node.listnext;
-                freeMe.free();
-            }
-            if(count-- <= 0)
-                return;
         }
-    }
-
-    private void clearTimeOfDay()
-    {
-        this.sunlightFactor = 15;
-        this.timeOfDay = 0.3f;
-    }
-
-    private int sunlightFactor = 15; // integer between 0 and 15
-    private float timeOfDay = 0.3f;
 
-    /** @param timeOfDay
-     *            the time of day
-     * @return the new Color */
-    private static Color getBackgroundColor(final float timeOfDay)
-    {
-        float seconds = 20.0f * 60.0f * timeOfDay;
-        final float secondsPerLightlevel = 10.0f;
-        final int nightLight = 4, dayLight = 15;
-        final float secondsForDawn = (dayLight - nightLight)
-                * secondsPerLightlevel;
-        final float secondsForDusk = (dayLight - nightLight)
-                * secondsPerLightlevel;
-        float sunlightFactor;
-        if(seconds < 5.0f * 60.0f - secondsForDawn)
+        private static int[] grow(final int[] array)
         {
-            sunlightFactor = nightLight;
+            int[] retval = new int[array.length * 2];
+            System.arraycopy(array, 0, retval, 0, array.length);
+            return retval;
         }
-        else if(seconds < 5.0f * 60.0f)
+
+        public void add(final int x, final int y, final int z, final int value)
         {
-            float brightness = (secondsForDawn + seconds - 5.0f * 60.0f)
-                    / secondsPerLightlevel;
-            sunlightFactor = brightness + nightLight;
+            if(this.tail >= this.x.length)
+            {
+                this.x = grow(this.x);
+                this.y = grow(this.y);
+                this.z = grow(this.z);
+                this.value = grow(this.value);
+            }
+            this.x[this.tail] = x;
+            this.y[this.tail] = y;
+            this.z[this.tail] = z;
+            this.value[this.tail] = value;
+            this.tail++;
         }
-        else if(seconds < 15.0f * 60.0f)
+
+        /** removes the front entry into <code>curX</code>, <code>curY</code>,
+         * <code>curZ</code> and <code>curValue</code>
+         * 
+         * @return false if this queue was empty */
+        public boolean remove()
         {
-            sunlightFactor = 15;
+            if(this.head >= this.tail)
+            {
+                clear();
+                return false;
+            }
+            this.curX = this.x[this.head];
+            this.curY = this.y[this.head];
+            this.curZ = this.z[this.head];
+            this.curValue = this.value[this.head];
+            this.head++;
+            return true;
         }
-        else if(seconds < 15.0f * 60.0f + secondsForDusk)
+
+        public int size()
         {
-            float brightness = (secondsForDusk + 15.0f * 60.0f - seconds)
-                    / secondsPerLightlevel;
-            sunlightFactor = brightness + nightLight;
+            return this.tail - this.head;
         }
-        else
-            sunlightFactor = nightLight;
-        float intensity = 1.5f * (sunlightFactor - nightLight)
-                / (dayLight - nightLight);
-        if(intensity < 0.0f)
-            intensity = 0.0f;
-        if(intensity > 1.5f)
-            intensity = 1.5f;
-        if(intensity > 1.0f)
-            return RGB(intensity - 1.0f, intensity - 1.0f, 1.0f);
-        return RGB(0.0f, 0.0f, intensity);
-    }
-
-    private void clearBackgroundColor()
-    {
-        this.backgroundColor.free();
-        this.backgroundColor = getBackgroundColor(0.3f);
-    }
-
-    private Color backgroundColor = getBackgroundColor(0.3f);
 
-    private void setSunlightFactor()
-    {
-        float seconds = 20.0f * 60.0f * this.timeOfDay;
-        final float secondsPerLightlevel = 10.0f;
-        final int nightLight = 4, dayLight = 15;
-        final float secondsForDawn = (dayLight - nightLight)
-                * secondsPerLightlevel;
-        final float secondsForDusk = (dayLight - nightLight)
-                * secondsPerLightlevel;
-        if(seconds < 5.0f * 60.0f - secondsForDawn)
+        public int getX(final int index)
         {
-            this.sunlightFactor = 4;
+            return this.x[this.head + index];
         }
-        else if(seconds < 5.0f * 60.0f)
+
+        public int getY(final int index)
         {
-            float brightness = (secondsForDawn + seconds - 5.0f * 60.0f)
-                    / secondsPerLightlevel;
-            this.sunlightFactor = Math.round(brightness) + nightLight;
+            return this.y[this.head + index];
         }
-        else if(seconds < 15.0f * 60.0f)
+
+        public int getZ(final int index)
         {
-            this.sunlightFactor = 15;
+            return this.z[this.head + index];
         }
-        else if(seconds < 15.0f * 60.0f + secondsForDusk)
+
+        public int getValue(final int index)
         {
-            float brightness = (secondsForDusk + 15.0f * 60.0f - seconds)
-                    / secondsPerLightlevel;
-            this.sunlightFactor = Math.round(brightness) + nightLight;
+            return this.value[this.head + index];
         }
-        else
-            this.sunlightFactor = 4;
-        this.displayListValidTag++;
-    }
 
-    private void setBackgroundColor()
-    {
-        this.backgroundColor.free();
-        this.backgroundColor = getBackgroundColor(this.timeOfDay);
+        public void clear()
+        {
+            this.head = 0;
+            this.tail = 0;
+        }
     }
 
-    private Vector sunPosition = Vector.allocate();
-    private Vector moonPosition = Vector.allocate();
+    /** columns whose sunlight height changed, with the lowest changed y in
+     * the y coordinate and the highest in the value */
+    private final LightQueue sunlightHeightChangeQueue = new LightQueue();
+    /** the blocks whose lighting must be recalculated */
+    private final LightQueue lightingDirtyQueue = new LightQueue();
+    /** blocks whose scattered sunlight went down, with the old value */
+    private final LightQueue scatteredSunlightRemoveQueue = new LightQueue();
+    /** blocks whose non-sun light went down, with the old value */
+    private final LightQueue lightRemoveQueue = new LightQueue();
 
-    private void setSunMoonPosition(final Vector sunPosition,
+    /** records that the block at (<code>x</code>, <code>y</code>,
+     * <code>z</code>) is being replaced, so the light that it passed on can be
+     * removed by the next <code>updateLight</code>
+     * 
+     * @param oldb
+     *            the block being replaced */
+    private void addLightingRemoval(final int x,
+                                    final int y,
+                                    final int z,
+                                    final Block oldb)
+    {
+        this.scatteredSunlightRemoveQueue.add(x,
+                                              y,
+                                              z,
+                                              oldb.getScatteredSunlight());
+        this.lightRemoveQueue.add(x, y, z, oldb.getLight());
+    }
+
+    /** clears the cached lighting arrays that depend on the lighting of the
+     * block at (<code>x</code>, <code>y</code>, <code>z</code>) and
+     * invalidates the chunks they're in */
+    private void lightingChanged(final int x, final int y, final int z)
+    {
+        Chunk lastChunk = null;
+        for(int dx = -1; dx <= 1; dx++)
+        {
+            for(int dy = -1; dy <= 1; dy++)
+            {
+                for(int dz = -1; dz <= 1; dz++)
+                {
+                    int x1 = x + dx;
+                    int y1 = y + dy;
+                    int z1 = z + dz;
+                    int cx = x1 & ~(Chunk.size - 1);
+                    int cy = y1 & ~(Chunk.size - 1);
+                    int cz = z1 & ~(Chunk.size - 1);
+                    Chunk c = find(cx, cy, cz);
+                    if(c == null)
+                        continue;
+                    if(c != lastChunk)
+                    {
+                        c.invalidate();
+                        lastChunk = c;
+                    }
+                    Block b = c.blocks[x1 - cx + Chunk.size
+                            * (y1 - cy + Chunk.size * (z1 - cz))];
+                    if(b != null)
+                        b.setLightingArray(null, this.displayListValidTag);
+                }
+            }
+        }
+    }
+
+    /** the lighting of one chunk, copied so a <code>LightingUpdate</code> can
+     * work on it away from the main thread
+     * 
+     * @author jacob */
+    private static final class LightingChunk
+    {
+        private static final Allocator<LightingChunk> allocator = new Allocator<World.LightingChunk>()
+        {
+            @Override
+            protected LightingChunk allocateInternal()
+            {
+                return new LightingChunk();
+            }
+        };
+        public int ox, oy, oz;
+        /** true if there wasn't a chunk here, so only the land generator's
+         * rock heights are used */
+        public boolean missing;
+        /** the <code>Block.getLightingKey()</code> of each block, or 0 if
+         * there isn't a block */
+        public final byte[] key = new byte[Chunk.size * Chunk.size
+                * Chunk.size];
+        public final byte[] sunlight = new byte[Chunk.size * Chunk.size
+                * Chunk.size];
+        public final byte[] scatteredSunlight = new byte[Chunk.size
+                * Chunk.size * Chunk.size];
+        public final byte[] light = new byte[Chunk.size * Chunk.size
+                * Chunk.size];
+        /** the lighting when this was copied, to find what changed */
+        public final byte[] oldSunlight = new byte[Chunk.size * Chunk.size
+                * Chunk.size];
+        public final byte[] oldScatteredSunlight = new byte[Chunk.size
+                * Chunk.size * Chunk.size];
+        public final byte[] oldLight = new byte[Chunk.size * Chunk.size
+                * Chunk.size];
+        /** the sunlight heights of this chunk's column */
+        public final int[] height = new int[Chunk.size * Chunk.size];
+        /** the land generator's rock heights of this chunk's column, for the
+         * places without blocks */
+        public final int[] rockHeight = new int[Chunk.size * Chunk.size];
+        /** if the chunks around this one were added too */
+        public boolean hasNeighbors;
+        /** the lighting update that this chunk belongs to */
+        public LightingUpdate update;
+        public LightingChunk hashnext, listnext;
+
+        LightingChunk()
+        {
+        }
+
+        public static LightingChunk allocate(final int ox,
+                                             final int oy,
+                                             final int oz)
+        {
+            LightingChunk retval = allocator.allocate();
+            retval.ox = ox;
+            retval.oy = oy;
+            retval.oz = oz;
+            retval.missing = true;
+            retval.hasNeighbors = false;
+            retval.update = null;
+            retval.hashnext = null;
+            retval.listnext = null;
+            return retval;
+        }
+
+        public void free()
+        {
+            this.update = null;
+            this.hashnext = null;
+            this.listnext = null;
+            allocator.free(this);
+        }
+
+        public int getIndex(final int x, final int y, final int z)
+        {
+            return x - this.ox + Chunk.size
+                    * (y - this.oy + Chunk.size * (z - this.oz));
+        }
+
+        public int getColumn(final int x, final int z)
+        {
+            return x - this.ox + Chunk.size * (z - this.oz);
+        }
+    }
+
+    /** a hash table of <code>LightingChunk</code>s by origin, with a list of
+     * all of them
+     * 
+     * @author jacob */
+    private static final class LightingChunkTable
+    {
+        private LightingChunk[] table = new LightingChunk[64];
+        private int count = 0;
+        /** every chunk in this table, linked by <code>listnext</code> */
+        public LightingChunk head = null;
+        private LightingChunk lastChunk = null;
+
+        public LightingChunkTable()
+        {
+        }
+
+        private static int hash(final int ox, final int oy, final int oz)
+        {
+            int shift = Integer.numberOfTrailingZeros(Chunk.size);
+            long hash = ((((long)(ox >> shift)) * 0x9E3779B97F4A7C15L) ^ (oy >> shift))
+                    * 0x9E3779B97F4A7C15L ^ (oz >> shift);
+            return (int)((hash * 0x9E3779B97F4A7C15L) >>> 32);
+        }
+
+        /** @return the chunk with the origin (<code>ox</code>,
+         *         <code>oy</code>, <code>oz</code>) or <code>null</code> */
+        public LightingChunk find(final int ox, final int oy, final int oz)
+        {
+            LightingChunk c = this.lastChunk;
+            if(c != null && c.ox == ox && c.oy == oy && c.oz == oz)
+                return c;
+            c = this.table[hash(ox, oy, oz) & (this.table.length - 1)];
+            while(c != null)
+            {
+                if(c.ox == ox && c.oy == oy && c.oz == oz)
+                {
+                    this.lastChunk = c;
+                    return c;
+                }
+                c = c.hashnext;
+            }
+            return null;
+        }
+
+        public void insert(final LightingChunk c)
+        {
+            if(this.count >= this.table.length)
+            {
+                LightingChunk[] oldTable = this.table;
+                this.table = new LightingChunk[oldTable.length * 2];
+                for(int i = 0; i < oldTable.length; i++)
+                {
+                    for(LightingChunk node = oldTable[i], nextNode = (node != null ? node.hashnext
+                            : null); node != null; node = nextNode, nextNode = (node != null ? node.hashnext
+                            : null))
+                    {
+                        int hash = hash(node.ox, node.oy, node.oz)
+                                & (this.table.length - 1);
+                        node.hashnext = this.table[hash];
+                        this.table[hash] = node;
+                    }
+                }
+            }
+            int hash = hash(c.ox, c.oy, c.oz) & (this.table.length - 1);
+            c.hashnext = this.table[hash];
+            this.table[hash] = c;
+            c.listnext = this.head;
+            this.head = c;
+            this.count++;
+        }
+
+        public int getCount()
+        {
+            return this.count;
+        }
+
+        /** removes all the chunks without freeing them
+         * 
+         * @return the list of the removed chunks, linked by
+         *         <code>listnext</code> */
+        public LightingChunk removeAll()
+        {
+            LightingChunk retval = this.head;
+            for(int i = 0; i < this.table.length; i++)
+                this.table[i] = null;
+            this.head = null;
+            this.lastChunk = null;
+            this.count = 0;
+            return retval;
+        }
+
+        /** removes and frees all the chunks */
+        public void clear()
+        {
+            for(LightingChunk c = removeAll(), nextChunk = (c != null ? c.listnext
+                    : null); c != null; c = nextChunk, nextChunk = (c != null ? c.listnext
+                    : null))
+            {
+                c.free();
+            }
+        }
+    }
+
+    /** brings the lighting of a group of chunks up to date on a lighting
+     * thread, working on copies of the chunks. the direct sunlight is
+     * recalculated down each column, then the scattered sunlight and the
+     * non-sun light are flood filled. only the chunks in <code>chunks</code>
+     * are read or written: work that would reach past them is put in the
+     * spill queues for the next update, and the main thread copies the
+     * results back a chunk at a time.
+     * 
+     * @author jacob */
+    private static final class LightingUpdate implements Runnable
+    {
+        private static final Allocator<LightingUpdate> allocator = new Allocator<World.LightingUpdate>()
+        {
+            @Override
+            protected LightingUpdate allocateInternal()
+            {
+                return new LightingUpdate();
+            }
+        };
+        /** returned by the getters for blocks that aren't in
+         * <code>chunks</code> */
+        private static final int OUTSIDE = Integer.MIN_VALUE;
+        public final LightingChunkTable chunks = new LightingChunkTable();
+        public final LightQueue sunlightHeightChanges = new LightQueue();
+        public final LightQueue dirty = new LightQueue();
+        public final LightQueue scatteredSunlightRemoves = new LightQueue();
+        public final LightQueue lightRemoves = new LightQueue();
+        private final LightQueue addQueue = new LightQueue();
+        private final LightQueue reseedQueue = new LightQueue();
+        /** blocks past <code>chunks</code> or next to it that must be
+         * recalculated by the next update */
+        public final LightQueue spillDirty = new LightQueue();
+        public final LightQueue spillScatteredSunlightRemoves = new LightQueue();
+        public final LightQueue spillLightRemoves = new LightQueue();
+        private BlockingQueue<LightingUpdate> completionQueue = null;
+        /** the number of blocks looked at */
+        public long processedCount = 0;
+        /** the number of times that a block's lighting changed */
+        public long changedCount = 0;
+
+        LightingUpdate()
+        {
+        }
+
+        public static LightingUpdate
+            allocate(final BlockingQueue<LightingUpdate> completionQueue)
+        {
+            LightingUpdate retval = allocator.allocate();
+            retval.completionQueue = completionQueue;
+            return retval;
+        }
+
+        public void free()
+        {
+            this.chunks.clear();
+            this.sunlightHeightChanges.clear();
+            this.dirty.clear();
+            this.scatteredSunlightRemoves.clear();
+            this.lightRemoves.clear();
+            this.addQueue.clear();
+            this.reseedQueue.clear();
+            this.spillDirty.clear();
+            this.spillScatteredSunlightRemoves.clear();
+            this.spillLightRemoves.clear();
+            this.completionQueue = null;
+            this.processedCount = 0;
+            this.changedCount = 0;
+            allocator.free(this);
+        }
+
+        private LightingChunk getChunk(final int x, final int y, final int z)
+        {
+            return this.chunks.find(x & ~(Chunk.size - 1),
+                                    y & ~(Chunk.size - 1),
+                                    z & ~(Chunk.size - 1));
+        }
+
+        private static int getMissingLight(final LightingChunk c,
+                                           final boolean scattered,
+                                           final int x,
+                                           final int y,
+                                           final int z)
+        {
+            if(!scattered)
+                return 0;
+            if(y > c.rockHeight[c.getColumn(x, z)])
+                return Math.min(15, 15 + (y - Rand.WaterHeight) * 3);
+            return 0;
+        }
+
+        /** @return the direct sunlight at (<code>x</code>, <code>y</code>,
+         *         <code>z</code>) or <code>OUTSIDE</code>
+         * @see World#GetSunlight(int x, int y, int z) */
+        private int getSunlight(final int x, final int y, final int z)
+        {
+            if(y < -Depth)
+                return 0;
+            if(y >= Height)
+                return 15;
+            LightingChunk c = getChunk(x, y, z);
+            if(c == null)
+                return OUTSIDE;
+            if(!c.missing && y > c.height[c.getColumn(x, z)])
+                return 15;
+            int index = c.getIndex(x, y, z);
+            if(c.missing || c.key[index] == 0)
+                return getMissingLight(c, true, x, y, z);
+            return c.sunlight[index];
+        }
+
+        /** @return the scattered sunlight or the non-sun light at
+         *         (<code>x</code>, <code>y</code>, <code>z</code>) or
+         *         <code>OUTSIDE</code> */
+        private int getLightChannel(final boolean scattered,
+                                    final int x,
+                                    final int y,
+                                    final int z)
+        {
+            if(y < -Depth)
+                return 0;
+            if(y >= Height)
+                return scattered ? 15 : 0;
+            LightingChunk c = getChunk(x, y, z);
+            if(c == null)
+                return OUTSIDE;
+            int index = c.getIndex(x, y, z);
+            if(c.missing || c.key[index] == 0)
+                return getMissingLight(c, scattered, x, y, z);
+            if(scattered)
+                return c.scatteredSunlight[index];
+            return c.light[index];
+        }
+
+        private void setLightChannel(final LightingChunk c,
+                                     final boolean scattered,
+                                     final int index,
+                                     final int value)
+        {
+            this.changedCount++;
+            if(scattered)
+                c.scatteredSunlight[index] = (byte)value;
+            else
+                c.light[index] = (byte)value;
+        }
+
+        /** @return the lighting key at (<code>x</code>, <code>y</code>,
+         *         <code>z</code>), 0 if there isn't a block, or
+         *         <code>OUTSIDE</code> */
+        private int getKey(final int x, final int y, final int z)
+        {
+            if(y < -Depth || y >= Height)
+                return 0;
+            LightingChunk c = getChunk(x, y, z);
+            if(c == null)
+                return OUTSIDE;
+            if(c.missing)
+                return 0;
+            return c.key[c.getIndex(x, y, z)];
+        }
+
+        /** @return the light that the block with <code>key</code> at
+         *         (<code>x</code>, <code>y</code>, <code>z</code>) gets when
+         *         the brightest neighbor has <code>neighborValue</code> */
+        private int calcLightChannel(final int key,
+                                     final boolean scattered,
+                                     final int x,
+                                     final int y,
+                                     final int z,
+                                     final int neighborValue)
+        {
+            int value = Math.max(0, neighborValue - 1);
+            if(!scattered)
+                return Block.filterLightForKey(key, value);
+            int sunlight = getSunlight(x, y + 1, z);
+            if(sunlight == OUTSIDE)
+            {
+                this.spillDirty.add(x, y, z, 0);
+                sunlight = 0;
+            }
+            return Block.filterScatteredSunlightForKey(key, sunlight, value);
+        }
+
+        private int getMaxNeighborLight(final boolean scattered,
+                                        final int x,
+                                        final int y,
+                                        final int z)
+        {
+            int retval = 0;
+            for(int orientation = 0; orientation < 6; orientation++)
+            {
+                int value = getLightChannel(scattered,
+                                            x + Block.getOrientationDX(orientation),
+                                            y + Block.getOrientationDY(orientation),
+                                            z + Block.getOrientationDZ(orientation));
+                if(value == OUTSIDE)
+                {
+                    this.spillDirty.add(x, y, z, 0);
+                    continue;
+                }
+                retval = Math.max(retval, value);
+            }
+            return retval;
+        }
+
+        /** recalculates the stored direct sunlight. the blocks that moved
+         * below the sunlight height of their column are rewritten, then the
+         * direct sunlight is recalculated down the columns of the dirty blocks
+         * that are below the sunlight height. every block whose direct
+         * sunlight above it could have changed is added to <code>dirty</code>
+         * because its scattered sunlight depends on it. */
+        private void updateSunlight()
+        {
+            LightQueue changes = this.sunlightHeightChanges;
+            LightQueue dirty = this.dirty;
+            while(changes.remove())
+            {
+                int x = changes.curX, z = changes.curZ;
+                int minY = changes.curY, maxY = changes.curValue;
+                for(int y = Math.min(maxY, Height - 1); y >= minY
+                        && y >= -Depth; y--)
+                {
+                    dirty.add(x, y, z, 0);
+                    LightingChunk c = getChunk(x, y, z);
+                    if(c == null || c.missing)
+                        continue;
+                    if(y > c.height[c.getColumn(x, z)])
+                        continue;
+                    int index = c.getIndex(x, y, z);
+                    int key = c.key[index];
+                    if(key == 0)
+                        continue;
+                    int sunlight = getSunlight(x, y + 1, z);
+                    if(sunlight == OUTSIDE)
+                        continue;
+                    this.processedCount++;
+                    this.changedCount++;
+                    c.sunlight[index] = (byte)Block.filterSunlightForKey(key,
+                                                                         sunlight);
+                }
+                dirty.add(x, minY - 1, z, 0);
+            }
+            int dirtyCount = dirty.size();
+            for(int i = 0; i < dirtyCount; i++)
+            {
+                int x = dirty.getX(i), y = dirty.getY(i), z = dirty.getZ(i);
+                for(int y1 = y; y1 >= -Depth; y1--)
+                {
+                    LightingChunk c = getChunk(x, y1, z);
+                    if(c == null)
+                    {
+                        this.spillDirty.add(x, y1, z, 0);
+                        break;
+                    }
+                    if(c.missing)
+                        break;
+                    if(y1 > c.height[c.getColumn(x, z)])
+                        break;
+                    int index = c.getIndex(x, y1, z);
+                    int key = c.key[index];
+                    if(key == 0)
+                        break;
+                    if(y1 != y)
+                        dirty.add(x, y1, z, 0);
+                    int sunlight = getSunlight(x, y1 + 1, z);
+                    if(sunlight == OUTSIDE)
+                    {
+                        this.spillDirty.add(x, y1, z, 0);
+                        break;
+                    }
+                    int newSunlight = Block.filterSunlightForKey(key, sunlight);
+                    this.processedCount++;
+                    if(newSunlight == c.sunlight[index])
+                        break;
+                    this.changedCount++;
+                    c.sunlight[index] = (byte)newSunlight;
+                }
+            }
+        }
+
+        /** brings the scattered sunlight or the non-sun light up to date with
+         * breadth-first flood fills: first every block that could have gotten
+         * its light from a block in <code>removeQueue</code> is reset, then
+         * light is spread from the remaining lit blocks.
+         * 
+         * @param scattered
+         *            if this updates the scattered sunlight instead of the
+         *            non-sun light
+         * @param removeQueue
+         *            blocks whose light went down, with the old value
+         * @param spillRemoveQueue
+         *            where to put the entries of <code>removeQueue</code> that
+         *            reach past <code>chunks</code> */
+        private void propagateLight(final boolean scattered,
+                                    final LightQueue removeQueue,
+                                    final LightQueue spillRemoveQueue)
+        {
+            LightQueue dirty = this.dirty;
+            LightQueue addQueue = this.addQueue;
+            LightQueue reseedQueue = this.reseedQueue;
+            for(int i = 0; i < dirty.size(); i++)
+            {
+                int x = dirty.getX(i), y = dirty.getY(i), z = dirty.getZ(i);
+                LightingChunk c = getChunk(x, y, z);
+                if(c == null || c.missing)
+                    continue;
+                int index = c.getIndex(x, y, z);
+                int key = c.key[index];
+                if(key == 0)
+                    continue;
+                this.processedCount++;
+                int curValue = scattered ? c.scatteredSunlight[index]
+                        : c.light[index];
+                int newValue = calcLightChannel(key,
+                                                scattered,
+                                                x,
+                                                y,
+                                                z,
+                                                getMaxNeighborLight(scattered,
+                                                                    x,
+                                                                    y,
+                                                                    z));
+                if(newValue > curValue)
+                {
+                    setLightChannel(c, scattered, index, newValue);
+                    addQueue.add(x, y, z, 0);
+                }
+                else if(newValue < curValue)
+                {
+                    setLightChannel(c,
+                                    scattered,
+                                    index,
+                                    calcLightChannel(key, scattered, x, y, z, 0));
+                    removeQueue.add(x, y, z, curValue);
+                    reseedQueue.add(x, y, z, 0);
+                }
+            }
+            while(removeQueue.remove())
+            {
+                int x = removeQueue.curX, y = removeQueue.curY, z = removeQueue.curZ;
+                int oldValue = removeQueue.curValue;
+                for(int orientation = 0; orientation < 6; orientation++)
+                {
+                    int x1 = x + Block.getOrientationDX(orientation);
+                    int y1 = y + Block.getOrientationDY(orientation);
+                    int z1 = z + Block.getOrientationDZ(orientation);
+                    int key = getKey(x1, y1, z1);
+                    if(key == OUTSIDE)
+                    {
+                        spillRemoveQueue.add(x, y, z, oldValue);
+                        continue;
+                    }
+                    if(key == 0)
+                        continue;
+                    LightingChunk c = getChunk(x1, y1, z1);
+                    int index = c.getIndex(x1, y1, z1);
+                    this.processedCount++;
+                    int curValue = scattered ? c.scatteredSunlight[index]
+                            : c.light[index];
+                    if(curValue >= oldValue)
+                    {
+                        addQueue.add(x1, y1, z1, 0);
+                        continue;
+                    }
+                    int baseValue = calcLightChannel(key,
+                                                     scattered,
+                                                     x1,
+                                                     y1,
+                                                     z1,
+                                                     0);
+                    if(curValue <= baseValue)
+                        continue;
+                    setLightChannel(c, scattered, index, baseValue);
+                    removeQueue.add(x1, y1, z1, curValue);
+                    reseedQueue.add(x1, y1, z1, 0);
+                }
+            }
+            while(reseedQueue.remove())
+            {
+                int x = reseedQueue.curX, y = reseedQueue.curY, z = reseedQueue.curZ;
+                LightingChunk c = getChunk(x, y, z);
+                int index = c.getIndex(x, y, z);
+                int key = c.key[index];
+                this.processedCount++;
+                int newValue = calcLightChannel(key,
+                                                scattered,
+                                                x,
+                                                y,
+                                                z,
+                                                getMaxNeighborLight(scattered,
+                                                                    x,
+                                                                    y,
+                                                                    z));
+                if(newValue > (scattered ? c.scatteredSunlight[index]
+                        : c.light[index]))
+                {
+                    setLightChannel(c, scattered, index, newValue);
+                    addQueue.add(x, y, z, 0);
+                }
+            }
+            while(addQueue.remove())
+            {
+                int x = addQueue.curX, y = addQueue.curY, z = addQueue.curZ;
+                int value = getLightChannel(scattered, x, y, z);
+                for(int orientation = 0; orientation < 6; orientation++)
+                {
+                    int x1 = x + Block.getOrientationDX(orientation);
+                    int y1 = y + Block.getOrientationDY(orientation);
+                    int z1 = z + Block.getOrientationDZ(orientation);
+                    int key = getKey(x1, y1, z1);
+                    if(key == OUTSIDE)
+                    {
+                        this.spillDirty.add(x1, y1, z1, 0);
+                        continue;
+                    }
+                    if(key == 0)
+                        continue;
+                    LightingChunk c = getChunk(x1, y1, z1);
+                    int index = c.getIndex(x1, y1, z1);
+                    this.processedCount++;
+                    int newValue = calcLightChannel(key,
+                                                    scattered,
+                                                    x1,
+                                                    y1,
+                                                    z1,
+                                                    value);
+                    if(newValue > (scattered ? c.scatteredSunlight[index]
+                            : c.light[index]))
+                    {
+                        setLightChannel(c, scattered, index, newValue);
+                        addQueue.add(x1, y1, z1, 0);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                updateSunlight();
+                propagateLight(true,
+                               this.scatteredSunlightRemoves,
+                               this.spillScatteredSunlightRemoves);
+                propagateLight(false,
+                               this.lightRemoves,
+                               this.spillLightRemoves);
+            }
+            finally
+            {
+                this.completionQueue.add(this);
+            }
+        }
+    }
+
+    private static final int lightingThreadCount = Math.max(1,
+                                                            Runtime.getRuntime()
+                                                                   .availableProcessors() - 1);
+    private static final ExecutorService lightingPool = new ThreadPoolExecutor(lightingThreadCount,
+                                                                               lightingThreadCount,
+                                                                               0,
+                                                                               TimeUnit.SECONDS,
+                                                                               new LinkedBlockingQueue<Runnable>(),
+                                                                               new ThreadFactory()
+                                                                               {
+                                                                                   @Override
+                                                                                   public Thread
+                                                                                       newThread(final Runnable r)
+                                                                                   {
+                                                                                       Thread retval = new Thread(r,
+                                                                                                                  "Lighting");
+                                                                                       retval.setDaemon(true);
+                                                                                       return retval;
+                                                                                   }
+                                                                               });
+    private final BlockingQueue<LightingUpdate> lightingCompletionQueue = new LinkedBlockingQueue<LightingUpdate>();
+    /** the lighting updates that were started and haven't been applied yet.
+     * a new group is only started when these are all applied, so the chunks
+     * of running updates never overlap. */
+    private int runningLightingUpdateCount = 0;
+    /** the chunks that the queued lighting work could change while the
+     * lighting updates are being made */
+    private final LightingChunkTable lightingChunks = new LightingChunkTable();
+    private LightingUpdate[] lightingUpdates = new LightingUpdate[16];
+    private int lightingUpdateCount = 0;
+    private int[] lightingPaletteKeys = new int[16];
+
+    /** adds the chunk containing (<code>x</code>, <code>y</code>,
+     * <code>z</code>) and the chunks around it to <code>lightingChunks</code> */
+    private void addLightingChunks(final int x, final int y, final int z)
+    {
+        int cx = x & ~(Chunk.size - 1);
+        int cy = y & ~(Chunk.size - 1);
+        int cz = z & ~(Chunk.size - 1);
+        LightingChunk c = this.lightingChunks.find(cx, cy, cz);
+        if(c != null && c.hasNeighbors)
+            return;
+        for(int dx = -1; dx <= 1; dx++)
+        {
+            for(int dy = -1; dy <= 1; dy++)
+            {
+                for(int dz = -1; dz <= 1; dz++)
+                {
+                    int ox = cx + dx * Chunk.size;
+                    int oy = cy + dy * Chunk.size;
+                    int oz = cz + dz * Chunk.size;
+                    if(this.lightingChunks.find(ox, oy, oz) == null)
+                        this.lightingChunks.insert(LightingChunk.allocate(ox,
+                                                                          oy,
+                                                                          oz));
+                }
+            }
+        }
+        this.lightingChunks.find(cx, cy, cz).hasNeighbors = true;
+    }
+
+    /** copies the lighting of the chunk at the origin of <code>lc</code>
+     * into it */
+    private void copyLightingChunk(final LightingChunk lc)
+    {
+        final int blockCount = Chunk.size * Chunk.size * Chunk.size;
+        boolean inWorld = lc.oy + Chunk.size > -Depth && lc.oy < Height;
+        Chunk c = null;
+        if(inWorld)
+            c = find(lc.ox, lc.oy, lc.oz);
+        lc.missing = c == null;
+        boolean needRockHeight = lc.missing && inWorld;
+        if(c != null)
+        {
+            System.arraycopy(c.sunlightColumn.height,
+                             0,
+                             lc.height,
+                             0,
+                             lc.height.length);
+            if(this.lightingPaletteKeys.length < c.paletteSize)
+                this.lightingPaletteKeys = new int[c.paletteSize * 2];
+            int[] paletteKeys = this.lightingPaletteKeys;
+            for(int i = 1; i < c.paletteSize; i++)
+                paletteKeys[i] = c.palette[i].getLightingKey();
+            for(int i = 0; i < blockCount; i++)
+            {
+                Block b = c.blocks[i];
+                if(b != null)
+                {
+                    lc.key[i] = (byte)b.getLightingKey();
+                    lc.sunlight[i] = (byte)b.getSunlight();
+                    lc.scatteredSunlight[i] = (byte)b.getScatteredSunlight();
+                    lc.light[i] = (byte)b.getLight();
+                    continue;
+                }
+                int paletteIndex = c.getPaletteIndex(i);
+                if(paletteIndex == 0)
+                {
+                    lc.key[i] = 0;
+                    lc.sunlight[i] = 0;
+                    lc.scatteredSunlight[i] = 0;
+                    lc.light[i] = 0;
+                    needRockHeight = true;
+                    continue;
+                }
+                lc.key[i] = (byte)paletteKeys[paletteIndex];
+                lc.sunlight[i] = (byte)Chunk.getNibble(c.sunlight, i);
+                lc.scatteredSunlight[i] = (byte)Chunk.getNibble(c.scatteredSunlight,
+                                                                i);
+                lc.light[i] = (byte)Chunk.getNibble(c.light, i);
+            }
+            System.arraycopy(lc.sunlight, 0, lc.oldSunlight, 0, blockCount);
+            System.arraycopy(lc.scatteredSunlight,
+                             0,
+                             lc.oldScatteredSunlight,
+                             0,
+                             blockCount);
+            System.arraycopy(lc.light, 0, lc.oldLight, 0, blockCount);
+        }
+        if(needRockHeight)
+        {
+            SunlightColumn column = c != null ? c.sunlightColumn
+                    : findOrInsertSunlightColumn(lc.ox, lc.oz);
+            System.arraycopy(column.rockHeight,
+                             0,
+                             lc.rockHeight,
+                             0,
+                             lc.rockHeight.length);
+        }
+    }
+
+    private static int getLightingChunkOrigin(final int v)
+    {
+        return v & ~(Chunk.size - 1);
+    }
+
+    private LightingUpdate getLightingUpdate(final int x,
+                                             final int y,
+                                             final int z)
+    {
+        return this.lightingChunks.find(getLightingChunkOrigin(x),
+                                        getLightingChunkOrigin(y),
+                                        getLightingChunkOrigin(z)).update;
+    }
+
+    /** moves the queued lighting work into new lighting updates in
+     * <code>lightingUpdates</code>, one for each group of chunks that touch
+     * each other and that the work could change
+     * 
+     * @return the number of lighting updates made */
+    private int makeLightingUpdates()
+    {
+        LightQueue dirty = this.lightingDirtyQueue;
+        EvalNode node = removeAllEvalNodes(EvalType.Lighting);
+        boolean enabled = !(PlayerList.PlayerCount > 0 && !Main.isServer);
+        while(node != null)
+        {
+            if(enabled)
+                dirty.add(node.x, node.y, node.z, 0);
+            EvalNode freeMe = node;
+            node = node.listnext;
+            freeMe.free();
+        }
+        LightQueue heightChanges = this.sunlightHeightChangeQueue;
+        LightQueue scatteredSunlightRemoves = this.scatteredSunlightRemoveQueue;
+        LightQueue lightRemoves = this.lightRemoveQueue;
+        this.lightingUpdateCount = 0;
+        if(!enabled)
+        {
+            dirty.clear();
+            heightChanges.clear();
+            scatteredSunlightRemoves.clear();
+            lightRemoves.clear();
+            return 0;
+        }
+        int queueDepth = dirty.size() + heightChanges.size()
+                + scatteredSunlightRemoves.size() + lightRemoves.size();
+        if(queueDepth == 0)
+            return 0;
+        this.lightingMetrics.lastQueueDepth = queueDepth;
+        LightingMetrics.addToHistogram(this.lightingMetrics.queueDepthHistogram,
+                                       queueDepth);
+        for(int i = 0; i < dirty.size(); i++)
+            addLightingChunks(dirty.getX(i), dirty.getY(i), dirty.getZ(i));
+        for(int i = 0; i < scatteredSunlightRemoves.size(); i++)
+            addLightingChunks(scatteredSunlightRemoves.getX(i),
+                              scatteredSunlightRemoves.getY(i),
+                              scatteredSunlightRemoves.getZ(i));
+        for(int i = 0; i < lightRemoves.size(); i++)
+            addLightingChunks(lightRemoves.getX(i),
+                              lightRemoves.getY(i),
+                              lightRemoves.getZ(i));
+        for(int i = 0; i < heightChanges.size(); i++)
+        {
+            int x = heightChanges.getX(i), z = heightChanges.getZ(i);
+            int minY = Math.max(heightChanges.getY(i) - 1, -Depth - 1);
+            int maxY = Math.max(Math.min(heightChanges.getValue(i),
+                                         Height - 1), minY);
+            for(int y = getLightingChunkOrigin(maxY); y >= getLightingChunkOrigin(minY); y -= Chunk.size)
+            {
+                addLightingChunks(x, y, z);
+            }
+        }
+        // group the chunks that touch each other
+        for(LightingChunk c = this.lightingChunks.head; c != null; c = c.listnext)
+        {
+            if(c.update != null)
+                continue;
+            if(this.lightingUpdateCount >= this.lightingUpdates.length)
+            {
+                LightingUpdate[] newUpdates = new LightingUpdate[this.lightingUpdates.length * 2];
+                System.arraycopy(this.lightingUpdates,
+                                 0,
+                                 newUpdates,
+                                 0,
+                                 this.lightingUpdateCount);
+                this.lightingUpdates = newUpdates;
+            }
+            LightingUpdate update = LightingUpdate.allocate(this.lightingCompletionQueue);
+            this.lightingUpdates[this.lightingUpdateCount++] = update;
+            c.update = update;
+            LightQueue stack = update.addQueue;
+            stack.add(c.ox, c.oy, c.oz, 0);
+            while(stack.remove())
+            {
+                int ox = stack.curX, oy = stack.curY, oz = stack.curZ;
+                for(int dx = -1; dx <= 1; dx++)
+                {
+                    for(int dy = -1; dy <= 1; dy++)
+                    {
+                        for(int dz = -1; dz <= 1; dz++)
+                        {
+                            LightingChunk c2 = this.lightingChunks.find(ox
+                                    + dx * Chunk.size, oy + dy * Chunk.size, oz
+                                    + dz * Chunk.size);
+                            if(c2 == null || c2.update != null)
+                                continue;
+                            c2.update = update;
+                            stack.add(c2.ox, c2.oy, c2.oz, 0);
+                        }
+                    }
+                }
+            }
+        }
+        for(int i = 0; i < dirty.size(); i++)
+        {
+            int x = dirty.getX(i), y = dirty.getY(i), z = dirty.getZ(i);
+            getLightingUpdate(x, y, z).dirty.add(x, y, z, 0);
+        }
+        for(int i = 0; i < scatteredSunlightRemoves.size(); i++)
+        {
+            int x = scatteredSunlightRemoves.getX(i);
+            int y = scatteredSunlightRemoves.getY(i);
+            int z = scatteredSunlightRemoves.getZ(i);
+            getLightingUpdate(x, y, z).scatteredSunlightRemoves.add(x,
+                                                                    y,
+                                                                    z,
+                                                                    scatteredSunlightRemoves.getValue(i));
+        }
+        for(int i = 0; i < lightRemoves.size(); i++)
+        {
+            int x = lightRemoves.getX(i);
+            int y = lightRemoves.getY(i);
+            int z = lightRemoves.getZ(i);
+            getLightingUpdate(x, y, z).lightRemoves.add(x,
+                                                        y,
+                                                        z,
+                                                        lightRemoves.getValue(i));
+        }
+        for(int i = 0; i < heightChanges.size(); i++)
+        {
+            int x = heightChanges.getX(i), z = heightChanges.getZ(i);
+            int minY = heightChanges.getY(i);
+            int maxY = heightChanges.getValue(i);
+            getLightingUpdate(x,
+                              Math.max(Math.min(maxY, Height - 1),
+                                       Math.max(minY - 1, -Depth - 1)),
+                              z).sunlightHeightChanges.add(x, minY, z, maxY);
+        }
+        dirty.clear();
+        heightChanges.clear();
+        scatteredSunlightRemoves.clear();
+        lightRemoves.clear();
+        for(LightingChunk c = this.lightingChunks.removeAll(), nextChunk = (c != null ? c.listnext
+                : null); c != null; c = nextChunk, nextChunk = (c != null ? c.listnext
+                : null))
+        {
+            copyLightingChunk(c);
+            c.update.chunks.insert(c);
+        }
+        return this.lightingUpdateCount;
+    }
+
+    /** copies the lighting calculated by <code>update</code> back into the
+     * chunks and queues the work that it handed on, then frees it */
+    private void applyLightingUpdate(final LightingUpdate update)
+    {
+        final int blockCount = Chunk.size * Chunk.size * Chunk.size;
+        for(LightingChunk lc = update.chunks.head; lc != null; lc = lc.listnext)
+        {
+            if(lc.missing)
+                continue;
+            Chunk c = find(lc.ox, lc.oy, lc.oz);
+            if(c == null)
+                continue;
+            for(int i = 0; i < blockCount; i++)
+            {
+                boolean sunlightChanged = lc.sunlight[i] != lc.oldSunlight[i];
+                boolean scatteredSunlightChanged = lc.scatteredSunlight[i] != lc.oldScatteredSunlight[i];
+                boolean lightChanged = lc.light[i] != lc.oldLight[i];
+                if(!sunlightChanged && !scatteredSunlightChanged
+                        && !lightChanged)
+                    continue;
+                if(!c.hasBlock(i))
+                    continue;
+                if(sunlightChanged)
+                    c.setSunlight(i, lc.sunlight[i]);
+                if(scatteredSunlightChanged)
+                    c.setScatteredSunlight(i, lc.scatteredSunlight[i]);
+                if(lightChanged)
+                    c.setLight(i, lc.light[i]);
+                if(scatteredSunlightChanged || lightChanged)
+                {
+                    int x = i % Chunk.size;
+                    int y = i / Chunk.size % Chunk.size;
+                    int z = i / (Chunk.size * Chunk.size);
+                    lightingChanged(x + lc.ox, y + lc.oy, z + lc.oz);
+                }
+            }
+        }
+        LightingMetrics metrics = this.lightingMetrics;
+        metrics.updateCount++;
+        metrics.processedCount += update.processedCount;
+        metrics.changedCount += update.changedCount;
+        metrics.spillCount += update.spillDirty.size()
+                + update.spillScatteredSunlightRemoves.size()
+                + update.spillLightRemoves.size();
+        LightQueue spill = update.spillDirty;
+        for(int i = 0; i < spill.size(); i++)
+            this.lightingDirtyQueue.add(spill.getX(i),
+                                        spill.getY(i),
+                                        spill.getZ(i),
+                                        0);
+        spill = update.spillScatteredSunlightRemoves;
+        for(int i = 0; i < spill.size(); i++)
+            this.scatteredSunlightRemoveQueue.add(spill.getX(i),
+                                                  spill.getY(i),
+                                                  spill.getZ(i),
+                                                  spill.getValue(i));
+        spill = update.spillLightRemoves;
+        for(int i = 0; i < spill.size(); i++)
+            this.lightRemoveQueue.add(spill.getX(i),
+                                      spill.getY(i),
+                                      spill.getZ(i),
+                                      spill.getValue(i));
+        update.free();
+    }
+
+    /** applies the lighting updates that finished
+     * 
+     * @param wait
+     *            if this waits for all the running lighting updates to finish */
+    private void applyLightingUpdates(final boolean wait)
+    {
+        while(this.runningLightingUpdateCount > 0)
+        {
+            LightingUpdate update;
+            if(wait)
+            {
+                try
+                {
+                    update = this.lightingCompletionQueue.take();
+                }
+                catch(InterruptedException e)
+                {
+                    continue;
+                }
+            }
+            else
+            {
+                update = this.lightingCompletionQueue.poll();
+                if(update == null)
+                    return;
+            }
+            this.runningLightingUpdateCount--;
+            applyLightingUpdate(update);
+        }
+    }
+
+    /** starts the lighting updates in <code>lightingUpdates</code> on the
+     * lighting threads */
+    private void startLightingUpdates()
+    {
+        for(int i = 0; i < this.lightingUpdateCount; i++)
+        {
+            this.runningLightingUpdateCount++;
+            lightingPool.execute(this.lightingUpdates[i]);
+            this.lightingUpdates[i] = null;
+        }
+        this.lightingUpdateCount = 0;
+    }
+
+    /** recalculates the lighting of the blocks invalidated since the last
+     * call, so the lighting is up to date when this returns */
+    void updateLight()
+    {
+        applyLightingUpdates(true);
+        while(makeLightingUpdates() > 0)
+        {
+            if(this.lightingUpdateCount == 1)
+            {
+                this.runningLightingUpdateCount++;
+                this.lightingUpdates[0].run();
+                this.lightingUpdates[0] = null;
+                this.lightingUpdateCount = 0;
+            }
+            else
+                startLightingUpdates();
+            applyLightingUpdates(true);
+        }
+        checkLightingConverged();
+    }
+
+    /** applies the lighting updates that finished and starts calculating the
+     * lighting of the blocks invalidated since then on the lighting threads,
+     * without waiting for them */
+    void updateLightInBackground()
+    {
+        applyLightingUpdates(false);
+        if(this.runningLightingUpdateCount > 0)
+            return;
+        makeLightingUpdates();
+        startLightingUpdates();
+        checkLightingConverged();
+    }
+
+    private final LightingMetrics lightingMetrics = new LightingMetrics();
+    private long lightingFrame = 0;
+    /** the frame that the lighting started changing in, or -1 if it's
+     * settled */
+    private long lightingBusyStartFrame = -1;
+    private long lightingBusyStartTime = 0;
+    private long lightingFrameStartProcessedCount = 0;
+    private long lightingFrameStartChangedCount = 0;
+
+    /** records how long the lighting took to settle if there's nothing left
+     * to do, or starts timing it if it started changing */
+    private void checkLightingConverged()
+    {
+        boolean busy = this.runningLightingUpdateCount > 0
+                || this.evalNodeListHead[EvalType.Lighting.ordinal()] != null
+                || this.lightingDirtyQueue.size() > 0
+                || this.sunlightHeightChangeQueue.size() > 0
+                || this.scatteredSunlightRemoveQueue.size() > 0
+                || this.lightRemoveQueue.size() > 0;
+        if(busy)
+        {
+            if(this.lightingBusyStartFrame < 0)
+            {
+                this.lightingBusyStartFrame = this.lightingFrame;
+                this.lightingBusyStartTime = System.nanoTime();
+            }
+            return;
+        }
+        if(this.lightingBusyStartFrame < 0)
+            return;
+        LightingMetrics metrics = this.lightingMetrics;
+        metrics.convergeCount++;
+        metrics.lastFramesToConverge = (int)(this.lightingFrame - this.lightingBusyStartFrame);
+        metrics.lastConvergeTime = (System.nanoTime() - this.lightingBusyStartTime) * 1e-9;
+        metrics.maxConvergeTime = Math.max(metrics.maxConvergeTime,
+                                           metrics.lastConvergeTime);
+        LightingMetrics.addToHistogram(metrics.framesToConvergeHistogram,
+                                       metrics.lastFramesToConverge);
+        this.lightingBusyStartFrame = -1;
+    }
+
+    /** records the lighting work done this frame and shows it in the debug
+     * overlay */
+    private void finishLightingFrame()
+    {
+        LightingMetrics metrics = this.lightingMetrics;
+        metrics.lastFrameProcessedCount = metrics.processedCount
+                - this.lightingFrameStartProcessedCount;
+        metrics.lastFrameChangedCount = metrics.changedCount
+                - this.lightingFrameStartChangedCount;
+        this.lightingFrameStartProcessedCount = metrics.processedCount;
+        this.lightingFrameStartChangedCount = metrics.changedCount;
+        LightingMetrics.addToHistogram(metrics.processedPerFrameHistogram,
+                                       metrics.lastFrameProcessedCount);
+        this.lightingFrame++;
+        if(Main.DEBUG)
+            Main.addToFrameText("Lighting : " + metrics.lastQueueDepth
+                    + " queued, " + this.runningLightingUpdateCount
+                    + " running, " + metrics.lastFrameProcessedCount
+                    + " processed, " + metrics.lastFrameChangedCount
+                    + " changed, settled in "
+                    + metrics.lastFramesToConverge + " frames\n");
+    }
+
+    /** @return a copy of the lighting engine's counters
+     * @see #resetLightingMetrics() */
+    public LightingMetrics getLightingMetrics()
+    {
+        LightingMetrics retval = new LightingMetrics(this.lightingMetrics);
+        retval.materializedBlockCount = Chunk.materializedBlockCount;
+        return retval;
+    }
+
+    /** resets the lighting engine's counters
+     * 
+     * @see #getLightingMetrics() */
+    public void resetLightingMetrics()
+    {
+        this.lightingMetrics.clear();
+        this.lightingFrameStartProcessedCount = 0;
+        this.lightingFrameStartChangedCount = 0;
+        Chunk.materializedBlockCount = 0;
+    }
+
+    private void clearLighting()
+    {
+        while(this.runningLightingUpdateCount > 0)
+        {
+            try
+            {
+                this.lightingCompletionQueue.take().free();
+                this.runningLightingUpdateCount--;
+            }
+            catch(InterruptedException e)
+            {
+                continue;
+            }
+        }
+        this.lightingDirtyQueue.clear();
+        this.sunlightHeightChangeQueue.clear();
+        this.scatteredSunlightRemoveQueue.clear();
+        this.lightRemoveQueue.clear();
+        this.lightingBusyStartFrame = -1;
+        this.lightingFrame = 0;
+        resetLightingMetrics();
+    }
+
+    private void clearTimeOfDay()
+    {
+        this.sunlightFactor = 15;
+        this.timeOfDay = 0.3f;
+    }
+
+    private int sunlightFactor = 15; // integer between 0 and 15
+    private float timeOfDay = 0.3f;
+
+    /** @param timeOfDay
+     *            the time of day
+     * @return the new Color */
+    private static Color getBackgroundColor(final float timeOfDay)
+    {
+        float seconds = 20.0f * 60.0f * timeOfDay;
+        final float secondsPerLightlevel = 10.0f;
+        final int nightLight = 4, dayLight = 15;
+        final float secondsForDawn = (dayLight - nightLight)
+                * secondsPerLightlevel;
+        final float secondsForDusk = (dayLight - nightLight)
+                * secondsPerLightlevel;
+        float sunlightFactor;
+        if(seconds < 5.0f * 60.0f - secondsForDawn)
+        {
+            sunlightFactor = nightLight;
+        }
+        else if(seconds < 5.0f * 60.0f)
+        {
+            float brightness = (secondsForDawn + seconds - 5.0f * 60.0f)
+                    / secondsPerLightlevel;
+            sunlightFactor = brightness + nightLight;
+        }
+        else if(seconds < 15.0f * 60.0f)
+        {
+            sunlightFactor = 15;
+        }
+        else if(seconds < 15.0f * 60.0f + secondsForDusk)
+        {
+            float brightness = (secondsForDusk + 15.0f * 60.0f - seconds)
+                    / secondsPerLightlevel;
+            sunlightFactor = brightness + nightLight;
+        }
+        else
+            sunlightFactor = nightLight;
+        float intensity = 1.5f * (sunlightFactor - nightLight)
+                / (dayLight - nightLight);
+        if(intensity < 0.0f)
+            intensity = 0.0f;
+        if(intensity > 1.5f)
+            intensity = 1.5f;
+        if(intensity > 1.0f)
+            return RGB(intensity - 1.0f, intensity - 1.0f, 1.0f);
+        return RGB(0.0f, 0.0f, intensity);
+    }
+
+    private void clearBackgroundColor()
+    {
+        this.backgroundColor.free();
+        this.backgroundColor = getBackgroundColor(0.3f);
+    }
+
+    private Color backgroundColor = getBackgroundColor(0.3f);
+
+    private void setSunlightFactor()
+    {
+        float seconds = 20.0f * 60.0f * this.timeOfDay;
+        final float secondsPerLightlevel = 10.0f;
+        final int nightLight = 4, dayLight = 15;
+        final float secondsForDawn = (dayLight - nightLight)
+                * secondsPerLightlevel;
+        final float secondsForDusk = (dayLight - nightLight)
+                * secondsPerLightlevel;
+        if(seconds < 5.0f * 60.0f - secondsForDawn)
+        {
+            this.sunlightFactor = 4;
+        }
+        else if(seconds < 5.0f * 60.0f)
+        {
+            float brightness = (secondsForDawn + seconds - 5.0f * 60.0f)
+                    / secondsPerLightlevel;
+            this.sunlightFactor = Math.round(brightness) + nightLight;
+        }
+        else if(seconds < 15.0f * 60.0f)
+        {
+            this.sunlightFactor = 15;
+        }
+        else if(seconds < 15.0f * 60.0f + secondsForDusk)
+        {
+            float brightness = (secondsForDusk + 15.0f * 60.0f - seconds)
+                    / secondsPerLightlevel;
+            this.sunlightFactor = Math.round(brightness) + nightLight;
+        }
+        else
+            this.sunlightFactor = 4;
+    }
+
+    private void setBackgroundColor()
+    {
+        this.backgroundColor.free();
+        this.backgroundColor = getBackgroundColor(this.timeOfDay);
+    }
+
+    private Vector sunPosition = Vector.allocate();
+    private Vector moonPosition = Vector.allocate();
+
+    private void setSunMoonPosition(final Vector sunPosition,
                                     final float sunIntensity_in,
                                     final Vector moonPosition,
                                     final float moonIntensity_in)
     {
-        float sunIntensity = sunIntensity_in;
-        float moonIntensity = moonIntensity_in;
-        if(sunIntensity < 0)
-            sunIntensity = 0;
-        if(moonIntensity < 0)
-            moonIntensity = 0;
-        this.sunPosition = this.sunPosition.set(sunPosition)
-                                           .normalizeAndSet()
-                                           .mulAndSet(sunIntensity);
-        this.moonPosition = this.moonPosition.set(moonPosition)
-                                             .normalizeAndSet()
-                                             .mulAndSet(moonIntensity);
+        float sunIntensity = sunIntensity_in;
+        float moonIntensity = moonIntensity_in;
+        if(sunIntensity < 0)
+            sunIntensity = 0;
+        if(moonIntensity < 0)
+            moonIntensity = 0;
+        this.sunPosition = this.sunPosition.set(sunPosition)
+                                           .normalizeAndSet()
+                                           .mulAndSet(sunIntensity);
+        this.moonPosition = this.moonPosition.set(moonPosition)
+                                             .normalizeAndSet()
+                                             .mulAndSet(moonIntensity);
+    }
+
+    /** sets the time of day
+     * 
+     * @param timeOfDay
+     *            the new time of day */
+    public void setTimeOfDay(final float timeOfDay)
+    {
+        this.timeOfDay = timeOfDay - (float)Math.floor(timeOfDay);
+        setSunlightFactor();
+        setBackgroundColor();
+        Vector sunvec = Vector.allocate(-(float)Math.sin(this.timeOfDay * 2.0
+                                                * Math.PI),
+                                        -(float)Math.cos(this.timeOfDay * 2.0
+                                                * Math.PI),
+                                        0.0f);
+        float sunStrength = 0.25f - 0.75f * (float)Math.cos(this.timeOfDay
+                * 2.0 * Math.PI);
+        if(sunStrength < 0)
+            sunStrength = 0;
+        float moonStrength = 0.25f + 0.75f * (float)Math.cos(this.timeOfDay
+                * 2.0 * Math.PI);
+        if(moonStrength < 0)
+            moonStrength = 0;
+        Vector nsunvec = Vector.neg(Vector.allocate(), sunvec);
+        setSunMoonPosition(sunvec, sunStrength, nsunvec, 0.25f * moonStrength);
+        sunvec.free();
+        nsunvec.free();
+    }
+
+    private void clearGenChunk()
+    {
+        this.genChunkCount = 0;
+    }
+
+    /** the nearest chunks requested this frame that aren't being generated,
+     * sorted by distance */
+    private final int[] genChunkX = new int[maxChunkGenerateRequests],
+            genChunkY = new int[maxChunkGenerateRequests],
+            genChunkZ = new int[maxChunkGenerateRequests];
+    private final float[] genChunkDistance = new float[maxChunkGenerateRequests];
+    private int genChunkCount = 0;
+
+    private void addGenChunk(final int cx,
+                             final int cy,
+                             final int cz,
+                             final float distance)
+    {
+        if(cy < -World.Depth)
+            return;
+        if(requestChunkAgain(cx, cy, cz))
+            return;
+        int index = this.genChunkCount;
+        while(index > 0 && this.genChunkDistance[index - 1] > distance)
+            index--;
+        for(int i = 0; i < this.genChunkCount; i++)
+        {
+            if(this.genChunkX[i] == cx && this.genChunkY[i] == cy
+                    && this.genChunkZ[i] == cz)
+                return;
+        }
+        if(index >= maxChunkGenerateRequests)
+            return;
+        int last = Math.min(this.genChunkCount, maxChunkGenerateRequests - 1);
+        for(int i = last; i > index; i--)
+        {
+            this.genChunkX[i] = this.genChunkX[i - 1];
+            this.genChunkY[i] = this.genChunkY[i - 1];
+            this.genChunkZ[i] = this.genChunkZ[i - 1];
+            this.genChunkDistance[i] = this.genChunkDistance[i - 1];
+        }
+        this.genChunkX[index] = cx;
+        this.genChunkY[index] = cy;
+        this.genChunkZ[index] = cz;
+        this.genChunkDistance[index] = distance;
+        this.genChunkCount = last + 1;
+    }
+
+    /** @param x
+     *            the x coordinate
+     * @param y
+     *            the y coordinate
+     * @param z
+     *            the z coordinate */
+    public void flagGenerate(final int x, final int y, final int z)
+    {
+        int cx = x - (x & (Chunk.size - 1));
+        int cy = y - (y & (Chunk.size - 1));
+        int cz = z - (z & (Chunk.size - 1));
+        if(isGenerated(cx, cy, cz))
+            return;
+        addGenChunk(cx, cy, cz, 0.0f);
+    }
+
+    private static final float chunkGenScale = 1.5f;
+    private static Vector boxClipPlane_t1 = Vector.allocate();
+    private static final int BoxOutside = 0, BoxIntersects = 1,
+            BoxInside = 2;
+
+    /** @param p
+     * @param a
+     * @param b
+     * @param c
+     * @param d
+     * @return <code>BoxInside</code> if every p is inside p.getX() * a +
+     *         p.getY() * b + p.getZ() * c + d <= 0,
+     *         <code>BoxIntersects</code> if some are and
+     *         <code>BoxOutside</code> if none are */
+    private static int boxClipPlane(final Vector p[],
+                                    final float a,
+                                    final float b,
+                                    final float c,
+                                    final float d)
+    {
+        int insideCount = 0;
+        Vector normal = Vector.set(World.boxClipPlane_t1, a, b, c);
+        for(int i = 0; i < p.length; i++)
+        {
+            if(p[i].dot(normal) + d <= 0)
+                insideCount++;
+        }
+        if(insideCount >= p.length)
+            return BoxInside;
+        if(insideCount > 0)
+            return BoxIntersects;
+        return BoxOutside;
+    }
+
+    private final Vector[] classifyBox_t1;
+    {
+        this.classifyBox_t1 = new Vector[8];
+        for(int i = 0; i < 8; i++)
+            this.classifyBox_t1[i] = Vector.allocate();
+    }
+
+    /** classifies a box against the view frustum
+     * 
+     * @param minX
+     *            the minimum x coordinate of the box
+     * @param minY
+     *            the minimum y coordinate of the box
+     * @param minZ
+     *            the minimum z coordinate of the box
+     * @param sizeX
+     *            the size of the box in x
+     * @param sizeY
+     *            the size of the box in y
+     * @param sizeZ
+     *            the size of the box in z
+     * @param worldToCamera
+     *            the world to camera transform
+     * @return <code>BoxOutside</code>, <code>BoxIntersects</code> or
+     *         <code>BoxInside</code> */
+    private int classifyBox(final int minX,
+                            final int minY,
+                            final int minZ,
+                            final int sizeX,
+                            final int sizeY,
+                            final int sizeZ,
+                            final Matrix worldToCamera)
+    {
+        Vector p[] = this.classifyBox_t1;
+        for(int i = 0; i < 8; i++)
+        {
+            Vector v = Vector.set(p[i], minX, minY, minZ);
+            if((i & 1) != 0)
+                v.setX(v.getX() + sizeX);
+            if((i & 2) != 0)
+                v.setY(v.getY() + sizeY);
+            if((i & 4) != 0)
+                v.setZ(v.getZ() + sizeZ);
+            worldToCamera.apply(p[i], v);
+        }
+        float invAspectRatio = 1 / Main.aspectRatio();
+        int retval = BoxInside;
+        for(int plane = 0; plane < 5; plane++)
+        {
+            int result;
+            switch(plane)
+            {
+            case 0:
+                result = boxClipPlane(p, 0, 0, 1, 0);
+                break;
+            case 1:
+                result = boxClipPlane(p, -invAspectRatio, 0, 1, 0);
+                break;
+            case 2:
+                result = boxClipPlane(p, invAspectRatio, 0, 1, 0);
+                break;
+            case 3:
+                result = boxClipPlane(p, 0, -1, 1, 0);
+                break;
+            default:
+                result = boxClipPlane(p, 0, 1, 1, 0);
+                break;
+            }
+            if(result == BoxOutside)
+                return BoxOutside;
+            if(result == BoxIntersects)
+                retval = BoxIntersects;
+        }
+        return retval;
+    }
+
+    /** the chunk visibility flags : the faces a chunk was entered through */
+    private static final int VisibilityEntryFaces = 0x3F;
+    /** the chunk visibility flags : the chunk is in the view frustum */
+    private static final int VisibilityInFrustum = 0x40;
+    /** the chunk visibility flags : the chunk is in the flood fill queue */
+    private static final int VisibilityQueued = 0x80;
+    /** the visibility flags of the chunks around the camera, indexed by
+     * <code>getVisibilityIndex</code>. the flags are only valid if the
+     * chunk's entry in <code>chunkVisibilityFrame</code> is
+     * <code>visibilityFrame</code>, so the grid doesn't need to be cleared. */
+    private byte[] chunkVisibility = new byte[0];
+    private int[] chunkVisibilityFrame = new int[0];
+    private int visibilityFrame = 0;
+    private int[] chunkVisibilityQueue = new int[0];
+    /** the visibility indices of the visible chunks, in the order the flood
+     * fill reached them */
+    private int[] visibleChunks = new int[0];
+    private int visibleChunkCount = 0;
+    private int visibilityMinCX, visibilityMinCY, visibilityMinCZ;
+    private int visibilitySizeX, visibilitySizeY, visibilitySizeZ;
+
+    private int getVisibilityIndex(final int ix, final int iy, final int iz)
+    {
+        return ix + this.visibilitySizeX * (iy + this.visibilitySizeY * iz);
+    }
+
+    private int getVisibilityFlags(final int index)
+    {
+        if(this.chunkVisibilityFrame[index] != this.visibilityFrame)
+            return 0;
+        return this.chunkVisibility[index];
+    }
+
+    /** marks the chunks in a region of the visibility grid that are in the
+     * view frustum, rejecting or accepting whole octants with one test
+     * 
+     * @param ix
+     *            the minimum x chunk index of the region
+     * @param iy
+     *            the minimum y chunk index of the region
+     * @param iz
+     *            the minimum z chunk index of the region
+     * @param sx
+     *            the size of the region in chunks in x
+     * @param sy
+     *            the size of the region in chunks in y
+     * @param sz
+     *            the size of the region in chunks in z
+     * @param worldToCamera
+     *            the world to camera transform */
+    private void cullChunkRegion(final int ix,
+                                 final int iy,
+                                 final int iz,
+                                 final int sx,
+                                 final int sy,
+                                 final int sz,
+                                 final Matrix worldToCamera)
+    {
+        if(sx <= 0 || sy <= 0 || sz <= 0)
+            return;
+        int result = classifyBox(this.visibilityMinCX + ix * Chunk.size,
+                                 this.visibilityMinCY + iy * Chunk.size,
+                                 this.visibilityMinCZ + iz * Chunk.size,
+                                 sx * Chunk.size,
+                                 sy * Chunk.size,
+                                 sz * Chunk.size,
+                                 worldToCamera);
+        if(result == BoxOutside)
+            return;
+        if(result == BoxInside || (sx == 1 && sy == 1 && sz == 1))
+        {
+            for(int z = iz; z < iz + sz; z++)
+            {
+                for(int y = iy; y < iy + sy; y++)
+                {
+                    for(int x = ix; x < ix + sx; x++)
+                    {
+                        int index = getVisibilityIndex(x, y, z);
+                        this.chunkVisibility[index] = VisibilityInFrustum;
+                        this.chunkVisibilityFrame[index] = this.visibilityFrame;
+                    }
+                }
+            }
+            return;
+        }
+        int hx = (sx + 1) / 2, hy = (sy + 1) / 2, hz = (sz + 1) / 2;
+        for(int octant = 0; octant < 8; octant++)
+        {
+            int ox = ix, oy = iy, oz = iz;
+            int osx = hx, osy = hy, osz = hz;
+            if((octant & 1) != 0)
+            {
+                ox += hx;
+                osx = sx - hx;
+            }
+            if((octant & 2) != 0)
+            {
+                oy += hy;
+                osy = sy - hy;
+            }
+            if((octant & 4) != 0)
+            {
+                oz += hz;
+                osz = sz - hz;
+            }
+            cullChunkRegion(ox, oy, oz, osx, osy, osz, worldToCamera);
+        }
+    }
+
+    /** finds the chunks that can be seen from the camera, out to the chunk
+     * generation distance. first the chunks in the view frustum are found,
+     * then the chunks that can be seen are flood filled outward from the
+     * camera's chunk through chunk faces connected by blocks that aren't
+     * opaque, so chunks enclosed by opaque blocks are skipped. the visible
+     * chunks are put in <code>visibleChunks</code>.
+     * 
+     * @param cameraPos
+     *            the camera position
+     * @param worldToCamera
+     *            the world to camera transform
+     * @return the number of visible chunks
+     * @see #isChunkVisible(int cx, int cy, int cz) */
+    int updateChunkVisibility(final Vector cameraPos,
+                              final Matrix worldToCamera)
+    {
+        int cameraX = (int)Math.floor(cameraPos.getX());
+        int cameraY = (int)Math.floor(cameraPos.getY());
+        int cameraZ = (int)Math.floor(cameraPos.getZ());
+        final int minCX = Math.round(cameraX - viewDist * chunkGenScale)
+                & ~(Chunk.size - 1);
+        final int minCY = Math.round(cameraY - viewDist * chunkGenScale)
+                & ~(Chunk.size - 1);
+        final int minCZ = Math.round(cameraZ - viewDist * chunkGenScale)
+                & ~(Chunk.size - 1);
+        this.visibilityMinCX = minCX;
+        this.visibilityMinCY = minCY;
+        this.visibilityMinCZ = minCZ;
+        this.visibilitySizeX = ((Math.round(cameraX + viewDist
+                * chunkGenScale) & ~(Chunk.size - 1)) - minCX)
+                / Chunk.size + 1;
+        this.visibilitySizeY = ((Math.round(cameraY + viewDist
+                * chunkGenScale) & ~(Chunk.size - 1)) - minCY)
+                / Chunk.size + 1;
+        this.visibilitySizeZ = ((Math.round(cameraZ + viewDist
+                * chunkGenScale) & ~(Chunk.size - 1)) - minCZ)
+                / Chunk.size + 1;
+        int count = this.visibilitySizeX * this.visibilitySizeY
+                * this.visibilitySizeZ;
+        if(this.chunkVisibility.length < count)
+        {
+            this.chunkVisibility = new byte[count];
+            this.chunkVisibilityFrame = new int[count];
+            this.chunkVisibilityQueue = new int[count];
+            this.visibleChunks = new int[count];
+        }
+        if(++this.visibilityFrame == 0)
+        {
+            for(int i = 0; i < this.chunkVisibilityFrame.length; i++)
+                this.chunkVisibilityFrame[i] = 0;
+            this.visibilityFrame = 1;
+        }
+        this.visibleChunkCount = 0;
+        byte[] visibility = this.chunkVisibility;
+        cullChunkRegion(0,
+                        0,
+                        0,
+                        this.visibilitySizeX,
+                        this.visibilitySizeY,
+                        this.visibilitySizeZ,
+                        worldToCamera);
+        int cameraIX = ((cameraX & ~(Chunk.size - 1)) - minCX) / Chunk.size;
+        int cameraIY = ((cameraY & ~(Chunk.size - 1)) - minCY) / Chunk.size;
+        int cameraIZ = ((cameraZ & ~(Chunk.size - 1)) - minCZ) / Chunk.size;
+        if(cameraIX < 0 || cameraIX >= this.visibilitySizeX || cameraIY < 0
+                || cameraIY >= this.visibilitySizeY || cameraIZ < 0
+                || cameraIZ >= this.visibilitySizeZ)
+            return 0;
+        int[] queue = this.chunkVisibilityQueue;
+        int queueHead = 0, queueSize = 0;
+        int cameraIndex = getVisibilityIndex(cameraIX, cameraIY, cameraIZ);
+        visibility[cameraIndex] = (byte)(getVisibilityFlags(cameraIndex)
+                | VisibilityEntryFaces | VisibilityQueued);
+        this.chunkVisibilityFrame[cameraIndex] = this.visibilityFrame;
+        queue[queueSize++] = cameraIndex;
+        int[] visibleList = this.visibleChunks;
+        int visibleCount = 0;
+        visibleList[visibleCount++] = cameraIndex;
+        while(queueSize > 0)
+        {
+            int index = queue[queueHead];
+            queueHead = (queueHead + 1) % count;
+            queueSize--;
+            visibility[index] &= ~VisibilityQueued;
+            int ix = index % this.visibilitySizeX;
+            int iy = index / this.visibilitySizeX % this.visibilitySizeY;
+            int iz = index / this.visibilitySizeX / this.visibilitySizeY;
+            int exitFaces = VisibilityEntryFaces;
+            if(index != cameraIndex)
+            {
+                Chunk c = find(minCX + ix * Chunk.size, minCY + iy
+                        * Chunk.size, minCZ + iz * Chunk.size);
+                if(c != null)
+                {
+                    long connections = c.getFaceConnections();
+                    int entryFaces = visibility[index] & VisibilityEntryFaces;
+                    exitFaces = 0;
+                    for(int face = 0; face < 6; face++)
+                    {
+                        if((entryFaces & getFaceMaskBit(face)) != 0)
+                            exitFaces |= (int)(connections >>> (face * 6)) & 0x3F;
+                    }
+                }
+            }
+            for(int face = 0; face < 6; face++)
+            {
+                if((exitFaces & getFaceMaskBit(face)) == 0)
+                    continue;
+                int nx = ix + faceMaskDX[face];
+                int ny = iy + faceMaskDY[face];
+                int nz = iz + faceMaskDZ[face];
+                if(nx < 0 || nx >= this.visibilitySizeX || ny < 0
+                        || ny >= this.visibilitySizeY || nz < 0
+                        || nz >= this.visibilitySizeZ)
+                    continue;
+                // only move away from the camera, like a line of sight
+                if(Math.abs(nx - cameraIX) < Math.abs(ix - cameraIX)
+                        || Math.abs(ny - cameraIY) < Math.abs(iy - cameraIY)
+                        || Math.abs(nz - cameraIZ) < Math.abs(iz - cameraIZ))
+                    continue;
+                int nindex = getVisibilityIndex(nx, ny, nz);
+                int flags = getVisibilityFlags(nindex);
+                if((flags & VisibilityInFrustum) == 0)
+                    continue;
+                int entryFace = getFaceMaskBit(face ^ 1);
+                if((flags & entryFace) != 0)
+                    continue;
+                if((flags & VisibilityEntryFaces) == 0)
+                    visibleList[visibleCount++] = nindex;
+                flags |= entryFace;
+                if((flags & VisibilityQueued) == 0)
+                {
+                    flags |= VisibilityQueued;
+                    queue[(queueHead + queueSize++) % count] = nindex;
+                }
+                visibility[nindex] = (byte)flags;
+            }
+        }
+        this.visibleChunkCount = visibleCount;
+        return visibleCount;
+    }
+
+    /** @param cx
+     *            the chunk x coordinate
+     * @param cy
+     *            the chunk y coordinate
+     * @param cz
+     *            the chunk z coordinate
+     * @return if the chunk was found to be visible by the last call to
+     *         <code>updateChunkVisibility</code>
+     * @see #updateChunkVisibility(Vector cameraPos, Matrix worldToCamera) */
+    private boolean isChunkVisible(final int cx, final int cy, final int cz)
+    {
+        int ix = (cx - this.visibilityMinCX) / Chunk.size;
+        int iy = (cy - this.visibilityMinCY) / Chunk.size;
+        int iz = (cz - this.visibilityMinCZ) / Chunk.size;
+        if(cx < this.visibilityMinCX || ix >= this.visibilitySizeX
+                || cy < this.visibilityMinCY || iy >= this.visibilitySizeY
+                || cz < this.visibilityMinCZ || iz >= this.visibilitySizeZ)
+            return false;
+        return (getVisibilityFlags(getVisibilityIndex(ix, iy, iz)) & VisibilityEntryFaces) != 0;
     }
 
-    /** sets the time of day
+    /** adds the chunks around the camera that aren't generated to the chunk
+     * generation queue, with the visible chunks first, and adds the blocks
+     * that make particles to the particle generators. uses the chunks found
+     * by the last call to <code>updateChunkVisibility</code>.
      * 
-     * @param timeOfDay
-     *            the new time of day */
-    public void setTimeOfDay(final float timeOfDay)
+     * @param cameraPos
+     *            the camera position */
+    private void updateChunksAroundCamera(final Vector cameraPos)
     {
-        this.timeOfDay = timeOfDay - (float)Math.floor(timeOfDay);
-        setSunlightFactor();
-        setBackgroundColor();
-        Vector sunvec = Vector.allocate(-(float)Math.sin(this.timeOfDay * 2.0
-                                                * Math.PI),
-                                        -(float)Math.cos(this.timeOfDay * 2.0
-                                                * Math.PI),
-                                        0.0f);
-        float sunStrength = 0.25f - 0.75f * (float)Math.cos(this.timeOfDay
-                * 2.0 * Math.PI);
-        if(sunStrength < 0)
-            sunStrength = 0;
-        float moonStrength = 0.25f + 0.75f * (float)Math.cos(this.timeOfDay
-                * 2.0 * Math.PI);
-        if(moonStrength < 0)
-            moonStrength = 0;
-        Vector nsunvec = Vector.neg(Vector.allocate(), sunvec);
-        setSunMoonPosition(sunvec, sunStrength, nsunvec, 0.25f * moonStrength);
-        sunvec.free();
-        nsunvec.free();
+        int cameraX = (int)Math.floor(cameraPos.getX());
+        int cameraY = (int)Math.floor(cameraPos.getY());
+        int cameraZ = (int)Math.floor(cameraPos.getZ());
+        int maxCX = this.visibilityMinCX + (this.visibilitySizeX - 1)
+                * Chunk.size;
+        int maxCY = this.visibilityMinCY + (this.visibilitySizeY - 1)
+                * Chunk.size;
+        int maxCZ = this.visibilityMinCZ + (this.visibilitySizeZ - 1)
+                * Chunk.size;
+        for(int cx = this.visibilityMinCX; cx <= maxCX; cx += Chunk.size)
+        {
+            for(int cy = this.visibilityMinCY; cy <= maxCY; cy += Chunk.size)
+            {
+                for(int cz = this.visibilityMinCZ; cz <= maxCZ; cz += Chunk.size)
+                {
+                    Chunk c = find(cx, cy, cz);
+                    if(c != null && Math.abs(cameraX - cx) < 20
+                            && Math.abs(cameraY - cy) < 20
+                            && Math.abs(cameraZ - cz) < 20 && c.fireCount > 0)
+                        Main.needFireBurnAudio = true;
+                    if(c == null || !isGenerated(cx, cy, cz))
+                    {
+                        Vector chunkCenter = World.draw_chunkCenter.set(cx
+                                + Chunk.size / 2.0f, cy + Chunk.size / 2.0f, cz
+                                + Chunk.size / 2.0f);
+                        float distance = chunkCenter.subAndSet(cameraPos)
+                                                    .abs();
+                        if(isChunkVisible(cx, cy, cz))
+                            distance /= 2;
+                        addGenChunk(cx, cy, cz, distance);
+                        continue;
+                    }
+                    if(c.particleGenerateCount <= 0)
+                        continue;
+                    for(int z = 0, index = 0; z < Chunk.size; z++)
+                    {
+                        for(int y = 0; y < Chunk.size; y++)
+                        {
+                            for(int x = 0; x < Chunk.size; x++, index++)
+                            {
+                                Block b = c.peekBlock(index);
+                                if(b != null && b.isParticleGenerate())
+                                    addParticleGen(x + cx, y + cy, z + cz);
+                            }
+                        }
+                    }
+                }
+            }
+        }
     }
 
-    private void clearGenChunk()
+    /** builds the mesh of a chunk on a mesh builder thread from a snapshot
+     * of it. the blocks that aren't drawn by <code>GreedyMesher</code> use
+     * <code>Block.draw</code>, which isn't thread safe, so the render thread
+     * draws them when it takes the snapshot. the snapshot holds those, the
+     * faces added to the greedy mesher and the lighting of the chunk with a
+     * two block border, which is enough to make the lighting arrays of the
+     * blocks in front of the faces. the mesher threads light and merge the
+     * faces and record the display lists, then the render thread swaps them
+     * in if the chunk hasn't changed since the snapshot.
+     * 
+     * @author jacob */
+    private static final class MeshBuildRequest implements Runnable,
+        GreedyMesher.LightingSource
     {
-        this.genChunkX = 0;
-        this.genChunkY = 0;
-        this.genChunkZ = 0;
-        this.genChunkDistance = -1f;
+        private static final Allocator<MeshBuildRequest> allocator = new Allocator<World.MeshBuildRequest>()
+        {
+            @Override
+            protected MeshBuildRequest allocateInternal()
+            {
+                return new MeshBuildRequest();
+            }
+        };
+        private static final int border = 2;
+        private static final int bsize = Chunk.size + 2 * border;
+        public Chunk chunk = null;
+        public int cx, cy, cz;
+        /** the chunk's <code>meshValidTag</code> when the snapshot was taken */
+        public long meshValidTag;
+        /** the world's <code>displayListValidTag</code> when the snapshot was
+         * taken */
+        public long displayListValidTag;
+        public final GreedyMesher mesher = new GreedyMesher(Chunk.size);
+        /** the rendering streams for each draw phase */
+        public final RenderingStream[] rs = new RenderingStream[Chunk.drawPhaseCount];
+        /** the built display lists for each draw phase */
+        public final DisplayList[] displayLists = new DisplayList[Chunk.drawPhaseCount];
+        public final int[] ss = new int[bsize * bsize * bsize];
+        public final int[] l = new int[bsize * bsize * bsize];
+        public final boolean[] o = new boolean[bsize * bsize * bsize];
+        public final boolean[] present = new boolean[bsize * bsize * bsize];
+        private BlockingQueue<MeshBuildRequest> completionQueue = null;
+        private final int[] lightingArray = new int[2 * 2 * 2 * 2];
+        private boolean lightingArrayValid = false;
+        private int lightingArrayX, lightingArrayY, lightingArrayZ;
+        private final int[] neighborhood_ss = new int[3 * 3 * 3];
+        private final int[] neighborhood_l = new int[3 * 3 * 3];
+        private final boolean[] neighborhood_o = new boolean[3 * 3 * 3];
+
+        MeshBuildRequest()
+        {
+        }
+
+        public static MeshBuildRequest allocate(final Chunk chunk,
+                                                final long displayListValidTag)
+        {
+            MeshBuildRequest retval = allocator.allocate();
+            retval.chunk = chunk;
+            retval.cx = chunk.orgx;
+            retval.cy = chunk.orgy;
+            retval.cz = chunk.orgz;
+            retval.meshValidTag = chunk.meshValidTag;
+            retval.displayListValidTag = displayListValidTag;
+            retval.lightingArrayValid = false;
+            return retval;
+        }
+
+        public void free()
+        {
+            for(int i = 0; i < Chunk.drawPhaseCount; i++)
+            {
+                RenderingStream.free(this.rs[i]);
+                this.rs[i] = null;
+                DisplayList.free(this.displayLists[i]);
+                this.displayLists[i] = null;
+            }
+            this.chunk = null;
+            this.completionQueue = null;
+            allocator.free(this);
+        }
+
+        /** @return the lighting array of the block at (<code>bx</code>,
+         *         <code>by</code>, <code>bz</code>), which must be no more
+         *         than one block outside of the chunk */
+        private int[] getLightingArray(final int bx, final int by, final int bz)
+        {
+            if(this.lightingArrayValid && bx == this.lightingArrayX
+                    && by == this.lightingArrayY && bz == this.lightingArrayZ)
+                return this.lightingArray;
+            this.lightingArrayValid = true;
+            this.lightingArrayX = bx;
+            this.lightingArrayY = by;
+            this.lightingArrayZ = bz;
+            final int x = bx - this.cx, y = by - this.cy, z = bz - this.cz;
+            if(!this.present[x + border + bsize
+                    * (y + border + bsize * (z + border))])
+            {
+                for(int i = 0; i < this.lightingArray.length; i++)
+                    this.lightingArray[i] = 0;
+                return this.lightingArray;
+            }
+            for(int dz = 0; dz < 3; dz++)
+            {
+                for(int dy = 0; dy < 3; dy++)
+                {
+                    int bindex = x + border - 1 + bsize
+                            * (y + border - 1 + dy + bsize
+                                    * (z + border - 1 + dz));
+                    int index = 3 * (dy + 3 * dz);
+                    for(int dx = 0; dx < 3; dx++)
+                    {
+                        this.neighborhood_ss[index + dx] = this.ss[bindex + dx];
+                        this.neighborhood_l[index + dx] = this.l[bindex + dx];
+                        this.neighborhood_o[index + dx] = this.o[bindex + dx];
+                    }
+                }
+            }
+            fillLightingArray(this.lightingArray,
+                              this.neighborhood_ss,
+                              this.neighborhood_l,
+                              this.neighborhood_o);
+            return this.lightingArray;
+        }
+
+        @Override
+        public float getLightingChannel(final Vector p, final boolean sunlight)
+        {
+            int bx = (int)Math.floor(p.getX());
+            int by = (int)Math.floor(p.getY());
+            int bz = (int)Math.floor(p.getZ());
+            if(skipLighting)
+                return 1;
+            return interpolateLighting(getLightingArray(bx, by, bz),
+                                       sunlight ? 0 : 2 * 2 * 2,
+                                       p.getX() - bx,
+                                       p.getY() - by,
+                                       p.getZ() - bz) / 15.0f;
+        }
+
+        /** lights and merges the faces added to <code>mesher</code> and draws
+         * them into <code>rs</code> */
+        public void drawMesh()
+        {
+            this.mesher.draw(this.rs, this.cx, this.cy, this.cz, this);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                drawMesh();
+                for(int i = 0; i < Chunk.drawPhaseCount; i++)
+                    this.displayLists[i] = this.rs[i].record(DisplayList.allocate());
+            }
+            finally
+            {
+                if(this.completionQueue != null)
+                    this.completionQueue.add(this);
+            }
+        }
     }
 
-    private int genChunkX = 0, genChunkY = 0, genChunkZ = 0;
-    private float genChunkDistance = -1.0f;
+    /** if chunk meshes are built on the mesh builder threads. if false, they
+     * are built on the render thread when they're drawn. */
+    public static boolean USE_MESH_BUILDER_THREADS = true;
+    private static final ExecutorService meshBuilderPool = new ThreadPoolExecutor(meshBuilderThreadCount,
+                                                                                  meshBuilderThreadCount,
+                                                                                  0,
+                                                                                  TimeUnit.SECONDS,
+                                                                                  new LinkedBlockingQueue<Runnable>(),
+                                                                                  new ThreadFactory()
+                                                                                  {
+                                                                                      @Override
+                                                                                      public Thread
+                                                                                          newThread(final Runnable r)
+                                                                                      {
+                                                                                          Thread retval = new Thread(r,
+                                                                                                                     "Mesh Builder");
+                                                                                          retval.setDaemon(true);
+                                                                                          return retval;
+                                                                                      }
+                                                                                  });
+    private final BlockingQueue<MeshBuildRequest> meshBuildCompletionQueue = new ArrayBlockingQueue<MeshBuildRequest>(maxRunningMeshBuildCount);
+    private int runningMeshBuildCount = 0;
+
+    /** takes the snapshot of <code>request</code>'s chunk, drawing the blocks
+     * that <code>GreedyMesher</code> doesn't draw into <code>request</code>'s
+     * rendering streams
+     * 
+     * @param request
+     *            the mesh build request */
+    private void takeMeshSnapshot(final MeshBuildRequest request)
+    {
+        drawChunkBlocks(request.rs, request.chunk, false, request.mesher);
+        loadChunkLighting(request.chunk,
+                          MeshBuildRequest.border,
+                          request.ss,
+                          request.l,
+                          request.o,
+                          request.present);
+    }
+
+    /** @param pnode
+     *            the chunk
+     * @return a new mesh build request with a snapshot of
+     *         <code>pnode</code> */
+    private MeshBuildRequest startMeshBuild(final Chunk pnode)
+    {
+        MeshBuildRequest request = MeshBuildRequest.allocate(pnode,
+                                                             this.displayListValidTag);
+        for(int i = 0; i < Chunk.drawPhaseCount; i++)
+            request.rs[i] = RenderingStream.allocate();
+        takeMeshSnapshot(request);
+        return request;
+    }
 
-    private void addGenChunk(final int cx,
-                             final int cy,
-                             final int cz,
-                             final float distance)
+    /** puts the display lists built by <code>request</code> in its chunk
+     * unless the chunk changed after the snapshot was taken, then frees
+     * <code>request</code>
+     * 
+     * @param request
+     *            the finished mesh build request */
+    private void finishMeshBuild(final MeshBuildRequest request)
     {
-        if(cy < -World.Depth)
-            return;
-        for(int i = 0; i < chunkGeneratorCount; i++)
+        Chunk pnode = request.chunk;
+        if(pnode.meshBuild == request)
         {
-            if(this.chunkGenerator[i].busy.get()
-                    || this.chunkGenerator[i].generated)
+            pnode.meshBuild = null;
+            boolean isStale = pnode.meshValidTag != request.meshValidTag
+                    || this.displayListValidTag != request.displayListValidTag;
+            for(int i = 0; i < Chunk.drawPhaseCount; i++)
             {
-                if(cx == this.chunkGenerator[i].cx
-                        && cy == this.chunkGenerator[i].cy
-                        && cz == this.chunkGenerator[i].cz)
-                    return;
+                if(request.displayLists[i] == null)
+                    isStale = true;
+            }
+            if(!isStale)
+            {
+                for(int i = 0; i < Chunk.drawPhaseCount; i++)
+                {
+                    DisplayList.free(pnode.displayList[i]);
+                    pnode.displayList[i] = request.displayLists[i];
+                    request.displayLists[i] = null;
+                    pnode.displayListValidTag[i] = request.displayListValidTag;
+                }
             }
         }
-        if(this.genChunkDistance < 0.0f || distance < this.genChunkDistance)
+        request.free();
+    }
+
+    /** puts the meshes finished by the mesh builder threads in their chunks */
+    private void finishMeshBuilds()
+    {
+        while(true)
         {
-            this.genChunkX = cx;
-            this.genChunkY = cy;
-            this.genChunkZ = cz;
-            this.genChunkDistance = distance;
+            MeshBuildRequest request = this.meshBuildCompletionQueue.poll();
+            if(request == null)
+                break;
+            this.runningMeshBuildCount--;
+            finishMeshBuild(request);
         }
     }
 
-    /** @param x
-     *            the x coordinate
-     * @param y
-     *            the y coordinate
-     * @param z
-     *            the z coordinate */
-    public void flagGenerate(final int x, final int y, final int z)
+    /** builds the mesh of a chunk, on a mesh builder thread if
+     * <code>USE_MESH_BUILDER_THREADS</code> is set
+     * 
+     * @param pnode
+     *            the chunk */
+    private void buildChunkMesh(final Chunk pnode)
     {
-        int cx = x - (x & (Chunk.size - 1));
-        int cy = y - (y & (Chunk.size - 1));
-        int cz = z - (z & (Chunk.size - 1));
-        if(isGenerated(cx, cy, cz))
+        if(pnode.meshBuild != null)
             return;
-        this.genChunkX = cx;
-        this.genChunkY = cy;
-        this.genChunkZ = cz;
-        this.genChunkDistance = 0.0f;
+        if(!USE_MESH_BUILDER_THREADS)
+        {
+            MeshBuildRequest request = startMeshBuild(pnode);
+            pnode.meshBuild = request;
+            request.run();
+            finishMeshBuild(request);
+            return;
+        }
+        if(this.runningMeshBuildCount >= maxRunningMeshBuildCount)
+            return;
+        MeshBuildRequest request = startMeshBuild(pnode);
+        request.completionQueue = this.meshBuildCompletionQueue;
+        pnode.meshBuild = request;
+        this.runningMeshBuildCount++;
+        meshBuilderPool.execute(request);
     }
 
-    private static final float chunkGenScale = 1.5f;
-    private static Vector chunkPassClipPlane_t1 = Vector.allocate();
+    private static Matrix drawChunk_t1 = Matrix.allocate();
 
-    /** @param p
-     * @param a
-     * @param b
-     * @param c
-     * @param d
-     * @return true if any p is inside p.getX() * a + p.getY() * b + p.getZ() *
-     *         c + d <= 0 */
-    private boolean chunkPassClipPlane(final Vector p[],
-                                       final float a,
-                                       final float b,
-                                       final float c,
-                                       final float d)
-    {
-        for(int i = 0; i < p.length; i++)
+    /** draws the blocks in a chunk
+     * 
+     * @param rs
+     *            the rendering streams for each draw phase
+     * @param pnode
+     *            the chunk
+     * @param animated
+     *            if the animated blocks are drawn instead of the blocks that
+     *            aren't animated
+     * @param mesher
+     *            the greedy mesher to add the solid blocks to or
+     *            <code>null</code> */
+    private void drawChunkBlocks(final RenderingStream rs[],
+                                 final Chunk pnode,
+                                 final boolean animated,
+                                 final GreedyMesher mesher)
+    {
+        final int cx = pnode.orgx, cy = pnode.orgy, cz = pnode.orgz;
+        Chunk cnx = find(cx - Chunk.size, cy, cz);
+        Chunk cny = find(cx, cy - Chunk.size, cz);
+        Chunk cnz = find(cx, cy, cz - Chunk.size);
+        Chunk cpx = find(cx + Chunk.size, cy, cz);
+        Chunk cpy = find(cx, cy + Chunk.size, cz);
+        Chunk cpz = find(cx, cy, cz + Chunk.size);
+        boolean loadedLighting = false;
+        for(int x = 0; x < Chunk.size; x++)
         {
-            if(p[i].dot(Vector.set(World.chunkPassClipPlane_t1, a, b, c)) + d <= 0)
-                return true;
+            for(int y = 0; y < Chunk.size; y++)
+            {
+                for(int z = 0; z < Chunk.size; z++)
+                {
+                    int index = x + Chunk.size * (y + Chunk.size * z);
+                    // only materialize the blocks that are drawn
+                    Block b;
+                    if(animated)
+                        b = pnode.blocks[index];
+                    else
+                        b = pnode.peekBlock(index);
+                    if(b == null
+                            || b.getType().drawType == BlockDrawType.BDTNone)
+                        continue;
+                    if(b.isAnimated() != animated)
+                        continue;
+                    boolean skip = false;
+                    int faceMask = pnode.getFaceMask(index);
+                    Block nx = null, px = null, ny = null, py = null, nz = null;
+                    Block pz = null;
+                    if(b.getType().drawType == BlockDrawType.BDTLiquid
+                            || (b.getType() == BlockType.BTLeaves
+                                    && !Main.FancyGraphics))
+                    {
+                        if(x <= 0)
+                            nx = cnx != null ? cnx.peekBlock(index
+                                    + (Chunk.size - 1)) : null;
+                        else
+                            nx = pnode.peekBlock(index - 1);
+                        if(x >= Chunk.size - 1)
+                            px = cpx != null ? cpx.peekBlock(index
+                                    + (1 - Chunk.size)) : null;
+                        else
+                            px = pnode.peekBlock(index + 1);
+                        if(y <= 0)
+                            ny = cny != null ? cny.peekBlock(index
+                                    + (Chunk.size * Chunk.size - Chunk.size))
+                                    : null;
+                        else
+                            ny = pnode.peekBlock(index - Chunk.size);
+                        if(y >= Chunk.size - 1)
+                            py = cpy != null ? cpy.peekBlock(index
+                                    + (Chunk.size - Chunk.size * Chunk.size))
+                                    : null;
+                        else
+                            py = pnode.peekBlock(index + Chunk.size);
+                        if(z <= 0)
+                            nz = cnz != null ? cnz.peekBlock(index
+                                    + (Chunk.size * Chunk.size * Chunk.size - Chunk.size
+                                            * Chunk.size)) : null;
+                        else
+                            nz = pnode.peekBlock(index - Chunk.size
+                                    * Chunk.size);
+                        if(z >= Chunk.size - 1)
+                            pz = cpz != null ? cpz.peekBlock(index
+                                    + (Chunk.size * Chunk.size - Chunk.size
+                                            * Chunk.size * Chunk.size)) : null;
+                        else
+                            pz = pnode.peekBlock(index + Chunk.size
+                                    * Chunk.size);
+                    }
+                    switch(b.getType().drawType)
+                    {
+                    case BDTNone:
+                        break;
+                    case BDTButton:
+                    case BDTItem:
+                    case BDTRail:
+                    case BDTSim3D:
+                    case BDTSolidAllSides:
+                    case BDTTool:
+                    case BDTTorch:
+                        break;
+                    case BDTCustom:
+                        if(b.getType() == BlockType.BTLeaves)
+                        {
+                            if(!Main.FancyGraphics)
+                            {
+                                skip = true;
+                                if(nx != null
+                                        && !nx.isOpaque()
+                                        && nx.getType() != BlockType.BTLeaves)
+                                {
+                                    skip = false;
+                                    break;
+                                }
+                                if(ny != null
+                                        && !ny.isOpaque()
+                                        && ny.getType() != BlockType.BTLeaves)
+                                {
+                                    skip = false;
+                                    break;
+                                }
+                                if(nz != null
+                                        && !nz.isOpaque()
+                                        && nz.getType() != BlockType.BTLeaves)
+                                {
+                                    skip = false;
+                                    break;
+                                }
+                                if(px != null
+                                        && !px.isOpaque()
+                                        && px.getType() != BlockType.BTLeaves)
+                                {
+                                    skip = false;
+                                    break;
+                                }
+                                if(py != null
+                                        && !py.isOpaque()
+                                        && py.getType() != BlockType.BTLeaves)
+                                {
+                                    skip = false;
+                                    break;
+                                }
+                                if(pz != null
+                                        && !pz.isOpaque()
+                                        && pz.getType() != BlockType.BTLeaves)
+                                {
+                                    skip = false;
+                                    break;
+                                }
+                            }
+                            break;
+                        }
+                        break;
+                    case BDTLiquid:
+                        skip = b.skipDrawFluid(nx, px, ny, py, nz, pz);
+                        break;
+                    case BDTSolid:
+                        skip = faceMask == 0;
+                        break;
+                    }
+                    if(skip)
+                        continue;
+                    if(mesher != null)
+                    {
+                        if(b.addToGreedyMesher(mesher,
+                                               x,
+                                               y,
+                                               z,
+                                               cx,
+                                               cy,
+                                               cz,
+                                               faceMask))
+                            continue;
+                    }
+                    if(!animated)
+                        b = pnode.getBlock(index);
+                    int[] lightingArray = b.getLightingArray(this.displayListValidTag);
+                    if(lightingArray == null)
+                    {
+                        if(!loadedLighting)
+                        {
+                            loadChunkLighting(pnode);
+                            loadedLighting = true;
+                        }
+                        lightingArray = makeChunkLightingArray(x, y, z, b);
+                    }
+                    int drawPhase = b.isTranslucent() ? 1 : 0;
+                    this.drawingLightingArray = lightingArray;
+                    this.drawingLightingX = x + cx;
+                    this.drawingLightingY = y + cy;
+                    this.drawingLightingZ = z + cz;
+                    b.draw(rs[drawPhase],
+                           Matrix.setToTranslate(World.drawChunk_t1,
+                                                 x + cx,
+                                                 y + cy,
+                                                 z + cz));
+                    this.drawingLightingArray = null;
+                }
+            }
         }
-        if(p.length <= 0)
-            return true;
-        return false;
     }
 
-    private final Vector[] chunkVisible_t1;
+    /** draws all the blocks in a chunk without using its display lists. used
+     * by the benchmarks.
+     * 
+     * @param rs
+     *            the rendering stream to draw all the phases into
+     * @param cx
+     *            the chunk x coordinate
+     * @param cy
+     *            the chunk y coordinate
+     * @param cz
+     *            the chunk z coordinate
+     * @return false if there isn't a chunk at (<code>cx</code>,
+     *         <code>cy</code>, <code>cz</code>) */
+    boolean drawChunkBlocks(final RenderingStream rs,
+                            final int cx,
+                            final int cy,
+                            final int cz)
     {
-        this.chunkVisible_t1 = new Vector[8];
-        for(int i = 0; i < 8; i++)
-            this.chunkVisible_t1[i] = Vector.allocate();
+        Chunk pnode = find(cx, cy, cz);
+        if(pnode == null)
+            return false;
+        MeshBuildRequest request = MeshBuildRequest.allocate(pnode,
+                                                             this.displayListValidTag);
+        for(int i = 0; i < Chunk.drawPhaseCount; i++)
+            request.rs[i] = rs;
+        takeMeshSnapshot(request);
+        request.drawMesh();
+        for(int i = 0; i < Chunk.drawPhaseCount; i++)
+            request.rs[i] = null;
+        request.free();
+        return true;
     }
 
-    private boolean chunkVisible(final int cx,
-                                 final int cy,
-                                 final int cz,
-                                 final Matrix worldToCamera)
+    /** @param pnode
+     *            the chunk to check
+     * @return if any block in <code>pnode</code> draws anything */
+    private static boolean chunkDrawsAnything(final Chunk pnode)
     {
-        Vector p[] = this.chunkVisible_t1;
-        for(int i = 0; i < 8; i++)
+        for(int x = 0; x < Chunk.size; x++)
         {
-            Vector v = Vector.set(p[i], cx, cy, cz);
-            if((i & 1) != 0)
-                v.setX(v.getX() + Chunk.size);
-            if((i & 2) != 0)
-                v.setY(v.getY() + Chunk.size);
-            if((i & 4) != 0)
-                v.setZ(v.getZ() + Chunk.size);
-            worldToCamera.apply(p[i], v);
+            for(int y = 0; y < Chunk.size; y++)
+            {
+                for(int z = 0; z < Chunk.size; z++)
+                {
+                    Block b = pnode.peekBlock(x + Chunk.size
+                            * (y + Chunk.size * z));
+                    if(b == null)
+                        continue;
+                    if(b.drawsAnything(x + pnode.orgx,
+                                       y + pnode.orgy,
+                                       z + pnode.orgz))
+                        return true;
+                }
+            }
         }
-        if(!chunkPassClipPlane(p, 0, 0, 1, 0))
-            return false;
-        if(!chunkPassClipPlane(p, -1 / Main.aspectRatio(), 0, 1, 0))
-            return false;
-        if(!chunkPassClipPlane(p, 1 / Main.aspectRatio(), 0, 1, 0))
-            return false;
-        if(!chunkPassClipPlane(p, 0, -1, 1, 0))
-            return false;
-        if(!chunkPassClipPlane(p, 0, 1, 1, 0))
-            return false;
-        return true;
+        return false;
     }
 
-    private static Matrix drawChunk_t1 = Matrix.allocate();
-
     private boolean drawChunk(final RenderingStream rs[],
                               final int cx,
                               final int cy,
@@ -1675,12 +4952,6 @@ public final class World
         Chunk pnode = find(cx, cy, cz);
         if(pnode == null)
             return false;
-        Chunk cnx = find(cx - Chunk.size, cy, cz);
-        Chunk cny = find(cx, cy - Chunk.size, cz);
-        Chunk cnz = find(cx, cy, cz - Chunk.size);
-        Chunk cpx = find(cx + Chunk.size, cy, cz);
-        Chunk cpy = find(cx, cy + Chunk.size, cz);
-        Chunk cpz = find(cx, cy, cz + Chunk.size);
         EntityNode e = pnode.head;
         while(e != null)
         {
@@ -1690,189 +4961,29 @@ public final class World
         if(pnode.drawsAnythingValidTag != this.displayListValidTag)
         {
             boolean drawsAnything = false;
-            outerloop: for(int x = 0; x < Chunk.size; x++)
-            {
-                for(int y = 0; y < Chunk.size; y++)
-                {
-                    for(int z = 0; z < Chunk.size; z++)
-                    {
-                        Block b = pnode.blocks[x + Chunk.size
-                                * (y + Chunk.size * z)];
-                        if(b == null)
-                            continue;
-                        if(b.drawsAnything(x + cx, y + cy, z + cz))
-                        {
-                            drawsAnything = true;
-                            break outerloop;
-                        }
-                    }
-                }
-            }
+            if(!pnode.isEntirelyHidden())
+                drawsAnything = chunkDrawsAnything(pnode);
             pnode.drawsAnything = drawsAnything;
             pnode.drawsAnythingValidTag = this.displayListValidTag;
         }
         if(pnode.drawsAnything)
         {
-            for(int x = 0; x < Chunk.size; x++)
+            boolean isValid = true;
+            for(int i = 0; i < Chunk.drawPhaseCount; i++)
             {
-                for(int y = 0; y < Chunk.size; y++)
-                {
-                    for(int z = 0; z < Chunk.size; z++)
-                    {
-                        int index = x + Chunk.size * (y + Chunk.size * z);
-                        Block b = pnode.blocks[index];
-                        if(b == null
-                                || b.getType().drawType == BlockDrawType.BDTNone)
-                            continue;
-                        boolean skip = false;
-                        Block nx, px, ny, py, nz, pz;
-                        if(x <= 0)
-                            nx = cnx != null ? cnx.blocks[index
-                                    + (Chunk.size - 1)] : null;
-                        else
-                            nx = pnode.blocks[index - 1];
-                        if(x >= Chunk.size - 1)
-                            px = cpx != null ? cpx.blocks[index
-                                    + (1 - Chunk.size)] : null;
-                        else
-                            px = pnode.blocks[index + 1];
-                        if(y <= 0)
-                            ny = cny != null ? cny.blocks[index
-                                    + (Chunk.size * Chunk.size - Chunk.size)]
-                                    : null;
-                        else
-                            ny = pnode.blocks[index - Chunk.size];
-                        if(y >= Chunk.size - 1)
-                            py = cpy != null ? cpy.blocks[index
-                                    + (Chunk.size - Chunk.size * Chunk.size)]
-                                    : null;
-                        else
-                            py = pnode.blocks[index + Chunk.size];
-                        if(z <= 0)
-                            nz = cnz != null ? cnz.blocks[index
-                                    + (Chunk.size * Chunk.size * Chunk.size - Chunk.size
-                                            * Chunk.size)]
-                                    : null;
-                        else
-                            nz = pnode.blocks[index - Chunk.size * Chunk.size];
-                        if(z >= Chunk.size - 1)
-                            pz = cpz != null ? cpz.blocks[index
-                                    + (Chunk.size * Chunk.size - Chunk.size
-                                            * Chunk.size * Chunk.size)] : null;
-                        else
-                            pz = pnode.blocks[index + Chunk.size * Chunk.size];
-                        switch(b.getType().drawType)
-                        {
-                        case BDTNone:
-                            break;
-                        case BDTButton:
-                        case BDTItem:
-                        case BDTRail:
-                        case BDTSim3D:
-                        case BDTSolidAllSides:
-                        case BDTTool:
-                        case BDTTorch:
-                            break;
-                        case BDTCustom:
-                            if(b.getType() == BlockType.BTLeaves)
-                            {
-                                if(!Main.FancyGraphics)
-                                {
-                                    skip = true;
-                                    if(nx != null
-                                            && !nx.isOpaque()
-                                            && nx.getType() != BlockType.BTLeaves)
-                                    {
-                                        skip = false;
-                                        break;
-                                    }
-                                    if(ny != null
-                                            && !ny.isOpaque()
-                                            && ny.getType() != BlockType.BTLeaves)
-                                    {
-                                        skip = false;
-                                        break;
-                                    }
-                                    if(nz != null
-                                            && !nz.isOpaque()
-                                            && nz.getType() != BlockType.BTLeaves)
-                                    {
-                                        skip = false;
-                                        break;
-                                    }
-                                    if(px != null
-                                            && !px.isOpaque()
-                                            && px.getType() != BlockType.BTLeaves)
-                                    {
-                                        skip = false;
-                                        break;
-                                    }
-                                    if(py != null
-                                            && !py.isOpaque()
-                                            && py.getType() != BlockType.BTLeaves)
-                                    {
-                                        skip = false;
-                                        break;
-                                    }
-                                    if(pz != null
-                                            && !pz.isOpaque()
-                                            && pz.getType() != BlockType.BTLeaves)
-                                    {
-                                        skip = false;
-                                        break;
-                                    }
-                                }
-                                break;
-                            }
-                            break;
-                        case BDTLiquid:
-                            skip = b.skipDrawFluid(nx, px, ny, py, nz, pz);
-                            break;
-                        case BDTSolid:
-                            skip = true;
-                            if(nx != null && !nx.isOpaque())
-                            {
-                                skip = false;
-                                break;
-                            }
-                            if(ny != null && !ny.isOpaque())
-                            {
-                                skip = false;
-                                break;
-                            }
-                            if(nz != null && !nz.isOpaque())
-                            {
-                                skip = false;
-                                break;
-                            }
-                            if(px != null && !px.isOpaque())
-                            {
-                                skip = false;
-                                break;
-                            }
-                            if(py != null && !py.isOpaque())
-                            {
-                                skip = false;
-                                break;
-                            }
-                            if(pz != null && !pz.isOpaque())
-                            {
-                                skip = false;
-                                break;
-                            }
-                            break;
-                        }
-                        if(skip)
-                            continue;
-                        int drawPhase = b.isTranslucent() ? 1 : 0;
-                        b.draw(rs[drawPhase],
-                               Matrix.setToTranslate(World.drawChunk_t1,
-                                                     x + cx,
-                                                     y + cy,
-                                                     z + cz));
-                    }
-                }
+                if(pnode.displayListValidTag[i] != this.displayListValidTag)
+                    isValid = false;
             }
+            if(!isValid)
+                buildChunkMesh(pnode);
+            if(pnode.displayList[0] != null
+                    && !pnode.displayList[0].isEmpty())
+                rs[0].add(pnode.displayList[0]);
+            if(pnode.displayList[1] != null
+                    && !pnode.displayList[1].isEmpty())
+                addTranslucentChunk(pnode);
+            if(pnode.animatedCount > 0)
+                drawChunkBlocks(rs, pnode, true, null);
         }
         return pnode.drawsAnything;
     }
@@ -1909,6 +5020,62 @@ public final class World
     private static TextureAtlas.TextureHandle starImg = TextureAtlas.addImage(new Image("star.png"));
     private static TextureAtlas.TextureHandle sunsetGlow = TextureAtlas.addImage(new Image("sunsetglow.png"));
     private static final RenderingStream[] draw_rs = new RenderingStream[Chunk.drawPhaseCount];
+    /** the chunks with translucent meshes drawn this frame */
+    private static Chunk[] draw_translucentChunks = new Chunk[64];
+    private static int draw_translucentChunkCount = 0;
+    /** the distance and index of each translucent chunk, with the bits of
+     * the distance in the high 32 bits so they sort in distance order */
+    private static long[] draw_translucentChunkOrder = new long[64];
+
+    private static void addTranslucentChunk(final Chunk pnode)
+    {
+        if(draw_translucentChunkCount >= draw_translucentChunks.length)
+        {
+            Chunk[] newChunks = new Chunk[draw_translucentChunkCount * 2];
+            System.arraycopy(draw_translucentChunks,
+                             0,
+                             newChunks,
+                             0,
+                             draw_translucentChunkCount);
+            draw_translucentChunks = newChunks;
+            draw_translucentChunkOrder = new long[draw_translucentChunkCount * 2];
+        }
+        draw_translucentChunks[draw_translucentChunkCount++] = pnode;
+    }
+
+    /** adds the translucent meshes of the chunks drawn this frame from back
+     * to front. the triangles in each mesh are sorted again when the camera
+     * moves into another chunk.
+     * 
+     * @param rs
+     *            the translucent rendering stream
+     * @param cameraPos
+     *            the camera position */
+    private static void drawTranslucentChunks(final RenderingStream rs,
+                                              final Vector cameraPos)
+    {
+        final int count = draw_translucentChunkCount;
+        for(int i = 0; i < count; i++)
+        {
+            Chunk c = draw_translucentChunks[i];
+            float dx = c.orgx + Chunk.size / 2.0f - cameraPos.getX();
+            float dy = c.orgy + Chunk.size / 2.0f - cameraPos.getY();
+            float dz = c.orgz + Chunk.size / 2.0f - cameraPos.getZ();
+            float distSquared = dx * dx + dy * dy + dz * dz;
+            draw_translucentChunkOrder[i] = ((long)Float.floatToIntBits(distSquared) << 32)
+                    | i;
+        }
+        Arrays.sort(draw_translucentChunkOrder, 0, count);
+        for(int i = count - 1; i >= 0; i--)
+        {
+            DisplayList dl = draw_translucentChunks[(int)draw_translucentChunkOrder[i]].displayList[1];
+            dl.sortBackToFront(cameraPos, Chunk.size);
+            rs.add(dl);
+        }
+        for(int i = 0; i < count; i++)
+            draw_translucentChunks[i] = null;
+        draw_translucentChunkCount = 0;
+    }
 
     /** draw the world
      * 
@@ -1924,17 +5091,19 @@ public final class World
                      final Matrix worldToCamera)
     {
         if(Main.DEBUG)
-            Main.addToFrameText("Chunk Count : " + this.chunkCount
-                    + "\nEach bucket has "
-                    + ((float)this.chunkCount / WorldHashPrime)
-                    + " chunks on average.\nMaximum bucket size : "
-                    + this.maxBucketSize + "\nEntity Count : "
+            Main.addToFrameText("Chunk Count : " + this.chunks.getCount()
+                    + "\nChunk map capacity : " + this.chunks.getCapacity()
+                    + "\nMaximum probe length : "
+                    + this.chunks.getMaxProbeLength() + "\nEntity Count : "
                     + this.entityCount + "\n");
+        finishMeshBuilds();
         RenderingStream rs[] = draw_rs;
         rs[0] = renderingStream;
         rs[1] = transparentRenderingStream;
         for(int i = 2; i < Chunk.drawPhaseCount; i++)
             rs[i] = RenderingStream.allocate();
+        for(int i = 0; i < Chunk.drawPhaseCount; i++)
+            rs[i].setSunlightFactor(this.sunlightFactor);
         Vector cameraPos = Matrix.setToInverse(World.draw_t3, worldToCamera)
                                  .apply(World.draw_cameraPos, Vector.ZERO);
         int cameraX = (int)Math.floor(cameraPos.getX());
@@ -2041,117 +5210,32 @@ public final class World
         int maxDrawY = cameraY + viewDist & ~(Chunk.size - 1);
         int minDrawZ = cameraZ - viewDist & ~(Chunk.size - 1);
         int maxDrawZ = cameraZ + viewDist & ~(Chunk.size - 1);
-        for(int cx = Math.round(cameraX - viewDist * chunkGenScale)
-                & ~(Chunk.size - 1); cx <= (Math.round(cameraX + viewDist
-                * chunkGenScale) & ~(Chunk.size - 1)); cx += Chunk.size)
-        {
-            for(int cy = Math.round(cameraY - viewDist * chunkGenScale)
-                    & ~(Chunk.size - 1); cy <= (Math.round(cameraY + viewDist
-                    * chunkGenScale) & ~(Chunk.size - 1)); cy += Chunk.size)
-            {
-                for(int cz = Math.round(cameraZ - viewDist * chunkGenScale)
-                        & ~(Chunk.size - 1); cz <= (Math.round(cameraZ
-                        + viewDist * chunkGenScale) & ~(Chunk.size - 1)); cz += Chunk.size)
-                {
-                    boolean isVisible = false;
-                    if(chunkVisible(cx, cy, cz, worldToCamera))
-                    {
-                        isVisible = true;
-                        if(cx >= minDrawX && cx <= maxDrawX && cy >= minDrawY
-                                && cy <= maxDrawY && cz >= minDrawZ
-                                && cz <= maxDrawZ)
-                        {
-                            if(drawChunk(rs, cx, cy, cz))
-                                chunkDrawCount++;
-                        }
-                    }
-                    Chunk c = find(cx, cy, cz);
-                    if(c == null)
-                    {
-                        for(int gcx = cx; gcx < cx + Chunk.size; gcx += Chunk.size)
-                        {
-                            for(int gcy = cy; gcy < cy + Chunk.size; gcy += Chunk.size)
-                            {
-                                for(int gcz = cz; gcz < cz + Chunk.size; gcz += Chunk.size)
-                                {
-                                    Vector chunkCenter = World.draw_chunkCenter.set(gcx
-                                                                                            + Chunk.size
-                                                                                            / 2.0f,
-                                                                                    gcy
-                                                                                            + Chunk.size
-                                                                                            / 2.0f,
-                                                                                    gcz
-                                                                                            + Chunk.size
-                                                                                            / 2.0f);
-                                    float distance = chunkCenter.subAndSet(cameraPos)
-                                                                .abs();
-                                    if(isVisible)
-                                        distance /= 2;
-                                    addGenChunk(gcx, gcy, gcz, distance);
-                                }
-                            }
-                        }
-                    }
-                    else
-                    {
-                        if(Math.abs(cameraX - cx) < 20
-                                && Math.abs(cameraY - cy) < 20
-                                && Math.abs(cameraZ - cz) < 20
-                                && c.fireCount > 0)
-                            Main.needFireBurnAudio = true;
-                        for(int gcx = cx; gcx < cx + Chunk.size; gcx += Chunk.size)
-                        {
-                            for(int gcy = cy; gcy < cy + Chunk.size; gcy += Chunk.size)
-                            {
-                                for(int gcz = cz; gcz < cz + Chunk.size; gcz += Chunk.size)
-                                {
-                                    if(!isGenerated(gcx, gcy, gcz))
-                                    {
-                                        Vector chunkCenter = World.draw_chunkCenter.set(gcx
-                                                                                                + Chunk.size
-                                                                                                / 2.0f,
-                                                                                        gcy
-                                                                                                + Chunk.size
-                                                                                                / 2.0f,
-                                                                                        gcz
-                                                                                                + Chunk.size
-                                                                                                / 2.0f);
-                                        float distance = chunkCenter.subAndSet(cameraPos)
-                                                                    .abs();
-                                        if(isVisible)
-                                            distance /= 2;
-                                        addGenChunk(gcx, gcy, gcz, distance);
-                                        continue;
-                                    }
-                                    for(int x = gcx; x < gcx + Chunk.size; x++)
-                                    {
-                                        for(int y = gcy; y < gcy + Chunk.size; y++)
-                                        {
-                                            for(int z = gcz; z < gcz
-                                                    + Chunk.size; z++)
-                                            {
-                                                Block b = getBlock(x, y, z);
-                                                if(b != null
-                                                        && b.isParticleGenerate())
-                                                {
-                                                    addParticleGen(x, y, z);
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+        int visibleChunkCount = updateChunkVisibility(cameraPos,
+                                                      worldToCamera);
+        for(int i = 0; i < visibleChunkCount; i++)
+        {
+            int index = this.visibleChunks[i];
+            int cx = this.visibilityMinCX + index % this.visibilitySizeX
+                    * Chunk.size;
+            int cy = this.visibilityMinCY + index / this.visibilitySizeX
+                    % this.visibilitySizeY * Chunk.size;
+            int cz = this.visibilityMinCZ + index / this.visibilitySizeX
+                    / this.visibilitySizeY * Chunk.size;
+            if(cx < minDrawX || cx > maxDrawX || cy < minDrawY
+                    || cy > maxDrawY || cz < minDrawZ || cz > maxDrawZ)
+                continue;
+            if(drawChunk(rs, cx, cy, cz))
+                chunkDrawCount++;
         }
+        updateChunksAroundCamera(cameraPos);
         if(Main.DEBUG)
-            Main.addToFrameText("Chunk Draw Count : " + chunkDrawCount + "\n");
+            Main.addToFrameText("Chunk Draw Count : " + chunkDrawCount
+                    + "\nVisible Chunk Count : " + visibleChunkCount
+                    + "\nRunning Mesh Builds : " + this.runningMeshBuildCount
+                    + "\n");
+        drawTranslucentChunks(rs[1], cameraPos);
         for(int drawPhase = 0; drawPhase < Chunk.drawPhaseCount; drawPhase++)
         {
-            // TODO finish
-            // rs[drawPhase].sortByTexture();
             switch(drawPhase)
             {
             case 0:
@@ -2170,12 +5254,12 @@ public final class World
         }
     }
 
-    private int getLightingArrayIndex(final int xOff,
-                                      final int yOff,
-                                      final int zOff,
-                                      final int x_in,
-                                      final int y_in,
-                                      final int z_in)
+    private static int getLightingArrayIndex(final int xOff,
+                                             final int yOff,
+                                             final int zOff,
+                                             final int x_in,
+                                             final int y_in,
+                                             final int z_in)
     {
         int x = x_in, y = y_in, z = z_in;
         if(xOff > 0)
@@ -2191,10 +5275,10 @@ public final class World
     }
 
     @SuppressWarnings("unused")
-    private int getDarkeningFactor(final int xOff,
-                                   final int yOff,
-                                   final int zOff,
-                                   final boolean[] o)
+    private static int getDarkeningFactor(final int xOff,
+                                          final int yOff,
+                                          final int zOff,
+                                          final boolean[] o)
     {
         if(true)
             return 0;
@@ -2222,11 +5306,12 @@ public final class World
         return 0;
     }
 
+    private final int[] getLightingArray_ss = new int[3 * 3 * 3];
     private final int[] getLightingArray_l = new int[3 * 3 * 3];
     private final boolean[] getLightingArray_o = new boolean[3 * 3 * 3];
     private static final int[] getLightingArray_empty = new int[]
     {
-        0, 0, 0, 0, 0, 0, 0, 0
+        0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0
     };
 
     private int[] makeLightingArray(final int bx,
@@ -2234,6 +5319,7 @@ public final class World
                                     final int bz,
                                     final Block b)
     {
+        int[] ss = this.getLightingArray_ss;
         int[] l = this.getLightingArray_l;
         boolean o[] = this.getLightingArray_o;
         for(int dx = 0; dx < 3; dx++)
@@ -2246,15 +5332,62 @@ public final class World
                             - 1);
                     if(block == null)
                     {
+                        ss[dx + 3 * (dy + 3 * dz)] = 0;
                         l[dx + 3 * (dy + 3 * dz)] = 0;
                         o[dx + 3 * (dy + 3 * dz)] = true;
                         continue;
                     }
-                    l[dx + 3 * (dy + 3 * dz)] = block.getLighting(this.sunlightFactor);
+                    ss[dx + 3 * (dy + 3 * dz)] = Math.max(0,
+                                                          block.getScatteredSunlight());
+                    l[dx + 3 * (dy + 3 * dz)] = Math.max(0, block.getLight());
                     o[dx + 3 * (dy + 3 * dz)] = block.isOpaque();
                 }
             }
         }
+        return makeLightingArray(b, ss, l, o);
+    }
+
+    /** makes the lighting array of <code>b</code> from the scattered
+     * sunlight, light and opaqueness of its 3x3x3 neighborhood. the
+     * neighborhood arrays are overwritten.
+     * 
+     * @param b
+     *            the block to set the lighting array of
+     * @param ss
+     *            the scattered sunlight of the neighborhood
+     * @param l
+     *            the light of the neighborhood
+     * @param o
+     *            if each block in the neighborhood is opaque
+     * @return the new lighting array */
+    private int[] makeLightingArray(final Block b,
+                                    final int[] ss,
+                                    final int[] l,
+                                    final boolean[] o)
+    {
+        int fl[] = Block.allocateLightingArray();
+        fillLightingArray(fl, ss, l, o);
+        b.setLightingArray(fl, this.displayListValidTag);
+        return fl;
+    }
+
+    /** calculates a lighting array from the scattered sunlight, light and
+     * opaqueness of a 3x3x3 neighborhood. the neighborhood arrays are
+     * overwritten.
+     * 
+     * @param fl
+     *            the lighting array to fill
+     * @param ss
+     *            the scattered sunlight of the neighborhood
+     * @param l
+     *            the light of the neighborhood
+     * @param o
+     *            if each block in the neighborhood is opaque */
+    private static void fillLightingArray(final int[] fl,
+                                          final int[] ss,
+                                          final int[] l,
+                                          final boolean[] o)
+    {
         for(int i = 2; i <= 3; i++)
         {
             for(int x = 0; x < 3; x++)
@@ -2299,17 +5432,19 @@ public final class World
         for(int i = 0; i < 3 * 3 * 3; i++)
         {
             if(o[i])
+            {
+                ss[i] = 0;
                 l[i] = 0;
+            }
         }
-        int fl[] = Block.allocateLightingArray();
-        assert fl.length == 2 * 2 * 2;
+        assert fl.length == 2 * 2 * 2 * 2;
         for(int x = 0; x < 2; x++)
         {
             for(int y = 0; y < 2; y++)
             {
                 for(int z = 0; z < 2; z++)
                 {
-                    int v = 0;
+                    int vss = 0, vl = 0;
                     for(int dx = 0; dx < 2; dx++)
                     {
                         for(int dy = 0; dy < 2; dy++)
@@ -2319,346 +5454,329 @@ public final class World
                                 int cx = x + dx;
                                 int cy = y + dy;
                                 int cz = z + dz;
-                                v = Math.max(v, l[cx + 3 * (cy + 3 * cz)]);
+                                vss = Math.max(vss, ss[cx + 3 * (cy + 3 * cz)]);
+                                vl = Math.max(vl, l[cx + 3 * (cy + 3 * cz)]);
                             }
                         }
                     }
-                    v = Math.max(0, v - getDarkeningFactor(x, y, z, o) * 3);
-                    fl[x + 2 * (y + 2 * z)] = v;
+                    int darkening = getDarkeningFactor(x, y, z, o) * 3;
+                    fl[x + 2 * (y + 2 * z)] = Math.max(0, vss - darkening);
+                    fl[x + 2 * (y + 2 * z) + 2 * 2 * 2] = Math.max(0, vl
+                            - darkening);
                 }
             }
         }
-        b.setLightingArray(fl, this.sunlightFactor, this.displayListValidTag);
-        return fl;
     }
 
-    int[] getLightingArray(final int bx, final int by, final int bz)
-    {
-        int cx1 = bx & ~(Chunk.size - 1);
-        int cy1 = by & ~(Chunk.size - 1);
-        int cz1 = bz & ~(Chunk.size - 1);
-        Chunk retval = null;
-        if(this.lastChunk != null && this.lastChunk.orgx == cx1
-                && this.lastChunk.orgy == cy1 && this.lastChunk.orgz == cz1)
-            retval = this.lastChunk;
-        else
+    private int[] chunkLighting_ss = null;
+    private int[] chunkLighting_l = null;
+    private boolean[] chunkLighting_o = null;
+    private final Chunk[] chunkLighting_chunks = new Chunk[3 * 3 * 3];
+
+    /** reads the lighting and opaqueness of <code>pnode</code> and a one
+     * block border around it into <code>chunkLighting_*</code>, so the
+     * lighting arrays of the blocks in it can be made without looking up
+     * every neighbor in the hash table
+     * 
+     * @param pnode
+     *            the chunk to read */
+    private void loadChunkLighting(final Chunk pnode)
+    {
+        final int bsize = Chunk.size + 2;
+        if(this.chunkLighting_ss == null
+                || this.chunkLighting_ss.length != bsize * bsize * bsize)
+        {
+            this.chunkLighting_ss = new int[bsize * bsize * bsize];
+            this.chunkLighting_l = new int[bsize * bsize * bsize];
+            this.chunkLighting_o = new boolean[bsize * bsize * bsize];
+        }
+        loadChunkLighting(pnode,
+                          1,
+                          this.chunkLighting_ss,
+                          this.chunkLighting_l,
+                          this.chunkLighting_o,
+                          null);
+    }
+
+    /** reads the lighting and opaqueness of <code>pnode</code> and a border
+     * around it. the arrays are indexed by
+     * <code>x + border + bsize * (y + border + bsize * (z + border))</code>
+     * where <code>bsize</code> is <code>Chunk.size + 2 * border</code>.
+     * 
+     * @param pnode
+     *            the chunk to read
+     * @param border
+     *            the width of the border, no more than
+     *            <code>Chunk.size</code>
+     * @param ss
+     *            the array to put the scattered sunlight in
+     * @param l
+     *            the array to put the light in
+     * @param o
+     *            the array to put if each block is opaque in. missing blocks
+     *            are opaque.
+     * @param present
+     *            the array to put if each block exists in or
+     *            <code>null</code> */
+    private void loadChunkLighting(final Chunk pnode,
+                                   final int border,
+                                   final int[] ss,
+                                   final int[] l,
+                                   final boolean[] o,
+                                   final boolean[] present)
+    {
+        final int size = Chunk.size, bsize = Chunk.size + 2 * border;
+        final Chunk[] chunks = this.chunkLighting_chunks;
+        for(int dx = 0; dx < 3; dx++)
         {
-            int hash = hashChunkPos(cx1, cy1, cz1);
-            Chunk lastNode = null;
-            Chunk node = this.hashTable[hash];
-            while(node != null)
+            for(int dy = 0; dy < 3; dy++)
             {
-                if(node.orgx == cx1 && node.orgy == cy1 && node.orgz == cz1)
+                for(int dz = 0; dz < 3; dz++)
                 {
-                    if(lastNode != null)
-                    {
-                        lastNode.next = node.next;
-                        node.next = this.hashTable[hash];
-                        this.hashTable[hash] = node;
-                    }
-                    this.lastChunk = node;
-                    break;
+                    if(dx == 1 && dy == 1 && dz == 1)
+                        chunks[dx + 3 * (dy + 3 * dz)] = pnode;
+                    else
+                        chunks[dx + 3 * (dy + 3 * dz)] = find(pnode.orgx
+                                + (dx - 1) * size, pnode.orgy + (dy - 1)
+                                * size, pnode.orgz + (dz - 1) * size);
                 }
-                lastNode = node;
-                node = node.next;
             }
-            retval = node;
-        }
-        Chunk c = retval;
-        Block b1 = null;
-        if(c != null)
-            b1 = c.blocks[bx - cx1 + Chunk.size
-                    * (by - cy1 + Chunk.size * (bz - cz1))];
-        Block b = b1;
-        int[] l = getLightingArray_empty;
-        if(b != null)
-        {
-            l = b.getLightingArray(this.sunlightFactor,
-                                   this.displayListValidTag);
-            if(l == null)
-                l = makeLightingArray(bx, by, bz, b);
         }
-        return l;
-    }
-
-    @SuppressWarnings("unused")
-    private static float getLighting(final float x,
-                                     final float y,
-                                     final float z,
-                                     final int l[])
-    {
-        float nx = 1 - x, ny = 1 - y, nz = 1 - z;
-        float l00 = nz * l[0 + 2 * (0 + 2 * 0)] + z * l[0 + 2 * (0 + 2 * 1)];
-        float l10 = nz * l[1 + 2 * (0 + 2 * 0)] + z * l[1 + 2 * (0 + 2 * 1)];
-        float l01 = nz * l[0 + 2 * (1 + 2 * 0)] + z * l[0 + 2 * (1 + 2 * 1)];
-        float l11 = nz * l[1 + 2 * (1 + 2 * 0)] + z * l[1 + 2 * (1 + 2 * 1)];
-        float l0 = ny * l00 + y * l01;
-        float l1 = ny * l10 + y * l11;
-        return (nx * l0 + x * l1) / 15.0f;
-    }
-
-    private static final boolean skipLighting = false;
-
-    public float getLighting(final float x_in,
-                             final float y_in,
-                             final float z_in,
-                             final int bx,
-                             final int by,
-                             final int bz)
-    {
-        if(skipLighting)
-            return 1;
-        int cx1 = bx & ~(Chunk.size - 1);
-        int cy1 = by & ~(Chunk.size - 1);
-        int cz1 = bz & ~(Chunk.size - 1);
-        Chunk retval = null;
-        if(this.lastChunk != null && this.lastChunk.orgx == cx1
-                && this.lastChunk.orgy == cy1 && this.lastChunk.orgz == cz1)
-            retval = this.lastChunk;
-        else
+        for(int z = -border; z < size + border; z++)
         {
-            int hash = hashChunkPos(cx1, cy1, cz1);
-            Chunk lastNode = null;
-            Chunk node = this.hashTable[hash];
-            while(node != null)
+            int dz = z < 0 ? 0 : (z >= size ? 2 : 1);
+            int lz = z - (dz - 1) * size;
+            for(int y = -border; y < size + border; y++)
             {
-                if(node.orgx == cx1 && node.orgy == cy1 && node.orgz == cz1)
+                int dy = y < 0 ? 0 : (y >= size ? 2 : 1);
+                int ly = y - (dy - 1) * size;
+                for(int x = -border; x < size + border; x++)
                 {
-                    if(lastNode != null)
+                    int dx = x < 0 ? 0 : (x >= size ? 2 : 1);
+                    int lx = x - (dx - 1) * size;
+                    int bindex = x + border + bsize
+                            * (y + border + bsize * (z + border));
+                    Chunk c = chunks[dx + 3 * (dy + 3 * dz)];
+                    Block block = null;
+                    int index = lx + size * (ly + size * lz);
+                    if(c != null)
+                        block = c.peekBlock(index);
+                    if(present != null)
+                        present[bindex] = block != null;
+                    if(block == null)
                     {
-                        lastNode.next = node.next;
-                        node.next = this.hashTable[hash];
-                        this.hashTable[hash] = node;
+                        ss[bindex] = 0;
+                        l[bindex] = 0;
+                        o[bindex] = true;
+                        continue;
                     }
-                    this.lastChunk = node;
-                    break;
+                    ss[bindex] = Math.max(0, c.getScatteredSunlight(index));
+                    l[bindex] = Math.max(0, c.getLight(index));
+                    o[bindex] = block.isOpaque();
                 }
-                lastNode = node;
-                node = node.next;
             }
-            retval = node;
-        }
-        Chunk c = retval;
-        Block b1 = null;
-        if(c != null)
-            b1 = c.blocks[bx - cx1 + Chunk.size
-                    * (by - cy1 + Chunk.size * (bz - cz1))];
-        Block b = b1;
-        int[] l2 = getLightingArray_empty;
-        if(b != null)
-        {
-            l2 = b.getLightingArray(this.sunlightFactor,
-                                    this.displayListValidTag);
-            if(l2 == null)
-                l2 = makeLightingArray(bx, by, bz, b);
         }
-        int l[] = l2;
-        float x = x_in - bx;
-        float y = y_in - by;
-        float z = z_in - bz;
-        float nx = 1 - x, ny = 1 - y, nz = 1 - z;
-        float l00 = nz * l[0 + 2 * (0 + 2 * 0)] + z * l[0 + 2 * (0 + 2 * 1)];
-        float l10 = nz * l[1 + 2 * (0 + 2 * 0)] + z * l[1 + 2 * (0 + 2 * 1)];
-        float l01 = nz * l[0 + 2 * (1 + 2 * 0)] + z * l[0 + 2 * (1 + 2 * 1)];
-        float l11 = nz * l[1 + 2 * (1 + 2 * 0)] + z * l[1 + 2 * (1 + 2 * 1)];
-        float l0 = ny * l00 + y * l01;
-        float l1 = ny * l10 + y * l11;
-        return (nx * l0 + x * l1) / 15.0f;
+        for(int i = 0; i < 3 * 3 * 3; i++)
+            chunks[i] = null;
     }
 
-    float getLighting(final Vector p, final int bx, final int by, final int bz)
-    {
-        if(skipLighting)
-            return 1;
-        int cx1 = bx & ~(Chunk.size - 1);
-        int cy1 = by & ~(Chunk.size - 1);
-        int cz1 = bz & ~(Chunk.size - 1);
-        Chunk retval = null;
-        if(this.lastChunk != null && this.lastChunk.orgx == cx1
-                && this.lastChunk.orgy == cy1 && this.lastChunk.orgz == cz1)
-            retval = this.lastChunk;
-        else
+    /** makes the lighting array of the block at (<code>x</code>,
+     * <code>y</code>, <code>z</code>) relative to the chunk last read by
+     * <code>loadChunkLighting</code>
+     * 
+     * @param x
+     *            the x coordinate in the chunk
+     * @param y
+     *            the y coordinate in the chunk
+     * @param z
+     *            the z coordinate in the chunk
+     * @param b
+     *            the block to set the lighting array of
+     * @return the new lighting array */
+    private int[] makeChunkLightingArray(final int x,
+                                         final int y,
+                                         final int z,
+                                         final Block b)
+    {
+        final int bsize = Chunk.size + 2;
+        int[] ss = this.getLightingArray_ss;
+        int[] l = this.getLightingArray_l;
+        boolean o[] = this.getLightingArray_o;
+        for(int dz = 0; dz < 3; dz++)
         {
-            int hash = hashChunkPos(cx1, cy1, cz1);
-            Chunk lastNode = null;
-            Chunk node = this.hashTable[hash];
-            while(node != null)
+            for(int dy = 0; dy < 3; dy++)
             {
-                if(node.orgx == cx1 && node.orgy == cy1 && node.orgz == cz1)
-                {
-                    if(lastNode != null)
-                    {
-                        lastNode.next = node.next;
-                        node.next = this.hashTable[hash];
-                        this.hashTable[hash] = node;
-                    }
-                    this.lastChunk = node;
-                    break;
+                int bindex = x + bsize * (y + dy + bsize * (z + dz));
+                int index = 3 * (dy + 3 * dz);
+                for(int dx = 0; dx < 3; dx++)
+                {
+                    ss[index + dx] = this.chunkLighting_ss[bindex + dx];
+                    l[index + dx] = this.chunkLighting_l[bindex + dx];
+                    o[index + dx] = this.chunkLighting_o[bindex + dx];
                 }
-                lastNode = node;
-                node = node.next;
             }
-            retval = node;
         }
-        Chunk c = retval;
+        return makeLightingArray(b, ss, l, o);
+    }
+
+    /** the lighting array of the block being drawn by
+     * <code>drawChunkBlocks</code>, so drawing it doesn't look it up in the
+     * hash table for every vertex */
+    private int[] drawingLightingArray = null;
+    private int drawingLightingX, drawingLightingY, drawingLightingZ;
+
+    int[] getLightingArray(final int bx, final int by, final int bz)
+    {
+        if(this.drawingLightingArray != null && bx == this.drawingLightingX
+                && by == this.drawingLightingY && bz == this.drawingLightingZ)
+            return this.drawingLightingArray;
+        int cx1 = bx & ~(Chunk.size - 1);
+        int cy1 = by & ~(Chunk.size - 1);
+        int cz1 = bz & ~(Chunk.size - 1);
+        Chunk c = find(cx1, cy1, cz1);
         Block b1 = null;
         if(c != null)
-            b1 = c.blocks[bx - cx1 + Chunk.size
-                    * (by - cy1 + Chunk.size * (bz - cz1))];
+            b1 = c.getBlock(bx - cx1 + Chunk.size
+                    * (by - cy1 + Chunk.size * (bz - cz1)));
         Block b = b1;
-        int[] l2 = getLightingArray_empty;
+        int[] l = getLightingArray_empty;
         if(b != null)
         {
-            l2 = b.getLightingArray(this.sunlightFactor,
-                                    this.displayListValidTag);
-            if(l2 == null)
-                l2 = makeLightingArray(bx, by, bz, b);
+            l = b.getLightingArray(this.displayListValidTag);
+            if(l == null)
+                l = makeLightingArray(bx, by, bz, b);
         }
-        int l[] = l2;
-        float x = p.getX() - bx;
-        float y = p.getY() - by;
-        float z = p.getZ() - bz;
+        return l;
+    }
+
+    /** interpolates one channel of a lighting array
+     * 
+     * @param l
+     *            the lighting array
+     * @param offset
+     *            0 for the scattered sunlight or 8 for the light
+     * @param x
+     *            the x coordinate in the block, from 0 to 1
+     * @param y
+     *            the y coordinate in the block, from 0 to 1
+     * @param z
+     *            the z coordinate in the block, from 0 to 1
+     * @return the interpolated value, from 0 to 15 */
+    private static float interpolateLighting(final int l[],
+                                             final int offset,
+                                             final float x,
+                                             final float y,
+                                             final float z)
+    {
         float nx = 1 - x, ny = 1 - y, nz = 1 - z;
-        float l00 = nz * l[0 + 2 * (0 + 2 * 0)] + z * l[0 + 2 * (0 + 2 * 1)];
-        float l10 = nz * l[1 + 2 * (0 + 2 * 0)] + z * l[1 + 2 * (0 + 2 * 1)];
-        float l01 = nz * l[0 + 2 * (1 + 2 * 0)] + z * l[0 + 2 * (1 + 2 * 1)];
-        float l11 = nz * l[1 + 2 * (1 + 2 * 0)] + z * l[1 + 2 * (1 + 2 * 1)];
+        float l00 = nz * l[offset + 0 + 2 * (0 + 2 * 0)] + z
+                * l[offset + 0 + 2 * (0 + 2 * 1)];
+        float l10 = nz * l[offset + 1 + 2 * (0 + 2 * 0)] + z
+                * l[offset + 1 + 2 * (0 + 2 * 1)];
+        float l01 = nz * l[offset + 0 + 2 * (1 + 2 * 0)] + z
+                * l[offset + 0 + 2 * (1 + 2 * 1)];
+        float l11 = nz * l[offset + 1 + 2 * (1 + 2 * 0)] + z
+                * l[offset + 1 + 2 * (1 + 2 * 1)];
         float l0 = ny * l00 + y * l01;
         float l1 = ny * l10 + y * l11;
-        return (nx * l0 + x * l1) / 15.0f;
+        return nx * l0 + x * l1;
     }
 
-    public float getLighting(final float x, final float y, final float z)
+    /** @return the lighting at (<code>x</code>, <code>y</code>,
+     *         <code>z</code>) in the block with lighting array <code>l</code>
+     *         for the current time of day, from 0 to 1 */
+    private float getLighting(final int l[],
+                              final float x,
+                              final float y,
+                              final float z)
+    {
+        float sunlight = interpolateLighting(l, 0, x, y, z);
+        float light = interpolateLighting(l, 2 * 2 * 2, x, y, z);
+        return Math.max(sunlight + this.sunlightFactor - 15, light) / 15.0f;
+    }
+
+    private static final boolean skipLighting = false;
+
+    public float getLighting(final float x_in,
+                             final float y_in,
+                             final float z_in,
+                             final int bx,
+                             final int by,
+                             final int bz)
     {
         if(skipLighting)
             return 1;
-        int bx = (int)Math.floor(x);
-        int by = (int)Math.floor(y);
-        int bz = (int)Math.floor(z);
-        int cx1 = bx & ~(Chunk.size - 1);
-        int cy1 = by & ~(Chunk.size - 1);
-        int cz1 = bz & ~(Chunk.size - 1);
-        Chunk retval = null;
-        if(this.lastChunk != null && this.lastChunk.orgx == cx1
-                && this.lastChunk.orgy == cy1 && this.lastChunk.orgz == cz1)
-            retval = this.lastChunk;
-        else
-        {
-            int hash = hashChunkPos(cx1, cy1, cz1);
-            Chunk lastNode = null;
-            Chunk node = this.hashTable[hash];
-            while(node != null)
-            {
-                if(node.orgx == cx1 && node.orgy == cy1 && node.orgz == cz1)
-                {
-                    if(lastNode != null)
-                    {
-                        lastNode.next = node.next;
-                        node.next = this.hashTable[hash];
-                        this.hashTable[hash] = node;
-                    }
-                    this.lastChunk = node;
-                    break;
-                }
-                lastNode = node;
-                node = node.next;
-            }
-            retval = node;
-        }
-        Chunk c = retval;
-        Block b1 = null;
-        if(c != null)
-            b1 = c.blocks[bx - cx1 + Chunk.size
-                    * (by - cy1 + Chunk.size * (bz - cz1))];
-        Block b = b1;
-        int[] l2 = getLightingArray_empty;
-        if(b != null)
-        {
-            l2 = b.getLightingArray(this.sunlightFactor,
-                                    this.displayListValidTag);
-            if(l2 == null)
-                l2 = makeLightingArray(bx, by, bz, b);
-        }
-        int l[] = l2;
-        float x1 = x - bx;
-        float y1 = y - by;
-        float z1 = z - bz;
-        float nx = 1 - x1, ny = 1 - y1, nz = 1 - z1;
-        float l00 = nz * l[0 + 2 * (0 + 2 * 0)] + z1 * l[0 + 2 * (0 + 2 * 1)];
-        float l10 = nz * l[1 + 2 * (0 + 2 * 0)] + z1 * l[1 + 2 * (0 + 2 * 1)];
-        float l01 = nz * l[0 + 2 * (1 + 2 * 0)] + z1 * l[0 + 2 * (1 + 2 * 1)];
-        float l11 = nz * l[1 + 2 * (1 + 2 * 0)] + z1 * l[1 + 2 * (1 + 2 * 1)];
-        float l0 = ny * l00 + y1 * l01;
-        float l1 = ny * l10 + y1 * l11;
-        return (nx * l0 + x1 * l1) / 15.0f;
+        return getLighting(getLightingArray(bx, by, bz), x_in - bx, y_in
+                - by, z_in - bz);
+    }
+
+    float getLighting(final Vector p, final int bx, final int by, final int bz)
+    {
+        return getLighting(p.getX(), p.getY(), p.getZ(), bx, by, bz);
+    }
+
+    public float getLighting(final float x, final float y, final float z)
+    {
+        return getLighting(x,
+                           y,
+                           z,
+                           (int)Math.floor(x),
+                           (int)Math.floor(y),
+                           (int)Math.floor(z));
     }
 
     float getLighting(final Vector p)
+    {
+        return getLighting(p.getX(), p.getY(), p.getZ());
+    }
+
+    /** gets one channel of the lighting without the time of day, for
+     * vertices that are lit when they're rendered
+     * 
+     * @param p
+     *            the position to get the lighting at
+     * @param bx
+     *            the x coordinate of the block to use the lighting of
+     * @param by
+     *            the y coordinate of the block to use the lighting of
+     * @param bz
+     *            the z coordinate of the block to use the lighting of
+     * @param sunlight
+     *            true for the scattered sunlight at full sun, false for the
+     *            non-sun light
+     * @return the lighting, from 0 to 1
+     * @see RenderingStream#setSunlightFactor(int) */
+    float getLightingChannel(final Vector p,
+                             final int bx,
+                             final int by,
+                             final int bz,
+                             final boolean sunlight)
     {
         if(skipLighting)
             return 1;
-        float x = p.getX();
-        float y = p.getY();
-        float z = p.getZ();
-        int bx = (int)Math.floor(x);
-        int by = (int)Math.floor(y);
-        int bz = (int)Math.floor(z);
-        int cx1 = bx & ~(Chunk.size - 1);
-        int cy1 = by & ~(Chunk.size - 1);
-        int cz1 = bz & ~(Chunk.size - 1);
-        Chunk retval = null;
-        if(this.lastChunk != null && this.lastChunk.orgx == cx1
-                && this.lastChunk.orgy == cy1 && this.lastChunk.orgz == cz1)
-            retval = this.lastChunk;
-        else
-        {
-            int hash = hashChunkPos(cx1, cy1, cz1);
-            Chunk lastNode = null;
-            Chunk node = this.hashTable[hash];
-            while(node != null)
-            {
-                if(node.orgx == cx1 && node.orgy == cy1 && node.orgz == cz1)
-                {
-                    if(lastNode != null)
-                    {
-                        lastNode.next = node.next;
-                        node.next = this.hashTable[hash];
-                        this.hashTable[hash] = node;
-                    }
-                    this.lastChunk = node;
-                    break;
-                }
-                lastNode = node;
-                node = node.next;
-            }
-            retval = node;
-        }
-        Chunk c = retval;
-        Block b1 = null;
-        if(c != null)
-            b1 = c.blocks[bx - cx1 + Chunk.size
-                    * (by - cy1 + Chunk.size * (bz - cz1))];
-        Block b = b1;
-        int[] l2 = getLightingArray_empty;
-        if(b != null)
-        {
-            l2 = b.getLightingArray(this.sunlightFactor,
-                                    this.displayListValidTag);
-            if(l2 == null)
-                l2 = makeLightingArray(bx, by, bz, b);
-        }
-        int l[] = l2;
-        float x1 = x - bx;
-        float y1 = y - by;
-        float z1 = z - bz;
-        float nx = 1 - x1, ny = 1 - y1, nz = 1 - z1;
-        float l00 = nz * l[0 + 2 * (0 + 2 * 0)] + z1 * l[0 + 2 * (0 + 2 * 1)];
-        float l10 = nz * l[1 + 2 * (0 + 2 * 0)] + z1 * l[1 + 2 * (0 + 2 * 1)];
-        float l01 = nz * l[0 + 2 * (1 + 2 * 0)] + z1 * l[0 + 2 * (1 + 2 * 1)];
-        float l11 = nz * l[1 + 2 * (1 + 2 * 0)] + z1 * l[1 + 2 * (1 + 2 * 1)];
-        float l0 = ny * l00 + y1 * l01;
-        float l1 = ny * l10 + y1 * l11;
-        return (nx * l0 + x1 * l1) / 15.0f;
+        return interpolateLighting(getLightingArray(bx, by, bz),
+                                   sunlight ? 0 : 2 * 2 * 2,
+                                   p.getX() - bx,
+                                   p.getY() - by,
+                                   p.getZ() - bz) / 15.0f;
+    }
+
+    /** gets one channel of the lighting without the time of day
+     * 
+     * @param p
+     *            the position to get the lighting at
+     * @param sunlight
+     *            true for the scattered sunlight at full sun, false for the
+     *            non-sun light
+     * @return the lighting, from 0 to 1
+     * @see #getLightingChannel(Vector, int, int, int, boolean) */
+    float getLightingChannel(final Vector p, final boolean sunlight)
+    {
+        return getLightingChannel(p,
+                                  (int)Math.floor(p.getX()),
+                                  (int)Math.floor(p.getY()),
+                                  (int)Math.floor(p.getZ()),
+                                  sunlight);
     }
 
     /** set the seed for this world<br/>
@@ -2672,153 +5790,279 @@ public final class World
         this.landGenerator = Rand.create(newSeed, this.landGeneratorSettings);
     }
 
-    private static class ChunkGenerator implements Runnable
-    {
-        public int cx, cy, cz;
+    /** a request to generate a chunk on the chunk generator pool
+     * 
+     * @author jacob */
+    private static final class ChunkGenerateRequest implements Runnable,
+            Comparable<ChunkGenerateRequest>
+    {
+        public final int cx, cy, cz;
+        /** the distance used to order the requests, nearest first */
+        public final float distance;
+        private final int seed;
+        private final Rand.Settings settings;
+        private final BlockingQueue<ChunkGenerateRequest> completionQueue;
+        /** the request is waiting to be run */
+        private static final int StateWaiting = 0;
+        /** the chunk isn't needed anymore, so it won't be generated if the
+         * request is run before it's requested again */
+        private static final int StateCancelled = 1;
+        /** the chunk is being generated or is done */
+        private static final int StateGenerating = 2;
+        /** the request was run after it was cancelled, so it has no chunk */
+        private static final int StateSkipped = 3;
+        private final AtomicInteger state = new AtomicInteger(StateWaiting);
         public GeneratedChunk newChunk = null;
-        public boolean generated = false;
-        public AtomicBoolean busy = new AtomicBoolean(false);
-        public Rand landGenerator = null;
-        public Rand.Settings landGeneratorSettings = null;
-        private final Thread curThread = new Thread(this, "Chunk Generator");
-        public AtomicBoolean needStart = new AtomicBoolean(false);
-        public final AtomicInteger busyCount;
+        /** the last frame that this chunk was requested in */
+        public long lastRequestedFrame;
+
+        public ChunkGenerateRequest(final int cx,
+                                    final int cy,
+                                    final int cz,
+                                    final float distance,
+                                    final int seed,
+                                    final Rand.Settings settings,
+                                    final BlockingQueue<ChunkGenerateRequest> completionQueue)
+        {
+            this.cx = cx;
+            this.cy = cy;
+            this.cz = cz;
+            this.distance = distance;
+            this.seed = seed;
+            this.settings = settings;
+            this.completionQueue = completionQueue;
+        }
+
+        private static final class ThreadLandGenerator
+        {
+            public Rand landGenerator = null;
+            public Rand.Settings settings = null;
+
+            public ThreadLandGenerator()
+            {
+            }
+        }
 
-        public ChunkGenerator(final AtomicInteger busyCount)
+        private static final ThreadLocal<ThreadLandGenerator> threadLandGenerator = new ThreadLocal<ThreadLandGenerator>()
         {
-            this.busyCount = busyCount;
-            this.curThread.setDaemon(true);
-            this.curThread.setPriority(Thread.MIN_PRIORITY);
-            this.curThread.start();
+            @Override
+            protected ThreadLandGenerator initialValue()
+            {
+                return new ThreadLandGenerator();
+            }
+        };
+
+        private Rand getLandGenerator()
+        {
+            ThreadLandGenerator t = threadLandGenerator.get();
+            if(t.landGenerator == null
+                    || t.landGenerator.getSeed() != this.seed
+                    || !this.settings.equals(t.settings))
+            {
+                if(t.settings != null)
+                    t.settings.free();
+                t.settings = Rand.Settings.allocate(this.settings);
+                if(t.landGenerator != null)
+                    t.landGenerator.free();
+                t.landGenerator = Rand.create(this.seed, t.settings);
+            }
+            return t.landGenerator;
+        }
+
+        /** cancels this request if it hasn't started generating yet */
+        public void cancel()
+        {
+            this.state.compareAndSet(StateWaiting, StateCancelled);
+        }
+
+        /** requests this chunk again, undoing <code>cancel</code> if this
+         * request hasn't been run yet
+         * 
+         * @return false if this request was skipped, so it won't make a chunk */
+        public boolean request()
+        {
+            if(this.state.compareAndSet(StateCancelled, StateWaiting))
+                return true;
+            return this.state.get() != StateSkipped;
         }
 
         @Override
         public void run()
         {
-            while(true)
+            try
             {
-                synchronized(this.needStart)
+                for(;;)
                 {
-                    while(!this.needStart.get())
+                    if(this.state.compareAndSet(StateWaiting, StateGenerating))
                     {
-                        try
-                        {
-                            this.needStart.wait();
-                        }
-                        catch(InterruptedException e)
-                        {
-                        }
+                        this.newChunk = getLandGenerator().genChunk(this.cx,
+                                                                    this.cy,
+                                                                    this.cz,
+                                                                    generatedChunkSize);
+                        break;
                     }
-                    this.needStart.set(false);
-                }
-                this.busyCount.incrementAndGet();
-                this.newChunk = this.landGenerator.genChunk(this.cx,
-                                                            this.cy,
-                                                            this.cz,
-                                                            Chunk.size
-                                                                    * generatedChunkScale);
-                this.generated = true;
-                synchronized(this.busyCount)
-                {
-                    this.busy.set(false);
-                    this.busyCount.decrementAndGet();
-                    this.busyCount.notifyAll();
+                    if(this.state.compareAndSet(StateCancelled, StateSkipped))
+                        break;
                 }
             }
+            finally
+            {
+                this.completionQueue.add(this);
+            }
+        }
+
+        @Override
+        public int compareTo(final ChunkGenerateRequest rt)
+        {
+            return Float.compare(this.distance, rt.distance);
+        }
+
+        public void free()
+        {
+            if(this.newChunk != null)
+                this.newChunk.free();
+            this.newChunk = null;
+            this.settings.free();
         }
     }
 
     public static final int generatedChunkSize = Chunk.size
             * generatedChunkScale;
-    private static final int chunkGeneratorCount = 5;
-    private final AtomicInteger chunkGeneratorBusyCount = new AtomicInteger(0);
-    private final ChunkGenerator[] chunkGenerator = new ChunkGenerator[chunkGeneratorCount];
+    private static final ExecutorService chunkGeneratorPool = new ThreadPoolExecutor(chunkGeneratorCount,
+                                                                                     chunkGeneratorCount,
+                                                                                     0,
+                                                                                     TimeUnit.SECONDS,
+                                                                                     new PriorityBlockingQueue<Runnable>(),
+                                                                                     new ThreadFactory()
+                                                                                     {
+                                                                                         @Override
+                                                                                         public Thread
+                                                                                             newThread(final Runnable r)
+                                                                                         {
+                                                                                             Thread retval = new Thread(r,
+                                                                                                                        "Chunk Generator");
+                                                                                             retval.setDaemon(true);
+                                                                                             retval.setPriority(Thread.MIN_PRIORITY);
+                                                                                             return retval;
+                                                                                         }
+                                                                                     });
+    private final BlockingQueue<ChunkGenerateRequest> chunkGenerateCompletionQueue = new LinkedBlockingQueue<ChunkGenerateRequest>();
+    private final ChunkGenerateRequest[] chunkGenerateRequests = new ChunkGenerateRequest[maxChunkGenerateRequests];
+    private int chunkGenerateRequestCount = 0;
+    private long chunkGenerateFrame = 0;
+
+    /** requests a chunk again if there's a request for it that can still
+     * generate it. a request that was skipped after it was cancelled will
+     * finish without a chunk, so a new request has to be made instead.
+     * 
+     * @param cx
+     *            the chunk x coordinate
+     * @param cy
+     *            the chunk y coordinate
+     * @param cz
+     *            the chunk z coordinate
+     * @return if there's a request that will generate the chunk */
+    private boolean requestChunkAgain(final int cx, final int cy, final int cz)
+    {
+        for(int i = 0; i < this.chunkGenerateRequestCount; i++)
+        {
+            ChunkGenerateRequest r = this.chunkGenerateRequests[i];
+            if(r.cx == cx && r.cy == cy && r.cz == cz && r.request())
+            {
+                r.lastRequestedFrame = this.chunkGenerateFrame;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeChunkGenerateRequest(final ChunkGenerateRequest r)
+    {
+        for(int i = 0; i < this.chunkGenerateRequestCount; i++)
+        {
+            if(this.chunkGenerateRequests[i] == r)
+            {
+                this.chunkGenerateRequests[i] = this.chunkGenerateRequests[--this.chunkGenerateRequestCount];
+                this.chunkGenerateRequests[this.chunkGenerateRequestCount] = null;
+                return;
+            }
+        }
+        throw new RuntimeException("chunk generate request not found");
+    }
+
+    private void finishChunkGenerateRequest(final ChunkGenerateRequest r)
     {
-        for(int i = 0; i < chunkGeneratorCount; i++)
-            this.chunkGenerator[i] = new ChunkGenerator(this.chunkGeneratorBusyCount);
+        removeChunkGenerateRequest(r);
+        if(r.newChunk != null && !isGenerated(r.cx, r.cy, r.cz))
+        {
+            addGeneratedChunk(r.newChunk);
+            r.newChunk = null;
+        }
+        r.free();
     }
 
     private void clearChunkGenerator()
     {
-        for(int i = 0; i < chunkGeneratorCount; i++)
+        for(int i = 0; i < this.chunkGenerateRequestCount; i++)
+            this.chunkGenerateRequests[i].cancel();
+        while(this.chunkGenerateRequestCount > 0)
         {
-            synchronized(this.chunkGeneratorBusyCount)
+            ChunkGenerateRequest r;
+            try
             {
-                while(this.chunkGenerator[i].busy.get())
-                {
-                    try
-                    {
-                        this.chunkGeneratorBusyCount.wait();
-                    }
-                    catch(InterruptedException e)
-                    {
-                    }
-                }
+                r = this.chunkGenerateCompletionQueue.take();
+            }
+            catch(InterruptedException e)
+            {
+                continue;
             }
-            if(this.chunkGenerator[i].landGenerator != null)
-                this.chunkGenerator[i].landGenerator.free();
-            this.chunkGenerator[i].landGenerator = null;
-            if(this.chunkGenerator[i].landGeneratorSettings != null)
-                this.chunkGenerator[i].landGeneratorSettings.free();
-            this.chunkGenerator[i].landGeneratorSettings = null;
-            if(this.chunkGenerator[i].newChunk != null)
-                this.chunkGenerator[i].newChunk.free();
-            this.chunkGenerator[i].newChunk = null;
+            removeChunkGenerateRequest(r);
+            r.free();
         }
+        clearGenChunk();
     }
 
     /** generate chunks */
     public void generateChunks()
     {
         boolean addedAnyChunks = false;
-        for(int i = 0; i < chunkGeneratorCount; i++)
+        for(ChunkGenerateRequest r = this.chunkGenerateCompletionQueue.poll(); r != null; r = this.chunkGenerateCompletionQueue.poll())
         {
-            if(this.chunkGenerator[i].busy.get())
-                return;
-            if(this.chunkGenerator[i].generated)
-            {
-                addGeneratedChunk(this.chunkGenerator[i].newChunk);
-                this.chunkGenerator[i].generated = false;
-                this.chunkGenerator[i].newChunk = null;
+            if(r.newChunk != null)
                 addedAnyChunks = true;
-            }
-            if(this.genChunkDistance < 0)
-                return;
-            if(isGenerated(this.genChunkX, this.genChunkY, this.genChunkZ))
-            {
-                this.genChunkDistance = -1;
-                return;
-            }
-            final int generateSize = Chunk.size * generatedChunkScale;
-            this.chunkGenerator[i].cx = this.genChunkX
-                    - (this.genChunkX & (generateSize - 1));
-            this.chunkGenerator[i].cy = this.genChunkY
-                    - (this.genChunkY & (generateSize - 1));
-            this.chunkGenerator[i].cz = this.genChunkZ
-                    - (this.genChunkZ & (generateSize - 1));
-            if(this.chunkGenerator[i].landGenerator == null
-                    || this.chunkGenerator[i].landGenerator.getSeed() != this.landGenerator.getSeed()
-                    || this.chunkGenerator[i].landGeneratorSettings == null
-                    || !this.chunkGenerator[i].landGeneratorSettings.equals(this.landGeneratorSettings))
-            {
-                if(this.chunkGenerator[i].landGeneratorSettings != null)
-                    this.chunkGenerator[i].landGeneratorSettings.free();
-                this.chunkGenerator[i].landGeneratorSettings = Rand.Settings.allocate(this.landGeneratorSettings);
-                if(this.chunkGenerator[i].landGenerator != null)
-                    this.chunkGenerator[i].landGenerator.free();
-                this.chunkGenerator[i].landGenerator = Rand.create(this.landGenerator.getSeed(),
-                                                                   this.chunkGenerator[i].landGeneratorSettings);
-            }
-            synchronized(this.chunkGenerator[i].needStart)
-            {
-                this.chunkGenerator[i].busy.set(true);
-                this.chunkGenerator[i].needStart.set(true);
-                this.chunkGenerator[i].needStart.notifyAll();
-            }
-            this.genChunkDistance = -1;
+            finishChunkGenerateRequest(r);
+        }
+        for(int i = 0; i < this.chunkGenerateRequestCount; i++)
+        {
+            ChunkGenerateRequest r = this.chunkGenerateRequests[i];
+            if(r.lastRequestedFrame != this.chunkGenerateFrame)
+                r.cancel();
         }
+        for(int i = 0; i < this.genChunkCount
+                && this.chunkGenerateRequestCount < maxChunkGenerateRequests; i++)
+        {
+            int cx = this.genChunkX[i], cy = this.genChunkY[i], cz = this.genChunkZ[i];
+            if(isGenerated(cx, cy, cz))
+                continue;
+            ChunkGenerateRequest r = new ChunkGenerateRequest(cx,
+                                                              cy,
+                                                              cz,
+                                                              this.genChunkDistance[i],
+                                                              this.landGenerator.getSeed(),
+                                                              Rand.Settings.allocate(this.landGeneratorSettings),
+                                                              this.chunkGenerateCompletionQueue);
+            r.lastRequestedFrame = this.chunkGenerateFrame;
+            this.chunkGenerateRequests[this.chunkGenerateRequestCount++] = r;
+            chunkGeneratorPool.execute(r);
+        }
+        if(Main.DEBUG)
+            Main.addToFrameText("Chunk Generate Requests : "
+                    + this.chunkGenerateRequestCount + " / "
+                    + maxChunkGenerateRequests + "\n");
+        clearGenChunk();
+        this.chunkGenerateFrame++;
         if(addedAnyChunks)
-            updateLight();
+            updateLightInBackground();
     }
 
     /** insert a new entity into this world
@@ -3225,84 +6469,41 @@ public final class World
 
     private void runRandomMove()
     {
-        if(this.chunkCount == 0)
+        long chunkCount = this.chunks.getCount();
+        if(chunkCount == 0)
             return;
         int count = (int)Math.floor((Chunk.size * Chunk.size * Chunk.size * 3
-                / 16f / 16f / 16f * this.chunkCount)
+                / 16f / 16f / 16f * chunkCount)
                 * 20f * (float)Main.getFrameDuration() + fRand(0, 1) % 1f);
         for(int i = 0; i < count; i++)
         {
-            int hash = (int)Math.floor(fRand(0, WorldHashPrime))
-                    % WorldHashPrime;
-            while(this.hashTable[hash] == null)
-            {
-                hash++;
-                hash %= WorldHashPrime;
-            }
-            int bucketSize = 0;
-            for(Chunk node = this.hashTable[hash]; node != null; node = node.next)
-                bucketSize++;
-            int index = (int)Math.floor(fRand(0, bucketSize));
-            if(index >= bucketSize)
-                index = bucketSize - 1;
-            for(Chunk node = this.hashTable[hash]; node != null; node = node.next)
+            Chunk node = this.chunks.getRandom();
+            int x = node.orgx + (int)Math.floor(fRand(0.0f, Chunk.size));
+            int y = node.orgy + (int)Math.floor(fRand(0.0f, Chunk.size));
+            int z = node.orgz + (int)Math.floor(fRand(0.0f, Chunk.size));
+            Block b = getBlockEval(x, y, z);
+            if(b != null)
             {
-                if(index-- <= 0)
+                Block destB = b.moveRandom(x, y, z);
+                if(destB != null)
                 {
-                    int x = node.orgx
-                            + (int)Math.floor(fRand(0.0f, Chunk.size));
-                    int y = node.orgy
-                            + (int)Math.floor(fRand(0.0f, Chunk.size));
-                    int z = node.orgz
-                            + (int)Math.floor(fRand(0.0f, Chunk.size));
-                    Block b = getBlockEval(x, y, z);
-                    if(b != null)
-                    {
-                        Block destB = b.moveRandom(x, y, z);
-                        if(destB != null)
-                        {
-                            setBlock(x, y, z, destB);
-                            b.free();
-                        }
-                    }
-                    break;
+                    setBlock(x, y, z, destB);
+                    b.free();
                 }
             }
         }
         count = (int)Math.floor(Chunk.size * Chunk.size * Chunk.size / 16f
-                / 256f / 16f * 1.5f * this.chunkCount * 20f
+                / 256f / 16f * 1.5f * chunkCount * 20f
                 * (float)Main.getFrameDuration() + fRand(0, 1) % 1f);
         if(Main.DEBUG)
             Main.addToFrameText("mob gen count : " + count + "\n");
         for(int i = 0; i < count; i++)
         {
-            int hash = (int)Math.floor(fRand(0, WorldHashPrime))
-                    % WorldHashPrime;
-            while(this.hashTable[hash] == null)
-            {
-                hash++;
-                hash %= WorldHashPrime;
-            }
-            int bucketSize = 0;
-            for(Chunk node = this.hashTable[hash]; node != null; node = node.next)
-                bucketSize++;
-            int index = (int)Math.floor(fRand(0, bucketSize));
-            if(index >= bucketSize)
-                index = bucketSize - 1;
-            for(Chunk node = this.hashTable[hash]; node != null; node = node.next)
-            {
-                if(index-- <= 0)
-                {
-                    int x = node.orgx
-                            + (int)Math.floor(fRand(0.0f, Chunk.size));
-                    int y = node.orgy
-                            + (int)Math.floor(fRand(0.0f, Chunk.size));
-                    int z = node.orgz
-                            + (int)Math.floor(fRand(0.0f, Chunk.size));
-                    runGenerateMob(x, y, z);
-                    break;
-                }
-            }
+            Chunk node = this.chunks.getRandom();
+            int x = node.orgx + (int)Math.floor(fRand(0.0f, Chunk.size));
+            int y = node.orgy + (int)Math.floor(fRand(0.0f, Chunk.size));
+            int z = node.orgz + (int)Math.floor(fRand(0.0f, Chunk.size));
+            runGenerateMob(x, y, z);
         }
     }
 
@@ -3314,9 +6515,30 @@ public final class World
     private double curTime = 0.0;
     public static boolean useFastTime = false;
 
+    private static final int compactChunksPerMove = Math.max(1, 4096
+            / (Chunk.size * Chunk.size * Chunk.size));
+    private Chunk compactChunksHand = null;
+
+    /** moves blocks that can be shared back into their chunk's palette, a few
+     * chunks at a time. must only be called when nothing holds references to
+     * blocks in the world. */
+    private void compactChunks()
+    {
+        for(int i = 0; i < compactChunksPerMove; i++)
+        {
+            if(this.compactChunksHand == null)
+                this.compactChunksHand = this.chunksHead;
+            if(this.compactChunksHand == null)
+                return;
+            this.compactChunksHand.compact();
+            this.compactChunksHand = this.compactChunksHand.listnext;
+        }
+    }
+
     /** moves everything in this world except the players */
     public void move()
     {
+        compactChunks();
         this.curTime += Main.getFrameDuration();
         final float dayDuration = 20.0f * 60.0f;
         float oldTimeOfDay = this.timeOfDay;
@@ -3329,7 +6551,8 @@ public final class World
         runRandomMove();
         generateAllTrees();
         runAllExplosions();
-        updateLight();
+        updateLightInBackground();
+        finishLightingFrame();
         handleBackgroundMusic(oldTimeOfDay, getTimeOfDay());
     }
 
@@ -3933,6 +7156,7 @@ public final class World
      *             the exception thrown */
     public static void write(final DataOutput o) throws IOException
     {
+        world.updateLight();
         o.writeInt(fileVersion);
         o.writeInt(world.landGenerator.getSeed());
         world.landGeneratorSettings.write(o);
@@ -3967,7 +7191,8 @@ public final class World
                     {
                         for(int z = 0; z < Chunk.size; z++)
                         {
-                            c.blocks[x + Chunk.size * (y + Chunk.size * z)].write(o);
+                            c.writeBlock(x + Chunk.size
+                                    * (y + Chunk.size * z), o);
                         }
                     }
                 }
@@ -4069,6 +7294,92 @@ public final class World
         return v;
     }
 
+    /** the chunk size used by file versions before 4, which didn't store it */
+    private static final int legacyChunkSize = 4;
+    private boolean hasPartiallyReadChunks = false;
+
+    private static void readChunk(final DataInput i,
+                                  final int cx,
+                                  final int cy,
+                                  final int cz,
+                                  final int chunkSize,
+                                  final boolean updateBlocks)
+            throws IOException
+    {
+        if(chunkSize < Chunk.minSize || chunkSize > Chunk.maxSize
+                || (chunkSize & (chunkSize - 1)) != 0)
+            throw new IOException("chunk size not valid");
+        if(cx != (cx & ~(chunkSize - 1)) || cy != (cy & ~(chunkSize - 1))
+                || cz != (cz & ~(chunkSize - 1)))
+            throw new IOException("chunk origin not valid");
+        for(int x = cx; x < cx + chunkSize; x++)
+        {
+            for(int y = cy; y < cy + chunkSize; y++)
+            {
+                for(int z = cz; z < cz + chunkSize; z++)
+                {
+                    if(updateBlocks)
+                        world.setBlock(x, y, z, Block.read(i));
+                    else
+                        world.internalSetBlock(x, y, z, Block.read(i));
+                }
+            }
+            Main.setProgress(x - cx);
+        }
+        if(chunkSize < Chunk.size)
+        {
+            world.hasPartiallyReadChunks = true;
+            return;
+        }
+        for(int x = cx; x < cx + chunkSize; x += Chunk.size)
+        {
+            for(int y = cy; y < cy + chunkSize; y += Chunk.size)
+            {
+                for(int z = cz; z < cz + chunkSize; z += Chunk.size)
+                {
+                    world.setGenerated(x, y, z, true);
+                }
+            }
+        }
+    }
+
+    /** fills in the blocks of chunks that were only partially read because
+     * the file was saved with a smaller chunk size */
+    private void finishPartiallyReadChunks()
+    {
+        if(!this.hasPartiallyReadChunks)
+            return;
+        this.hasPartiallyReadChunks = false;
+        for(Chunk c = this.chunksHead; c != null; c = c.listnext)
+        {
+            if(isGenerated(c.orgx, c.orgy, c.orgz))
+                continue;
+            GeneratedChunk generatedChunk = this.landGenerator.genChunk(c.orgx,
+                                                                        c.orgy,
+                                                                        c.orgz,
+                                                                        generatedChunkSize);
+            for(int x = c.orgx; x < c.orgx + Chunk.size; x++)
+            {
+                for(int y = c.orgy; y < c.orgy + Chunk.size; y++)
+                {
+                    for(int z = c.orgz; z < c.orgz + Chunk.size; z++)
+                    {
+                        if(c.hasBlock(x - c.orgx + Chunk.size
+                                * (y - c.orgy + Chunk.size * (z - c.orgz))))
+                            continue;
+                        internalSetBlock(x,
+                                         y,
+                                         z,
+                                         generatedChunk.getBlock(x, y, z)
+                                                       .dup());
+                    }
+                }
+            }
+            generatedChunk.free();
+            setGenerated(c.orgx, c.orgy, c.orgz, true);
+        }
+    }
+
     private static void
         readVer4(final DataInput i, final int v) throws IOException
     {
@@ -4100,27 +7411,11 @@ public final class World
                 int cy = i.readInt();
                 int cz = i.readInt();
                 int chunkSize = i.readInt();
-                if(chunkSize != Chunk.size)
-                    throw new IOException("chunk size not valid");
-                if(cx != (cx & ~(Chunk.size - 1))
-                        || cy != (cy & ~(Chunk.size - 1))
-                        || cz != (cz & ~(Chunk.size - 1)))
-                    throw new IOException("chunk origin not valid");
-                Main.pushProgress(progress++, 1.0f / Chunk.size);
-                for(int x = cx; x < cx + Chunk.size; x++)
-                {
-                    for(int y = cy; y < cy + Chunk.size; y++)
-                    {
-                        for(int z = cz; z < cz + Chunk.size; z++)
-                        {
-                            world.internalSetBlock(x, y, z, Block.read(i));
-                        }
-                    }
-                    Main.setProgress(x);
-                }
-                world.setGenerated(cx, cy, cz, true);
+                Main.pushProgress(progress++, 1.0f / chunkSize);
+                readChunk(i, cx, cy, cz, chunkSize, false);
                 Main.popProgress();
             }
+            world.finishPartiallyReadChunks();
             Main.popProgress();
             Main.popProgress();
         }
@@ -4232,25 +7527,11 @@ public final class World
                 int cx = i.readInt();
                 int cy = i.readInt();
                 int cz = i.readInt();
-                if(cx != (cx & ~(Chunk.size - 1))
-                        || cy != (cy & ~(Chunk.size - 1))
-                        || cz != (cz & ~(Chunk.size - 1)))
-                    throw new IOException("chunk origin not valid");
-                Main.pushProgress(progress++, 1.0f / Chunk.size);
-                for(int x = cx; x < cx + Chunk.size; x++)
-                {
-                    for(int y = cy; y < cy + Chunk.size; y++)
-                    {
-                        for(int z = cz; z < cz + Chunk.size; z++)
-                        {
-                            world.internalSetBlock(x, y, z, Block.read(i));
-                        }
-                    }
-                    Main.setProgress(x);
-                }
-                world.setGenerated(cx, cy, cz, true);
+                Main.pushProgress(progress++, 1.0f / legacyChunkSize);
+                readChunk(i, cx, cy, cz, legacyChunkSize, false);
                 Main.popProgress();
             }
+            world.finishPartiallyReadChunks();
             Main.popProgress();
             Main.popProgress();
         }
@@ -4352,25 +7633,11 @@ public final class World
                 int cx = i.readInt();
                 int cy = i.readInt();
                 int cz = i.readInt();
-                if(cx != (cx & ~(Chunk.size - 1))
-                        || cy != (cy & ~(Chunk.size - 1))
-                        || cz != (cz & ~(Chunk.size - 1)))
-                    throw new IOException("chunk origin not valid");
-                Main.pushProgress(progress++, 1.0f / Chunk.size);
-                for(int x = cx; x < cx + Chunk.size; x++)
-                {
-                    for(int y = cy; y < cy + Chunk.size; y++)
-                    {
-                        for(int z = cz; z < cz + Chunk.size; z++)
-                        {
-                            world.internalSetBlock(x, y, z, Block.read(i));
-                        }
-                    }
-                    Main.setProgress(x);
-                }
-                world.setGenerated(cx, cy, cz, true);
+                Main.pushProgress(progress++, 1.0f / legacyChunkSize);
+                readChunk(i, cx, cy, cz, legacyChunkSize, false);
                 Main.popProgress();
             }
+            world.finishPartiallyReadChunks();
             Main.popProgress();
             Main.popProgress();
         }
@@ -4464,21 +7731,9 @@ public final class World
             int cx = i.readInt();
             int cy = i.readInt();
             int cz = i.readInt();
-            if(cx != (cx & ~(Chunk.size - 1)) || cy != (cy & ~(Chunk.size - 1))
-                    || cz != (cz & ~(Chunk.size - 1)))
-                throw new IOException("chunk origin not valid");
-            for(int x = cx; x < cx + Chunk.size; x++)
-            {
-                for(int y = cy; y < cy + Chunk.size; y++)
-                {
-                    for(int z = cz; z < cz + Chunk.size; z++)
-                    {
-                        world.setBlock(x, y, z, Block.read(i));
-                    }
-                }
-            }
-            world.setGenerated(cx, cy, cz, true);
+            readChunk(i, cx, cy, cz, legacyChunkSize, true);
         }
+        world.finishPartiallyReadChunks();
         int entitycount = i.readInt();
         if(entitycount < 0)
             throw new IOException("entity count out of range");
@@ -18,6 +18,7 @@ package org.voxels.generate;
 
 import java.io.*;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.voxels.*;
 import org.voxels.generate.Plant.PlantType;
@@ -274,9 +275,6 @@ public final class Rand
 
     Rand()
     {
-        this.plantChunkHashTableSync = new Object[hashPrime];
-        for(int i = 0; i < hashPrime; i++)
-            this.plantChunkHashTableSync[i] = new Object();
     }
 
     private static final Allocator<Rand> allocator = new Allocator<Rand>(10)
@@ -292,9 +290,15 @@ public final class Rand
      * 
      */
     public boolean isSuperflat;
+    private static final AtomicLong nextId = new AtomicLong();
+    /** identifies this land generator's entries in the per-thread
+     * <code>GenChunkCache</code>; a new one is used every time this is
+     * initialized so entries from before don't match */
+    private long id;
 
     private Rand init(final int seed, final Settings settings)
     {
+        this.id = nextId.incrementAndGet();
         this.seed = seed;
         this.isSuperflat = settings.isSuperflat;
         return this;
@@ -304,6 +308,7 @@ public final class Rand
 
     private Rand init(final Settings settings)
     {
+        this.id = nextId.incrementAndGet();
         this.seed = init_rand.nextInt();
         this.isSuperflat = settings.isSuperflat;
         return this;
@@ -321,15 +326,9 @@ public final class Rand
 
     private void clear()
     {
-        clearHashTable();
         clearBiomeFactorsHashTable();
         clearBiomeNameMap();
         clearRockChunkHashTable();
-        clearLavaNodeHashTable();
-        clearCaveChunkHashTable();
-        clearInCaveChunkHashTable();
-        clearPlantChunkHashTable();
-        clearPlantBlockKindChunkHashTable();
     }
 
     public void free()
@@ -434,35 +433,64 @@ public final class Rand
         Mob
     }
 
-    private static class Node
+    /** a direct-mapped cache of <code>genRand</code> results that is only
+     * used by one thread, so it doesn't need any locking. The seed is part of
+     * the key so all the land generators used by a thread can share it.
+     * 
+     * @author jacob */
+    private static final class GenRandCache
     {
-        public int x, y, z, rc;
-        public float value;
+        public static final int sizeLog2 = 16;
+        public static final int size = 1 << sizeLog2;
+        /** x, y, z, w, and seed for each entry */
+        public final int[] keys = new int[size * 5];
+        public final float[] values = new float[size];
 
-        public Node()
+        public GenRandCache()
         {
+            for(int i = 0; i < size; i++)
+                this.values[i] = -1; // genRand never returns a negative value
         }
     }
 
-    private final Node[] hashTable = new Node[hashPrime];
-    private static final Allocator<Node> nodeAllocator = new Allocator<Node>()
+    private static final ThreadLocal<GenRandCache> genRandCache = new ThreadLocal<GenRandCache>()
     {
         @Override
-        protected Node allocateInternal()
+        protected GenRandCache initialValue()
         {
-            return new Node();
+            return new GenRandCache();
         }
     };
 
-    private void clearHashTable()
+    /** the lava, cave, and plant chunks that <code>genChunk</code> makes.
+     * Only used by one thread, so it doesn't need any locking. Each entry
+     * records the id of the land generator that made it so all the land
+     * generators used by a thread can share it.
+     * 
+     * @author jacob */
+    private static final class GenChunkCache
     {
-        for(int i = 0; i < this.hashTable.length; i++)
+        public final LavaNode[] lavaNodes = new LavaNode[hashPrime];
+        public final CaveChunk[] caveChunks = new CaveChunk[hashPrime];
+        public final InCaveChunk[] inCaveChunks = new InCaveChunk[hashPrime];
+        /** chained so plant chunks are never replaced */
+        public final PlantChunk[] plantChunks = new PlantChunk[hashPrime];
+        public final PlantBlockKindChunk[] plantBlockKindChunks = new PlantBlockKindChunk[hashPrime];
+
+        public GenChunkCache()
         {
-            nodeAllocator.free(this.hashTable[i]);
-            this.hashTable[i] = null;
         }
     }
 
+    private static final ThreadLocal<GenChunkCache> genChunkCache = new ThreadLocal<GenChunkCache>()
+    {
+        @Override
+        protected GenChunkCache initialValue()
+        {
+            return new GenChunkCache();
+        }
+    };
+
     private int genHash(final int x, final int y, final int z, final int rc)
     {
         long retval = x + 9L * (y + 9L * (z + 9L * rc));
@@ -472,47 +500,55 @@ public final class Rand
         return (int)retval;
     }
 
-    private final Object genRandSyncObj = new Object();
+    private static int genRandHash(final int x,
+                                   final int y,
+                                   final int z,
+                                   final int w,
+                                   final int seed)
+    {
+        int retval = x + 9 * (y + 9 * (z + 9 * (w + 9 * seed)));
+        retval *= 0x9E3779B9;
+        return retval >>> (32 - GenRandCache.sizeLog2);
+    }
 
     private float genRand(final int x, final int y, final int z, final int w)
     {
-        synchronized(this.genRandSyncObj)
-        {
-            final long mask = (1L << 48) - 1;
-            final long multiplier = 0x5DEECE66DL;
-            int hash = genHash(x, y, z, w);
-            if(this.hashTable[hash] != null && this.hashTable[hash].x == x
-                    && this.hashTable[hash].y == y
-                    && this.hashTable[hash].z == z
-                    && this.hashTable[hash].rc == w)
-                return this.hashTable[hash].value;
-            long randv = x * 12345;
-            randv &= mask;
-            randv = 12345 * randv + y;
-            randv &= mask;
-            randv = 12345 * randv + z;
+        final long mask = (1L << 48) - 1;
+        final long multiplier = 0x5DEECE66DL;
+        final GenRandCache cache = genRandCache.get();
+        final int hash = genRandHash(x, y, z, w, this.seed);
+        final int keyIndex = hash * 5;
+        final int[] keys = cache.keys;
+        if(keys[keyIndex] == x && keys[keyIndex + 1] == y
+                && keys[keyIndex + 2] == z && keys[keyIndex + 3] == w
+                && keys[keyIndex + 4] == this.seed
+                && cache.values[hash] >= 0)
+            return cache.values[hash];
+        long randv = x * 12345;
+        randv &= mask;
+        randv = 12345 * randv + y;
+        randv &= mask;
+        randv = 12345 * randv + z;
+        randv &= mask;
+        randv = 12345 * randv + w;
+        randv &= mask;
+        randv = 12345 * randv + this.seed;
+        randv &= mask;
+        randv = (randv ^ multiplier) & mask;
+        for(int i = 0; i < 5; i++)
+        {
+            randv *= multiplier;
+            randv += 0xB;
             randv &= mask;
-            randv = 12345 * randv + w;
-            randv &= mask;
-            randv = 12345 * randv + this.seed;
-            randv &= mask;
-            randv = (randv ^ multiplier) & mask;
-            for(int i = 0; i < 5; i++)
-            {
-                randv *= multiplier;
-                randv += 0xB;
-                randv &= mask;
-            }
-            float retval = randv * (1.0f / (mask + 1));
-            if(this.hashTable[hash] == null)
-                this.hashTable[hash] = nodeAllocator.allocate();
-            this.hashTable[hash].x = x;
-            this.hashTable[hash].y = y;
-            this.hashTable[hash].z = z;
-            this.hashTable[hash].rc = w;
-            this.hashTable[hash].value = retval;
-            return retval;
         }
+        float retval = randv * (1.0f / (mask + 1));
+        keys[keyIndex] = x;
+        keys[keyIndex + 1] = y;
+        keys[keyIndex + 2] = z;
+        keys[keyIndex + 3] = w;
+        keys[keyIndex + 4] = this.seed;
+        cache.values[hash] = retval;
+        return retval;
     }
 
     private float genRand(final int x,
@@ -2337,6 +2373,7 @@ public final class Rand
         public static final int minHeight = 1 - World.Depth;
         private int lakeSize[] = new int[size * size];
         public int cx, cz;
+        public long owner;
 
         public LavaNode()
         {
@@ -2393,26 +2430,18 @@ public final class Rand
         return retval;
     }
 
-    private LavaNode[] lavaNodeHashTable = new LavaNode[hashPrime];
-
-    private void clearLavaNodeHashTable()
-    {
-        for(int i = 0; i < hashPrime; i++)
-        {
-            lavaNodeAllocator.free(this.lavaNodeHashTable[i]);
-            this.lavaNodeHashTable[i] = null;
-        }
-    }
-
-    private synchronized LavaNode getLavaNode(final int cx, final int cz)
+    private LavaNode getLavaNode(final int cx, final int cz)
     {
+        final LavaNode[] lavaNodes = genChunkCache.get().lavaNodes;
         int hash = getChunkHash(cx, cz);
-        LavaNode node = this.lavaNodeHashTable[hash];
-        if(node == null || node.cx != cx || node.cz != cz)
+        LavaNode node = lavaNodes[hash];
+        if(node == null || node.owner != this.id || node.cx != cx
+                || node.cz != cz)
         {
             lavaNodeAllocator.free(node);
             node = makeLavaNode(cx, cz);
-            this.lavaNodeHashTable[hash] = node;
+            node.owner = this.id;
+            lavaNodes[hash] = node;
         }
         return node;
     }
@@ -2432,6 +2461,7 @@ public final class Rand
         return (int)Math.floor(v);
     }
 
+    @SuppressWarnings("unused")
     private boolean isLava(final int x, final int y, final int z)
     {
         if(y < LavaNode.minHeight || y > LavaNode.maxHeight)
@@ -2488,6 +2518,7 @@ public final class Rand
         };
         public static final int size = 4;
         public int cx, cz;
+        public long owner;
         private final CaveType caves[] = new CaveType[size * size];
         private final int y[] = new int[size * size];
         private final int r[] = new int[size * size];
@@ -2559,18 +2590,6 @@ public final class Rand
         }
     }
 
-    private final CaveChunk caveChunkHashTable[] = new CaveChunk[hashPrime];
-
-    private void clearCaveChunkHashTable()
-    {
-        for(int i = 0; i < hashPrime; i++)
-        {
-            if(this.caveChunkHashTable[i] != null)
-                this.caveChunkHashTable[i].free();
-            this.caveChunkHashTable[i] = null;
-        }
-    }
-
     private static final int caveMaxSize = 80;
 
     private void fillCaveChunk(final CaveChunk cc)
@@ -2611,11 +2630,13 @@ public final class Rand
         }
     }
 
-    synchronized CaveChunk getCaveChunk(final int cx, final int cz)
+    CaveChunk getCaveChunk(final int cx, final int cz)
     {
+        final CaveChunk[] caveChunks = genChunkCache.get().caveChunks;
         int hash = getChunkHash(cx, cz);
-        CaveChunk node = this.caveChunkHashTable[hash];
-        if(node != null && node.cx == cx && node.cz == cz)
+        CaveChunk node = caveChunks[hash];
+        if(node != null && node.owner == this.id && node.cx == cx
+                && node.cz == cz)
         {
             return node;
         }
@@ -2624,7 +2645,8 @@ public final class Rand
         node = CaveChunk.allocate();
         node.cx = cx;
         node.cz = cz;
-        this.caveChunkHashTable[hash] = node;
+        node.owner = this.id;
+        caveChunks[hash] = node;
         fillCaveChunk(node);
         return node;
     }
@@ -2642,6 +2664,7 @@ public final class Rand
         public static final int size = 4;
         private final boolean v[] = new boolean[size * size * size];
         public int cx, cy, cz;
+        public long owner;
 
         private void setInCave(final int x,
                                final int y,
@@ -2751,37 +2774,27 @@ public final class Rand
         }
     }
 
-    private final InCaveChunk inCaveChunkHashTable[] = new InCaveChunk[hashPrime];
-
-    private void clearInCaveChunkHashTable()
-    {
-        for(int i = 0; i < hashPrime; i++)
-        {
-            if(this.inCaveChunkHashTable[i] != null)
-                this.inCaveChunkHashTable[i].free();
-            this.inCaveChunkHashTable[i] = null;
-        }
-    }
-
-    private synchronized InCaveChunk getInCaveChunk(final int cx,
-                                                    final int cy,
-                                                    final int cz)
+    private InCaveChunk getInCaveChunk(final int cx,
+                                       final int cy,
+                                       final int cz)
     {
+        final InCaveChunk[] inCaveChunks = genChunkCache.get().inCaveChunks;
         int hash = genHash(cx, cy, cz, 0);
-        InCaveChunk node = this.inCaveChunkHashTable[hash];
-        if(node != null && node.cx == cx && node.cy == cy && node.cz == cz)
+        InCaveChunk node = inCaveChunks[hash];
+        if(node != null && node.owner == this.id && node.cx == cx
+                && node.cy == cy && node.cz == cz)
         {
             return node;
         }
         if(node != null)
             node.free();
         node = InCaveChunk.allocate(cx, cy, cz, this);
-        this.inCaveChunkHashTable[hash] = node;
+        node.owner = this.id;
+        inCaveChunks[hash] = node;
         return node;
     }
 
-    private synchronized boolean
-        isInCave(final int x, final int y, final int z)
+    private boolean isInCave(final int x, final int y, final int z)
     {
         if(y > getRockHeight(x, z))
             return false;
@@ -2808,6 +2821,7 @@ public final class Rand
         };
         public static final int size = 4;
         public int cx, cz;
+        public long owner;
         private Plant plant[] = new Plant[size * size];
         public PlantChunk next;
 
@@ -2856,9 +2870,9 @@ public final class Rand
         }
     }
 
-    private synchronized float[] getPlantCount(final int x,
-                                               final int z,
-                                               final float[] retval)
+    private float[] getPlantCount(final int x,
+                                  final int z,
+                                  final float[] retval)
     {
         synchronized(getBiomeFactorsSynchronizeObject(x, z))
         {
@@ -2878,7 +2892,7 @@ public final class Rand
         return retval;
     }
 
-    private synchronized PlantChunk makePlantChunk(final int cx, final int cz)
+    private PlantChunk makePlantChunk(final int cx, final int cz)
     {
         float[] plantCount = new float[PlantType.values().length];
         PlantChunk pc = PlantChunk.allocate(cx, cz);
@@ -2964,56 +2978,53 @@ public final class Rand
         return retval;
     }
 
-    private final PlantChunk[] plantChunkHashTable = new PlantChunk[hashPrime];
-
-    private void clearPlantChunkHashTable()
-    {
-        for(int i = 0; i < hashPrime; i++)
-        {
-            if(this.plantChunkHashTable[i] != null)
-                this.plantChunkHashTable[i].free();
-            this.plantChunkHashTable[i] = null;
-        }
-    }
-
-    private final Object[] plantChunkHashTableSync;
-
     private Plant getPlant(final int x, final int z, final boolean make)
     {
+        final PlantChunk[] plantChunks = genChunkCache.get().plantChunks;
         int cx = x - (x % PlantChunk.size + PlantChunk.size) % PlantChunk.size;
         int cz = z - (z % PlantChunk.size + PlantChunk.size) % PlantChunk.size;
         int hash = getChunkHash(cx, cz);
-        synchronized(this.plantChunkHashTableSync[hash])
+        PlantChunk node = plantChunks[hash], parent = null;
+        while(node != null)
         {
-            PlantChunk node = this.plantChunkHashTable[hash], parent = null;
-            while(node != null)
+            if(node.owner != this.id)
             {
-                if(node.cx == cx && node.cz == cz)
+                // left over from another land generator
+                PlantChunk next = node.next;
+                if(parent != null)
+                    parent.next = next;
+                else
+                    plantChunks[hash] = next;
+                node.free();
+                node = next;
+                continue;
+            }
+            if(node.cx == cx && node.cz == cz)
+            {
+                if(parent != null)
                 {
-                    if(parent != null)
-                    {
-                        parent.next = node.next;
-                        node.next = this.plantChunkHashTable[hash];
-                        this.plantChunkHashTable[hash] = node;
-                    }
-                    return node.get(x - cx, z - cz);
+                    parent.next = node.next;
+                    node.next = plantChunks[hash];
+                    plantChunks[hash] = node;
                 }
-                parent = node;
-                node = node.next;
+                return node.get(x - cx, z - cz);
             }
-            if(!make)
-                return null;
-            node = makePlantChunk(cx, cz);
-            node.next = this.plantChunkHashTable[hash];
-            this.plantChunkHashTable[hash] = node;
-            return node.get(x - cx, z - cz);
+            parent = node;
+            node = node.next;
         }
+        if(!make)
+            return null;
+        node = makePlantChunk(cx, cz);
+        node.owner = this.id;
+        node.next = plantChunks[hash];
+        plantChunks[hash] = node;
+        return node.get(x - cx, z - cz);
     }
 
     @SuppressWarnings("unused")
-    private synchronized Block internalGetPlantBlockKind(final int x,
-                                                         final int y,
-                                                         final int z)
+    private Block internalGetPlantBlockKind(final int x,
+                                            final int y,
+                                            final int z)
     {
         final int searchDist = Plant.maxXZExtent;
         Block retval = null;
@@ -3053,6 +3064,7 @@ public final class Rand
         };
         public static final int size = 4;
         public int cx, cy, cz;
+        public long owner;
         private final Block v[] = new Block[size * size * size];
 
         public PlantBlockKindChunk()
@@ -3111,20 +3123,7 @@ public final class Rand
         }
     }
 
-    private final PlantBlockKindChunk plantBlockKindChunkHashTable[] = new PlantBlockKindChunk[hashPrime];
-
-    private void clearPlantBlockKindChunkHashTable()
-    {
-        for(int i = 0; i < hashPrime; i++)
-        {
-            if(this.plantBlockKindChunkHashTable[i] != null)
-                this.plantBlockKindChunkHashTable[i].free();
-            this.plantBlockKindChunkHashTable[i] = null;
-        }
-    }
-
-    private synchronized void
-        fillPlantBlockKindChunk(final PlantBlockKindChunk c)
+    private void fillPlantBlockKindChunk(final PlantBlockKindChunk c)
     {
         final int searchDist = Plant.maxXZExtent;
         for(int dx = -searchDist; dx <= searchDist + PlantBlockKindChunk.size; dx++)
@@ -3169,20 +3168,24 @@ public final class Rand
         }
     }
 
-    private synchronized PlantBlockKindChunk
-        getPlantBlockKindChunk(final int cx, final int cy, final int cz)
+    private PlantBlockKindChunk getPlantBlockKindChunk(final int cx,
+                                                       final int cy,
+                                                       final int cz)
     {
+        final PlantBlockKindChunk[] plantBlockKindChunks = genChunkCache.get().plantBlockKindChunks;
         int hash = genHash(cx, cy, cz, 0);
-        PlantBlockKindChunk node = this.plantBlockKindChunkHashTable[hash];
-        if(node != null && node.cx == cx && node.cy == cy && node.cz == cz)
+        PlantBlockKindChunk node = plantBlockKindChunks[hash];
+        if(node != null && node.owner == this.id && node.cx == cx
+                && node.cy == cy && node.cz == cz)
         {
             return node;
         }
         if(node != null)
             node.free();
         node = PlantBlockKindChunk.allocate(cx, cy, cz);
+        node.owner = this.id;
         fillPlantBlockKindChunk(node);
-        this.plantBlockKindChunkHashTable[hash] = node;
+        plantBlockKindChunks[hash] = node;
         return node;
     }
 
@@ -3193,9 +3196,7 @@ public final class Rand
      * @param z
      *            the z coordinate
      * @return new block or null */
-    private synchronized Block getTreeBlockKind(final int x,
-                                                final int y,
-                                                final int z)
+    private Block getTreeBlockKind(final int x, final int y, final int z)
     {
         int cx = x - (x % PlantBlockKindChunk.size + PlantBlockKindChunk.size)
                 % PlantBlockKindChunk.size;
@@ -3222,8 +3223,14 @@ public final class Rand
      *            the y coordinate
      * @param z
      *            the z coordinate
+     * @param isInCaveBelow
+     *            if (<code>x</code>, <code>y</code> - 1, <code>z</code>) is in
+     *            a cave
      * @return new block */
-    private Block getCaveDecoration(final int x, final int y, final int z)
+    private Block getCaveDecoration(final int x,
+                                    final int y,
+                                    final int z,
+                                    final boolean isInCaveBelow)
     {
         final float genBlockProb = 0.1f;
         float ftype = genRand(x, y, z, RandClass.CaveDecoration)
@@ -3237,7 +3244,7 @@ public final class Rand
         {
         case Mushroom:
         {
-            if(isInCave(x, y - 1, z))
+            if(isInCaveBelow)
             {
                 return Block.NewEmpty();
             }
@@ -3264,7 +3271,7 @@ public final class Rand
         }
         case Torch:
         {
-            if(isInCave(x, y - 1, z))
+            if(isInCaveBelow)
             {
                 return Block.NewEmpty();
             }
@@ -3274,7 +3281,7 @@ public final class Rand
         }
         case Chest:
         {
-            if(isInCave(x, y - 1, z))
+            if(isInCaveBelow)
                 return Block.NewEmpty();
             if(ftype - type > 0.25f)
                 return Block.NewEmpty();
@@ -3309,6 +3316,313 @@ public final class Rand
         }
     }
 
+    /** the per-column data that <code>genChunk</code> computes for a whole
+     * chunk before filling in the blocks. Only used by one thread.
+     * 
+     * @author jacob */
+    private static final class ChunkColumns
+    {
+        /** the distance that <code>waterInArea</code> searches */
+        public static final int waterDist = 3;
+        public static final int lavaDist = LavaNode.maxLakeSize;
+        public int size = -1;
+        /** rock height with a border of <code>waterDist</code> */
+        public int[] rockHeight;
+        /** the lowest y that <code>waterInArea</code> is true for in each
+         * column or <code>Integer.MAX_VALUE</code> */
+        public int[] waterMinY;
+        /** lava lake size and height with a border of <code>lavaDist</code> */
+        public int[] lavaLakeSize, lavaLakeHeight;
+        /** indexed by <code>x + size * (z + size * y)</code> */
+        public boolean[] isLava;
+        /** indexed by <code>x + size * (z + size * (y + 1))</code> so the
+         * layer under the chunk is included */
+        public boolean[] isInCave;
+
+        public ChunkColumns()
+        {
+        }
+
+        public void setSize(final int size)
+        {
+            if(this.size == size)
+                return;
+            this.size = size;
+            int rockSize = size + 2 * waterDist;
+            this.rockHeight = new int[rockSize * rockSize];
+            this.waterMinY = new int[size * size];
+            int lavaSize = size + 2 * lavaDist;
+            this.lavaLakeSize = new int[lavaSize * lavaSize];
+            this.lavaLakeHeight = new int[lavaSize * lavaSize];
+            this.isLava = new boolean[size * size * size];
+            this.isInCave = new boolean[size * size * (size + 1)];
+        }
+    }
+
+    private static final ThreadLocal<ChunkColumns> chunkColumns = new ThreadLocal<ChunkColumns>()
+    {
+        @Override
+        protected ChunkColumns initialValue()
+        {
+            return new ChunkColumns();
+        }
+    };
+
+    private void fillChunkColumns(final ChunkColumns c,
+                                  final int cx,
+                                  final int cy,
+                                  final int cz,
+                                  final int chunkSize)
+    {
+        c.setSize(chunkSize);
+        final int waterDist = ChunkColumns.waterDist;
+        final int rockSize = chunkSize + 2 * waterDist;
+        for(int z = 0; z < rockSize; z++)
+        {
+            for(int x = 0; x < rockSize; x++)
+            {
+                c.rockHeight[x + rockSize * z] = getRockHeight(x + cx
+                        - waterDist, z + cz - waterDist);
+            }
+        }
+        for(int z = 0; z < chunkSize; z++)
+        {
+            for(int x = 0; x < chunkSize; x++)
+            {
+                int minY = Integer.MAX_VALUE;
+                for(int dz = 0; dz <= 2 * waterDist; dz++)
+                {
+                    for(int dx = 0; dx <= 2 * waterDist; dx++)
+                    {
+                        int rockHeight = c.rockHeight[x + dx + rockSize
+                                * (z + dz)];
+                        if(rockHeight >= WaterHeight)
+                            continue;
+                        minY = Math.min(minY, rockHeight - waterDist + 1);
+                    }
+                }
+                c.waterMinY[x + chunkSize * z] = minY;
+            }
+        }
+        for(int i = 0; i < c.isLava.length; i++)
+            c.isLava[i] = false;
+        if(cy <= LavaNode.maxHeight && cy + chunkSize > LavaNode.minHeight)
+        {
+            final int lavaDist = ChunkColumns.lavaDist;
+            final int lavaSize = chunkSize + 2 * lavaDist;
+            for(int z = 0; z < lavaSize; z++)
+            {
+                for(int x = 0; x < lavaSize; x++)
+                {
+                    int px = x + cx - lavaDist, pz = z + cz - lavaDist;
+                    int lakeSize = getLavaLakeSize(px, pz);
+                    c.lavaLakeSize[x + lavaSize * z] = lakeSize;
+                    if(lakeSize > 0)
+                        c.lavaLakeHeight[x + lavaSize * z] = getLavaLakeHeight(px,
+                                                                               pz);
+                }
+            }
+            final int minY = Math.max(cy, LavaNode.minHeight);
+            final int maxY = Math.min(cy + chunkSize - 1, LavaNode.maxHeight);
+            for(int z = 0; z < chunkSize; z++)
+            {
+                for(int x = 0; x < chunkSize; x++)
+                {
+                    for(int dz = -lavaDist; dz <= lavaDist; dz++)
+                    {
+                        for(int dx = -lavaDist; dx <= lavaDist; dx++)
+                        {
+                            int index = x + dx + lavaDist + lavaSize
+                                    * (z + dz + lavaDist);
+                            int lakeSize = c.lavaLakeSize[index];
+                            if(lakeSize <= 0)
+                                continue;
+                            int r2 = lakeSize * lakeSize - dx * dx - dz * dz;
+                            int lakeHeight = c.lavaLakeHeight[index];
+                            for(int dy = 0; dy * dy * 3 * 3 < r2; dy--)
+                            {
+                                int y = lakeHeight + dy;
+                                if(y < minY)
+                                    break;
+                                if(y > maxY)
+                                    continue;
+                                c.isLava[x + chunkSize * (z + chunkSize
+                                        * (y - cy))] = true;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        fillCaveMask(c, cx, cy, cz, chunkSize);
+        for(int z = 0; z < chunkSize; z++)
+        {
+            for(int x = 0; x < chunkSize; x++)
+            {
+                int rockHeight = c.rockHeight[x + waterDist + rockSize
+                        * (z + waterDist)];
+                for(int y = Math.max(-1, rockHeight + 1 - cy); y < chunkSize; y++)
+                {
+                    c.isInCave[x + chunkSize * (z + chunkSize * (y + 1))] = false;
+                }
+            }
+        }
+    }
+
+    private static int getInCaveChunkOrigin(final int v)
+    {
+        return v - (v % InCaveChunk.size + InCaveChunk.size)
+                % InCaveChunk.size;
+    }
+
+    /** computes the same result as <code>InCaveChunk</code> for the whole
+     * chunk at once, so each cave is only looked up once instead of once per
+     * <code>InCaveChunk</code>. Doesn't check the rock height. */
+    private void fillCaveMask(final ChunkColumns c,
+                              final int cx,
+                              final int cy,
+                              final int cz,
+                              final int chunkSize)
+    {
+        for(int i = 0; i < c.isInCave.length; i++)
+            c.isInCave[i] = false;
+        final int minPX = getInCaveChunkOrigin(cx) - caveMaxSize;
+        final int maxPX = getInCaveChunkOrigin(cx + chunkSize - 1)
+                + caveMaxSize + InCaveChunk.size;
+        final int minPZ = getInCaveChunkOrigin(cz) - caveMaxSize;
+        final int maxPZ = getInCaveChunkOrigin(cz + chunkSize - 1)
+                + caveMaxSize + InCaveChunk.size;
+        final int minCCX = minPX - (minPX % CaveChunk.size + CaveChunk.size)
+                % CaveChunk.size;
+        final int minCCZ = minPZ - (minPZ % CaveChunk.size + CaveChunk.size)
+                % CaveChunk.size;
+        for(int ccx = minCCX; ccx <= maxPX; ccx += CaveChunk.size)
+        {
+            for(int ccz = minCCZ; ccz <= maxPZ; ccz += CaveChunk.size)
+            {
+                CaveChunk cc = getCaveChunk(ccx, ccz);
+                for(int px = Math.max(ccx, minPX); px < ccx + CaveChunk.size
+                        && px <= maxPX; px++)
+                {
+                    for(int pz = Math.max(ccz, minPZ); pz < ccz
+                            + CaveChunk.size && pz <= maxPZ; pz++)
+                    {
+                        CaveType type = cc.getCave(px - ccx, pz - ccz);
+                        if(type == CaveType.None || type == CaveType.Last)
+                            continue;
+                        fillCaveMask(c,
+                                     cx,
+                                     cy,
+                                     cz,
+                                     chunkSize,
+                                     px,
+                                     pz,
+                                     type,
+                                     cc.getY(px - ccx, pz - ccz),
+                                     cc.getR(px - ccx, pz - ccz),
+                                     cc.getDir(px - ccx, pz - ccz));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void fillCaveMask(final ChunkColumns c,
+                                     final int cx,
+                                     final int cy,
+                                     final int cz,
+                                     final int chunkSize,
+                                     final int px,
+                                     final int pz,
+                                     final CaveType type,
+                                     final int caveY,
+                                     final int caveR,
+                                     final Vector caveDir)
+    {
+        final boolean isSphere = type == CaveType.Sphere;
+        final int sphereR = caveR / 4;
+        final float cylinderR = caveR / 16.0f;
+        float dirX = 0, dirY = 0, dirZ = 0;
+        if(!isSphere)
+        {
+            Vector dir = Vector.allocate(caveDir);
+            dir.setY(1 / 3f);
+            dir = dir.normalizeAndSet();
+            dirX = dir.getX();
+            dirY = dir.getY();
+            dirZ = dir.getZ();
+            dir.free();
+        }
+        for(int x = cx; x < cx + chunkSize; x++)
+        {
+            int d = px - getInCaveChunkOrigin(x);
+            if(d < -caveMaxSize || d > caveMaxSize + InCaveChunk.size)
+                continue;
+            for(int z = cz; z < cz + chunkSize; z++)
+            {
+                d = pz - getInCaveChunkOrigin(z);
+                if(d < -caveMaxSize || d > caveMaxSize + InCaveChunk.size)
+                    continue;
+                int dx = x - px;
+                int dz = z - pz;
+                for(int y = cy - 1; y < cy + chunkSize; y++)
+                {
+                    int index = x - cx + chunkSize
+                            * (z - cz + chunkSize * (y - cy + 1));
+                    if(c.isInCave[index])
+                        continue;
+                    int dy = y - caveY;
+                    if(isSphere)
+                    {
+                        if(dx * dx + dy * dy + dz * dz < sphereR * sphereR)
+                            c.isInCave[index] = true;
+                    }
+                    else
+                    {
+                        // same operations as InCaveChunk so the result matches
+                        float m = 0.95f * (dirX * dx + dirY * dy + dirZ * dz);
+                        float pX = dirX * m - dx;
+                        float pY = dirY * m - dy;
+                        float pZ = dirZ * m - dz;
+                        float distance = (float)Math.sqrt(pX * pX + pY * pY
+                                + pZ * pZ);
+                        if(distance < cylinderR)
+                            c.isInCave[index] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private MobType getSquidMobType()
+    {
+        for(int i = 0; i < Mobs.getMobCount(); i++)
+        {
+            if(Mobs.getMob(i).getName().equals("Squid"))
+                return Mobs.getMob(i);
+        }
+        return null;
+    }
+
+    /** @param x
+     *            the x coordinate
+     * @param y
+     *            the y coordinate
+     * @param z
+     *            the z coordinate
+     * @return if <code>getTreeBlockKind</code> would return a non-empty block */
+    private boolean hasTreeBlock(final int x, final int y, final int z)
+    {
+        int cx = x - (x % PlantBlockKindChunk.size + PlantBlockKindChunk.size)
+                % PlantBlockKindChunk.size;
+        int cy = y - (y % PlantBlockKindChunk.size + PlantBlockKindChunk.size)
+                % PlantBlockKindChunk.size;
+        int cz = z - (z % PlantBlockKindChunk.size + PlantBlockKindChunk.size)
+                % PlantBlockKindChunk.size;
+        Block b = getPlantBlockKindChunk(cx, cy, cz).get(x, y, z);
+        return b != null && b.getType() != BlockType.BTEmpty;
+    }
+
     /** generates a chunk
      * 
      * @param cx
@@ -3329,31 +3643,45 @@ public final class Rand
                                                                 cx,
                                                                 cy,
                                                                 cz);
+        final ChunkColumns columns = chunkColumns.get();
+        fillChunkColumns(columns, cx, cy, cz, chunkSize);
+        final MobType squid = getSquidMobType();
+        final int rockSize = chunkSize + 2 * ChunkColumns.waterDist;
         for(int x = cx; x < cx + chunkSize; x++)
         {
             for(int z = cz; z < cz + chunkSize; z++)
             {
-                int rockHeight = getRockHeight(x, z);
+                final int columnIndex = x - cx + chunkSize * (z - cz);
+                final int rockHeight = columns.rockHeight[x - cx
+                        + ChunkColumns.waterDist + rockSize
+                        * (z - cz + ChunkColumns.waterDist)];
+                final int waterMinY = columns.waterMinY[columnIndex];
                 for(int y = cy; y < cy + chunkSize; y++)
                 {
+                    final int index = columnIndex + chunkSize * chunkSize
+                            * (y - cy);
+                    final boolean isInCave = columns.isInCave[index
+                            + chunkSize * chunkSize];
+                    final boolean isInCaveBelow = columns.isInCave[index];
                     Block block = null;
                     if(y == -World.Depth)
                         block = Block.NewBedrock();
-                    else if(isInCave(x, y, z))
+                    else if(isInCave)
                     {
                         Block tb = getTreeBlockKind(x, y, z);
                         if(tb == null)
-                            block = getCaveDecoration(x, y, z);
+                            block = getCaveDecoration(x, y, z, isInCaveBelow);
                         else
                             block = tb;
                     }
-                    else if(isLava(x, y, z))
+                    else if(columns.isLava[index])
                         block = Block.NewStationaryLava();
                     // else if(isOverLava(x, z) && y <= 5 + LavaNode.maxHeight)
                     // block = Block.NewEmpty();
-                    else if(y <= rockHeight && waterInArea(x, y, z))
+                    else if(y <= rockHeight && y <= WaterHeight
+                            && y >= waterMinY)
                     {
-                        if(isInCave(x, y - 1, z))
+                        if(isInCaveBelow)
                             block = Block.NewStone();
                         else if(genRand(x, y, z, RandClass.LakeBedType) >= 0.5f)
                             block = Block.NewSand();
@@ -3418,15 +3746,6 @@ public final class Rand
                         block = getBiomeSurfaceBlock(x, z);
                     else if(y <= WaterHeight)
                     {
-                        MobType squid = null;
-                        for(int i = 0; i < Mobs.getMobCount(); i++)
-                        {
-                            if(Mobs.getMob(i).getName().equals("Squid"))
-                            {
-                                squid = Mobs.getMob(i);
-                                break;
-                            }
-                        }
                         if(squid != null)
                         {
                             if(getBiomeMobProb(x, z, squid)
@@ -3447,17 +3766,8 @@ public final class Rand
                             tb = Block.NewEmpty();
                         if(tb.getType() == BlockType.BTEmpty)
                         {
-                            Block tb2 = getTreeBlockKind(x, y - 1, z);
-                            if(tb2 != null
-                                    && tb2.getType() == BlockType.BTEmpty)
-                            {
-                                tb2.free();
-                                tb2 = null;
-                            }
-                            if(tb2 != null
-                                    || (y == rockHeight + 1 && !isInCave(x,
-                                                                         y - 1,
-                                                                         z)))
+                            if(hasTreeBlock(x, y - 1, z)
+                                    || (y == rockHeight + 1 && !isInCaveBelow))
                             {
                                 if(getBiomeSnow(x, z) > 0.5f)
                                 {
@@ -3482,8 +3792,6 @@ public final class Rand
                                     }
                                 }
                             }
-                            if(tb2 != null)
-                                tb2.free();
                         }
                         block = tb;
                     }
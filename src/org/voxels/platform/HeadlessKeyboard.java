@@ -0,0 +1,140 @@
+/**
+ * this file is part of voxels
+ * 
+ * voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels.platform;
+
+import java.util.ArrayDeque;
+
+/** a <code>Keyboard</code> that only gets events that are added to it
+ * 
+ * @author jacob */
+public class HeadlessKeyboard implements Keyboard
+{
+    private static final class Event
+    {
+        public final int key;
+        public final char character;
+        public final boolean down;
+        public final boolean repeat;
+
+        public Event(final int key,
+                     final char character,
+                     final boolean down,
+                     final boolean repeat)
+        {
+            this.key = key;
+            this.character = character;
+            this.down = down;
+            this.repeat = repeat;
+        }
+    }
+
+    private final ArrayDeque<Event> events = new ArrayDeque<Event>();
+    private Event currentEvent = new Event(KEY_NONE, CHAR_NONE, false, false);
+    private final boolean[] keyState = new boolean[128];
+    /** the key state after all the added events are read */
+    private final boolean[] queuedKeyState = new boolean[128];
+
+    /**
+     * 
+     */
+    public HeadlessKeyboard()
+    {
+    }
+
+    /** adds a key event
+     * 
+     * @param key
+     *            the key
+     * @param character
+     *            the typed character or <code>CHAR_NONE</code>
+     * @param down
+     *            if the key is pressed */
+    public synchronized void addKeyEvent(final int key,
+                                         final char character,
+                                         final boolean down)
+    {
+        boolean repeat = false;
+        if(key > KEY_NONE && key < this.queuedKeyState.length)
+        {
+            repeat = down && this.queuedKeyState[key];
+            this.queuedKeyState[key] = down;
+        }
+        this.events.add(new Event(key, character, down, repeat));
+    }
+
+    /** adds a key press followed by a key release
+     * 
+     * @param key
+     *            the key
+     * @param character
+     *            the typed character or <code>CHAR_NONE</code> */
+    public void addKeyPress(final int key, final char character)
+    {
+        addKeyEvent(key, character, true);
+        addKeyEvent(key, CHAR_NONE, false);
+    }
+
+    @Override
+    public synchronized boolean isKeyDown(final int key)
+    {
+        if(key == KEY_SHIFT)
+            return isKeyDown(KEY_LSHIFT) || isKeyDown(KEY_RSHIFT);
+        if(key == KEY_CTRL)
+            return isKeyDown(KEY_LCTRL) || isKeyDown(KEY_RCTRL);
+        if(key == KEY_ALT)
+            return isKeyDown(KEY_LALT) || isKeyDown(KEY_RALT);
+        if(key <= KEY_NONE || key >= this.keyState.length)
+            return false;
+        return this.keyState[key];
+    }
+
+    @Override
+    public synchronized int getEventKey()
+    {
+        return this.currentEvent.key;
+    }
+
+    @Override
+    public synchronized char getEventCharacter()
+    {
+        return this.currentEvent.character;
+    }
+
+    @Override
+    public synchronized boolean getEventKeyDown()
+    {
+        return this.currentEvent.down;
+    }
+
+    @Override
+    public synchronized boolean isRepeatEvent()
+    {
+        return this.currentEvent.repeat;
+    }
+
+    @Override
+    public synchronized boolean nextEvent()
+    {
+        Event e = this.events.poll();
+        if(e == null)
+            return false;
+        this.currentEvent = e;
+        if(e.key > KEY_NONE && e.key < this.keyState.length)
+            this.keyState[e.key] = e.down;
+        return true;
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * this file is part of voxels
+ * 
+ * voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels.platform;
+
+import java.util.ArrayDeque;
+
+/** a <code>Mouse</code> that only gets events that are added to it
+ * 
+ * @author jacob */
+public class HeadlessMouse implements Mouse
+{
+    private static final class Event
+    {
+        public final float x, y;
+        public final int button;
+        public final boolean buttonDown;
+        public final int dWheel;
+
+        public Event(final float x,
+                     final float y,
+                     final int button,
+                     final boolean buttonDown,
+                     final int dWheel)
+        {
+            this.x = x;
+            this.y = y;
+            this.button = button;
+            this.buttonDown = buttonDown;
+            this.dWheel = dWheel;
+        }
+    }
+
+    private final ArrayDeque<Event> events = new ArrayDeque<Event>();
+    private Event currentEvent = new Event(0, 0, -1, false, 0);
+    private float x = 0, y = 0;
+    private final boolean[] buttonState = new boolean[3];
+
+    /**
+     * 
+     */
+    public HeadlessMouse()
+    {
+    }
+
+    /** adds a mouse move event
+     * 
+     * @param newX
+     *            the new mouse x
+     * @param newY
+     *            the new mouse y */
+    public synchronized void addMoveEvent(final float newX, final float newY)
+    {
+        this.events.add(new Event(newX, newY, -1, false, 0));
+    }
+
+    /** adds a mouse button event at the last added mouse position
+     * 
+     * @param button
+     *            the button index
+     * @param down
+     *            if the button is pressed */
+    public synchronized void addButtonEvent(final int button,
+                                            final boolean down)
+    {
+        Event last = this.events.peekLast();
+        if(last == null)
+            last = new Event(this.x, this.y, -1, false, 0);
+        this.events.add(new Event(last.x, last.y, button, down, 0));
+    }
+
+    /** adds a mouse wheel event at the last added mouse position
+     * 
+     * @param dWheel
+     *            the wheel rotation amount */
+    public synchronized void addWheelEvent(final int dWheel)
+    {
+        Event last = this.events.peekLast();
+        if(last == null)
+            last = new Event(this.x, this.y, -1, false, 0);
+        this.events.add(new Event(last.x, last.y, -1, false, dWheel));
+    }
+
+    @Override
+    public synchronized float getEventX()
+    {
+        return this.currentEvent.x;
+    }
+
+    @Override
+    public synchronized float getEventY()
+    {
+        return this.currentEvent.y;
+    }
+
+    @Override
+    public synchronized int getEventButtonIndex()
+    {
+        return this.currentEvent.button;
+    }
+
+    @Override
+    public synchronized boolean isEventButtonDown()
+    {
+        return this.currentEvent.buttonDown;
+    }
+
+    @Override
+    public synchronized int getEventDWheel()
+    {
+        return this.currentEvent.dWheel;
+    }
+
+    @Override
+    public synchronized float getX()
+    {
+        return this.x;
+    }
+
+    @Override
+    public synchronized float getY()
+    {
+        return this.y;
+    }
+
+    @Override
+    public synchronized boolean isButtonDown(final int bIndex)
+    {
+        if(bIndex < 0 || bIndex >= this.buttonState.length)
+            return false;
+        return this.buttonState[bIndex];
+    }
+
+    @Override
+    public synchronized boolean nextEvent()
+    {
+        Event e = this.events.poll();
+        if(e == null)
+            return false;
+        this.currentEvent = e;
+        this.x = e.x;
+        this.y = e.y;
+        if(e.button >= 0 && e.button < this.buttonState.length)
+            this.buttonState[e.button] = e.buttonDown;
+        return true;
+    }
+
+    @Override
+    public synchronized void setPosition(final float newX, final float newY)
+    {
+        this.x = newX;
+        this.y = newY;
+    }
+
+    @Override
+    public float getDragThreshold()
+    {
+        return 4;
+    }
+}
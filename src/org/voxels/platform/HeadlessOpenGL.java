@@ -0,0 +1,720 @@
+/**
+ * this file is part of voxels
+ * 
+ * voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels.platform;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/** an <code>OpenGL</code> that doesn't draw anything but counts the calls made
+ * to it
+ * 
+ * @author jacob */
+public class HeadlessOpenGL implements OpenGL
+{
+    private long callCount = 0;
+    private long drawCallCount = 0;
+    private long vertexCount = 0;
+    private int textureCount = 0;
+    private int lastTexture = 0;
+    private long transferredByteCount = 0;
+    private int bufferCount = 0;
+    private int lastBuffer = 0;
+    private int boundArrayBuffer = 0;
+    /** the size of a vertex drawn from client memory : 3 vertex, 2 texture
+     * coordinate and 4 color floats */
+    private static final int clientVertexSize = (3 + 2 + 4) * 4;
+
+    /**
+     * 
+     */
+    public HeadlessOpenGL()
+    {
+    }
+
+    /** @return the number of OpenGL calls since the last reset */
+    public long getCallCount()
+    {
+        return this.callCount;
+    }
+
+    /** @return the number of <code>glBegin</code> and
+     *         <code>glDrawArrays</code> calls since the last reset */
+    public long getDrawCallCount()
+    {
+        return this.drawCallCount;
+    }
+
+    /** @return the number of vertices drawn since the last reset */
+    public long getVertexCount()
+    {
+        return this.vertexCount;
+    }
+
+    /** @return the number of textures that haven't been deleted */
+    public int getTextureCount()
+    {
+        return this.textureCount;
+    }
+
+    /** @return the number of bytes of vertex data sent to OpenGL since the
+     *         last reset, both uploaded to buffer objects and read from
+     *         client memory by draw calls */
+    public long getTransferredByteCount()
+    {
+        return this.transferredByteCount;
+    }
+
+    /** @return the number of buffer objects that haven't been deleted */
+    public int getBufferCount()
+    {
+        return this.bufferCount;
+    }
+
+    /** resets the call, draw call, vertex, and transferred byte counts */
+    public void resetCounts()
+    {
+        this.callCount = 0;
+        this.drawCallCount = 0;
+        this.vertexCount = 0;
+        this.transferredByteCount = 0;
+    }
+
+    @Override
+    public int GL_TRIANGLES()
+    {
+        return 0x4;
+    }
+
+    @Override
+    public int GL_DEPTH_BUFFER_BIT()
+    {
+        return 0x100;
+    }
+
+    @Override
+    public int GL_DEPTH_TEST()
+    {
+        return 0xB71;
+    }
+
+    @Override
+    public void glClear(final int mask)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glEnable(final int cap)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public int GL_TEXTURE_2D()
+    {
+        return 0xDE1;
+    }
+
+    @Override
+    public int GL_ALPHA_TEST()
+    {
+        return 0xBC0;
+    }
+
+    @Override
+    public int GL_CULL_FACE()
+    {
+        return 0xB44;
+    }
+
+    @Override
+    public int GL_BLEND()
+    {
+        return 0xBE2;
+    }
+
+    @Override
+    public int GL_BACK()
+    {
+        return 0x405;
+    }
+
+    @Override
+    public int GL_CCW()
+    {
+        return 0x901;
+    }
+
+    @Override
+    public void glCullFace(final int mode)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glFrontFace(final int mode)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public int GL_LESS()
+    {
+        return 0x201;
+    }
+
+    @Override
+    public int GL_ONE_MINUS_SRC_ALPHA()
+    {
+        return 0x303;
+    }
+
+    @Override
+    public int GL_SRC_ALPHA()
+    {
+        return 0x302;
+    }
+
+    @Override
+    public int GL_TEXTURE_ENV()
+    {
+        return 0x2300;
+    }
+
+    @Override
+    public int GL_TEXTURE_ENV_MODE()
+    {
+        return 0x2200;
+    }
+
+    @Override
+    public int GL_MODULATE()
+    {
+        return 0x2100;
+    }
+
+    @Override
+    public void glAlphaFunc(final int func, final float ref)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glBlendFunc(final int sfactor, final int dfactor)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glTexEnvi(final int target, final int pname, final int param)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public int GL_PERSPECTIVE_CORRECTION_HINT()
+    {
+        return 0xC50;
+    }
+
+    @Override
+    public int GL_NICEST()
+    {
+        return 0x1102;
+    }
+
+    @Override
+    public int GL_PROJECTION()
+    {
+        return 0x1701;
+    }
+
+    @Override
+    public void glHint(final int target, final int mode)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glViewport(final int x,
+                           final int y,
+                           final int width,
+                           final int height)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glMatrixMode(final int mode)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glLoadIdentity()
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glFrustum(final double left,
+                          final double right,
+                          final double bottom,
+                          final double top,
+                          final double zNear,
+                          final double zFar)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public int GL_COLOR_BUFFER_BIT()
+    {
+        return 0x4000;
+    }
+
+    @Override
+    public int GL_MODELVIEW()
+    {
+        return 0x1700;
+    }
+
+    @Override
+    public void glPushMatrix()
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glPopMatrix()
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glFinish()
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glDepthMask(final boolean flag)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glColor4f(final float r,
+                          final float g,
+                          final float b,
+                          final float a)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glClearColor(final float r,
+                             final float g,
+                             final float b,
+                             final float a)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glBindTexture(final int target, final int texture)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glDeleteTextures(final int texture)
+    {
+        this.callCount++;
+        this.textureCount--;
+    }
+
+    @Override
+    public int glGenTextures()
+    {
+        this.callCount++;
+        this.textureCount++;
+        return ++this.lastTexture;
+    }
+
+    @Override
+    public int GL_TEXTURE_WRAP_S()
+    {
+        return 0x2802;
+    }
+
+    @Override
+    public int GL_TEXTURE_WRAP_T()
+    {
+        return 0x2803;
+    }
+
+    @Override
+    public int GL_REPEAT()
+    {
+        return 0x2901;
+    }
+
+    @Override
+    public void glTexParameteri(final int target,
+                                final int pname,
+                                final int param)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public int GL_TEXTURE_MAG_FILTER()
+    {
+        return 0x2800;
+    }
+
+    @Override
+    public int GL_NEAREST()
+    {
+        return 0x2600;
+    }
+
+    @Override
+    public int GL_TEXTURE_MIN_FILTER()
+    {
+        return 0x2801;
+    }
+
+    @Override
+    public int GL_UNPACK_ALIGNMENT()
+    {
+        return 0xCF5;
+    }
+
+    @Override
+    public void glPixelStorei(final int pname, final int param)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public int GL_RGBA()
+    {
+        return 0x1908;
+    }
+
+    @Override
+    public int GL_UNSIGNED_BYTE()
+    {
+        return 0x1401;
+    }
+
+    @Override
+    public void glTexImage2D(final int target,
+                             final int level,
+                             final int internalformat,
+                             final int width,
+                             final int height,
+                             final int border,
+                             final int format,
+                             final int type,
+                             final ByteBuffer pixels)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glMultMatrix(final FloatBuffer buf)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glLoadMatrix(final FloatBuffer buf)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public int GL_LINES()
+    {
+        return 0x1;
+    }
+
+    @Override
+    public void glBegin(final int mode)
+    {
+        this.callCount++;
+        this.drawCallCount++;
+    }
+
+    @Override
+    public void glEnd()
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glVertex3f(final float x, final float y, final float z)
+    {
+        this.callCount++;
+        this.vertexCount++;
+    }
+
+    @Override
+    public void glTexCoord2f(final float s, final float t)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glColor3f(final int r, final int g, final int b)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public int GL_COLOR_ARRAY()
+    {
+        return 0x8076;
+    }
+
+    @Override
+    public void glEnableClientState(final int cap)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public int GL_TEXTURE_COORD_ARRAY()
+    {
+        return 0x8078;
+    }
+
+    @Override
+    public int GL_VERTEX_ARRAY()
+    {
+        return 0x8074;
+    }
+
+    @Override
+    public void glVertexPointer(final FloatBuffer pointer)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glTexCoordPointer(final FloatBuffer pointer)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glColorPointer(final FloatBuffer pointer)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glDrawArrays(final int mode, final int first, final int count)
+    {
+        this.callCount++;
+        this.drawCallCount++;
+        this.vertexCount += count;
+        if(this.boundArrayBuffer == 0)
+            this.transferredByteCount += (long)count * clientVertexSize;
+    }
+
+    @Override
+    public void glDisableClientState(final int cap)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void bindContext()
+    {
+    }
+
+    @Override
+    public void releaseContext()
+    {
+    }
+
+    @Override
+    public int GL_POINTS()
+    {
+        return 0;
+    }
+
+    @Override
+    public boolean supportsVertexBufferObjects()
+    {
+        return true;
+    }
+
+    @Override
+    public int GL_ARRAY_BUFFER()
+    {
+        return 0x8892;
+    }
+
+    @Override
+    public int GL_STATIC_DRAW()
+    {
+        return 0x88E4;
+    }
+
+    @Override
+    public int glGenBuffers()
+    {
+        this.callCount++;
+        this.bufferCount++;
+        return ++this.lastBuffer;
+    }
+
+    @Override
+    public void glDeleteBuffers(final int buffer)
+    {
+        this.callCount++;
+        this.bufferCount--;
+        if(this.boundArrayBuffer == buffer)
+            this.boundArrayBuffer = 0;
+    }
+
+    @Override
+    public void glBindBuffer(final int target, final int buffer)
+    {
+        this.callCount++;
+        this.boundArrayBuffer = buffer;
+    }
+
+    @Override
+    public void glBufferData(final int target,
+                             final FloatBuffer data,
+                             final int usage)
+    {
+        this.callCount++;
+        this.transferredByteCount += data.remaining() * 4L;
+    }
+
+    @Override
+    public void glBufferSubData(final int target,
+                                final long offset,
+                                final FloatBuffer data)
+    {
+        this.callCount++;
+        this.transferredByteCount += data.remaining() * 4L;
+    }
+
+    @Override
+    public void glBufferData(final int target,
+                             final ByteBuffer data,
+                             final int usage)
+    {
+        this.callCount++;
+        this.transferredByteCount += data.remaining();
+    }
+
+    @Override
+    public int GL_FLOAT()
+    {
+        return 0x1406;
+    }
+
+    @Override
+    public int GL_SHORT()
+    {
+        return 0x1402;
+    }
+
+    @Override
+    public int GL_TEXTURE()
+    {
+        return 0x1702;
+    }
+
+    @Override
+    public void glVertexPointer(final int size,
+                                final int type,
+                                final int stride,
+                                final long bufferOffset)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glTexCoordPointer(final int size,
+                                  final int type,
+                                  final int stride,
+                                  final long bufferOffset)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glColorPointer(final int size,
+                               final int type,
+                               final int stride,
+                               final long bufferOffset)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glDisable(final int cap)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public int GL_LINEAR()
+    {
+        return 0x2601;
+    }
+
+    @Override
+    public int GL_CLAMP_TO_EDGE()
+    {
+        return 0x812F;
+    }
+
+    @Override
+    public int GL_TEXTURE0()
+    {
+        return 0x84C0;
+    }
+
+    @Override
+    public int GL_TEXTURE1()
+    {
+        return 0x84C1;
+    }
+
+    @Override
+    public void glActiveTexture(final int texture)
+    {
+        this.callCount++;
+    }
+
+    @Override
+    public void glClientActiveTexture(final int texture)
+    {
+        this.callCount++;
+    }
+}
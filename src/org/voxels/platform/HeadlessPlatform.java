@@ -0,0 +1,231 @@
+/**
+ * this file is part of voxels
+ * 
+ * voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels.platform;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import org.voxels.Main;
+import org.voxels.MenuScreen;
+
+/** a <code>Platform</code> that doesn't need a display, sound, or native
+ * libraries. Time only advances when <code>update</code> is called, by one
+ * frame each time, so runs are repeatable.
+ * <p>
+ * system properties :
+ * <ul>
+ * <li><code>voxels.headless.fps</code> : frames per simulated second</li>
+ * <li><code>voxels.headless.frames</code> : number of frames before close is
+ * requested or 0 to never request it</li>
+ * <li><code>voxels.headless.width</code> and
+ * <code>voxels.headless.height</code> : the screen size</li>
+ * <li><code>voxels.headless.settingsDir</code> : the user settings
+ * directory</li>
+ * </ul>
+ * 
+ * @author jacob */
+public class HeadlessPlatform implements Platform
+{
+    private final HeadlessOpenGL opengl = new HeadlessOpenGL();
+    private final HeadlessMouse mouse = new HeadlessMouse();
+    private final HeadlessKeyboard keyboard = new HeadlessKeyboard();
+    private final int framesPerSecond = Math.max(1,
+                                                 Integer.getInteger("voxels.headless.fps",
+                                                                    60));
+    private final long maxFrameCount = Long.getLong("voxels.headless.frames", 0);
+    private final int screenWidth = Integer.getInteger("voxels.headless.width",
+                                                       1024);
+    private final int screenHeight = Integer.getInteger("voxels.headless.height",
+                                                        768);
+    private long frameCount = 0;
+    private boolean mouseVisible = true;
+    private boolean fullscreen = false;
+
+    /**
+     * 
+     */
+    public HeadlessPlatform()
+    {
+    }
+
+    /** @return the number of frames so far */
+    public synchronized long getFrameCount()
+    {
+        return this.frameCount;
+    }
+
+    @Override
+    public boolean isTouchScreen()
+    {
+        return false;
+    }
+
+    @Override
+    public ByteBuffer createByteBuffer(final int size)
+    {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public FloatBuffer createFloatBuffer(final int size)
+    {
+        return createByteBuffer(size * 4).asFloatBuffer();
+    }
+
+    @Override
+    public void setIcon(final ByteBuffer[] icon)
+    {
+    }
+
+    @Override
+    public File getUserSettingsDir()
+    {
+        return new File(System.getProperty("voxels.headless.settingsDir",
+                                           System.getProperty("java.io.tmpdir")));
+    }
+
+    @Override
+    public HeadlessOpenGL getOpenGL()
+    {
+        return this.opengl;
+    }
+
+    @Override
+    public HeadlessMouse getMouse()
+    {
+        return this.mouse;
+    }
+
+    @Override
+    public HeadlessKeyboard getKeyboard()
+    {
+        return this.keyboard;
+    }
+
+    @Override
+    public void setMouseVisible(final boolean visible)
+    {
+        this.mouseVisible = visible;
+    }
+
+    @Override
+    public boolean isMouseVisible()
+    {
+        return this.mouseVisible;
+    }
+
+    @Override
+    public MenuScreen getChangeScreenResolutionMenu()
+    {
+        return null;
+    }
+
+    @Override
+    public boolean hasChangeScreenResolutionMenu()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isFullscreen()
+    {
+        return this.fullscreen;
+    }
+
+    @Override
+    public void setFullscreen(final boolean fullscreen)
+    {
+        this.fullscreen = fullscreen;
+    }
+
+    @Override
+    public void setVSyncEnabled(final boolean vsync)
+    {
+    }
+
+    @Override
+    public synchronized void update()
+    {
+        this.frameCount++;
+    }
+
+    @Override
+    public void waitForNextFrame()
+    {
+    }
+
+    @Override
+    public synchronized boolean isCloseRequested()
+    {
+        return this.maxFrameCount > 0 && this.frameCount >= this.maxFrameCount;
+    }
+
+    @Override
+    public void init()
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+
+    @Override
+    public InputStream
+        getFileInputStream(final String filename) throws FileNotFoundException
+    {
+        InputStream in = Main.class.getResourceAsStream(File.separator + "res"
+                + File.separator + filename);
+        if(in == null)
+        {
+            in = new FileInputStream("res" + File.separator + filename);
+        }
+        return in;
+    }
+
+    @Override
+    public Audio loadAudio(final InputStream is) throws IOException
+    {
+        return null;
+    }
+
+    @Override
+    public Audio loadAudioStream(final String name) throws IOException
+    {
+        return null;
+    }
+
+    @Override
+    public synchronized double Timer()
+    {
+        return (double)this.frameCount / this.framesPerSecond;
+    }
+
+    @Override
+    public int getScreenWidth()
+    {
+        return this.screenWidth;
+    }
+
+    @Override
+    public int getScreenHeight()
+    {
+        return this.screenHeight;
+    }
+}
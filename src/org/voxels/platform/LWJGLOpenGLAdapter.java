@@ -20,6 +20,10 @@ import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 
 import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GLContext;
 
 /** @author jacob */
 public class LWJGLOpenGLAdapter implements OpenGL
@@ -498,4 +502,151 @@ public class LWJGLOpenGLAdapter implements OpenGL
     {
         return GL11.GL_POINTS;
     }
+
+    @Override
+    public boolean supportsVertexBufferObjects()
+    {
+        return GLContext.getCapabilities().OpenGL15;
+    }
+
+    @Override
+    public int GL_ARRAY_BUFFER()
+    {
+        return GL15.GL_ARRAY_BUFFER;
+    }
+
+    @Override
+    public int GL_STATIC_DRAW()
+    {
+        return GL15.GL_STATIC_DRAW;
+    }
+
+    @Override
+    public int glGenBuffers()
+    {
+        return GL15.glGenBuffers();
+    }
+
+    @Override
+    public void glDeleteBuffers(final int buffer)
+    {
+        GL15.glDeleteBuffers(buffer);
+    }
+
+    @Override
+    public void glBindBuffer(final int target, final int buffer)
+    {
+        GL15.glBindBuffer(target, buffer);
+    }
+
+    @Override
+    public void glBufferData(final int target,
+                             final FloatBuffer data,
+                             final int usage)
+    {
+        GL15.glBufferData(target, data, usage);
+    }
+
+    @Override
+    public void glBufferSubData(final int target,
+                                final long offset,
+                                final FloatBuffer data)
+    {
+        GL15.glBufferSubData(target, offset, data);
+    }
+
+    @Override
+    public void glBufferData(final int target,
+                             final ByteBuffer data,
+                             final int usage)
+    {
+        GL15.glBufferData(target, data, usage);
+    }
+
+    @Override
+    public int GL_FLOAT()
+    {
+        return GL11.GL_FLOAT;
+    }
+
+    @Override
+    public int GL_SHORT()
+    {
+        return GL11.GL_SHORT;
+    }
+
+    @Override
+    public int GL_TEXTURE()
+    {
+        return GL11.GL_TEXTURE;
+    }
+
+    @Override
+    public void glVertexPointer(final int size,
+                                final int type,
+                                final int stride,
+                                final long bufferOffset)
+    {
+        GL11.glVertexPointer(size, type, stride, bufferOffset);
+    }
+
+    @Override
+    public void glTexCoordPointer(final int size,
+                                  final int type,
+                                  final int stride,
+                                  final long bufferOffset)
+    {
+        GL11.glTexCoordPointer(size, type, stride, bufferOffset);
+    }
+
+    @Override
+    public void glColorPointer(final int size,
+                               final int type,
+                               final int stride,
+                               final long bufferOffset)
+    {
+        GL11.glColorPointer(size, type, stride, bufferOffset);
+    }
+
+    @Override
+    public void glDisable(final int cap)
+    {
+        GL11.glDisable(cap);
+    }
+
+    @Override
+    public int GL_LINEAR()
+    {
+        return GL11.GL_LINEAR;
+    }
+
+    @Override
+    public int GL_CLAMP_TO_EDGE()
+    {
+        return GL12.GL_CLAMP_TO_EDGE;
+    }
+
+    @Override
+    public int GL_TEXTURE0()
+    {
+        return GL13.GL_TEXTURE0;
+    }
+
+    @Override
+    public int GL_TEXTURE1()
+    {
+        return GL13.GL_TEXTURE1;
+    }
+
+    @Override
+    public void glActiveTexture(final int texture)
+    {
+        GL13.glActiveTexture(texture);
+    }
+
+    @Override
+    public void glClientActiveTexture(final int texture)
+    {
+        GL13.glClientActiveTexture(texture);
+    }
 }
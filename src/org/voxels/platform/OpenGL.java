@@ -367,4 +367,126 @@ public interface OpenGL
     public void releaseContext();
 
     public int GL_POINTS();
+
+    /** @return true if the buffer object functions can be used */
+    public boolean supportsVertexBufferObjects();
+
+    /** @return GL_ARRAY_BUFFER */
+    public int GL_ARRAY_BUFFER();
+
+    /** @return GL_STATIC_DRAW */
+    public int GL_STATIC_DRAW();
+
+    /** @return buffer */
+    public int glGenBuffers();
+
+    /** @param buffer
+     *            buffer */
+    public void glDeleteBuffers(int buffer);
+
+    /** @param target
+     *            target
+     * @param buffer
+     *            buffer */
+    public void glBindBuffer(int target, int buffer);
+
+    /** @param target
+     *            target
+     * @param data
+     *            data
+     * @param usage
+     *            usage */
+    public void glBufferData(int target, FloatBuffer data, int usage);
+
+    /** @param target
+     *            target
+     * @param offset
+     *            offset in bytes
+     * @param data
+     *            data */
+    public void glBufferSubData(int target, long offset, FloatBuffer data);
+
+    /** @param target
+     *            target
+     * @param data
+     *            data
+     * @param usage
+     *            usage */
+    public void glBufferData(int target, ByteBuffer data, int usage);
+
+    /** @return GL_FLOAT */
+    public int GL_FLOAT();
+
+    /** @return GL_SHORT */
+    public int GL_SHORT();
+
+    /** @return GL_TEXTURE */
+    public int GL_TEXTURE();
+
+    /** @param size
+     *            the number of coordinates per vertex
+     * @param type
+     *            the type of each coordinate
+     * @param stride
+     *            the number of bytes from one vertex to the next or 0 if
+     *            they are packed
+     * @param bufferOffset
+     *            offset in bytes into the bound array buffer */
+    public void glVertexPointer(int size,
+                                int type,
+                                int stride,
+                                long bufferOffset);
+
+    /** @param size
+     *            the number of coordinates per vertex
+     * @param type
+     *            the type of each coordinate
+     * @param stride
+     *            the number of bytes from one vertex to the next or 0 if
+     *            they are packed
+     * @param bufferOffset
+     *            offset in bytes into the bound array buffer */
+    public void glTexCoordPointer(int size,
+                                  int type,
+                                  int stride,
+                                  long bufferOffset);
+
+    /** @param size
+     *            the number of components per vertex
+     * @param type
+     *            the type of each component. integer types are normalized.
+     * @param stride
+     *            the number of bytes from one vertex to the next or 0 if
+     *            they are packed
+     * @param bufferOffset
+     *            offset in bytes into the bound array buffer */
+    public void glColorPointer(int size,
+                               int type,
+                               int stride,
+                               long bufferOffset);
+
+    /** @param cap
+     *            cap */
+    public void glDisable(int cap);
+
+    /** @return GL_LINEAR */
+    public int GL_LINEAR();
+
+    /** @return GL_CLAMP_TO_EDGE */
+    public int GL_CLAMP_TO_EDGE();
+
+    /** @return GL_TEXTURE0 */
+    public int GL_TEXTURE0();
+
+    /** @return GL_TEXTURE1 */
+    public int GL_TEXTURE1();
+
+    /** @param texture
+     *            the texture unit to make active */
+    public void glActiveTexture(int texture);
+
+    /** @param texture
+     *            the texture unit that the client state and texture
+     *            coordinate pointer functions change */
+    public void glClientActiveTexture(int texture);
 }
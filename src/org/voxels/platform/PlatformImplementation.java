@@ -23,8 +23,13 @@ public final class PlatformImplementation
     {
     }
 
+    /** @return the headless platform if the <code>voxels.platform</code>
+     *         system property is <code>headless</code>, otherwise the LWJGL
+     *         platform */
     public static Platform makePlatform()
     {
+        if("headless".equals(System.getProperty("voxels.platform")))
+            return new HeadlessPlatform();
         return new LWJGLPlatform();
     }
 }
@@ -0,0 +1,280 @@
+/**
+ * this file is part of Voxels
+ * 
+ * Voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+import org.voxels.platform.HeadlessOpenGL;
+
+/** checks <code>DisplayList.sortBackToFront</code> with and without the
+ * texture atlas and that rendering doesn't upload the triangles again
+ * 
+ * @author jacob */
+public class DisplayListTest
+{
+    private static final int seed = 12345;
+    private static final int triangleCount = 300;
+    private static final int cellSize = 16;
+    private final boolean useTextureAtlas = RenderingStream.USE_TEXTURE_ATLAS;
+    private final boolean useCompactVertices = RenderingStream.USE_COMPACT_VERTICES;
+
+    @After
+    public void restoreOptions()
+    {
+        RenderingStream.USE_TEXTURE_ATLAS = this.useTextureAtlas;
+        RenderingStream.USE_COMPACT_VERTICES = this.useCompactVertices;
+    }
+
+    /** @return a display list with random triangles in the cell at the
+     *         origin */
+    private static DisplayList makeTriangles()
+    {
+        Random rand = new Random(seed);
+        TextureAtlas.TextureHandle[] textures = new TextureAtlas.TextureHandle[]
+        {
+            BlockType.BTStone.textures[0],
+            BlockType.BTDirt.textures[0],
+            BlockType.BTSand.textures[0],
+        };
+        RenderingStream rs = RenderingStream.allocate();
+        for(int i = 0; i < triangleCount; i++)
+        {
+            rs.beginTriangle(textures[rand.nextInt(textures.length)]);
+            // some triangles repeat their texture and are moved into it
+            float uOffset = rand.nextInt(5) == 0 ? 1 : 0;
+            float x = rand.nextInt(cellSize);
+            float y = rand.nextInt(cellSize);
+            float z = rand.nextInt(cellSize);
+            for(int j = 0; j < 3; j++)
+                rs.vertex(x + rand.nextFloat(),
+                          y + rand.nextFloat(),
+                          z + rand.nextFloat(),
+                          uOffset + rand.nextFloat(),
+                          rand.nextFloat(),
+                          rand.nextFloat(),
+                          rand.nextFloat(),
+                          rand.nextFloat(),
+                          0.5f,
+                          rand.nextFloat(),
+                          rand.nextFloat());
+            rs.endTriangle();
+        }
+        DisplayList retval = rs.record(DisplayList.allocate());
+        RenderingStream.free(rs);
+        return retval;
+    }
+
+    /** @return a description of each triangle in <code>dl</code>, in drawing
+     *         order */
+    private static ArrayList<String> getTriangles(final DisplayList dl)
+    {
+        ArrayList<String> retval = new ArrayList<String>();
+        for(int run = 0, tri = 0; run < dl.textureCount; run++)
+        {
+            for(int i = 0; i < dl.textureTriangleCount[run]; i++, tri++)
+            {
+                StringBuilder sb = new StringBuilder();
+                sb.append(System.identityHashCode(dl.textures[run]));
+                sb.append(run < dl.atlasTextureCount ? " atlas" : "");
+                for(int j = 0; j < 9; j++)
+                    sb.append(' ').append(dl.vertexArray[tri * 9 + j]);
+                for(int j = 0; j < 6; j++)
+                    sb.append(' ').append(dl.texCoordArray[tri * 6 + j]);
+                for(int j = 0; j < 12; j++)
+                    sb.append(' ').append(dl.colorArray[tri * 12 + j]);
+                for(int j = 0; j < 6; j++)
+                    sb.append(' ').append(dl.lightArray[tri * 6 + j]);
+                retval.add(sb.toString());
+            }
+        }
+        return retval;
+    }
+
+    private static float getDistanceSquared(final DisplayList dl,
+                                            final int tri,
+                                            final Vector camera)
+    {
+        float x = 0, y = 0, z = 0;
+        for(int i = tri * 9; i < tri * 9 + 9; i += 3)
+        {
+            x += dl.vertexArray[i];
+            y += dl.vertexArray[i + 1];
+            z += dl.vertexArray[i + 2];
+        }
+        x = x / 3 - camera.getX();
+        y = y / 3 - camera.getY();
+        z = z / 3 - camera.getZ();
+        return x * x + y * y + z * z;
+    }
+
+    /** @return the number of triangles in the sort ranges of
+     *         <code>dl</code> that are nearer to <code>camera</code> than the
+     *         triangle after them */
+    private static int countUnsorted(final DisplayList dl, final Vector camera)
+    {
+        int retval = 0;
+        int tri = 0, run = 0;
+        if(RenderingStream.USE_TEXTURE_ATLAS)
+        {
+            for(int i = 1; i < dl.atlasTriangleCount; i++)
+            {
+                float previous = getDistanceSquared(dl, i - 1, camera);
+                if(getDistanceSquared(dl, i, camera) > previous)
+                    retval++;
+            }
+            tri = dl.atlasTriangleCount;
+            run = dl.atlasTextureCount;
+        }
+        for(; run < dl.textureCount; run++)
+        {
+            int end = tri + dl.textureTriangleCount[run];
+            for(int i = tri + 1; i < end; i++)
+            {
+                float previous = getDistanceSquared(dl, i - 1, camera);
+                if(getDistanceSquared(dl, i, camera) > previous)
+                    retval++;
+            }
+            tri = end;
+        }
+        return retval;
+    }
+
+    private static void checkSortsBackToFront()
+    {
+        DisplayList dl = makeTriangles();
+        Vector camera = Vector.allocate(3.5f, 20.2f, -4.1f);
+        try
+        {
+            ArrayList<String> before = getTriangles(dl);
+            dl.sortBackToFront(camera, cellSize);
+            ArrayList<String> after = getTriangles(dl);
+            assertEquals("the triangles aren't back to front",
+                         0,
+                         countUnsorted(dl, camera));
+            Collections.sort(before);
+            Collections.sort(after);
+            assertEquals("sorting changed the triangles", before, after);
+        }
+        finally
+        {
+            camera.free();
+            dl.free();
+        }
+    }
+
+    /** sorts from one corner of a cell, then checks that moving to the other
+     * corner doesn't sort again, even though the order is wrong there, and
+     * that moving into the next cell does */
+    private static void checkSortsOnlyWhenCrossingCell()
+    {
+        DisplayList dl = makeTriangles();
+        Vector camera = Vector.allocate(0.5f, 0.5f, 0.5f);
+        try
+        {
+            dl.sortBackToFront(camera, cellSize);
+            ArrayList<String> before = getTriangles(dl);
+            camera.set(cellSize - 0.5f, cellSize - 0.5f, cellSize - 0.5f);
+            assertTrue(countUnsorted(dl, camera) > 0);
+            dl.sortBackToFront(camera, cellSize);
+            assertEquals("the triangles were sorted again when the camera moved in the same cell",
+                         before,
+                         getTriangles(dl));
+            camera.set(cellSize + 0.5f, cellSize - 0.5f, cellSize - 0.5f);
+            dl.sortBackToFront(camera, cellSize);
+            assertEquals("the triangles weren't sorted again when the camera moved to another cell",
+                         0,
+                         countUnsorted(dl, camera));
+        }
+        finally
+        {
+            camera.free();
+            dl.free();
+        }
+    }
+
+    @Test
+    public void sortsBackToFrontWithAtlas()
+    {
+        RenderingStream.USE_TEXTURE_ATLAS = true;
+        checkSortsBackToFront();
+    }
+
+    @Test
+    public void sortsBackToFrontWithoutAtlas()
+    {
+        RenderingStream.USE_TEXTURE_ATLAS = false;
+        checkSortsBackToFront();
+    }
+
+    @Test
+    public void sortsOnlyWhenCrossingCellWithAtlas()
+    {
+        RenderingStream.USE_TEXTURE_ATLAS = true;
+        checkSortsOnlyWhenCrossingCell();
+    }
+
+    @Test
+    public void sortsOnlyWhenCrossingCellWithoutAtlas()
+    {
+        RenderingStream.USE_TEXTURE_ATLAS = false;
+        checkSortsOnlyWhenCrossingCell();
+    }
+
+    /** renders a display list from its buffer object at every sunlight
+     * factor and checks that only the first render uploads anything */
+    private static void checkSunlightFactorDoesNotUpload()
+    {
+        HeadlessOpenGL opengl = (HeadlessOpenGL)Main.opengl;
+        DisplayList dl = makeTriangles();
+        try
+        {
+            opengl.resetCounts();
+            dl.render(15);
+            assertTrue(opengl.getTransferredByteCount() > 0);
+            long drawCallCount = opengl.getDrawCallCount();
+            opengl.resetCounts();
+            for(int sunlightFactor = 0; sunlightFactor <= 15; sunlightFactor++)
+                dl.render(sunlightFactor);
+            assertEquals(0, opengl.getTransferredByteCount());
+            assertEquals(16 * drawCallCount, opengl.getDrawCallCount());
+        }
+        finally
+        {
+            dl.free();
+        }
+    }
+
+    @Test
+    public void sunlightFactorDoesNotUploadCompactVertices()
+    {
+        RenderingStream.USE_COMPACT_VERTICES = true;
+        checkSunlightFactorDoesNotUpload();
+    }
+
+    @Test
+    public void sunlightFactorDoesNotUploadFloatVertices()
+    {
+        RenderingStream.USE_COMPACT_VERTICES = false;
+        checkSunlightFactorDoesNotUpload();
+    }
+}
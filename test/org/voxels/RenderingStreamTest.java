@@ -0,0 +1,317 @@
+/**
+ * this file is part of Voxels
+ * 
+ * Voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** checks the <code>RenderingStream</code> matrix stack against
+ * <code>Matrix</code> and how it keeps triangles a texture at a time
+ * 
+ * @author jacob */
+public class RenderingStreamTest
+{
+    private static final int seed = 12345;
+    private static final int count = 1000;
+    private static final float maxError = 1e-4f;
+    private static final int threadCount = 4;
+    private static final int textureCount = 100;
+    private final boolean useTextureAtlas = RenderingStream.USE_TEXTURE_ATLAS;
+
+    @After
+    public void restoreTextureAtlas()
+    {
+        RenderingStream.USE_TEXTURE_ATLAS = this.useTextureAtlas;
+    }
+
+    private static Matrix makeRandomMatrix(final Matrix dest,
+                                           final Random rand)
+    {
+        for(int y = 0; y < 3; y++)
+        {
+            for(int x = 0; x < 4; x++)
+                dest.set(x, y, rand.nextFloat() * 4 - 2);
+        }
+        return dest;
+    }
+
+    private static float getError(final Matrix expected, final Matrix actual)
+    {
+        float retval = 0;
+        for(int y = 0; y < 3; y++)
+        {
+            for(int x = 0; x < 4; x++)
+                retval = Math.max(retval, Math.abs(expected.get(x, y)
+                        - actual.get(x, y)));
+        }
+        return retval;
+    }
+
+    private static float getError(final Vector expected,
+                                  final float[] actual,
+                                  final int index)
+    {
+        return Math.max(Math.abs(expected.getX() - actual[index]),
+                        Math.max(Math.abs(expected.getY() - actual[index + 1]),
+                                 Math.abs(expected.getZ() - actual[index + 2])));
+    }
+
+    /** pushes, concatenates, draws and pops with random matrices, and
+     * compares the matrices and the transformed vertices with what
+     * <code>Matrix</code> gives
+     * 
+     * @return the largest difference found */
+    private static float runMatrixStack(final Random rand)
+    {
+        Matrix a = Matrix.allocate();
+        Matrix b = Matrix.allocate();
+        Matrix c = Matrix.allocate();
+        Matrix expected = Matrix.allocate();
+        Matrix t1 = Matrix.allocate();
+        Vector p = Vector.allocate();
+        float error = 0;
+        for(int i = 0; i < count; i++)
+        {
+            makeRandomMatrix(a, rand);
+            makeRandomMatrix(b, rand);
+            makeRandomMatrix(c, rand);
+            RenderingStream rs = RenderingStream.allocate();
+            rs.setMatrix(a).concatMatrix(b);
+            int depth = 1 + rand.nextInt(20);
+            for(int j = 0; j < depth; j++)
+                rs.pushMatrixStack();
+            rs.concatMatrix(c);
+            c.concat(expected, b.concat(t1, a));
+            error = Math.max(error, getError(expected, rs.getMatrix()));
+            float x = rand.nextFloat();
+            float y = rand.nextFloat();
+            float z = rand.nextFloat();
+            rs.beginTriangle(RenderingStream.NO_TEXTURE);
+            for(int j = 0; j < 3; j++)
+                rs.vertex(x, y, z, 0, 0, 1, 1, 1, 1);
+            rs.endTriangle();
+            expected.apply(p, x, y, z);
+            for(int j = 0; j < depth; j++)
+                rs.popMatrixStack();
+            error = Math.max(error, getError(b.concat(t1, a), rs.getMatrix()));
+            // adding a stream transforms its triangles by the current matrix
+            RenderingStream outer = RenderingStream.allocate();
+            outer.setMatrix(makeRandomMatrix(a, rand));
+            outer.add(rs);
+            a.apply(p, p);
+            DisplayList dl = outer.record(DisplayList.allocate());
+            for(int j = 0; j < 3; j++)
+                error = Math.max(error, getError(p, dl.vertexArray, 3 * j));
+            dl.free();
+            RenderingStream.free(outer);
+            RenderingStream.free(rs);
+        }
+        a.free();
+        b.free();
+        c.free();
+        expected.free();
+        t1.free();
+        p.free();
+        return error;
+    }
+
+    @Test
+    public void matrixStackMatchesMatrix()
+    {
+        assertEquals(0, runMatrixStack(new Random(seed)), maxError);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void poppingLastMatrixThrows()
+    {
+        RenderingStream rs = RenderingStream.allocate();
+        try
+        {
+            rs.popMatrixStack();
+        }
+        finally
+        {
+            RenderingStream.free(rs);
+        }
+    }
+
+    /** runs the matrix stack on several threads at once, each with its own
+     * stream, so a stream sharing its matrices with another would give the
+     * wrong results */
+    @Test
+    public void concurrentStreamsMatchMatrix() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try
+        {
+            final CyclicBarrier start = new CyclicBarrier(threadCount);
+            ArrayList<Future<Float>> errors = new ArrayList<Future<Float>>();
+            for(int i = 0; i < threadCount; i++)
+            {
+                final int threadSeed = seed + i;
+                errors.add(executor.submit(new Callable<Float>()
+                {
+                    @Override
+                    public Float call() throws Exception
+                    {
+                        start.await();
+                        return Float.valueOf(runMatrixStack(new Random(threadSeed)));
+                    }
+                }));
+            }
+            for(Future<Float> error : errors)
+                assertEquals(0, error.get().floatValue(), maxError);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /** @return the area of the triangle at <code>index</code> in
+     *         <code>array</code>, with <code>stride</code> floats from one
+     *         vertex to the next and <code>dimensions</code> coordinates
+     *         each */
+    private static float getArea(final float[] array,
+                                 final int index,
+                                 final int stride,
+                                 final int dimensions)
+    {
+        float[] a = new float[3], b = new float[3];
+        for(int i = 0; i < dimensions; i++)
+        {
+            a[i] = array[index + stride + i] - array[index + i];
+            b[i] = array[index + 2 * stride + i] - array[index + i];
+        }
+        float x = a[1] * b[2] - a[2] * b[1];
+        float y = a[2] * b[0] - a[0] * b[2];
+        float z = a[0] * b[1] - a[1] * b[0];
+        return (float)Math.sqrt(x * x + y * y + z * z) / 2;
+    }
+
+    /** draws triangles that repeat their textures and checks that they are
+     * all cut into triangles inside the texture atlas without losing any of
+     * their area */
+    @Test
+    public void repeatedTexturesAreTiledIntoAtlas()
+    {
+        RenderingStream.USE_TEXTURE_ATLAS = true;
+        Random rand = new Random(seed);
+        RenderingStream rs = RenderingStream.allocate();
+        float[] triangle = new float[3 * 5];
+        float area = 0, textureArea = 0;
+        for(int i = 0; i < count; i++)
+        {
+            for(int j = 0; j < triangle.length; j++)
+                triangle[j] = rand.nextFloat() * 8 - 4;
+            area += getArea(triangle, 0, 5, 3);
+            textureArea += getArea(triangle, 3, 5, 2);
+            rs.beginTriangle(BlockType.BTStone.textures[0]);
+            for(int j = 0; j < triangle.length; j += 5)
+                rs.vertex(triangle[j],
+                          triangle[j + 1],
+                          triangle[j + 2],
+                          triangle[j + 3],
+                          triangle[j + 4],
+                          1,
+                          1,
+                          1,
+                          1);
+            rs.endTriangle();
+        }
+        DisplayList dl = rs.record(DisplayList.allocate());
+        RenderingStream.free(rs);
+        assertEquals(dl.textureCount, dl.atlasTextureCount);
+        assertEquals(dl.triangleCount, dl.atlasTriangleCount);
+        float tiledArea = 0, tiledTextureArea = 0;
+        for(int tri = 0; tri < dl.triangleCount; tri++)
+        {
+            tiledArea += getArea(dl.vertexArray, tri * 9, 3, 3);
+            tiledTextureArea += getArea(dl.texCoordArray, tri * 6, 2, 2);
+        }
+        for(int i = 0; i < dl.triangleCount * 6; i++)
+        {
+            assertTrue(dl.texCoordArray[i] >= 0);
+            assertTrue(dl.texCoordArray[i] <= 1);
+        }
+        dl.free();
+        assertEquals(1, tiledArea / area, maxError);
+        assertEquals(1, tiledTextureArea / textureArea, maxError);
+    }
+
+    /** a texture whose hash code is the same as every other one's */
+    private static final class CollidingTexture implements
+        TextureAtlas.TextureHandle
+    {
+        public CollidingTexture()
+        {
+        }
+
+        @Override
+        public Image getImage()
+        {
+            return null;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 0;
+        }
+    }
+
+    /** draws triangles with many textures that have the same hash code
+     * without the texture atlas and checks that they are kept a texture at a
+     * time in the order the textures were first used */
+    @Test
+    public void keepsTrianglesPerTextureWithoutAtlas()
+    {
+        RenderingStream.USE_TEXTURE_ATLAS = false;
+        TextureAtlas.TextureHandle[] textures = new TextureAtlas.TextureHandle[textureCount];
+        for(int i = 0; i < textureCount; i++)
+            textures[i] = new CollidingTexture();
+        RenderingStream rs = RenderingStream.allocate();
+        for(int i = 0; i < count; i++)
+        {
+            rs.beginTriangle(textures[i % textureCount]);
+            for(int j = 0; j < 3; j++)
+                rs.vertex(i, j, 0, 0, 0, 1, 1, 1, 1);
+            rs.endTriangle();
+        }
+        DisplayList dl = rs.record(DisplayList.allocate());
+        RenderingStream.free(rs);
+        assertEquals(0, dl.atlasTextureCount);
+        assertEquals(textureCount, dl.textureCount);
+        for(int texture = 0, tri = 0; texture < textureCount; texture++)
+        {
+            assertSame(textures[texture], dl.textures[texture]);
+            assertEquals(count / textureCount,
+                         dl.textureTriangleCount[texture]);
+            for(int i = 0; i < dl.textureTriangleCount[texture]; i++, tri++)
+                assertEquals(texture + i * textureCount,
+                             dl.vertexArray[tri * 9],
+                             0);
+        }
+        dl.free();
+    }
+}
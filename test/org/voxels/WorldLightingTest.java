@@ -0,0 +1,402 @@
+/**
+ * this file is part of Voxels
+ * 
+ * Voxels is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Voxels is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Voxels.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voxels;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.voxels.generate.Rand;
+
+/** checks the lighting that the lighting threads publish to the chunks
+ * against a simple single-threaded propagation of the same lighting rules.
+ * inside the generated area, the lighting only has one solution for the
+ * lighting at its edges, so the reference starts from the edges and spreads
+ * the light until nothing changes.
+ * 
+ * @author jacob */
+public class WorldLightingTest
+{
+    private static final int seed = 12345;
+    private static final int chunkSize = World.generatedChunkSize;
+    /** the generated area, in blocks */
+    private static final int minX = -2 * chunkSize, maxX = 2 * chunkSize;
+    private static final int minY = -World.Depth, maxY = 32;
+    private static final int minZ = -2 * chunkSize, maxZ = 2 * chunkSize;
+    private static final int sizeX = maxX - minX, sizeY = maxY - minY,
+            sizeZ = maxZ - minZ;
+    private static final int batchCount = 128;
+    private static final int batchSize = 16;
+    /** the size of the box of changed blocks. it's centered on a chunk
+     * corner, so the changes spread light across chunk borders in every
+     * direction. */
+    private static final int boxSize = 16;
+
+    private static boolean isGenerated(final int x, final int y, final int z)
+    {
+        return World.world.getBlock(x, y, z) != null;
+    }
+
+    @BeforeClass
+    public static void generateWorld()
+    {
+        World.clear(seed);
+        Rand.Settings settings = Rand.Settings.allocate();
+        World.world.setLandGeneratorSettings(settings, true);
+        settings.free();
+        for(;;)
+        {
+            int missing = 0;
+            for(int x = minX; x < maxX; x += chunkSize)
+            {
+                for(int y = minY; y < maxY; y += chunkSize)
+                {
+                    for(int z = minZ; z < maxZ; z += chunkSize)
+                    {
+                        if(isGenerated(x, y, z))
+                            continue;
+                        missing++;
+                        World.world.flagGenerate(x, y, z);
+                    }
+                }
+            }
+            if(missing == 0)
+                break;
+            World.world.generateChunks();
+            try
+            {
+                Thread.sleep(1);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        World.world.updateLight();
+    }
+
+    /** the lighting of every block in the generated area
+     * 
+     * @author jacob */
+    private static final class Lighting
+    {
+        public final int[] key = new int[sizeX * sizeY * sizeZ];
+        public final int[] sunlight = new int[sizeX * sizeY * sizeZ];
+        public final int[] scatteredSunlight = new int[sizeX * sizeY * sizeZ];
+        public final int[] light = new int[sizeX * sizeY * sizeZ];
+
+        public Lighting()
+        {
+        }
+
+        /** @return the lighting that's in the world's chunks */
+        public static Lighting read()
+        {
+            Lighting retval = new Lighting();
+            for(int x = 0; x < sizeX; x++)
+            {
+                for(int y = 0; y < sizeY; y++)
+                {
+                    for(int z = 0; z < sizeZ; z++)
+                    {
+                        int bx = x + minX, by = y + minY, bz = z + minZ;
+                        Block b = World.world.getBlock(bx, by, bz);
+                        assertNotNull(b);
+                        int index = getIndex(x, y, z);
+                        retval.key[index] = b.getLightingKey();
+                        // the stored direct sunlight is only kept up to date
+                        // below the sunlight height of each column
+                        retval.sunlight[index] = World.world.GetSunlight(bx,
+                                                                         by,
+                                                                         bz);
+                        retval.scatteredSunlight[index] = World.world.GetScatteredSunlight(bx,
+                                                                                           by,
+                                                                                           bz);
+                        retval.light[index] = World.world.GetLight(bx, by, bz);
+                    }
+                }
+            }
+            return retval;
+        }
+    }
+
+    private static int getIndex(final int x, final int y, final int z)
+    {
+        return x + sizeX * (y + sizeY * z);
+    }
+
+    /** @return if the block at (<code>x</code>, <code>y</code>,
+     *         <code>z</code>), relative to the generated area, has a neighbor
+     *         that isn't generated */
+    private static boolean isEdge(final int x, final int y, final int z)
+    {
+        return x == 0 || x == sizeX - 1 || z == 0 || z == sizeZ - 1
+                || y == sizeY - 1;
+    }
+
+    private static final int SUNLIGHT = 0, SCATTERED_SUNLIGHT = 1, LIGHT = 2;
+
+    private static int[] getChannel(final Lighting l, final int channel)
+    {
+        switch(channel)
+        {
+        case SUNLIGHT:
+            return l.sunlight;
+        case SCATTERED_SUNLIGHT:
+            return l.scatteredSunlight;
+        default:
+            return l.light;
+        }
+    }
+
+    /** @return the lighting of the block at (<code>x</code>, <code>y</code>,
+     *         <code>z</code>), relative to the generated area, in
+     *         <code>channel</code> of <code>l</code>, with the lighting of
+     *         the blocks above and below the world */
+    private static int getLighting(final Lighting l,
+                                   final int channel,
+                                   final int x,
+                                   final int y,
+                                   final int z)
+    {
+        if(y + minY < -World.Depth)
+            return 0;
+        if(y + minY >= World.Height)
+            return channel == LIGHT ? 0 : 15;
+        return getChannel(l, channel)[getIndex(x, y, z)];
+    }
+
+    /** @return the lighting that the lighting rules give the block at
+     *         (<code>x</code>, <code>y</code>, <code>z</code>) from its
+     *         neighbors in <code>l</code> */
+    private static int calcLighting(final Lighting l,
+                                    final int channel,
+                                    final int x,
+                                    final int y,
+                                    final int z)
+    {
+        int key = l.key[getIndex(x, y, z)];
+        if(channel == SUNLIGHT)
+            return Block.filterSunlightForKey(key,
+                                              getLighting(l,
+                                                          SUNLIGHT,
+                                                          x,
+                                                          y + 1,
+                                                          z));
+        int neighborValue = 0;
+        for(int orientation = 0; orientation < 6; orientation++)
+        {
+            neighborValue = Math.max(neighborValue,
+                                     getLighting(l,
+                                                 channel,
+                                                 x
+                                                         + Block.getOrientationDX(orientation),
+                                                 y
+                                                         + Block.getOrientationDY(orientation),
+                                                 z
+                                                         + Block.getOrientationDZ(orientation)));
+        }
+        int value = Math.max(0, neighborValue - 1);
+        if(channel == LIGHT)
+            return Block.filterLightForKey(key, value);
+        return Block.filterScatteredSunlightForKey(key,
+                                                   getLighting(l,
+                                                               SUNLIGHT,
+                                                               x,
+                                                               y + 1,
+                                                               z),
+                                                   value);
+    }
+
+    /** calculates the lighting inside the generated area from the lighting
+     * at its edges, one block at a time on this thread
+     * 
+     * @param actual
+     *            the lighting to take the blocks and the edges from
+     * @return the lighting that the lighting rules give */
+    private static Lighting calcReferenceLighting(final Lighting actual)
+    {
+        Lighting retval = new Lighting();
+        System.arraycopy(actual.key, 0, retval.key, 0, actual.key.length);
+        for(int channel = SUNLIGHT; channel <= LIGHT; channel++)
+        {
+            int[] values = getChannel(retval, channel);
+            int[] actualValues = getChannel(actual, channel);
+            for(int i = 0; i < values.length; i++)
+                values[i] = 0;
+            // the direct sunlight only comes from above, and the edges
+            // keep their lighting
+            for(int x = 0; x < sizeX; x++)
+            {
+                for(int z = 0; z < sizeZ; z++)
+                {
+                    for(int y = sizeY - 1; y >= 0; y--)
+                    {
+                        int index = getIndex(x, y, z);
+                        if(isEdge(x, y, z))
+                            values[index] = actualValues[index];
+                        else if(channel == SUNLIGHT)
+                            values[index] = calcLighting(retval,
+                                                         channel,
+                                                         x,
+                                                         y,
+                                                         z);
+                    }
+                }
+            }
+            if(channel == SUNLIGHT)
+                continue;
+            // spread the light until nothing changes, starting from no light
+            boolean changed = true;
+            while(changed)
+            {
+                changed = false;
+                for(int z = 0; z < sizeZ; z++)
+                {
+                    for(int y = 0; y < sizeY; y++)
+                    {
+                        for(int x = 0; x < sizeX; x++)
+                        {
+                            if(isEdge(x, y, z))
+                                continue;
+                            int index = getIndex(x, y, z);
+                            int value = calcLighting(retval, channel, x, y, z);
+                            if(value > values[index])
+                            {
+                                values[index] = value;
+                                changed = true;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return retval;
+    }
+
+    private static final String[] channelNames = new String[]
+    {
+        "sunlight", "scattered sunlight", "light"
+    };
+
+    private static void assertLightingMatchesReference()
+    {
+        Lighting actual = Lighting.read();
+        Lighting expected = calcReferenceLighting(actual);
+        for(int channel = SUNLIGHT; channel <= LIGHT; channel++)
+        {
+            int[] actualValues = getChannel(actual, channel);
+            int[] expectedValues = getChannel(expected, channel);
+            int differentCount = 0;
+            String firstDifference = null;
+            for(int z = 0; z < sizeZ; z++)
+            {
+                for(int y = 0; y < sizeY; y++)
+                {
+                    for(int x = 0; x < sizeX; x++)
+                    {
+                        int index = getIndex(x, y, z);
+                        if(actualValues[index] == expectedValues[index])
+                            continue;
+                        if(differentCount++ == 0)
+                            firstDifference = "(" + (x + minX) + ", "
+                                    + (y + minY) + ", " + (z + minZ)
+                                    + ") has " + actualValues[index]
+                                    + " instead of " + expectedValues[index];
+                    }
+                }
+            }
+            assertEquals("the " + channelNames[channel] + " of "
+                    + differentCount + " blocks is wrong, first "
+                    + firstDifference, 0, differentCount);
+        }
+    }
+
+    @Test
+    public void generatedLightingMatchesReference()
+    {
+        assertLightingMatchesReference();
+    }
+
+    /** changes blocks around a chunk corner while the lighting threads are
+     * running, then checks the published lighting */
+    @Test
+    public void backgroundLightingMatchesReference()
+    {
+        // center the box on the ground, at the chunk border closest to it,
+        // so light can spread through the air and the holes dug into the
+        // ground
+        int surfaceY = maxY - 1;
+        while(surfaceY > minY)
+        {
+            Block b = World.world.getBlock(0, surfaceY, 0);
+            if(b != null && b.getType() != BlockType.BTEmpty)
+                break;
+            surfaceY--;
+        }
+        int centerY = Math.round(surfaceY / (float)chunkSize) * chunkSize;
+        centerY = Math.max(minY + boxSize, Math.min(maxY - boxSize, centerY));
+        Random rand = new Random(seed);
+        for(int batch = 0; batch < batchCount; batch++)
+        {
+            for(int i = 0; i < batchSize; i++)
+            {
+                Block b;
+                switch(rand.nextInt(5))
+                {
+                case 0:
+                    b = Block.NewStone();
+                    break;
+                case 1:
+                    b = Block.NewGlass();
+                    break;
+                case 2:
+                    b = Block.NewTorch(4);
+                    break;
+                default:
+                    b = Block.NewEmpty();
+                    break;
+                }
+                World.world.setBlock(rand.nextInt(boxSize) - boxSize / 2,
+                                     centerY + rand.nextInt(boxSize) - boxSize
+                                             / 2,
+                                     rand.nextInt(boxSize) - boxSize / 2,
+                                     b);
+            }
+            World.world.updateLightInBackground();
+            // let some updates finish and change blocks while others are
+            // running
+            if(batch % 4 == 0)
+            {
+                try
+                {
+                    Thread.sleep(1);
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        World.world.updateLight();
+        assertLightingMatchesReference();
+    }
+}